@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Compares point and range lookups through a BTreeFile's IndexScan with a
+ * SeqScan and Filter over a HeapFile holding the same tuples.
+ * <p>
+ * Usage: java simpledb.BTreeBenchmark [rows] [lookups]
+ */
+public class BTreeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        Random rand = new Random(1);
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < rows; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(rand.nextInt(rows), i)));
+
+        Database.resetBufferPool(1000);
+        TupleDesc td = Utility.getTupleDesc(2);
+
+        File heapFile = File.createTempFile("bench", ".dat");
+        heapFile.deleteOnExit();
+        ZoneMap.sidecarFor(heapFile).deleteOnExit();
+        FreeSpaceMap.sidecarFor(heapFile).deleteOnExit();
+        HeapFileEncoder.convert(tuples, heapFile, BufferPool.getPageSize(), 2);
+        HeapFile hf = new HeapFile(heapFile, td);
+        Database.getCatalog().addTable(hf, "heap");
+
+        File treeFile = File.createTempFile("bench", ".btree");
+        treeFile.deleteOnExit();
+        BTreeFile bf = new BTreeFile(treeFile, 0, td);
+        Database.getCatalog().addTable(bf, "btree");
+
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        for (ArrayList<Integer> values : tuples) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(values.get(0)));
+            t.setField(1, new IntField(values.get(1)));
+            Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+        }
+        Database.getBufferPool().flushAllPages();
+        System.out.println(String.format("built B+ tree of %d rows in %d pages: %.1f ms",
+                rows, bf.numPages(), (System.nanoTime() - start) / 1e6));
+
+        int[] widths = new int[] { 0, rows / 1000, rows / 100 };
+        for (int width : widths) {
+            long seqNanos = 0, indexNanos = 0;
+            for (int i = 0; i < lookups; i++) {
+                int lo = rand.nextInt(rows);
+                Predicate[] preds;
+                if (width == 0)
+                    preds = new Predicate[] {
+                            new Predicate(0, Predicate.Op.EQUALS, new IntField(lo)) };
+                else
+                    preds = new Predicate[] {
+                            new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(lo)),
+                            new Predicate(0, Predicate.Op.LESS_THAN, new IntField(lo + width)) };
+
+                long t0 = System.nanoTime();
+                DbIterator seq = new SeqScan(tid, hf.getId(), "heap");
+                for (Predicate p : preds)
+                    seq = new Filter(p, seq);
+                int seqCount = count(seq);
+                long t1 = System.nanoTime();
+
+                DbIterator index = new IndexScan(tid, bf.getId(), "btree", preds);
+                int indexCount = count(index);
+                long t2 = System.nanoTime();
+
+                if (seqCount != indexCount)
+                    throw new IllegalStateException("SeqScan found " + seqCount
+                            + " tuples but IndexScan found " + indexCount);
+                seqNanos += t1 - t0;
+                indexNanos += t2 - t1;
+            }
+            System.out.println(String.format(
+                    "%s: SeqScan+Filter %.3f ms, IndexScan %.3f ms per lookup (%.1fx)",
+                    width == 0 ? "point lookup" : "range of " + width,
+                    seqNanos / 1e6 / lookups, indexNanos / 1e6 / lookups,
+                    (double) seqNanos / Math.max(1, indexNanos)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static int count(DbIterator it) throws DbException, TransactionAbortedException {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+}
@@ -0,0 +1,829 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeFile is a DbFile that stores tuples in a B+ tree, sorted on one key
+ * field. It supports point and range lookups on the key through
+ * {@link #indexIterator}, and uses the key automatically when a scan with
+ * pushed-down predicates ({@link #iterator(TransactionId, Predicate[])})
+ * constrains it.
+ * <p>
+ * Page 0 of the file is a {@link BTreeRootPtrPage} naming the root of the
+ * tree. The tuples live on {@link BTreeLeafPage}s, which are linked to their
+ * left and right siblings so range scans can walk the leaf level;
+ * {@link BTreeInternalPage}s hold the separator keys above them. Pages freed
+ * by merges are recorded in {@link BTreeHeaderPage}s and reused before the
+ * file is grown. All pages are read and modified through the BufferPool.
+ * <p>
+ * Inserting into a full leaf splits it, which may split its ancestors up to
+ * the root. A delete that leaves a page less than half full either steals
+ * entries from a sibling or merges with it, which may in turn shrink the
+ * parent; when the root is left with a single child that child becomes the
+ * new root.
+ * <p>
+ * As with HeapFile, the key of a tuple may repeat. Tuples that move between
+ * pages during splits, merges or redistribution get new RecordIds, so an
+ * iterator that is open while the tree is being restructured may miss or
+ * repeat tuples.
+ *
+ * @see BTreePageId
+ */
+public class BTreeFile implements DbFile, DbIndex {
+
+    private final File mFile;
+    private final TupleDesc mTupleDesc;
+    private final int mKeyField;
+    private final int mTableId;
+
+    /**
+     * Constructs a B+ tree file backed by the specified file. An empty file
+     * is initialized with an empty root leaf the first time it is used.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this tree
+     * @param keyField
+     *            the index of the field the tree is sorted on
+     * @param td
+     *            the schema of the tuples in the tree
+     */
+    public BTreeFile(File f, int keyField, TupleDesc td) {
+        mFile = f;
+        mKeyField = keyField;
+        mTupleDesc = td;
+        mTableId = f.getAbsoluteFile().hashCode();
+    }
+
+    /**
+     * Returns the File backing this BTreeFile on disk.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this BTreeFile: the hash code of the
+     * absolute file name, as for HeapFile.
+     */
+    public int getId() {
+        return mTableId;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return mTupleDesc;
+    }
+
+    /**
+     * @return the index of the field the tree is sorted on
+     */
+    public int keyField() {
+        return mKeyField;
+    }
+
+    /**
+     * A B+ tree is a clustered index on its own tuples.
+     */
+    public int getIndexedTableId() {
+        return mTableId;
+    }
+
+    public int getKeyField() {
+        return mKeyField;
+    }
+
+    /**
+     * The tree answers lookups with every operator but NOT_EQUALS and LIKE.
+     */
+    public boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    // see DbIndex.java for javadocs
+    public DbFileIterator lookup(TransactionId tid, Predicate.Op op, Field value,
+            Predicate[] predicates) {
+        Predicate[] preds = Arrays.copyOf(predicates, predicates.length + 1);
+        preds[predicates.length] = new Predicate(mKeyField, op, value);
+        return iterator(tid, preds);
+    }
+
+    /**
+     * A lookup descends from the root to a leaf and then reads the leaves
+     * holding the matches.
+     */
+    public double estimateLookupPages(double matches) {
+        int pages = Math.max(1, numPages());
+        int fanout = Math.max(2, BTreeInternalPage.getMaxEntries(
+                mTupleDesc.getFieldType(mKeyField)));
+        double depth = 1 + Math.ceil(Math.log(pages) / Math.log(fanout));
+        return depth + matches / Math.max(1, BTreeLeafPage.getMaxTuples(mTupleDesc));
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        BTreePageId id = (BTreePageId) pid;
+        try {
+            initialize();
+            RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+            try {
+                long offset = (long) BufferPool.getPageSize() * id.pageNumber();
+                if (offset + BufferPool.getPageSize() > raf.length())
+                    throw new IllegalArgumentException(String.format(
+                            "Invalid pid %s, file has %d pages", id, numPages()));
+                byte[] data = new byte[BufferPool.getPageSize()];
+                raf.seek(offset);
+                raf.readFully(data);
+
+                switch (id.pgcateg()) {
+                case BTreePageId.ROOT_PTR:
+                    return new BTreeRootPtrPage(id, data);
+                case BTreePageId.INTERNAL:
+                    return new BTreeInternalPage(id, data);
+                case BTreePageId.LEAF:
+                    return new BTreeLeafPage(id, data);
+                default:
+                    return new BTreeHeaderPage(id, data);
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new IllegalArgumentException("Something went wrong with pid " + pid);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        writePageData(page.getId().pageNumber(), page.getPageData());
+    }
+
+    private void writePageData(int pageNo, byte[] data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek((long) BufferPool.getPageSize() * pageNo);
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the number of pages in this BTreeFile, including the root
+     * pointer and header pages.
+     */
+    public int numPages() {
+        return (int) (mFile.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * Give an empty file a root pointer page and an empty root leaf.
+     */
+    private synchronized void initialize() throws IOException {
+        if (mFile.length() == 0) {
+            writePageData(0, BTreeRootPtrPage.createInitialPageData());
+            writePageData(1, BTreePage.createEmptyPageData());
+        }
+    }
+
+    /**
+     * Fetch a page through the BufferPool, or from dirtypages if this
+     * operation has already modified it. Pages fetched with READ_WRITE are
+     * added to dirtypages, and marked dirty while they are pinned, so an
+     * eviction writes them back instead of dropping the changes this
+     * operation makes to them.
+     */
+    BTreePage getPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreePageId pid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        Page p = dirtypages.get(pid);
+        if (p == null) {
+            BufferPool bufferPool = Database.getBufferPool();
+            if (perm == Permissions.READ_WRITE) {
+                p = bufferPool.pinPage(tid, pid, perm);
+                p.markDirty(true, tid);
+                bufferPool.unpinPage(tid, pid);
+                dirtypages.put(pid, p);
+            } else {
+                p = bufferPool.getPage(tid, pid, perm);
+            }
+        }
+        return (BTreePage) p;
+    }
+
+    BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            Permissions perm) throws DbException, TransactionAbortedException {
+        try {
+            initialize();
+        } catch (IOException e) {
+            throw new DbException("could not initialize " + mFile + ": " + e.getMessage());
+        }
+        return (BTreeRootPtrPage) getPage(tid, dirtypages,
+                new BTreePageId(mTableId, 0, BTreePageId.ROOT_PTR), perm);
+    }
+
+    /**
+     * Find the leftmost leaf that may contain tuples with key f, starting
+     * the search at page pid. Internal pages are fetched READ_ONLY; the leaf
+     * is fetched with perm.
+     *
+     * @param f the key to look for, or null for the leftmost leaf
+     */
+    BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreePageId pid, Permissions perm, Field f)
+            throws DbException, TransactionAbortedException {
+        while (pid.pgcateg() == BTreePageId.INTERNAL) {
+            BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid,
+                    Permissions.READ_ONLY);
+            int i = 0;
+            if (f != null) {
+                while (i < page.getNumEntries()
+                        && f.compare(Predicate.Op.GREATER_THAN, page.getKey(i)))
+                    i++;
+            }
+            pid = page.getChildId(i);
+        }
+        return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+    }
+
+    /**
+     * @return the id of the root page of the tree
+     */
+    BTreePageId getRootId(TransactionId tid, HashMap<PageId, Page> dirtypages)
+            throws DbException, TransactionAbortedException {
+        return getRootPtrPage(tid, dirtypages, Permissions.READ_ONLY).getRootId();
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        Field key = t.getField(mKeyField);
+
+        BTreeLeafPage leaf = findLeafPage(tid, dirtypages, getRootId(tid, dirtypages),
+                Permissions.READ_WRITE, key);
+        if (leaf.getNumEmptySlots() == 0)
+            leaf = splitLeafPage(tid, dirtypages, leaf, key);
+        leaf.insertTuple(t);
+
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Split a full leaf page, moving the upper half of its tuples to a new
+     * right sibling and adding the first key of the new page to the parent,
+     * splitting the parent first if it is full.
+     *
+     * @param key the key of the tuple about to be inserted
+     * @return the half of the split that key should be inserted into
+     */
+    BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreeLeafPage page, Field key)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreeLeafPage newRight = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+        List<Tuple> tuples = page.getTuples();
+        for (Tuple t : tuples.subList(tuples.size() / 2, tuples.size())) {
+            page.deleteTuple(t);
+            newRight.insertTuple(t);
+        }
+        Field separator = tuples.get(tuples.size() / 2).getField(mKeyField);
+
+        BTreePageId oldRightId = page.getRightSiblingId();
+        if (oldRightId != null) {
+            BTreeLeafPage oldRight = (BTreeLeafPage) getPage(tid, dirtypages, oldRightId,
+                    Permissions.READ_WRITE);
+            oldRight.setLeftSiblingId(newRight.getId());
+        }
+        newRight.setRightSiblingId(oldRightId);
+        newRight.setLeftSiblingId(page.getId());
+        page.setRightSiblingId(newRight.getId());
+
+        BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages,
+                page.getParentId(), page.getId());
+        parent.insertEntry(separator, page.getId(), newRight.getId());
+        page.setParentId(parent.getId());
+        newRight.setParentId(parent.getId());
+
+        return key.compare(Predicate.Op.GREATER_THAN, separator) ? newRight : page;
+    }
+
+    /**
+     * Split a full internal page, moving the upper half of its entries to a
+     * new right sibling and pushing the middle key up into the parent.
+     *
+     * @param child a child of page
+     * @return the half of the split that child ends up in
+     */
+    BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreeInternalPage page, BTreePageId child)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreeInternalPage newRight = (BTreeInternalPage) getEmptyPage(tid, dirtypages,
+                BTreePageId.INTERNAL);
+        Field separator = page.splitInto(page.getNumEntries() / 2, newRight);
+        updateParentPointers(tid, dirtypages, newRight);
+
+        BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages,
+                page.getParentId(), page.getId());
+        parent.insertEntry(separator, page.getId(), newRight.getId());
+        page.setParentId(parent.getId());
+        newRight.setParentId(parent.getId());
+
+        return newRight.indexOfChild(child.pageNumber()) >= 0 ? newRight : page;
+    }
+
+    /**
+     * Get the parent of child with room for one more entry: the existing
+     * parent, that parent's half after splitting it, or a new root if child
+     * is the root.
+     */
+    private BTreeInternalPage getParentWithEmptySlots(TransactionId tid,
+            HashMap<PageId, Page> dirtypages, BTreePageId parentId, BTreePageId child)
+            throws DbException, IOException, TransactionAbortedException {
+        if (parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+            BTreeInternalPage root = (BTreeInternalPage) getEmptyPage(tid, dirtypages,
+                    BTreePageId.INTERNAL);
+            getRootPtrPage(tid, dirtypages, Permissions.READ_WRITE).setRootId(root.getId());
+            return root;
+        }
+        BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId,
+                Permissions.READ_WRITE);
+        if (parent.getNumEmptySlots() == 0)
+            parent = splitInternalPage(tid, dirtypages, parent, child);
+        return parent;
+    }
+
+    /**
+     * Point the parent pointers of all children of page at page.
+     */
+    private void updateParentPointers(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreeInternalPage page) throws DbException, TransactionAbortedException {
+        for (int i = 0; i <= page.getNumEntries(); i++) {
+            updateParentPointer(tid, dirtypages, page.getId(), page.getChildId(i));
+        }
+    }
+
+    private void updateParentPointer(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreePageId parent, BTreePageId child)
+            throws DbException, TransactionAbortedException {
+        BTreePage page = getPage(tid, dirtypages, child, Permissions.READ_ONLY);
+        if (!page.getParentId().equals(parent)) {
+            page = getPage(tid, dirtypages, child, Permissions.READ_WRITE);
+            page.setParentId(parent);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != mTableId)
+            throw new DbException("tuple is not in this file");
+
+        BTreePageId pid = new BTreePageId(mTableId, rid.getPageId().pageNumber(),
+                BTreePageId.LEAF);
+        BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pid,
+                Permissions.READ_WRITE);
+        page.deleteTuple(t);
+
+        int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2;
+        if (page.getNumEmptySlots() > maxEmptySlots)
+            handleMinOccupancyPage(tid, dirtypages, page);
+
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Fix up a page that has dropped below half full by stealing entries
+     * from a sibling with the same parent or merging with it. The left
+     * sibling is preferred; the right one is used for the leftmost child.
+     */
+    private void handleMinOccupancyPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreePage page) throws DbException, IOException, TransactionAbortedException {
+        BTreePageId parentId = page.getParentId();
+        if (parentId.pgcateg() == BTreePageId.ROOT_PTR)
+            return; // the root may be less than half full
+
+        BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId,
+                Permissions.READ_WRITE);
+        int i = parent.indexOfChild(page.getId().pageNumber());
+        if (i < 0)
+            throw new DbException("page " + page.getId() + " is not a child of its parent");
+        boolean isRightSibling = i == 0;
+        int keyIndex = isRightSibling ? 0 : i - 1;
+        BTreePageId siblingId = parent.getChildId(isRightSibling ? 1 : i - 1);
+        BTreePage sibling = getPage(tid, dirtypages, siblingId, Permissions.READ_WRITE);
+
+        if (page instanceof BTreeLeafPage) {
+            BTreeLeafPage leaf = (BTreeLeafPage) page;
+            BTreeLeafPage leafSibling = (BTreeLeafPage) sibling;
+            int maxEmptySlots = leaf.getMaxTuples() - leaf.getMaxTuples() / 2;
+            if (leafSibling.getNumEmptySlots() >= maxEmptySlots) {
+                if (isRightSibling)
+                    mergeLeafPages(tid, dirtypages, leaf, leafSibling, parent, keyIndex);
+                else
+                    mergeLeafPages(tid, dirtypages, leafSibling, leaf, parent, keyIndex);
+            } else {
+                stealFromLeafPage(leaf, leafSibling, parent, keyIndex, isRightSibling);
+            }
+        } else {
+            BTreeInternalPage internal = (BTreeInternalPage) page;
+            BTreeInternalPage internalSibling = (BTreeInternalPage) sibling;
+            int maxEmptySlots = internal.getMaxEntries() - internal.getMaxEntries() / 2;
+            if (internalSibling.getNumEmptySlots() >= maxEmptySlots) {
+                if (isRightSibling)
+                    mergeInternalPages(tid, dirtypages, internal, internalSibling, parent, keyIndex);
+                else
+                    mergeInternalPages(tid, dirtypages, internalSibling, internal, parent, keyIndex);
+            } else if (isRightSibling) {
+                stealFromRightInternalPage(tid, dirtypages, internal, internalSibling, parent, keyIndex);
+            } else {
+                stealFromLeftInternalPage(tid, dirtypages, internal, internalSibling, parent, keyIndex);
+            }
+        }
+    }
+
+    /**
+     * Move tuples from sibling to page so they hold about the same number,
+     * and update the key separating them in the parent.
+     */
+    private void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
+            BTreeInternalPage parent, int keyIndex, boolean isRightSibling)
+            throws DbException {
+        List<Tuple> tuples = sibling.getTuples();
+        int numMove = (tuples.size() - page.getNumTuples()) / 2;
+        List<Tuple> moving = isRightSibling ? tuples.subList(0, numMove)
+                : tuples.subList(tuples.size() - numMove, tuples.size());
+        for (Tuple t : new ArrayList<Tuple>(moving)) {
+            sibling.deleteTuple(t);
+            page.insertTuple(t);
+        }
+        BTreeLeafPage right = isRightSibling ? sibling : page;
+        parent.setKey(keyIndex, right.getTuples().get(0).getField(mKeyField));
+    }
+
+    /**
+     * Move all tuples of right into left, unlink right from the leaf level
+     * and remove it from the parent.
+     */
+    private void mergeLeafPages(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreeLeafPage left, BTreeLeafPage right, BTreeInternalPage parent, int keyIndex)
+            throws DbException, IOException, TransactionAbortedException {
+        for (Tuple t : right.getTuples()) {
+            right.deleteTuple(t);
+            left.insertTuple(t);
+        }
+
+        BTreePageId rightRightId = right.getRightSiblingId();
+        left.setRightSiblingId(rightRightId);
+        if (rightRightId != null) {
+            BTreeLeafPage rightRight = (BTreeLeafPage) getPage(tid, dirtypages, rightRightId,
+                    Permissions.READ_WRITE);
+            rightRight.setLeftSiblingId(left.getId());
+        }
+
+        setEmptyPage(tid, dirtypages, right.getId().pageNumber());
+        deleteParentEntry(tid, dirtypages, left, parent, keyIndex);
+    }
+
+    /**
+     * Rotate entries from the left sibling through the parent into the front
+     * of page.
+     */
+    private void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreeInternalPage page, BTreeInternalPage left, BTreeInternalPage parent,
+            int keyIndex) throws DbException, TransactionAbortedException {
+        int numMove = (left.getNumEntries() - page.getNumEntries()) / 2;
+        for (int n = 0; n < numMove; n++) {
+            int last = left.getNumEntries();
+            BTreePageId child = left.getChildId(last);
+            page.insert(0, parent.getKey(keyIndex), 0, child.pageNumber());
+            parent.setKey(keyIndex, left.getKey(last - 1));
+            left.remove(last - 1, last);
+            updateParentPointer(tid, dirtypages, page.getId(), child);
+        }
+    }
+
+    /**
+     * Rotate entries from the right sibling through the parent onto the end
+     * of page.
+     */
+    private void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreeInternalPage page, BTreeInternalPage right, BTreeInternalPage parent,
+            int keyIndex) throws DbException, TransactionAbortedException {
+        int numMove = (right.getNumEntries() - page.getNumEntries()) / 2;
+        for (int n = 0; n < numMove; n++) {
+            BTreePageId child = right.getChildId(0);
+            int end = page.getNumEntries();
+            page.insert(end, parent.getKey(keyIndex), end + 1, child.pageNumber());
+            parent.setKey(keyIndex, right.getKey(0));
+            right.remove(0, 0);
+            updateParentPointer(tid, dirtypages, page.getId(), child);
+        }
+    }
+
+    /**
+     * Pull the key separating left and right down from the parent and move
+     * it and all entries of right into left, then remove right.
+     */
+    private void mergeInternalPages(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreeInternalPage left, BTreeInternalPage right, BTreeInternalPage parent,
+            int keyIndex) throws DbException, IOException, TransactionAbortedException {
+        int end = left.getNumEntries();
+        left.insert(end, parent.getKey(keyIndex), end + 1, right.getChildId(0).pageNumber());
+        for (int i = 0; i < right.getNumEntries(); i++) {
+            end = left.getNumEntries();
+            left.insert(end, right.getKey(i), end + 1, right.getChildId(i + 1).pageNumber());
+        }
+        for (int i = 0; i <= right.getNumEntries(); i++) {
+            updateParentPointer(tid, dirtypages, left.getId(), right.getChildId(i));
+        }
+
+        setEmptyPage(tid, dirtypages, right.getId().pageNumber());
+        deleteParentEntry(tid, dirtypages, left, parent, keyIndex);
+    }
+
+    /**
+     * Remove key keyIndex and the child to its right from parent after a
+     * merge into left. If that empties the root, left becomes the root; if
+     * it leaves any other parent less than half full, fix the parent up.
+     */
+    private void deleteParentEntry(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            BTreePage left, BTreeInternalPage parent, int keyIndex)
+            throws DbException, IOException, TransactionAbortedException {
+        parent.remove(keyIndex, keyIndex + 1);
+
+        if (parent.getNumEntries() == 0
+                && parent.getParentId().pgcateg() == BTreePageId.ROOT_PTR) {
+            BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages, Permissions.READ_WRITE);
+            rootPtr.setRootId(left.getId());
+            left.setParentId(rootPtr.getId());
+            setEmptyPage(tid, dirtypages, parent.getId().pageNumber());
+            return;
+        }
+
+        int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries() / 2;
+        if (parent.getNumEmptySlots() > maxEmptySlots)
+            handleMinOccupancyPage(tid, dirtypages, parent);
+    }
+
+    /**
+     * Get a fresh page of the specified category, reusing a page freed by a
+     * merge if there is one and growing the file otherwise.
+     */
+    BTreePage getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int category)
+            throws DbException, IOException, TransactionAbortedException {
+        int pageNo = -1;
+        BTreePageId headerId = getRootPtrPage(tid, dirtypages, Permissions.READ_ONLY).getHeaderId();
+        for (int k = 0; headerId != null && pageNo < 0; k++) {
+            BTreeHeaderPage header = (BTreeHeaderPage) getPage(tid, dirtypages, headerId,
+                    Permissions.READ_ONLY);
+            int slot = header.getFirstFreeSlot();
+            if (slot >= 0) {
+                header = (BTreeHeaderPage) getPage(tid, dirtypages, headerId,
+                        Permissions.READ_WRITE);
+                header.markSlotFree(slot, false);
+                pageNo = k * BTreeHeaderPage.getNumSlots() + slot;
+            }
+            headerId = header.getNextPageId();
+        }
+        if (pageNo < 0)
+            pageNo = appendEmptyPage();
+        else
+            clearPage(dirtypages, pageNo);
+
+        return getPage(tid, dirtypages, new BTreePageId(mTableId, pageNo, category),
+                Permissions.READ_WRITE);
+    }
+
+    /**
+     * Record in the header pages that a page is free, creating header pages
+     * as needed to cover it.
+     */
+    private void setEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pageNo)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages, Permissions.READ_ONLY);
+        BTreeHeaderPage header = null;
+        BTreePageId headerId = rootPtr.getHeaderId();
+        for (int k = 0; k <= pageNo / BTreeHeaderPage.getNumSlots(); k++) {
+            if (headerId == null) {
+                headerId = new BTreePageId(mTableId, appendEmptyPage(), BTreePageId.HEADER);
+                if (header == null) {
+                    rootPtr = getRootPtrPage(tid, dirtypages, Permissions.READ_WRITE);
+                    rootPtr.setHeaderId(headerId);
+                } else {
+                    header = (BTreeHeaderPage) getPage(tid, dirtypages, header.getId(),
+                            Permissions.READ_WRITE);
+                    header.setNextPageId(headerId);
+                }
+                BTreeHeaderPage created = (BTreeHeaderPage) getPage(tid, dirtypages, headerId,
+                        Permissions.READ_WRITE);
+                created.setPrevPageId(header == null ? null : header.getId());
+            }
+            header = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+            headerId = header.getNextPageId();
+        }
+        header = (BTreeHeaderPage) getPage(tid, dirtypages, header.getId(), Permissions.READ_WRITE);
+        header.markSlotFree(pageNo % BTreeHeaderPage.getNumSlots(), true);
+        clearPage(dirtypages, pageNo);
+    }
+
+    /**
+     * Drop every cached version of a page, whatever category it was fetched
+     * as, so a freed or reused page is read afresh.
+     */
+    private void clearPage(HashMap<PageId, Page> dirtypages, int pageNo) throws IOException {
+        for (int category = BTreePageId.INTERNAL; category <= BTreePageId.HEADER; category++) {
+            BTreePageId pid = new BTreePageId(mTableId, pageNo, category);
+            dirtypages.remove(pid);
+            Database.getBufferPool().discardPage(pid);
+        }
+        writePageData(pageNo, BTreePage.createEmptyPageData());
+    }
+
+    /**
+     * Add an empty page to the end of the file.
+     *
+     * @return its page number
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+        initialize();
+        int pageNo = numPages();
+        writePageData(pageNo, BTreePage.createEmptyPageData());
+        return pageNo;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new BTreeFileIterator(this, tid, null, true, null, true, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples satisfying every predicate. Bounds
+     * on the key field are used to start the scan at the first leaf that
+     * can match and to stop it after the last one; the remaining predicates
+     * are checked on each tuple.
+     */
+    @Override
+    public DbFileIterator iterator(TransactionId tid, Predicate[] predicates) {
+        Field lo = null, hi = null;
+        boolean loInclusive = true, hiInclusive = true;
+        for (Predicate p : predicates) {
+            if (p.getField() != mKeyField)
+                continue;
+            Field v = p.getOperand();
+            switch (p.getOp()) {
+            case EQUALS:
+                if (lo == null || v.compare(Predicate.Op.GREATER_THAN_OR_EQ, lo)) {
+                    lo = v;
+                    loInclusive = true;
+                }
+                if (hi == null || v.compare(Predicate.Op.LESS_THAN_OR_EQ, hi)) {
+                    hi = v;
+                    hiInclusive = true;
+                }
+                break;
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                if (lo == null || v.compare(Predicate.Op.GREATER_THAN_OR_EQ, lo)) {
+                    lo = v;
+                    loInclusive = p.getOp() == Predicate.Op.GREATER_THAN_OR_EQ;
+                }
+                break;
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+                if (hi == null || v.compare(Predicate.Op.LESS_THAN_OR_EQ, hi)) {
+                    hi = v;
+                    hiInclusive = p.getOp() == Predicate.Op.LESS_THAN_OR_EQ;
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        return new BTreeFileIterator(this, tid, lo, loInclusive, hi, hiInclusive, predicates);
+    }
+
+    /**
+     * Returns an iterator over the tuples whose key satisfies the specified
+     * predicate, using the tree to find the first one. Point and range
+     * lookups only read the leaves that hold matching tuples.
+     *
+     * @param ipred a predicate on the key field
+     * @throws IllegalArgumentException if ipred isn't on the key field
+     */
+    public DbFileIterator indexIterator(TransactionId tid, Predicate ipred) {
+        if (ipred.getField() != mKeyField)
+            throw new IllegalArgumentException("predicate is not on the key field");
+        return iterator(tid, new Predicate[] { ipred });
+    }
+
+    /**
+     * Iterates over the tuples with keys in [lo, hi] (or (lo, hi), etc.) in
+     * key order, walking the leaf level through the sibling pointers.
+     */
+    static class BTreeFileIterator extends AbstractDbFileIterator {
+        final BTreeFile mFile;
+        final TransactionId mTid;
+        final Field mLo, mHi;
+        final boolean mLoInclusive, mHiInclusive;
+        final Predicate[] mPredicates;
+        BTreePageId mNextPageId;
+        Iterator<Tuple> mTuples;
+        boolean mOpen = false;
+
+        /**
+         * @param lo the smallest key to return, or null for no lower bound
+         * @param hi the largest key to return, or null for no upper bound
+         * @param predicates further predicates returned tuples must satisfy,
+         *        or null
+         */
+        BTreeFileIterator(BTreeFile file, TransactionId tid, Field lo, boolean loInclusive,
+                Field hi, boolean hiInclusive, Predicate[] predicates) {
+            mFile = file;
+            mTid = tid;
+            mLo = lo;
+            mLoInclusive = loInclusive;
+            mHi = hi;
+            mHiInclusive = hiInclusive;
+            mPredicates = predicates;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            HashMap<PageId, Page> none = new HashMap<PageId, Page>();
+            BTreeLeafPage leaf = mFile.findLeafPage(mTid, none, mFile.getRootId(mTid, none),
+                    Permissions.READ_ONLY, mLo);
+            readLeaf(leaf.getId());
+            mOpen = true;
+        }
+
+        /**
+         * Copy out the tuples of a leaf, which is pinned only while they are
+         * read: a delete through this iterator may merge the leaf away, and
+         * freeing a page waits for its pins to be released.
+         */
+        private void readLeaf(BTreePageId pid) throws DbException, TransactionAbortedException {
+            BufferPool pool = Database.getBufferPool();
+            BTreeLeafPage leaf = (BTreeLeafPage) pool.pinPage(mTid, pid, Permissions.READ_ONLY);
+            try {
+                ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+                Iterator<Tuple> it = leaf.iterator();
+                while (it.hasNext())
+                    tuples.add(it.next());
+                mTuples = tuples.iterator();
+                mNextPageId = leaf.getRightSiblingId();
+            } finally {
+                pool.unpinPage(mTid, pid);
+            }
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (!mOpen)
+                return null;
+            while (true) {
+                while (mTuples.hasNext()) {
+                    Tuple t = mTuples.next();
+                    Field key = t.getField(mFile.keyField());
+                    if (mLo != null && !key.compare(mLoInclusive ? Predicate.Op.GREATER_THAN_OR_EQ
+                            : Predicate.Op.GREATER_THAN, mLo))
+                        continue;
+                    if (mHi != null && !key.compare(mHiInclusive ? Predicate.Op.LESS_THAN_OR_EQ
+                            : Predicate.Op.LESS_THAN, mHi)) {
+                        mNextPageId = null; // past the end of the range
+                        mTuples = Collections.<Tuple>emptyList().iterator();
+                        return null;
+                    }
+                    if (matches(t))
+                        return t;
+                }
+                if (mNextPageId == null)
+                    return null;
+                readLeaf(mNextPageId);
+            }
+        }
+
+        private boolean matches(Tuple t) {
+            if (mPredicates == null)
+                return true;
+            for (Predicate p : mPredicates) {
+                if (!p.filter(t))
+                    return false;
+            }
+            return true;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            mOpen = false;
+            mTuples = null;
+            mNextPageId = null;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * BTreeHeaderPage tracks which pages of a BTreeFile are free, so pages
+ * released by merges can be reused. Header pages form a doubly linked list
+ * starting at the page named by the root pointer page; the k-th header page
+ * covers pages k * getNumSlots() up to (k + 1) * getNumSlots() - 1.
+ * <p>
+ * The format is the page number of the next and previous header pages
+ * (0 for none), followed by a bitmap with one bit per page, set if the page
+ * is free. Pages not covered by any header page are in use.
+ *
+ * @see BTreeFile
+ */
+public class BTreeHeaderPage extends BTreePage {
+
+    private static final int POINTER_BYTES = 2 * 4;
+
+    private int mNext;
+    private int mPrev;
+    private final byte[] mBitmap;
+
+    /**
+     * Create a BTreeHeaderPage from a set of bytes of data read from disk.
+     */
+    public BTreeHeaderPage(BTreePageId id, byte[] data) throws IOException {
+        super(id);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        mNext = dis.readInt();
+        mPrev = dis.readInt();
+        mBitmap = new byte[getNumSlots() / 8];
+        dis.readFully(mBitmap);
+        dis.close();
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of pages a header page keeps track of
+     */
+    public static int getNumSlots() {
+        return (BufferPool.getPageSize() - POINTER_BYTES) * 8;
+    }
+
+    public BTreePageId getNextPageId() {
+        return mNext == 0 ? null
+                : new BTreePageId(mPageId.getTableId(), mNext, BTreePageId.HEADER);
+    }
+
+    public void setNextPageId(BTreePageId id) {
+        mNext = id == null ? 0 : id.pageNumber();
+    }
+
+    public BTreePageId getPrevPageId() {
+        return mPrev == 0 ? null
+                : new BTreePageId(mPageId.getTableId(), mPrev, BTreePageId.HEADER);
+    }
+
+    public void setPrevPageId(BTreePageId id) {
+        mPrev = id == null ? 0 : id.pageNumber();
+    }
+
+    /**
+     * @return true if the page in slot i of this header page is free
+     */
+    public boolean isSlotFree(int i) {
+        return (mBitmap[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    public void markSlotFree(int i, boolean free) {
+        if (free)
+            mBitmap[i / 8] |= (byte) (1 << (i % 8));
+        else
+            mBitmap[i / 8] &= (byte) ~(1 << (i % 8));
+    }
+
+    /**
+     * @return the first free slot of this header page, or -1 if none is free
+     */
+    public int getFirstFreeSlot() {
+        for (int b = 0; b < mBitmap.length; b++) {
+            if (mBitmap[b] != 0)
+                return b * 8 + Integer.numberOfTrailingZeros(mBitmap[b] & 0xFF);
+        }
+        return -1;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(mNext);
+            dos.writeInt(mPrev);
+            dos.write(mBitmap);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return finishPage(baos, dos);
+    }
+
+    public BTreeHeaderPage getBeforeImage() {
+        try {
+            return new BTreeHeaderPage(mPageId, getBeforeImageData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            // should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+}
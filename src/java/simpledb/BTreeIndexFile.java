@@ -0,0 +1,171 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeIndexFile is a secondary index that uses a B+ tree to find the tuples
+ * of a HeapFile table by the value of one field. The tree stores an entry
+ * (key, page, slot) for each tuple of the table, sorted on the key, so
+ * unlike {@link HashIndexFile} it answers range lookups as well as equality
+ * lookups.
+ * <p>
+ * The entries are stored and restructured by {@link BTreeFile}; this class
+ * translates between tuples of the indexed table and entries. It is
+ * registered with {@link Catalog#addIndex}, after which BufferPool keeps it
+ * up to date as tuples are inserted into and deleted from the table.
+ */
+public class BTreeIndexFile extends BTreeFile {
+
+    private final int mIndexedTableId;
+    private final int mIndexedField;
+
+    /**
+     * Constructs a B+ tree index backed by the specified file. The entries
+     * of a table that already holds tuples are not added.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this index
+     * @param tableid
+     *            the table to index, which must be a HeapFile in the Catalog
+     * @param keyField
+     *            the index of the field of that table to index
+     * @throws IllegalArgumentException
+     *             if the table is not a HeapFile
+     */
+    public BTreeIndexFile(File f, int tableid, int keyField) {
+        super(f, 0, entryTupleDesc(tableid, keyField));
+        mIndexedTableId = tableid;
+        mIndexedField = keyField;
+    }
+
+    /**
+     * @return the schema of the entries of an index on field keyField of
+     *         table tableid: the key, and the page number and slot of the
+     *         tuple holding it
+     */
+    private static TupleDesc entryTupleDesc(int tableid, int keyField) {
+        DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(table instanceof HeapFile))
+            throw new IllegalArgumentException("B+ tree indexes are only supported on heap files");
+        Type keyType = table.getTupleDesc().getFieldType(keyField);
+        return new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "key", "page", "slot" });
+    }
+
+    @Override
+    public int getIndexedTableId() {
+        return mIndexedTableId;
+    }
+
+    /**
+     * @return the index of the field of the indexed table the index is on;
+     *         the entries themselves are sorted on their field 0
+     */
+    @Override
+    public int getKeyField() {
+        return mIndexedField;
+    }
+
+    /**
+     * Adds the entry for the specified tuple of the indexed table.
+     *
+     * @param t
+     *            a tuple of the indexed table; its RecordId must be set
+     */
+    @Override
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("can't index a tuple that is not stored in a table");
+        Tuple entry = new Tuple(getTupleDesc());
+        entry.setField(0, t.getField(mIndexedField));
+        entry.setField(1, new IntField(rid.getPageId().pageNumber()));
+        entry.setField(2, new IntField(rid.tupleno()));
+        return super.insertTuple(tid, entry);
+    }
+
+    /**
+     * Removes the entry for the specified tuple of the indexed table. Must be
+     * called before the tuple is deleted from the table, while its RecordId
+     * is still set.
+     *
+     * @throws DbException
+     *             if the index has no entry for the tuple
+     */
+    @Override
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("tuple is not stored in a table");
+        Tuple entry = null;
+        DbFileIterator it = iterator(tid, new Predicate[] {
+                new Predicate(0, Predicate.Op.EQUALS, t.getField(mIndexedField)) });
+        it.open();
+        while (entry == null && it.hasNext()) {
+            Tuple e = it.next();
+            if (((IntField) e.getField(1)).getValue() == rid.getPageId().pageNumber()
+                    && ((IntField) e.getField(2)).getValue() == rid.tupleno())
+                entry = e;
+        }
+        it.close();
+        if (entry == null)
+            throw new DbException("tuple " + rid + " is not in the index");
+        return super.deleteTuple(tid, entry);
+    }
+
+    /**
+     * Returns an iterator over the tuples of the indexed table whose key
+     * satisfies "key op value" and that satisfy every one of the predicates,
+     * in key order.
+     */
+    @Override
+    public DbFileIterator lookup(TransactionId tid, Predicate.Op op, Field value,
+            Predicate[] predicates) {
+        final TransactionId ftid = tid;
+        final DbFileIterator entries = iterator(tid, new Predicate[] {
+                new Predicate(0, op, value) });
+        final Predicate[] preds = predicates != null && predicates.length > 0 ? predicates
+                : null;
+        return new AbstractDbFileIterator() {
+            public void open() throws DbException, TransactionAbortedException {
+                entries.open();
+            }
+
+            @Override
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                while (entries.hasNext()) {
+                    Tuple e = entries.next();
+                    HeapPage page = (HeapPage) Database.getBufferPool().getPage(ftid,
+                            new HeapPageId(mIndexedTableId, ((IntField) e.getField(1)).getValue()),
+                            Permissions.READ_ONLY);
+                    Tuple t = page.getTuple(((IntField) e.getField(2)).getValue(), preds);
+                    if (t != null)
+                        return t;
+                }
+                return null;
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                close();
+                open();
+            }
+
+            public void close() {
+                super.close();
+                entries.close();
+            }
+        };
+    }
+
+    /**
+     * A lookup reads the entries as a B+ tree lookup does and then, at
+     * worst, one table page per match.
+     */
+    @Override
+    public double estimateLookupPages(double matches) {
+        return super.estimateLookupPages(matches) + matches;
+    }
+}
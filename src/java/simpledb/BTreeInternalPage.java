@@ -0,0 +1,226 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * BTreeInternalPage stores the keys and child pointers of an inner node of
+ * a BTreeFile. A page with n keys has n + 1 children; every key in the
+ * subtree of child i is at least key i - 1 and at most key i.
+ * <p>
+ * The format is the page number of the parent (an int), the category of
+ * the children (a byte, LEAF or INTERNAL), the number of keys n (an int),
+ * then room for getMaxEntries() keys followed by room for
+ * getMaxEntries() + 1 child page numbers. Keys and children are stored
+ * contiguously and in order.
+ *
+ * @see BTreeFile
+ */
+public class BTreeInternalPage extends BTreePage {
+
+    private static final int FIXED_BYTES = 4 + 1 + 4;
+
+    final Type mKeyType;
+    final int mMaxEntries;
+    private int mChildCategory;
+    private int mNumEntries;
+    private final Field[] mKeys;
+    private final int[] mChildren;
+
+    /**
+     * Create a BTreeInternalPage from a set of bytes of data read from disk.
+     * The key type is looked up in the Catalog.
+     */
+    public BTreeInternalPage(BTreePageId id, byte[] data) throws IOException {
+        super(id);
+        BTreeFile file = getFile();
+        mKeyType = file.getTupleDesc().getFieldType(file.keyField());
+        mMaxEntries = getMaxEntries(mKeyType);
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        mParent = dis.readInt();
+        mChildCategory = dis.readByte();
+        mNumEntries = dis.readInt();
+
+        mKeys = new Field[mMaxEntries];
+        for (int i = 0; i < mMaxEntries; i++) {
+            if (i < mNumEntries)
+                mKeys[i] = readField(dis, mKeyType);
+            else
+                dis.skipBytes(mKeyType.getLen());
+        }
+        mChildren = new int[mMaxEntries + 1];
+        for (int i = 0; i <= mMaxEntries; i++) {
+            mChildren[i] = dis.readInt();
+        }
+        dis.close();
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of keys an internal page with keys of the
+     *         specified type can hold
+     */
+    public static int getMaxEntries(Type keyType) {
+        return (BufferPool.getPageSize() - FIXED_BYTES - 4) / (keyType.getLen() + 4);
+    }
+
+    public int getMaxEntries() {
+        return mMaxEntries;
+    }
+
+    public int getNumEntries() {
+        return mNumEntries;
+    }
+
+    public int getNumEmptySlots() {
+        return mMaxEntries - mNumEntries;
+    }
+
+    public BTreeInternalPage getBeforeImage() {
+        try {
+            return new BTreeInternalPage(mPageId, getBeforeImageData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            // should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(mParent);
+            dos.writeByte(mChildCategory);
+            dos.writeInt(mNumEntries);
+            byte[] empty = new byte[mKeyType.getLen()];
+            for (int i = 0; i < mMaxEntries; i++) {
+                if (i < mNumEntries)
+                    mKeys[i].serialize(dos);
+                else
+                    dos.write(empty);
+            }
+            for (int i = 0; i <= mMaxEntries; i++) {
+                dos.writeInt(i <= mNumEntries ? mChildren[i] : 0);
+            }
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return finishPage(baos, dos);
+    }
+
+    /**
+     * @return the category of the children of this page, LEAF or INTERNAL
+     */
+    public int getChildCategory() {
+        return mChildCategory;
+    }
+
+    /**
+     * @return key i, for 0 <= i < getNumEntries()
+     */
+    public Field getKey(int i) {
+        return mKeys[i];
+    }
+
+    public void setKey(int i, Field key) {
+        mKeys[i] = key;
+    }
+
+    /**
+     * @return the id of child i, for 0 <= i <= getNumEntries()
+     */
+    public BTreePageId getChildId(int i) {
+        return new BTreePageId(mPageId.getTableId(), mChildren[i], mChildCategory);
+    }
+
+    /**
+     * @return the position of the child with the specified page number, or
+     *         -1 if it is not a child of this page
+     */
+    public int indexOfChild(int pageNo) {
+        for (int i = 0; i <= mNumEntries; i++) {
+            if (mChildren[i] == pageNo)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Add a key with the two children on either side of it. The page must
+     * either be empty or already have left as a child.
+     *
+     * @throws DbException if the page is full or left isn't a child
+     */
+    public void insertEntry(Field key, BTreePageId left, BTreePageId right)
+            throws DbException {
+        if (mNumEntries == 0) {
+            mChildCategory = left.pgcateg();
+            mChildren[0] = left.pageNumber();
+            insert(0, key, 1, right.pageNumber());
+            return;
+        }
+        int i = indexOfChild(left.pageNumber());
+        if (i < 0)
+            throw new DbException("left child " + left + " is not on page " + mPageId);
+        insert(i, key, i + 1, right.pageNumber());
+    }
+
+    /**
+     * Insert key at position keyIndex and child at position childIndex,
+     * shifting the keys and children after them.
+     *
+     * @throws DbException if the page is full
+     */
+    public void insert(int keyIndex, Field key, int childIndex, int child)
+            throws DbException {
+        if (mNumEntries == mMaxEntries)
+            throw new DbException("page is full");
+        if (key.getType() != mKeyType)
+            throw new DbException("key type mismatch");
+        System.arraycopy(mKeys, keyIndex, mKeys, keyIndex + 1, mNumEntries - keyIndex);
+        mKeys[keyIndex] = key;
+        System.arraycopy(mChildren, childIndex, mChildren, childIndex + 1,
+                mNumEntries + 1 - childIndex);
+        mChildren[childIndex] = child;
+        mNumEntries++;
+    }
+
+    /**
+     * Remove the key at keyIndex and the child at childIndex, shifting the
+     * keys and children after them.
+     */
+    public void remove(int keyIndex, int childIndex) {
+        System.arraycopy(mKeys, keyIndex + 1, mKeys, keyIndex, mNumEntries - keyIndex - 1);
+        mKeys[mNumEntries - 1] = null;
+        System.arraycopy(mChildren, childIndex + 1, mChildren, childIndex,
+                mNumEntries - childIndex);
+        mChildren[mNumEntries] = 0;
+        mNumEntries--;
+    }
+
+    /**
+     * Split this page at key m: keys after m and the children to their
+     * right move to the empty page dst, this page keeps the keys before m
+     * and the children to their left, and key m itself is removed.
+     *
+     * @return key m, which separates this page from dst
+     */
+    Field splitInto(int m, BTreeInternalPage dst) {
+        Field separator = mKeys[m];
+        int moved = mNumEntries - m - 1;
+        dst.mChildCategory = mChildCategory;
+        System.arraycopy(mKeys, m + 1, dst.mKeys, 0, moved);
+        System.arraycopy(mChildren, m + 1, dst.mChildren, 0, moved + 1);
+        dst.mNumEntries = moved;
+        for (int i = m; i < mNumEntries; i++) {
+            mKeys[i] = null;
+            mChildren[i + 1] = 0;
+        }
+        mNumEntries = m;
+        return separator;
+    }
+}
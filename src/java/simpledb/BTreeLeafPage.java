@@ -0,0 +1,283 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeLeafPage stores the tuples of a BTreeFile, sorted on the key field.
+ * <p>
+ * The format is three ints -- the page numbers of the parent, the left
+ * sibling and the right sibling (0 for none) -- followed by a header bitmap
+ * marking the used tuple slots and then the slots themselves, as in
+ * HeapPage. Used slots are kept in key order, so iterating over the slots
+ * returns the tuples sorted; deleting a tuple only clears its slot, so the
+ * RecordIds of the other tuples stay valid.
+ *
+ * @see BTreeFile
+ * @see HeapPage
+ */
+public class BTreeLeafPage extends BTreePage {
+
+    private static final int POINTER_BYTES = 3 * 4;
+
+    final TupleDesc mTupleDesc;
+    final int mKeyField;
+    final int mNumSlots;
+    final byte[] mHeader;
+    final Tuple[] mTuples;
+    private int mLeftSibling;
+    private int mRightSibling;
+
+    /**
+     * Create a BTreeLeafPage from a set of bytes of data read from disk. The
+     * schema and key field are looked up in the Catalog.
+     */
+    public BTreeLeafPage(BTreePageId id, byte[] data) throws IOException {
+        super(id);
+        BTreeFile file = getFile();
+        mTupleDesc = file.getTupleDesc();
+        mKeyField = file.keyField();
+        mNumSlots = getMaxTuples(mTupleDesc);
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        mParent = dis.readInt();
+        mLeftSibling = dis.readInt();
+        mRightSibling = dis.readInt();
+
+        mHeader = new byte[getHeaderSize(mTupleDesc)];
+        dis.readFully(mHeader);
+
+        mTuples = new Tuple[mNumSlots];
+        for (int i = 0; i < mNumSlots; i++) {
+            if (!isSlotUsed(i)) {
+                dis.skipBytes(mTupleDesc.getSize());
+                continue;
+            }
+            Tuple t = new Tuple(mTupleDesc);
+            for (int j = 0; j < mTupleDesc.numFields(); j++) {
+                t.setField(j, readField(dis, mTupleDesc.getFieldType(j)));
+            }
+            t.setRecordId(new RecordId(mPageId, i));
+            mTuples[i] = t;
+        }
+        dis.close();
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of tuple slots on a leaf page of a tree with
+     *         schema td
+     */
+    public static int getMaxTuples(TupleDesc td) {
+        return ((BufferPool.getPageSize() - POINTER_BYTES) * 8) / (td.getSize() * 8 + 1);
+    }
+
+    private static int getHeaderSize(TupleDesc td) {
+        return (getMaxTuples(td) + 7) / 8;
+    }
+
+    /**
+     * @return the number of tuple slots on this page
+     */
+    public int getMaxTuples() {
+        return mNumSlots;
+    }
+
+    public BTreeLeafPage getBeforeImage() {
+        try {
+            return new BTreeLeafPage(mPageId, getBeforeImageData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            // should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(mParent);
+            dos.writeInt(mLeftSibling);
+            dos.writeInt(mRightSibling);
+            dos.write(mHeader);
+            byte[] empty = new byte[mTupleDesc.getSize()];
+            for (int i = 0; i < mNumSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    dos.write(empty);
+                    continue;
+                }
+                for (int j = 0; j < mTupleDesc.numFields(); j++) {
+                    mTuples[i].getField(j).serialize(dos);
+                }
+            }
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return finishPage(baos, dos);
+    }
+
+    /**
+     * @return the key of the tuple in slot i
+     */
+    Field getKey(int i) {
+        return mTuples[i].getField(mKeyField);
+    }
+
+    /**
+     * Adds the specified tuple to the page, keeping the used slots in key
+     * order. Tuples may be moved to other slots to make room; their
+     * RecordIds are updated.
+     *
+     * @throws DbException
+     *             if the page is full or the tupledesc doesn't match
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!mTupleDesc.equals(t.getTupleDesc()))
+            throw new DbException("Tuple Desc mismatch");
+
+        int emptySlot = -1;
+        for (int i = 0; i < mNumSlots; i++) {
+            if (!isSlotUsed(i)) {
+                emptySlot = i;
+                break;
+            }
+        }
+        if (emptySlot == -1)
+            throw new DbException("page is full");
+
+        // find the last used slot with a key less than or equal to t's key
+        Field key = t.getField(mKeyField);
+        int lessOrEqSlot = -1;
+        for (int i = 0; i < mNumSlots; i++) {
+            if (isSlotUsed(i)) {
+                if (getKey(i).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+                    lessOrEqSlot = i;
+                else
+                    break;
+            }
+        }
+
+        // shift tuples towards the empty slot to open up the right slot
+        int goodSlot;
+        if (emptySlot < lessOrEqSlot) {
+            for (int i = emptySlot; i < lessOrEqSlot; i++) {
+                moveTuple(i + 1, i);
+            }
+            goodSlot = lessOrEqSlot;
+        } else {
+            for (int i = emptySlot; i > lessOrEqSlot + 1; i--) {
+                moveTuple(i - 1, i);
+            }
+            goodSlot = lessOrEqSlot + 1;
+        }
+
+        markSlotUsed(goodSlot, true);
+        t.setRecordId(new RecordId(mPageId, goodSlot));
+        mTuples[goodSlot] = t;
+    }
+
+    private void moveTuple(int from, int to) {
+        if (isSlotUsed(from) && !isSlotUsed(to)) {
+            markSlotUsed(to, true);
+            mTuples[to] = mTuples[from];
+            mTuples[to].setRecordId(new RecordId(mPageId, to));
+            markSlotUsed(from, false);
+            mTuples[from] = null;
+        }
+    }
+
+    /**
+     * Delete the specified tuple from the page.
+     *
+     * @throws DbException
+     *             if this tuple is not on this page, or tuple slot is already
+     *             empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != mPageId.getTableId()
+                || rid.getPageId().pageNumber() != mPageId.pageNumber())
+            throw new DbException("tuple not in this page");
+        if (!isSlotUsed(rid.tupleno()))
+            throw new DbException("tuple slot is already empty");
+        markSlotUsed(rid.tupleno(), false);
+        mTuples[rid.tupleno()] = null;
+        t.setRecordId(null);
+    }
+
+    public BTreePageId getLeftSiblingId() {
+        return mLeftSibling == 0 ? null
+                : new BTreePageId(mPageId.getTableId(), mLeftSibling, BTreePageId.LEAF);
+    }
+
+    public void setLeftSiblingId(BTreePageId id) {
+        mLeftSibling = id == null ? 0 : id.pageNumber();
+    }
+
+    public BTreePageId getRightSiblingId() {
+        return mRightSibling == 0 ? null
+                : new BTreePageId(mPageId.getTableId(), mRightSibling, BTreePageId.LEAF);
+    }
+
+    public void setRightSiblingId(BTreePageId id) {
+        mRightSibling = id == null ? 0 : id.pageNumber();
+    }
+
+    /**
+     * @return the number of empty slots on this page.
+     */
+    public int getNumEmptySlots() {
+        int count = 0;
+        for (int i = 0; i < mNumSlots; i++) {
+            if (!isSlotUsed(i))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of tuples on this page.
+     */
+    public int getNumTuples() {
+        return mNumSlots - getNumEmptySlots();
+    }
+
+    /**
+     * @return true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return (mHeader[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value)
+            mHeader[i / 8] |= (byte) (1 << (i % 8));
+        else
+            mHeader[i / 8] &= (byte) ~(1 << (i % 8));
+    }
+
+    /**
+     * @return the tuples on this page in key order, as a new list
+     */
+    public List<Tuple> getTuples() {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < mNumSlots; i++) {
+            if (isSlotUsed(i))
+                tuples.add(mTuples[i]);
+        }
+        return tuples;
+    }
+
+    /**
+     * @return an iterator over the tuples on this page in key order
+     *         (calling remove on this iterator throws an
+     *         UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return Collections.unmodifiableList(getTuples()).iterator();
+    }
+}
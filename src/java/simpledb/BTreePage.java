@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * BTreePage holds what the four kinds of BTreeFile pages have in common:
+ * their id, dirty state and before image, and (for leaf and internal pages)
+ * the page number of their parent.
+ *
+ * @see BTreeFile
+ */
+public abstract class BTreePage implements Page {
+
+    final BTreePageId mPageId;
+    TransactionId mDirtier;
+
+    /** Page number of the parent internal page, or 0 if this is the root. */
+    int mParent;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    BTreePage(BTreePageId id) {
+        mPageId = id;
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public BTreePageId getId() {
+        return mPageId;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        mDirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return mDirtier;
+    }
+
+    /**
+     * @return the id of the parent of this page: an internal page, or the
+     *         root pointer page if this page is the root
+     */
+    public BTreePageId getParentId() {
+        if (mParent == 0)
+            return new BTreePageId(mPageId.getTableId(), 0, BTreePageId.ROOT_PTR);
+        return new BTreePageId(mPageId.getTableId(), mParent, BTreePageId.INTERNAL);
+    }
+
+    /**
+     * Set the parent of this page.
+     *
+     * @param id the id of an internal page, or of the root pointer page
+     */
+    public void setParentId(BTreePageId id) {
+        mParent = id.pgcateg() == BTreePageId.ROOT_PTR ? 0 : id.pageNumber();
+    }
+
+    /**
+     * @return the bytes of this page before it was last modified
+     */
+    byte[] getBeforeImageData() {
+        synchronized (oldDataLock) {
+            return oldData;
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    /**
+     * @return the BTreeFile this page belongs to, found through the Catalog
+     */
+    BTreeFile getFile() {
+        return (BTreeFile) Database.getCatalog().getDatabaseFile(mPageId.getTableId());
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * page of any type.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    static Field readField(DataInputStream dis, Type type) throws IOException {
+        try {
+            return type.parse(dis);
+        } catch (ParseException e) {
+            throw new IOException("couldn't parse field: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Pad the stream out to a full page and return its bytes.
+     */
+    static byte[] finishPage(ByteArrayOutputStream baos, DataOutputStream dos) {
+        try {
+            dos.flush();
+            int zerolen = BufferPool.getPageSize() - baos.size();
+            dos.write(new byte[zerolen]);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb;
+
+/** Unique identifier for the pages of a BTreeFile. */
+public class BTreePageId implements PageId {
+
+    public final static int ROOT_PTR = 0;
+    public final static int INTERNAL = 1;
+    public final static int LEAF = 2;
+    public final static int HEADER = 3;
+
+    private int mTableId;
+    private int mPgNo;
+    private int mCategory;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific B+ tree.
+     *
+     * @param tableId The table that is being referenced
+     * @param pgNo The page number in that table.
+     * @param category The type of the page: ROOT_PTR, INTERNAL, LEAF or HEADER
+     */
+    public BTreePageId(int tableId, int pgNo, int category) {
+        mTableId = tableId;
+        mPgNo = pgNo;
+        mCategory = category;
+    }
+
+    /** @return the table associated with this PageId */
+    public int getTableId() {
+        return mTableId;
+    }
+
+    /**
+     * @return the page number in the table getTableId() associated with
+     *   this PageId
+     */
+    public int pageNumber() {
+        return mPgNo;
+    }
+
+    /**
+     * @return the category of this page: ROOT_PTR, INTERNAL, LEAF or HEADER
+     */
+    public int pgcateg() {
+        return mCategory;
+    }
+
+    /**
+     * @return a hash code for this page, represented by the concatenation of
+     *   the table number, page number and category
+     * @see BufferPool
+     */
+    public int hashCode() {
+        return (mTableId * 31 + mPgNo) * 4 + mCategory;
+    }
+
+    /**
+     * Compares one PageId to another. Unlike HeapPageIds, two BTreePageIds
+     * are only equal if their categories match too, so a page that is freed
+     * and reused as a different type of page is a different page.
+     *
+     * @param o The object to compare against
+     * @return true if the table ids, page numbers and categories are the same
+     */
+    public boolean equals(Object o) {
+        if (o instanceof BTreePageId) {
+            BTreePageId po = (BTreePageId) o;
+            return po.mTableId == mTableId && po.mPgNo == mPgNo
+                    && po.mCategory == mCategory;
+        }
+        return false;
+    }
+
+    public String toString() {
+        String[] categories = { "ROOT_PTR", "INTERNAL", "LEAF", "HEADER" };
+        return String.format("(%d, %d, %s)", mTableId, mPgNo, categories[mCategory]);
+    }
+
+    /**
+     *  Return a representation of this object as an array of
+     *  integers, for writing to disk.  Size of returned array must contain
+     *  number of integers that corresponds to number of args to one of the
+     *  constructors.
+     */
+    public int[] serialize() {
+        int data[] = new int[3];
+        data[0] = mTableId;
+        data[1] = mPgNo;
+        data[2] = mCategory;
+        return data;
+    }
+}
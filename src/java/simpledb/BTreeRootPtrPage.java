@@ -0,0 +1,97 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * BTreeRootPtrPage is page 0 of every BTreeFile. It records where the root
+ * of the tree is, and where the chain of header pages starts.
+ * <p>
+ * Its format is three ints: the page number of the root, the category of
+ * the root (LEAF or INTERNAL), and the page number of the first header page
+ * (0 if there are no header pages yet). The rest of the page is unused.
+ *
+ * @see BTreeFile
+ */
+public class BTreeRootPtrPage extends BTreePage {
+
+    private int mRoot;
+    private int mRootCategory;
+    private int mHeader;
+
+    /**
+     * Create a BTreeRootPtrPage from a set of bytes of data read from disk.
+     */
+    public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
+        super(id);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        mRoot = dis.readInt();
+        mRootCategory = dis.readInt();
+        mHeader = dis.readInt();
+        dis.close();
+        setBeforeImage();
+    }
+
+    /**
+     * @return the id of the root page, or null if the tree has no root yet
+     */
+    public BTreePageId getRootId() {
+        if (mRoot == 0)
+            return null;
+        return new BTreePageId(mPageId.getTableId(), mRoot, mRootCategory);
+    }
+
+    public void setRootId(BTreePageId id) throws DbException {
+        if (id.pgcateg() != BTreePageId.LEAF && id.pgcateg() != BTreePageId.INTERNAL)
+            throw new DbException("root must be a leaf or internal page");
+        mRoot = id.pageNumber();
+        mRootCategory = id.pgcateg();
+    }
+
+    /**
+     * @return the id of the first header page, or null if there is none
+     */
+    public BTreePageId getHeaderId() {
+        if (mHeader == 0)
+            return null;
+        return new BTreePageId(mPageId.getTableId(), mHeader, BTreePageId.HEADER);
+    }
+
+    public void setHeaderId(BTreePageId id) {
+        mHeader = id == null ? 0 : id.pageNumber();
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(mRoot);
+            dos.writeInt(mRootCategory);
+            dos.writeInt(mHeader);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return finishPage(baos, dos);
+    }
+
+    /**
+     * @return the page data of a root pointer page pointing at a root leaf
+     *         on page 1
+     */
+    static byte[] createInitialPageData() {
+        byte[] data = createEmptyPageData();
+        data[3] = 1;
+        data[7] = BTreePageId.LEAF;
+        return data;
+    }
+
+    public BTreeRootPtrPage getBeforeImage() {
+        try {
+            return new BTreeRootPtrPage(mPageId, getBeforeImageData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            // should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+}
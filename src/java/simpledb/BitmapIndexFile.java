@@ -0,0 +1,459 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BitmapIndexFile is a secondary index for a low-cardinality field of a
+ * HeapFile table. It keeps, for every distinct value of the field, a
+ * {@link RoaringBitmap} of the positions of the tuples holding it, where
+ * the tuple in slot s of page p is at position p * slotsPerPage + s.
+ * <p>
+ * A lookup ORs together the bitmaps of the values satisfying its predicate,
+ * so every operator but LIKE is answered from the bitmaps alone. Further
+ * predicates on fields with a bitmap index of their own are ANDed in before
+ * any page of the table is read, and the remaining tuples are fetched in
+ * page order. Callers can also combine bitmaps themselves with
+ * {@link #bitmap}, {@link RoaringBitmap#and} and {@link RoaringBitmap#or}
+ * and fetch the result with {@link #lookup(TransactionId, RoaringBitmap,
+ * Predicate[])}.
+ * <p>
+ * With few distinct values the bitmaps are small, so the index is held in
+ * memory rather than in pages, and is a DbIndex but not a DbFile. It is
+ * saved to its file when the BufferPool flushes all its pages (see
+ * {@link BufferPool#flushAllPages}); a file that is older than the table,
+ * because pages of the table were written after the last save, is rebuilt
+ * from the table when the index is opened.
+ * The file starts with a format version and the key type, then the number
+ * of values, followed by each value and its serialized bitmap.
+ *
+ * @Threadsafe
+ */
+public class BitmapIndexFile implements DbIndex {
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    private final int mTableId;
+    private final HeapFile mTable;
+    private final int mKeyField;
+    private final Type mKeyType;
+    private final int mSlotsPerPage;
+    private final TupleDesc mTupleDesc;
+
+    private final TreeMap<Field, RoaringBitmap> mBitmaps;
+    private boolean mDirty = false;
+
+    /**
+     * Opens the bitmap index stored in the specified file. If the file holds
+     * an index but is older than the table, the index is rebuilt from the
+     * table; a missing or empty file gives an empty index.
+     *
+     * @param f
+     *            the file this index is saved to
+     * @param tableid
+     *            the table to index, which must be a HeapFile in the Catalog
+     * @param keyField
+     *            the index of the field of that table to index
+     * @throws IllegalArgumentException
+     *             if the table is not a HeapFile
+     */
+    public BitmapIndexFile(File f, int tableid, int keyField) {
+        DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(table instanceof HeapFile))
+            throw new IllegalArgumentException("bitmap indexes are only supported on heap files");
+        mFile = f;
+        mTableId = f.getAbsoluteFile().hashCode();
+        mTable = (HeapFile) table;
+        mKeyField = keyField;
+        mKeyType = table.getTupleDesc().getFieldType(keyField);
+        mSlotsPerPage = HeapPage.getNumTuples(table.getTupleDesc());
+        mTupleDesc = new TupleDesc(new Type[] { mKeyType, Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "key", "page", "slot" });
+        mBitmaps = new TreeMap<Field, RoaringBitmap>(new Comparator<Field>() {
+            public int compare(Field a, Field b) {
+                if (a.compare(Predicate.Op.LESS_THAN, b))
+                    return -1;
+                return a.equals(b) ? 0 : 1;
+            }
+        });
+
+        try {
+            if (f.length() > 0) {
+                if (f.lastModified() < mTable.getFile().lastModified() || !load())
+                    rebuild();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("could not open bitmap index " + f + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the File this index is saved to.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this BitmapIndexFile: the hash code
+     * of the absolute file name, as for HeapFile.
+     */
+    public int getId() {
+        return mTableId;
+    }
+
+    /**
+     * Returns the schema of the entries of this index: the key, and the page
+     * number and slot of the tuple holding it.
+     */
+    public TupleDesc getTupleDesc() {
+        return mTupleDesc;
+    }
+
+    public int getIndexedTableId() {
+        return mTable.getId();
+    }
+
+    public int getKeyField() {
+        return mKeyField;
+    }
+
+    /**
+     * A bitmap index answers lookups with every operator but LIKE.
+     */
+    public boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * @return the number of distinct values in the index
+     */
+    public synchronized int numValues() {
+        return mBitmaps.size();
+    }
+
+    /**
+     * Returns the positions of the tuples whose key satisfies "key op
+     * value". The result must not be modified.
+     *
+     * @throws IllegalArgumentException
+     *             if op is LIKE
+     */
+    public synchronized RoaringBitmap bitmap(Predicate.Op op, Field value) {
+        Collection<RoaringBitmap> matching;
+        switch (op) {
+        case EQUALS:
+            RoaringBitmap b = mBitmaps.get(value);
+            return b == null ? new RoaringBitmap() : b;
+        case NOT_EQUALS:
+            matching = new ArrayList<RoaringBitmap>(mBitmaps.headMap(value, false).values());
+            matching.addAll(mBitmaps.tailMap(value, false).values());
+            break;
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+            matching = mBitmaps.headMap(value, op == Predicate.Op.LESS_THAN_OR_EQ).values();
+            break;
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            matching = mBitmaps.tailMap(value, op == Predicate.Op.GREATER_THAN_OR_EQ).values();
+            break;
+        default:
+            throw new IllegalArgumentException("bitmap indexes can't answer " + op);
+        }
+        RoaringBitmap result = new RoaringBitmap();
+        for (RoaringBitmap m : matching)
+            result = RoaringBitmap.or(result, m);
+        return result;
+    }
+
+    /**
+     * Returns an iterator over the tuples of the indexed table whose key
+     * satisfies "key op value" and that satisfy every one of the predicates.
+     * Predicates that a bitmap index on the table can answer are ANDed into
+     * the bitmap instead of being checked on the tuples.
+     */
+    public DbFileIterator lookup(TransactionId tid, Predicate.Op op, Field value,
+            Predicate[] predicates) {
+        RoaringBitmap rows = bitmap(op, value);
+        ArrayList<Predicate> residual = new ArrayList<Predicate>();
+        for (Predicate p : predicates) {
+            BitmapIndexFile other = bitmapIndexFor(p);
+            if (other != null)
+                rows = RoaringBitmap.and(rows, other.bitmap(p.getOp(), p.getOperand()));
+            else
+                residual.add(p);
+        }
+        return lookup(tid, rows, residual.toArray(new Predicate[residual.size()]));
+    }
+
+    /**
+     * @return a bitmap index on the indexed table that can answer p, or null
+     */
+    private BitmapIndexFile bitmapIndexFor(Predicate p) {
+        for (DbIndex index : Database.getCatalog().getIndexes(mTable.getId())) {
+            if (index instanceof BitmapIndexFile && index.getKeyField() == p.getField()
+                    && index.supports(p.getOp()))
+                return (BitmapIndexFile) index;
+        }
+        return null;
+    }
+
+    /**
+     * Returns an iterator over the tuples of the indexed table at the
+     * positions in rows that satisfy every one of the predicates, fetching
+     * each page of the table at most once.
+     *
+     * @param rows
+     *            positions, as returned by {@link #bitmap} or a combination
+     *            of such bitmaps of indexes on the same table
+     */
+    public DbFileIterator lookup(final TransactionId tid, final RoaringBitmap rows,
+            Predicate[] predicates) {
+        final Predicate[] preds = predicates != null && predicates.length > 0 ? predicates
+                : null;
+        return new AbstractDbFileIterator() {
+            int[] mRows;
+            int mNext;
+            HeapPage mPage;
+
+            public void open() {
+                mRows = rows.toArray();
+                mNext = 0;
+                mPage = null;
+            }
+
+            @Override
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                while (mRows != null && mNext < mRows.length) {
+                    int row = mRows[mNext++];
+                    int pageNo = row / mSlotsPerPage;
+                    if (mPage == null || mPage.getId().pageNumber() != pageNo)
+                        mPage = (HeapPage) Database.getBufferPool().getPage(tid,
+                                new HeapPageId(mTable.getId(), pageNo), Permissions.READ_ONLY);
+                    Tuple t = mPage.getTuple(row % mSlotsPerPage, preds);
+                    if (t != null)
+                        return t;
+                }
+                return null;
+            }
+
+            public void rewind() {
+                close();
+                open();
+            }
+
+            public void close() {
+                super.close();
+                mRows = null;
+                mPage = null;
+            }
+        };
+    }
+
+    /**
+     * A lookup reads no index pages, and fetches the matching tuples in page
+     * order, so it reads at most one page per match and never more pages
+     * than the table has.
+     */
+    public double estimateLookupPages(double matches) {
+        return Math.min(matches, mTable.numPages());
+    }
+
+    private int position(RecordId rid) {
+        return rid.getPageId().pageNumber() * mSlotsPerPage + rid.tupleno();
+    }
+
+    /**
+     * Adds the specified tuple of the indexed table to the bitmap of its
+     * key. No pages are modified.
+     *
+     * @param t
+     *            a tuple of the indexed table; its RecordId must be set
+     */
+    public synchronized ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("can't index a tuple that is not stored in a table");
+        Field key = t.getField(mKeyField);
+        RoaringBitmap b = mBitmaps.get(key);
+        if (b == null) {
+            b = new RoaringBitmap();
+            mBitmaps.put(key, b);
+        }
+        b.add(position(rid));
+        mDirty = true;
+        return new ArrayList<Page>();
+    }
+
+    /**
+     * Removes the specified tuple of the indexed table from the bitmap of
+     * its key. Must be called before the tuple is deleted from the table,
+     * while its RecordId is still set.
+     *
+     * @throws DbException
+     *             if the index has no entry for the tuple
+     */
+    public synchronized ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("tuple is not stored in a table");
+        Field key = t.getField(mKeyField);
+        RoaringBitmap b = mBitmaps.get(key);
+        if (b == null || !b.remove(position(rid)))
+            throw new DbException("tuple " + rid + " is not in the index");
+        if (b.isEmpty())
+            mBitmaps.remove(key);
+        mDirty = true;
+        return new ArrayList<Page>();
+    }
+
+    /**
+     * Returns an iterator over the entries of this index, as tuples of
+     * {@link #getTupleDesc}, in key order.
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new AbstractDbFileIterator() {
+            Iterator<Map.Entry<Field, RoaringBitmap>> mValues;
+            Field mKey;
+            int[] mRows;
+            int mNext;
+
+            public void open() {
+                synchronized (BitmapIndexFile.this) {
+                    // copy, so the iterator is not disturbed by later writes
+                    mValues = new TreeMap<Field, RoaringBitmap>(mBitmaps).entrySet().iterator();
+                }
+                mRows = new int[0];
+                mNext = 0;
+            }
+
+            @Override
+            protected Tuple readNext() {
+                if (mValues == null)
+                    return null;
+                while (mNext == mRows.length) {
+                    if (!mValues.hasNext())
+                        return null;
+                    Map.Entry<Field, RoaringBitmap> e = mValues.next();
+                    mKey = e.getKey();
+                    synchronized (BitmapIndexFile.this) {
+                        mRows = e.getValue().toArray();
+                    }
+                    mNext = 0;
+                }
+                int row = mRows[mNext++];
+                Tuple t = new Tuple(mTupleDesc);
+                t.setField(0, mKey);
+                t.setField(1, new IntField(row / mSlotsPerPage));
+                t.setField(2, new IntField(row % mSlotsPerPage));
+                return t;
+            }
+
+            public void rewind() {
+                close();
+                open();
+            }
+
+            public void close() {
+                super.close();
+                mValues = null;
+            }
+        };
+    }
+
+    /**
+     * Called by the BufferPool once every page of the indexed table is on
+     * disk: saves the index if it has changed since it was last saved, and
+     * otherwise marks the saved index as being as recent as the table, so
+     * it is not rebuilt when next opened.
+     *
+     * @see BufferPool#flushAllPages
+     */
+    public synchronized void flush() throws IOException {
+        if (mDirty || !mFile.exists())
+            save();
+        else
+            mFile.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Write the whole index to its file.
+     */
+    public synchronized void save() throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mFile)));
+        try {
+            dos.writeInt(VERSION);
+            dos.writeInt(mKeyType.ordinal());
+            dos.writeInt(mBitmaps.size());
+            for (Map.Entry<Field, RoaringBitmap> e : mBitmaps.entrySet()) {
+                e.getKey().serialize(dos);
+                e.getValue().serialize(dos);
+            }
+        } finally {
+            dos.close();
+        }
+        mDirty = false;
+    }
+
+    /**
+     * @return the number of bytes {@link #save} writes
+     */
+    public synchronized long serializedSize() {
+        long n = 3 * 4;
+        for (RoaringBitmap b : mBitmaps.values())
+            n += mKeyType.getLen() + b.serializedSize();
+        return n;
+    }
+
+    /**
+     * Read the index from its file.
+     *
+     * @return false if the file does not hold an index on a key of this
+     *         type, or is truncated
+     */
+    private boolean load() throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mFile)));
+        try {
+            if (dis.readInt() != VERSION || dis.readInt() != mKeyType.ordinal())
+                return false;
+            int values = dis.readInt();
+            mBitmaps.clear();
+            for (int i = 0; i < values; i++) {
+                Field key = mKeyType.parse(dis);
+                mBitmaps.put(key, RoaringBitmap.deserialize(dis));
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        } catch (java.text.ParseException e) {
+            return false;
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Rebuild the index by reading every page of the table, and save it.
+     */
+    private void rebuild() throws IOException {
+        mBitmaps.clear();
+        for (int p = 0; p < mTable.numPages(); p++) {
+            HeapPage page = (HeapPage) mTable.readPage(new HeapPageId(mTable.getId(), p));
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                try {
+                    insertTuple(null, t);
+                } catch (DbException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+        }
+        save();
+    }
+}
@@ -1,8 +1,19 @@
 package simpledb;
 
 import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -12,8 +23,26 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Cached pages live in numbered frames; the page table maps each cached
+ * PageId to its frame. By default a frame holds the Page object itself. A
+ * BufferPool created off-heap instead pre-allocates one direct ByteBuffer
+ * arena with a PAGE_SIZE slot per frame, and keeps each page there as its
+ * page data. A Page object is then only decoded from the frame when the
+ * page is requested, and is only kept on the Java heap while the page may
+ * be modified: once it has been fetched READ_WRITE or dirtied, until it is
+ * flushed. Large pools of mostly clean pages then cost the garbage
+ * collector nothing.
+ * <p>
+ * No lock covers the whole pool. The {@link PageTable} is read without
+ * locking, and each frame has a pin count: a thread pins a frame while it
+ * reads the page out of it, then checks that the frame still holds the page
+ * it looked up. A pin count of -1 means one thread has the frame to itself
+ * to load, evict or rewrite it; others wait for it to finish. Eviction
+ * sweeps the frames like a clock, giving recently used pages a second
+ * chance, and only takes frames it can claim that way.
  * 
- * @Threadsafe, all fields are final
+ * @Threadsafe
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -27,8 +56,36 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
     
-    private ConcurrentHashMap<PageId, Page> mPageCache;
+    /** The pin count of a frame that one thread has to itself. */
+    private static final int CLAIMED = -1;
+    /** How long eviction waits for a frame to be unpinned before giving up. */
+    private static final long EVICTION_WAIT_MS = 1000;
+
+    /** The frame of each cached page. */
+    private final PageTable mPageTable;
     private final int mMaxPages;
+    /** The page in each frame, or null if the frame is free. */
+    private final AtomicReferenceArray<PageId> mFramePids;
+    /** The Page object of each frame, or null if it is only in the arena. */
+    private final AtomicReferenceArray<Page> mFramePages;
+    /** The number of threads using each frame, or CLAIMED. */
+    private final AtomicIntegerArray mPinCounts;
+    /** Set when a frame is used, cleared as the clock hand passes it. */
+    private final AtomicIntegerArray mReferenced;
+    private final AtomicInteger mClockHand;
+    /** Frames holding no page; they stay CLAIMED while they are free. */
+    private final ConcurrentLinkedQueue<Integer> mFreeFrames;
+    /** The pins each transaction holds, as a count per page. */
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Integer>> mPins;
+
+    /** The off-heap page data of every frame, or null if pages are kept on the heap. */
+    private final ByteBuffer mArena;
+    private final int mFrameSize;
+    /** The length of the page data in each frame of the arena, or 0 if none. */
+    private final int[] mFrameLengths;
+    /** The (PageId, byte[]) constructor that decodes the page in each frame. */
+    private final Constructor<?>[] mFrameDecoders;
+    private final ConcurrentHashMap<Class<?>, Optional<Constructor<?>>> mDecoders;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -36,8 +93,67 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        mPageCache = new ConcurrentHashMap<PageId, Page>();
+        this(numPages, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, either as Page
+     * objects or in an off-heap arena of getPageSize() bytes per page.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param offHeap true to keep the pages in a direct ByteBuffer arena
+     * @throws IllegalArgumentException if the arena would be over 2GB
+     */
+    public BufferPool(int numPages, boolean offHeap) {
+        mPageTable = new PageTable(numPages);
         mMaxPages = numPages;
+        mFramePids = new AtomicReferenceArray<PageId>(numPages);
+        mFramePages = new AtomicReferenceArray<Page>(numPages);
+        mPinCounts = new AtomicIntegerArray(numPages);
+        mReferenced = new AtomicIntegerArray(numPages);
+        mClockHand = new AtomicInteger();
+        mFreeFrames = new ConcurrentLinkedQueue<Integer>();
+        mPins = new ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Integer>>();
+        for (int i = 0; i < numPages; i++) {
+            mPinCounts.set(i, CLAIMED);
+            mFreeFrames.add(i);
+        }
+
+        mFrameSize = getPageSize();
+        if (offHeap) {
+            if ((long) numPages * mFrameSize > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("an arena of " + numPages
+                        + " pages is too large");
+            mArena = ByteBuffer.allocateDirect(numPages * mFrameSize);
+            mFrameLengths = new int[numPages];
+            mFrameDecoders = new Constructor<?>[numPages];
+            mDecoders = new ConcurrentHashMap<Class<?>, Optional<Constructor<?>>>();
+        } else {
+            mArena = null;
+            mFrameLengths = null;
+            mFrameDecoders = null;
+            mDecoders = null;
+        }
+    }
+
+    /**
+     * @return true if this pool keeps its pages in an off-heap arena
+     */
+    public boolean isOffHeap() {
+        return mArena != null;
+    }
+
+    /**
+     * @return the number of cached pages that are held as Page objects on
+     *         the Java heap
+     */
+    public int numHeapPages() {
+        int n = 0;
+        for (int frame = 0; frame < mMaxPages; frame++) {
+            if (mFramePages.get(frame) != null)
+                n++;
+        }
+        return n;
     }
     
     public static int getPageSize() {
@@ -59,25 +175,306 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The page may be evicted as soon as this returns; callers that keep
+     * using it should {@link #pinPage} it instead.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
+     * @throws DbException if every frame of the pool stays pinned
      */
-    public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-        if (mPageCache.containsKey(pid))
-            return mPageCache.get(pid);
+        return fetch(pid, perm, false);
+    }
+
+    /**
+     * Retrieve the specified page like getPage, and pin it: the page is not
+     * evicted, nor its Page object dropped, until it is unpinned again.
+     * Iterators pin the page they are reading from, and write paths the page
+     * they are changing until they have marked it dirty, after which an
+     * eviction writes it back instead of losing the changes.
+     * <p>
+     * Pins belong to the transaction that takes them. Every pinPage should
+     * be matched by an unpinPage for the same transaction on the same
+     * BufferPool; pins that are left, e.g. by an iterator that is never
+     * closed, are released by transactionComplete. A page may be pinned
+     * several times, and stays pinned until it has been unpinned as often.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @throws DbException if every frame of the pool stays pinned
+     * @see #unpinPage
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        Page page = fetch(pid, perm, true);
+        if (tid != null) {
+            ConcurrentHashMap<PageId, Integer> pins = mPins.get(tid);
+            if (pins == null) {
+                pins = new ConcurrentHashMap<PageId, Integer>();
+                ConcurrentHashMap<PageId, Integer> raced = mPins.putIfAbsent(tid, pins);
+                if (raced != null)
+                    pins = raced;
+            }
+            while (true) {
+                Integer count = pins.putIfAbsent(pid, 1);
+                if (count == null || pins.replace(pid, count, count + 1))
+                    break;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Release a pin that tid took with pinPage. Unpinning a page that tid
+     * hasn't pinned in this pool does nothing.
+     *
+     * @param tid the ID of the transaction that pinned the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        if (tid != null) {
+            ConcurrentHashMap<PageId, Integer> pins = mPins.get(tid);
+            if (pins == null)
+                return;
+            while (true) {
+                Integer count = pins.get(pid);
+                if (count == null)
+                    return;
+                if (count > 1 ? pins.replace(pid, count, count - 1) : pins.remove(pid, count))
+                    break;
+            }
+        }
+        unpinFrame(pid);
+    }
+
+    /**
+     * Release every pin tid still holds. Pins are released when a
+     * transaction completes, and before an abort rolls it back, since the
+     * rollback may discard pages the transaction still has pinned.
+     */
+    public void releasePins(TransactionId tid) {
+        ConcurrentHashMap<PageId, Integer> pins = mPins.remove(tid);
+        if (pins == null)
+            return;
+        for (Map.Entry<PageId, Integer> e : pins.entrySet()) {
+            for (int i = 0; i < e.getValue(); i++)
+                unpinFrame(e.getKey());
+        }
+    }
 
-        // Could not find page, so we must pull it and add to the buffer pool.
-        Page pulledPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        // Evict if we are over capacity
-        if (mPageCache.size() >= mMaxPages) {
-            evictPage();
+    /**
+     * Take one pin off the frame of pid, if it is cached and pinned.
+     */
+    private void unpinFrame(PageId pid) {
+        int frame = mPageTable.get(pid);
+        if (frame < 0)
+            return;
+        while (true) {
+            int count = mPinCounts.get(frame);
+            if (count <= 0 || !pid.equals(mFramePids.get(frame)))
+                return;
+            if (mPinCounts.compareAndSet(frame, count, count - 1))
+                return;
         }
-        mPageCache.put(pid, pulledPage);
-        return pulledPage;
-    } 
+    }
+
+    /**
+     * @return the number of pins on pid, or 0 if it isn't cached
+     */
+    public int getPinCount(PageId pid) {
+        int frame = mPageTable.get(pid);
+        if (frame < 0 || !pid.equals(mFramePids.get(frame)))
+            return 0;
+        return Math.max(0, mPinCounts.get(frame));
+    }
+
+    /**
+     * Find or load pid, and return its page. The frame is pinned while the
+     * page is taken out of it, and stays pinned if keepPinned is set.
+     */
+    private Page fetch(PageId pid, Permissions perm, boolean keepPinned) throws DbException {
+        while (true) {
+            int frame = mPageTable.get(pid);
+            if (frame < 0) {
+                frame = load(pid);
+                if (frame < 0)
+                    continue;
+            } else if (!pin(frame, pid)) {
+                continue;
+            }
+            Page page = mFramePages.get(frame);
+            if (page == null) {
+                try {
+                    page = decode(frame);
+                } catch (DbException e) {
+                    unpin(frame);
+                    throw e;
+                }
+                if (perm == Permissions.READ_WRITE
+                        && !mFramePages.compareAndSet(frame, null, page))
+                    page = mFramePages.get(frame);
+            }
+            if (!keepPinned)
+                unpin(frame);
+            return page;
+        }
+    }
+
+    /**
+     * Pin a frame that the page table says holds pid, waiting while another
+     * thread has claimed it.
+     *
+     * @return false if the frame turned out not to hold pid
+     */
+    private boolean pin(int frame, PageId pid) {
+        while (true) {
+            int count = mPinCounts.get(frame);
+            if (count == CLAIMED) {
+                if (!pid.equals(mFramePids.get(frame)))
+                    return false;
+                Thread.yield();
+            } else if (mPinCounts.compareAndSet(frame, count, count + 1)) {
+                break;
+            }
+        }
+        if (!pid.equals(mFramePids.get(frame))) {
+            unpin(frame);
+            return false;
+        }
+        mReferenced.set(frame, 1);
+        return true;
+    }
+
+    private void unpin(int frame) {
+        mPinCounts.decrementAndGet(frame);
+    }
+
+    /**
+     * Read pid from disk into a free frame, and pin it. The frame is in the
+     * page table, CLAIMED, while the page is read, so other threads asking
+     * for the page wait for it instead of reading it again.
+     *
+     * @return the frame, or -1 if another thread was already loading pid
+     */
+    private int load(PageId pid) throws DbException {
+        int frame = allocateFrame();
+        mFramePids.set(frame, pid);
+        if (mPageTable.putIfAbsent(pid, frame) >= 0) {
+            freeFrame(frame);
+            return -1;
+        }
+        Page page;
+        try {
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        } catch (RuntimeException e) {
+            mPageTable.remove(pid, frame);
+            freeFrame(frame);
+            throw e;
+        }
+        fill(frame, page, false);
+        mReferenced.set(frame, 1);
+        mPinCounts.set(frame, 1);
+        return frame;
+    }
+
+    /**
+     * @return a free frame, CLAIMED, evicting a page if there is none
+     */
+    private int allocateFrame() throws DbException {
+        Integer frame = mFreeFrames.poll();
+        return frame != null ? frame : evictPage();
+    }
+
+    /**
+     * Put page in a CLAIMED frame. Off-heap, its data is copied into the
+     * arena and the Page object is only kept if keep is set or the data
+     * can't be stored there.
+     */
+    private void fill(int frame, Page page, boolean keep) {
+        mFramePages.set(frame, page);
+        if (mArena != null && store(frame, page) && !keep)
+            mFramePages.set(frame, null);
+    }
+
+    /**
+     * Copy the data of page into the arena slot of frame, which the calling
+     * thread has CLAIMED.
+     *
+     * @return false if the page can't be decoded from its data again, or
+     *         its data doesn't fit in a frame
+     */
+    private boolean store(int frame, Page page) {
+        mFrameLengths[frame] = 0;
+        Constructor<?> decoder = decoderFor(page);
+        if (decoder == null)
+            return false;
+        byte[] data = page.getPageData();
+        if (data.length > mFrameSize)
+            return false;
+        ByteBuffer slot = mArena.duplicate();
+        slot.position(frame * mFrameSize);
+        slot.put(data);
+        mFrameLengths[frame] = data.length;
+        mFrameDecoders[frame] = decoder;
+        return true;
+    }
+
+    /**
+     * @return the constructor that makes a page like page from its PageId
+     *         and data, as LogFile does for before images, or null if the
+     *         page class has none
+     */
+    private Constructor<?> decoderFor(Page page) {
+        Class<?> pageClass = page.getClass();
+        Optional<Constructor<?>> decoder = mDecoders.get(pageClass);
+        if (decoder == null) {
+            try {
+                decoder = Optional.<Constructor<?>>of(pageClass.getDeclaredConstructor(
+                        page.getId().getClass(), byte[].class));
+            } catch (NoSuchMethodException e) {
+                // keep pages of this class on the heap
+                decoder = Optional.empty();
+            }
+            mDecoders.put(pageClass, decoder);
+        }
+        return decoder.orElse(null);
+    }
+
+    /**
+     * @return a new Page object decoded from the arena slot of a pinned frame
+     */
+    private Page decode(int frame) throws DbException {
+        byte[] data = new byte[mFrameLengths[frame]];
+        ByteBuffer slot = mArena.duplicate();
+        slot.position(frame * mFrameSize);
+        slot.get(data);
+        PageId pid = mFramePids.get(frame);
+        try {
+            return (Page) mFrameDecoders[frame].newInstance(pid, data);
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new DbException("could not decode page " + pid + ": " + e);
+        } catch (InvocationTargetException e) {
+            throw new DbException("could not decode page " + pid + ": " + e.getCause());
+        }
+    }
+
+    /**
+     * Free a CLAIMED frame, dropping its page without writing it. The frame
+     * must already be out of the page table.
+     */
+    private void freeFrame(int frame) {
+        mFramePids.set(frame, null);
+        mFramePages.set(frame, null);
+        if (mArena != null) {
+            mFrameLengths[frame] = 0;
+            mFrameDecoders[frame] = null;
+        }
+        mFreeFrames.add(frame);
+    }
 
     /**
      * Releases the lock on a page.
@@ -101,6 +498,7 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
@@ -112,7 +510,7 @@ public class BufferPool {
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction, and any pins it still holds.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -121,6 +519,7 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        releasePins(tid);
     }
 
     /**
@@ -133,18 +532,80 @@ public class BufferPool {
      * their markDirty bit, and updates cached versions of any pages that have 
      * been dirtied so that future requests see up-to-date pages. 
      *
+     * Adds an entry for the tuple to every secondary index on the table, on
+     * behalf of the same transaction. If an index rejects the entry, the
+     * tuple is taken out of the table and the other indexes again, so the
+     * table and its indexes never disagree. The tuple is then counted in
+     * the table's statistics, if it has any.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
+     * @see Catalog#addIndex
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-        ArrayList<Page> pageArrayList = dbFile.insertTuple(tid, t);
+        cacheDirtyPages(tid, dbFile.insertTuple(tid, t));
 
+        List<DbIndex> indexes = Database.getCatalog().getIndexes(tableId);
+        for (int i = 0; i < indexes.size(); i++) {
+            try {
+                cacheDirtyPages(tid, indexes.get(i).insertTuple(tid, t));
+            } catch (DbException e) {
+                for (int j = 0; j < i; j++)
+                    cacheDirtyPages(tid, indexes.get(j).deleteTuple(tid, t));
+                cacheDirtyPages(tid, dbFile.deleteTuple(tid, t));
+                throw e;
+            }
+        }
+        TableStats.recordInsert(tableId, t);
+    }
+
+    /**
+     * Add the entries for the tuples already in a table to a new secondary
+     * index on it, on behalf of transaction tid.
+     *
+     * @param tid the transaction building the index
+     * @param index an index registered with {@link Catalog#addIndex} that has
+     *     no entries yet
+     */
+    public void buildIndex(TransactionId tid, DbIndex index)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(index.getIndexedTableId());
+        DbFileIterator it = dbFile.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            cacheDirtyPages(tid, index.insertTuple(tid, it.next()));
+        }
+        it.close();
+    }
+
+    private void cacheDirtyPages(TransactionId tid, ArrayList<Page> pageArrayList)
+            throws DbException {
         for (Page p : pageArrayList) {
             p.markDirty(true, tid);
-            mPageCache.put(p.getId(), p);
+            PageId pid = p.getId();
+            while (true) {
+                int frame = mPageTable.get(pid);
+                if (frame >= 0) {
+                    if (!pin(frame, pid))
+                        continue;
+                    mFramePages.set(frame, p);
+                    unpin(frame);
+                    break;
+                }
+                // the page was never read through the pool, or was evicted
+                frame = allocateFrame();
+                mFramePids.set(frame, pid);
+                if (mPageTable.putIfAbsent(pid, frame) >= 0) {
+                    freeFrame(frame);
+                    continue;
+                }
+                fill(frame, p, true);
+                mPinCounts.set(frame, 0);
+                break;
+            }
         }
     }
 
@@ -157,29 +618,49 @@ public class BufferPool {
      * their markDirty bit, and updates cached versions of any pages that have 
      * been dirtied so that future requests see up-to-date pages. 
      *
+     * Removes the tuple's entries from the secondary indexes on its table
+     * first, while its RecordId still says where it is. If an index or the
+     * table rejects the delete, the entries already removed are added back.
+     * A deleted tuple is taken out of the table's statistics, if it has any.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        ArrayList<Page> pageArrayList = dbFile.deleteTuple(tid, t);
-
-        for (Page p : pageArrayList) {
-            p.markDirty(true, tid);
-            mPageCache.put(p.getId(), p);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        List<DbIndex> indexes = Database.getCatalog().getIndexes(tableId);
+        int removed = 0;
+        try {
+            for (; removed < indexes.size(); removed++)
+                cacheDirtyPages(tid, indexes.get(removed).deleteTuple(tid, t));
+            cacheDirtyPages(tid, dbFile.deleteTuple(tid, t));
+        } catch (DbException e) {
+            for (int j = 0; j < removed; j++)
+                cacheDirtyPages(tid, indexes.get(j).insertTuple(tid, t));
+            throw e;
         }
+        TableStats.recordDelete(tableId, t);
     }
 
     /**
-     * Flush all dirty pages to disk.
+     * Flush all dirty pages to disk, then save the indexes held in memory,
+     * which are now consistent with their tables on disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
-        // some code goes here
-        // not necessary for lab1
-
+    public void flushAllPages() throws IOException {
+        for (int frame = 0; frame < mMaxPages; frame++) {
+            flushFrame(frame);
+        }
+        Iterator<Integer> tableIds = Database.getCatalog().tableIdIterator();
+        while (tableIds.hasNext()) {
+            for (DbIndex index : Database.getCatalog().getIndexes(tableIds.next())) {
+                if (index instanceof BitmapIndexFile)
+                    ((BitmapIndexFile) index).flush();
+            }
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -187,45 +668,116 @@ public class BufferPool {
         buffer pool doesn't keep a rolled back page in its
         cache.
     */
-    public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // only necessary for lab5
+    public void discardPage(PageId pid) {
+        while (true) {
+            int frame = mPageTable.get(pid);
+            if (frame < 0)
+                return;
+            if (!pid.equals(mFramePids.get(frame)))
+                continue;
+            if (!mPinCounts.compareAndSet(frame, 0, CLAIMED)) {
+                Thread.yield();
+                continue;
+            }
+            if (mPageTable.remove(pid, frame)) {
+                freeFrame(frame);
+                return;
+            }
+            mPinCounts.set(frame, 0);
+        }
     }
 
     /**
-     * Flushes a certain page to disk
-     * @param pid an ID indicating the page to flush
+     * Flushes the page in a frame to disk if it is dirty. Off-heap, the
+     * page then goes back to the arena and its Page object is dropped,
+     * unless another thread is using the frame.
+     * @param frame the frame of the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
-        Page page = mPageCache.get(pid);
-        TransactionId tid = page.isDirty();
+    private void flushFrame(int frame) throws IOException {
+        Page page = mFramePages.get(frame);
+        if (page == null)
+            return;
+        writeBack(page);
+        if (mArena != null && mPinCounts.compareAndSet(frame, 0, CLAIMED)) {
+            if (mFramePages.get(frame) == page && page.isDirty() == null && store(frame, page))
+                mFramePages.set(frame, null);
+            mPinCounts.set(frame, 0);
+        }
+    }
 
-        if (tid != null) {
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            dbFile.writePage(page);
-            page.markDirty(false, tid);
+    /**
+     * Write page to disk if it is dirty.
+     */
+    private void writeBack(Page page) throws IOException {
+        synchronized (page) {
+            TransactionId tid = page.isDirty();
+            if (tid != null) {
+                DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+                dbFile.writePage(page);
+                page.markDirty(false, tid);
+            }
         }
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+    public void flushPages(TransactionId tid) throws IOException {
+        for (int frame = 0; frame < mMaxPages; frame++) {
+            Page page = mFramePages.get(frame);
+            if (page != null && page.isDirty() != null && tid.equals(page.isDirty()))
+                flushFrame(frame);
+        }
     }
 
     /**
-     * Discards a page from the buffer pool.
+     * Discards a page from the buffer pool, and returns its frame CLAIMED.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * <p>
+     * The clock hand passes each frame up to twice looking for a clean page
+     * that is neither pinned nor recently used; only then are dirty pages
+     * written back and taken as well, so index pages changed by insertTuple
+     * and deleteTuple are not lost. If every frame is pinned, the sweep
+     * starts over until one is unpinned.
+     *
+     * @throws DbException if every frame stays pinned for EVICTION_WAIT_MS
      */
-    private synchronized  void evictPage() throws DbException {
-        // some code goes here
-	// TODO: implement flushing in next lab
-	// Naively discards the first page it can
-	for (PageId p: mPageCache.keySet()) {
-	    mPageCache.remove(p);
-	    break;
-	}
+    private int evictPage() throws DbException {
+        long deadline = System.currentTimeMillis() + EVICTION_WAIT_MS;
+        for (int step = 0; ; step++) {
+            if (step == 4 * mMaxPages) {
+                if (System.currentTimeMillis() > deadline)
+                    throw new DbException("all " + mMaxPages
+                            + " pages of the buffer pool are in use");
+                Thread.yield();
+                step = 2 * mMaxPages;
+            }
+            int frame = (mClockHand.getAndIncrement() & Integer.MAX_VALUE) % mMaxPages;
+            PageId pid = mFramePids.get(frame);
+            if (pid == null || mPinCounts.get(frame) != 0)
+                continue;
+            if (mReferenced.getAndSet(frame, 0) != 0)
+                continue;
+            Page page = mFramePages.get(frame);
+            if (step < 2 * mMaxPages && page != null && page.isDirty() != null)
+                continue;
+            if (!mPinCounts.compareAndSet(frame, 0, CLAIMED))
+                continue;
+
+            // the frame is ours; its page can no longer change
+            page = mFramePages.get(frame);
+            if (page != null) {
+                try {
+                    writeBack(page);
+                } catch (IOException e) {
+                    mPinCounts.set(frame, 0);
+                    throw new DbException("could not flush page " + pid + ": " + e.getMessage());
+                }
+            }
+            mPageTable.remove(pid, frame);
+            mFramePids.set(frame, null);
+            mFramePages.set(frame, null);
+            return frame;
+        }
     }
 
 }
@@ -0,0 +1,84 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how BufferPool.getPage scales from 1 to 64 reader threads when
+ * every page of the table is already cached, so each call is a page table
+ * lookup and a pin of the page's frame.
+ * <p>
+ * Usage: java simpledb.BufferPoolBenchmark [pages] [lookups per thread] [offheap]
+ */
+public class BufferPoolBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        boolean offHeap = args.length > 2 && args[2].equals("offheap");
+
+        int perPage = HeapPage.getNumTuples(Utility.getTupleDesc(2));
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < pages * perPage; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, i)));
+        File heapFile = File.createTempFile("bench", ".dat");
+        heapFile.deleteOnExit();
+        HeapFileEncoder.convert(tuples, heapFile, BufferPool.getPageSize(), 2);
+        final HeapFile hf = Utility.openHeapFile(2, heapFile);
+
+        final BufferPool bp = Database.resetBufferPool(pages, offHeap);
+        final TransactionId tid = new TransactionId();
+        final HeapPageId[] pids = new HeapPageId[hf.numPages()];
+        for (int p = 0; p < pids.length; p++) {
+            pids[p] = new HeapPageId(hf.getId(), p);
+            bp.getPage(tid, pids[p], Permissions.READ_ONLY);
+        }
+        System.out.println(String.format("%d pages cached %s", pids.length,
+                offHeap ? "off heap" : "on heap"));
+
+        // the first round only warms up the JIT
+        run(bp, tid, pids, 1, lookups);
+        double base = 0;
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            double perSecond = run(bp, tid, pids, threads, lookups);
+            if (threads == 1)
+                base = perSecond;
+            System.out.println(String.format("%2d threads: %.2f M lookups/s (%.1fx)",
+                    threads, perSecond / 1e6, perSecond / base));
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * @return the number of getPage calls per second of threads threads,
+     *         each asking for lookups random pages out of pids
+     */
+    private static double run(final BufferPool bp, final TransactionId tid,
+            final PageId[] pids, int threads, final int lookups) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final Random rand = new Random(t);
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < lookups; i++)
+                            bp.getPage(tid, pids[rand.nextInt(pids.length)],
+                                    Permissions.READ_ONLY);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - t0) / 1e9;
+        return (double) threads * lookups / seconds;
+    }
+}
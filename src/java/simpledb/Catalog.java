@@ -46,6 +46,7 @@ public class Catalog {
     }
 
     ArrayList<Table> mTables;
+    ArrayList<DbIndex> mIndexes;
 
     /**
      * Constructor.
@@ -53,6 +54,7 @@ public class Catalog {
      */
     public Catalog() {
 	mTables = new ArrayList<Table>();
+	mIndexes = new ArrayList<DbIndex>();
     }
 
     /**
@@ -83,6 +85,115 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Register a secondary index on one of the tables in the catalog. If it
+     * is a DbFile, its pages can then be read through the BufferPool, and
+     * BufferPool keeps it up to date as tuples are inserted into and deleted
+     * from the table.
+     * @param index the index to add;  index.getIndexedTableId() must be a
+     *    table in the catalog
+     */
+    public void addIndex(DbIndex index) {
+	mIndexes.add(index);
+    }
+
+    /** The schema keyword for a table stored in a ColumnFile. */
+    public static final String COLUMNAR = "columnar";
+    /** The schema keyword for a table stored in a SlottedFile. */
+    public static final String SLOTTED = "slotted";
+    /** The schema keyword for a table stored in a CompressedHeapFile. */
+    public static final String COMPRESSED = "compressed";
+
+    /** The kind of index a HashIndexFile is, in the schema file and CREATE INDEX. */
+    public static final String HASH_INDEX = "hash";
+    /** The kind of index a BTreeIndexFile is, and the default. */
+    public static final String BTREE_INDEX = "btree";
+    /** The kind of index a BitmapIndexFile is, for low-cardinality fields. */
+    public static final String BITMAP_INDEX = "bitmap";
+
+    /**
+     * Open a secondary index of the specified kind on a field of a table and
+     * register it. The index is stored next to the table's file, in
+     * table.field.kind; if that file doesn't hold an index yet, the entries
+     * for the tuples already in the table are added on behalf of tid.
+     * @param kind HASH_INDEX, BTREE_INDEX or BITMAP_INDEX
+     * @return the index
+     * @throws DbException if the table is not a HeapFile, the kind is
+     *    unknown or the index is already registered
+     */
+    public DbIndex createIndex(TransactionId tid, int tableid, int field, String kind)
+	    throws DbException, IOException, TransactionAbortedException {
+	DbFile table = getDatabaseFile(tableid);
+	if (!(table instanceof HeapFile)) {
+	    throw new DbException("secondary indexes are only supported on heap files");
+	}
+	File dir = ((HeapFile) table).getFile().getAbsoluteFile().getParentFile();
+	File f = new File(dir, getTableName(tableid) + "."
+		+ table.getTupleDesc().getFieldName(field) + "." + kind);
+	boolean build = f.length() == 0;
+
+	DbIndex index;
+	if (kind.equals(HASH_INDEX)) {
+	    index = new HashIndexFile(f, tableid, field);
+	} else if (kind.equals(BTREE_INDEX)) {
+	    index = new BTreeIndexFile(f, tableid, field);
+	} else if (kind.equals(BITMAP_INDEX)) {
+	    index = new BitmapIndexFile(f, tableid, field);
+	} else {
+	    throw new DbException("Unknown index type " + kind);
+	}
+	for (DbIndex other : mIndexes) {
+	    if (other.getId() == index.getId()) {
+		throw new DbException("index " + f.getName() + " already exists");
+	    }
+	}
+	addIndex(index);
+	if (build) {
+	    Database.getBufferPool().buildIndex(tid, index);
+	    if (index instanceof BitmapIndexFile) {
+		((BitmapIndexFile) index).save();
+	    }
+	}
+	return index;
+    }
+
+    /**
+     * Returns the secondary indexes registered on the specified table, in the
+     * order they were added. A table that is itself an index, such as a
+     * BTreeFile, is not included.
+     */
+    public List<DbIndex> getIndexes(int tableid) {
+	ArrayList<DbIndex> indexes = new ArrayList<DbIndex>();
+	for (DbIndex index : mIndexes) {
+	    if (index.getIndexedTableId() == tableid) {
+		indexes.add(index);
+	    }
+	}
+	return indexes;
+    }
+
+    /**
+     * Returns an index that can find the tuples of the specified table whose
+     * field satisfies a predicate with operator op: the table itself if it is
+     * an index on that field, otherwise a secondary index.
+     * @return the index, or null if there is none
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public DbIndex getIndex(int tableid, int field, Predicate.Op op)
+	    throws NoSuchElementException {
+	DbFile file = getDatabaseFile(tableid);
+	if (file instanceof DbIndex && ((DbIndex) file).getKeyField() == field
+		&& ((DbIndex) file).supports(op)) {
+	    return (DbIndex) file;
+	}
+	for (DbIndex index : getIndexes(tableid)) {
+	    if (index.getKeyField() == field && index.supports(op)) {
+		return index;
+	    }
+	}
+	return null;
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -115,7 +226,8 @@ public class Catalog {
      * Returns the DbFile that can be used to read the contents of the
      * specified table.
      * @param tableid The id of the table, as specified by the DbFile.getId()
-     *     function passed to addTable
+     *     function passed to addTable, or of an index passed to addIndex
+     *     that is a DbFile
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
 	for (Table t : mTables) {
@@ -123,6 +235,11 @@ public class Catalog {
 		return t.getFile();
 	    }
 	}
+	for (DbIndex index : mIndexes) {
+	    if (index.getId() == tableid && index instanceof DbFile) {
+		return (DbFile) index;
+	    }
+	}
 	throw new NoSuchElementException();
     }
 
@@ -164,10 +281,18 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
 	mTables.clear();
+	mIndexes.clear();
     }    
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line declares a table as name (field type [annotations], ...), where a
+     * field may be annotated pk for the primary key and index [hash|btree|bitmap] for a
+     * secondary index on it (see {@link #createIndex}). A table declared as
+     * name (...) columnar is stored column by column in a {@link ColumnFile},
+     * one declared as name (...) slotted as variable-length records in a
+     * {@link SlottedFile}, and one declared as name (...) compressed as
+     * compressed heap pages in a {@link CompressedHeapFile}.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -185,6 +310,7 @@ public class Catalog {
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                ArrayList<String[]> indexes = new ArrayList<String[]>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -196,11 +322,19 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int i = 2; i < els2.length; i++) {
+                        String annotation = els2[i].trim();
+                        if (annotation.equals("pk"))
                             primaryKey = els2[0].trim();
-                        else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                        else if (annotation.equals("index")) {
+                            String kind = BTREE_INDEX;
+                            if (i + 1 < els2.length && (els2[i + 1].trim().equals(HASH_INDEX)
+                                    || els2[i + 1].trim().equals(BTREE_INDEX)
+                                    || els2[i + 1].trim().equals(BITMAP_INDEX)))
+                                kind = els2[++i].trim();
+                            indexes.add(new String[] { els2[0].trim(), kind });
+                        } else {
+                            System.out.println("Unknown annotation " + els2[i]);
                             System.exit(0);
                         }
                     }
@@ -208,10 +342,37 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
-                addTable(tabHf,name,primaryKey);
+                String storage = line.substring(line.indexOf(")") + 1).trim();
+                DbFile tabFile;
+                if (storage.equals(""))
+                    tabFile = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                else if (storage.equals(COLUMNAR))
+                    tabFile = new ColumnFile(new File(baseFolder+"/"+name + ".dat"), t);
+                else if (storage.equals(SLOTTED))
+                    tabFile = new SlottedFile(new File(baseFolder+"/"+name + ".dat"), t);
+                else if (storage.equals(COMPRESSED))
+                    tabFile = new CompressedHeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                else {
+                    System.out.println("Unknown storage " + storage);
+                    System.exit(0);
+                    return;
+                }
+                addTable(tabFile,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (String[] index : indexes) {
+                    TransactionId tid = new TransactionId();
+                    createIndex(tid, tabFile.getId(), t.fieldNameToIndex(index[0]), index[1]);
+                    Database.getBufferPool().flushPages(tid);
+                    Database.getBufferPool().transactionComplete(tid);
+                    System.out.println("Added " + index[1] + " index on " + name + "." + index[0]);
+                }
             }
+        } catch (DbException e) {
+            System.out.println("Invalid catalog entry : " + line + ": " + e.getMessage());
+            System.exit(0);
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+            System.exit(0);
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
@@ -0,0 +1,553 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ColumnFile is an implementation of a DbFile that stores a table column by
+ * column, for analytic queries that read a few fields of many tuples. Each
+ * column is stored in its own file as a run of {@link ColumnPage}s, which
+ * hold the values of consecutive rows compressed: ints run-length encoded or
+ * bit-packed, strings dictionary encoded. A scan only reads the pages of the
+ * columns it is asked for (see {@link #iterator(TransactionId, Predicate[],
+ * int[])}), and evaluates predicates on a page at a time before reading any
+ * other column of the rows.
+ * <p>
+ * Rows are numbered in the order they are inserted and are only ever
+ * appended; the RecordId of a tuple holds its row number as the tuple
+ * number. Deleted rows are recorded in a {@link RoaringBitmap} kept in the
+ * table's own file, and skipped by scans. Column i is stored in the file
+ * named after the table's file with "." + i appended.
+ *
+ * @see ColumnPage
+ */
+public class ColumnFile implements DbFile {
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    private final TupleDesc mTupleDesc;
+    private final int mTableId;
+
+    /** for each column, the first row of each of its pages */
+    private final ArrayList<ArrayList<Integer>> mFirstRows;
+    private int mNumRows;
+    private final RoaringBitmap mDeleted;
+
+    /**
+     * Opens the column-oriented table stored in the specified file and its
+     * column files, creating them if they don't exist.
+     *
+     * @param f
+     *            the file the deleted rows of the table are stored in; the
+     *            columns are stored next to it
+     * @param td
+     *            the schema of the table
+     * @throws IllegalArgumentException
+     *             if the files can't be read or don't match the schema
+     */
+    public ColumnFile(File f, TupleDesc td) {
+        mFile = f;
+        mTupleDesc = td;
+        mTableId = f.getAbsoluteFile().hashCode();
+        mFirstRows = new ArrayList<ArrayList<Integer>>();
+        try {
+            if (f.length() > 0) {
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(f)));
+                try {
+                    if (dis.readInt() != VERSION || dis.readInt() != td.numFields())
+                        throw new IllegalArgumentException(f + " is not a column file for " + td);
+                    mDeleted = RoaringBitmap.deserialize(dis);
+                } finally {
+                    dis.close();
+                }
+            } else {
+                mDeleted = new RoaringBitmap();
+                saveDeleted();
+            }
+
+            int pageSize = BufferPool.getPageSize();
+            mNumRows = Integer.MAX_VALUE;
+            for (int i = 0; i < td.numFields(); i++) {
+                ArrayList<Integer> firstRows = new ArrayList<Integer>();
+                int rows = 0;
+                RandomAccessFile raf = new RandomAccessFile(getColumnFile(i), "rw");
+                try {
+                    for (long offset = 0; offset + pageSize <= raf.length(); offset += pageSize) {
+                        raf.seek(offset);
+                        firstRows.add(rows);
+                        rows += raf.readInt();
+                    }
+                } finally {
+                    raf.close();
+                }
+                mFirstRows.add(firstRows);
+                mNumRows = Math.min(mNumRows, rows);
+            }
+            if (td.numFields() == 0)
+                mNumRows = 0;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("could not open column file " + f + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the File of the table, which holds its deleted rows.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the File column i is stored in.
+     */
+    public File getColumnFile(int i) {
+        return new File(mFile.getPath() + "." + i);
+    }
+
+    /**
+     * Returns an ID uniquely identifying this ColumnFile: the hash code of
+     * the absolute file name, as for HeapFile.
+     */
+    public int getId() {
+        return mTableId;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return mTupleDesc;
+    }
+
+    /**
+     * Returns the number of pages of column i.
+     */
+    public synchronized int numPages(int i) {
+        return mFirstRows.get(i).size();
+    }
+
+    /**
+     * Returns the number of pages of all the columns together.
+     */
+    public synchronized int numPages() {
+        int pages = 0;
+        for (ArrayList<Integer> firstRows : mFirstRows)
+            pages += firstRows.size();
+        return pages;
+    }
+
+    /**
+     * Returns the number of rows ever inserted, including deleted ones.
+     */
+    public synchronized int numRows() {
+        return mNumRows;
+    }
+
+    /**
+     * Returns the number of tuples in the table.
+     */
+    public synchronized int numTuples() {
+        return mNumRows - mDeleted.cardinality();
+    }
+
+    synchronized boolean isDeleted(int row) {
+        return mDeleted.contains(row);
+    }
+
+    /**
+     * @return the page of column i holding row
+     */
+    synchronized int pageOf(int i, int row) {
+        int p = Collections.binarySearch(mFirstRows.get(i), row);
+        return p >= 0 ? p : -p - 2;
+    }
+
+    /**
+     * @return the first row held by page p of column i
+     */
+    synchronized int firstRow(int i, int p) {
+        return mFirstRows.get(i).get(p);
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        ColumnPageId cpid = (ColumnPageId) pid;
+        int pageSize = BufferPool.getPageSize();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(getColumnFile(cpid.column()), "r");
+            try {
+                long offset = (long) pageSize * cpid.pageNumber();
+                if (offset + pageSize > raf.length())
+                    throw new IllegalArgumentException("no page " + pid + " in " + mFile);
+                byte[] data = new byte[pageSize];
+                raf.seek(offset);
+                raf.readFully(data);
+                return new ColumnPage(cpid, data);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("could not read page " + pid + ": " + e.getMessage());
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        ColumnPageId cpid = (ColumnPageId) page.getId();
+        RandomAccessFile raf = new RandomAccessFile(getColumnFile(cpid.column()), "rw");
+        try {
+            raf.seek((long) BufferPool.getPageSize() * cpid.pageNumber());
+            raf.write(page.getPageData());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends the specified tuple to the table, adding each field to the
+     * last page of its column or, when that page is full, to a new page.
+     *
+     * @see DbFile#insertTuple
+     */
+    public synchronized ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!mTupleDesc.equals(t.getTupleDesc()))
+            throw new DbException("Tuple Desc mismatch");
+        ArrayList<Page> modifiedPages = new ArrayList<Page>();
+        int row = mNumRows;
+        int firstPage = 0;
+        BufferPool bufferPool = Database.getBufferPool();
+        for (int i = 0; i < mTupleDesc.numFields(); i++) {
+            // each page is pinned until it is dirty, as in HeapFile.insertTuple
+            ColumnPage page = null;
+            try {
+                if (numPages(i) > 0)
+                    page = (ColumnPage) bufferPool.pinPage(tid,
+                            new ColumnPageId(mTableId, i, numPages(i) - 1), Permissions.READ_WRITE);
+                if (page == null || !page.add(t.getField(i))) {
+                    if (page != null) {
+                        bufferPool.unpinPage(tid, page.getId());
+                        page = null;
+                    }
+                    page = appendPage(tid, i, row);
+                    if (!page.add(t.getField(i)))
+                        throw new DbException("value too large for a page: " + t.getField(i));
+                }
+                page.markDirty(true, tid);
+            } finally {
+                if (page != null)
+                    bufferPool.unpinPage(tid, page.getId());
+            }
+            if (i == 0)
+                firstPage = page.getId().pageNumber();
+            modifiedPages.add(page);
+        }
+        mNumRows++;
+        t.setRecordId(new RecordId(new ColumnPageId(mTableId, 0, firstPage), row));
+        return modifiedPages;
+    }
+
+    /**
+     * Add an empty page to the end of column i, starting at the specified
+     * row, and return it pinned.
+     */
+    private ColumnPage appendPage(TransactionId tid, int i, int firstRow)
+            throws IOException, DbException, TransactionAbortedException {
+        int pageNo = numPages(i);
+        RandomAccessFile raf = new RandomAccessFile(getColumnFile(i), "rw");
+        try {
+            raf.seek((long) BufferPool.getPageSize() * pageNo);
+            raf.write(ColumnPage.createEmptyPageData());
+        } finally {
+            raf.close();
+        }
+        mFirstRows.get(i).add(firstRow);
+        return (ColumnPage) Database.getBufferPool().pinPage(tid,
+                new ColumnPageId(mTableId, i, pageNo), Permissions.READ_WRITE);
+    }
+
+    /**
+     * Appends every tuple from an open iterator to the table, column by
+     * column: the values of each column are packed into fresh pages in
+     * memory, and each page is written once it is full. The last page of
+     * each column is left alone, and later inserts append to the new pages.
+     * As in {@link HeapFile#bulkInsert}, the new pages are never in the
+     * BufferPool.
+     *
+     * @param tid the transaction doing the load
+     * @param tuples an open iterator over the tuples to add
+     * @return the number of tuples added
+     * @throws DbException if a tuple doesn't match this file's schema
+     * @throws IOException if the files can't be written
+     */
+    public synchronized int bulkInsert(TransactionId tid, DbIterator tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        int numFields = mTupleDesc.numFields();
+        ColumnPage[] pages = new ColumnPage[numFields];
+        int[] firstRows = new int[numFields];
+        RandomAccessFile[] rafs = new RandomAccessFile[numFields];
+        int count = 0;
+        try {
+            for (int i = 0; i < numFields; i++) {
+                rafs[i] = new RandomAccessFile(getColumnFile(i), "rw");
+                pages[i] = new ColumnPage(new ColumnPageId(mTableId, i, numPages(i)),
+                        ColumnPage.createEmptyPageData());
+                firstRows[i] = mNumRows;
+            }
+            while (tuples.hasNext()) {
+                Tuple t = tuples.next();
+                if (!mTupleDesc.equals(t.getTupleDesc()))
+                    throw new DbException("Tuple Desc mismatch");
+                for (int i = 0; i < numFields; i++) {
+                    if (!pages[i].add(t.getField(i))) {
+                        writeNewPage(rafs[i], pages[i], firstRows[i]);
+                        firstRows[i] += pages[i].getNumValues();
+                        pages[i] = new ColumnPage(new ColumnPageId(mTableId, i, numPages(i)),
+                                ColumnPage.createEmptyPageData());
+                        if (!pages[i].add(t.getField(i)))
+                            throw new DbException("value too large for a page: " + t.getField(i));
+                    }
+                }
+                t.setRecordId(new RecordId(new ColumnPageId(mTableId, 0,
+                        pages[0].getId().pageNumber()), mNumRows + count));
+                count++;
+            }
+        } finally {
+            for (int i = 0; i < numFields; i++) {
+                if (pages[i] != null && pages[i].getNumValues() > 0)
+                    writeNewPage(rafs[i], pages[i], firstRows[i]);
+                if (rafs[i] != null)
+                    rafs[i].close();
+            }
+            mNumRows += count;
+        }
+        return count;
+    }
+
+    /**
+     * Write a page built by bulkInsert, holding the rows from firstRow on,
+     * to the end of its column.
+     */
+    private void writeNewPage(RandomAccessFile raf, ColumnPage page, int firstRow)
+            throws IOException {
+        ColumnPageId pid = page.getId();
+        raf.seek((long) BufferPool.getPageSize() * pid.pageNumber());
+        raf.write(page.getPageData());
+        mFirstRows.get(pid.column()).add(firstRow);
+    }
+
+    /**
+     * Marks the row of the specified tuple deleted. No pages are modified;
+     * the deleted rows are saved to the table's file straight away.
+     *
+     * @see DbFile#deleteTuple
+     */
+    public synchronized ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != mTableId)
+            throw new DbException("tuple is not a member of this table");
+        int row = rid.tupleno();
+        if (row < 0 || row >= mNumRows || mDeleted.contains(row))
+            throw new DbException("row " + row + " is not in the table");
+        mDeleted.add(row);
+        saveDeleted();
+        t.setRecordId(null);
+        return new ArrayList<Page>();
+    }
+
+    private void saveDeleted() throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mFile)));
+        try {
+            dos.writeInt(VERSION);
+            dos.writeInt(mTupleDesc.numFields());
+            mDeleted.serialize(dos);
+        } finally {
+            dos.close();
+        }
+    }
+
+    public DbFileIterator iterator(TransactionId tid) {
+        return new ColumnFileIterator(tid, null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples that satisfy all of the given
+     * predicates, reading every column.
+     */
+    @Override
+    public DbFileIterator iterator(TransactionId tid, Predicate[] predicates) {
+        return new ColumnFileIterator(tid, predicates, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples that satisfy all of the given
+     * predicates, reading only the columns of the predicates and the
+     * requested fields. The other fields of the returned tuples keep the
+     * defaults of a new Tuple.
+     */
+    @Override
+    public DbFileIterator iterator(TransactionId tid, Predicate[] predicates, int[] fields) {
+        return new ColumnFileIterator(tid, predicates, fields);
+    }
+
+    /**
+     * The page of one column holding the current row of a scan.
+     */
+    private class ColumnCursor {
+        final int mColumn;
+        /** the current page, pinned in mPool */
+        ColumnPage mPage;
+        BufferPool mPool;
+        TransactionId mTid;
+        int mFirst, mEnd;
+
+        ColumnCursor(int column) {
+            mColumn = column;
+        }
+
+        /**
+         * Make the page holding row the current page.
+         *
+         * @return true if the current page changed
+         */
+        boolean seek(TransactionId tid, int row) throws DbException, TransactionAbortedException {
+            if (mPage != null && row >= mFirst && row < mEnd)
+                return false;
+            int p = pageOf(mColumn, row);
+            release();
+            mPool = Database.getBufferPool();
+            mTid = tid;
+            mPage = (ColumnPage) mPool.pinPage(tid,
+                    new ColumnPageId(mTableId, mColumn, p), Permissions.READ_ONLY);
+            mFirst = firstRow(mColumn, p);
+            mEnd = mFirst + mPage.getNumValues();
+            return true;
+        }
+
+        /**
+         * Unpin the current page, if any.
+         */
+        void release() {
+            if (mPage != null) {
+                mPool.unpinPage(mTid, mPage.getId());
+                mPage = null;
+            }
+        }
+    }
+
+    /**
+     * A predicate evaluated on the page holding the current row of a scan.
+     */
+    private class PredicateCursor extends ColumnCursor {
+        final Predicate mPredicate;
+        boolean[] mMatches;
+        boolean mAnyMatch;
+
+        PredicateCursor(Predicate p) {
+            super(p.getField());
+            mPredicate = p;
+        }
+
+        @Override
+        boolean seek(TransactionId tid, int row) throws DbException, TransactionAbortedException {
+            if (!super.seek(tid, row))
+                return false;
+            mMatches = mPage.evaluate(mPredicate.getOp(), mPredicate.getOperand());
+            mAnyMatch = false;
+            for (boolean m : mMatches)
+                mAnyMatch |= m;
+            return true;
+        }
+    }
+
+    private class ColumnFileIterator extends AbstractDbFileIterator {
+        final TransactionId mTid;
+        final Predicate[] mPredicates;
+        final int[] mFields;
+        PredicateCursor[] mPredicateCursors;
+        ColumnCursor[] mCursors;
+        int mRow;
+
+        ColumnFileIterator(TransactionId tid, Predicate[] predicates, int[] fields) {
+            mTid = tid;
+            mPredicates = predicates != null ? predicates : new Predicate[0];
+            mFields = fields;
+        }
+
+        public void open() {
+            mPredicateCursors = new PredicateCursor[mPredicates.length];
+            for (int i = 0; i < mPredicates.length; i++)
+                mPredicateCursors[i] = new PredicateCursor(mPredicates[i]);
+            mCursors = new ColumnCursor[mTupleDesc.numFields()];
+            if (mFields == null) {
+                for (int i = 0; i < mCursors.length; i++)
+                    mCursors[i] = new ColumnCursor(i);
+            } else {
+                for (int f : mFields)
+                    mCursors[f] = new ColumnCursor(f);
+                // the fields of the predicates are read anyway
+                for (Predicate p : mPredicates) {
+                    if (mCursors[p.getField()] == null)
+                        mCursors[p.getField()] = new ColumnCursor(p.getField());
+                }
+            }
+            mRow = 0;
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (mCursors == null)
+                return null;
+            rows: while (mRow < numRows()) {
+                int row = mRow++;
+                if (isDeleted(row))
+                    continue;
+                for (PredicateCursor pc : mPredicateCursors) {
+                    pc.seek(mTid, row);
+                    if (!pc.mAnyMatch) {
+                        // nothing on the rest of this page can match
+                        mRow = pc.mEnd;
+                        continue rows;
+                    }
+                    if (!pc.mMatches[row - pc.mFirst])
+                        continue rows;
+                }
+
+                Tuple t = new Tuple(mTupleDesc);
+                for (ColumnCursor c : mCursors) {
+                    if (c != null) {
+                        c.seek(mTid, row);
+                        t.setField(c.mColumn, c.mPage.getField(row - c.mFirst));
+                    }
+                }
+                t.setRecordId(new RecordId(new ColumnPageId(mTableId, 0, pageOf(0, row)), row));
+                return t;
+            }
+            releaseCursors();
+            return null;
+        }
+
+        private void releaseCursors() {
+            for (ColumnCursor c : mCursors) {
+                if (c != null)
+                    c.release();
+            }
+            for (ColumnCursor c : mPredicateCursors)
+                c.release();
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (mCursors != null)
+                releaseCursors();
+            mCursors = null;
+            mPredicateCursors = null;
+        }
+    }
+}
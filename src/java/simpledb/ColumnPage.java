@@ -0,0 +1,372 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ColumnPage stores the values of one column of a ColumnFile for a run of
+ * consecutive rows. Values are appended until the encoded page would no
+ * longer fit, so a page holds as many rows as its encoding allows.
+ * <p>
+ * The format is the number of values and an encoding byte, followed by the
+ * encoded values:
+ * <ul>
+ * <li>RLE: the number of runs, then each run as a value and a length;</li>
+ * <li>BIT_PACKED: the smallest value and a bit width, then every value
+ * minus the smallest, packed into that many bits each;</li>
+ * <li>DICTIONARY: the number of distinct strings, then each as a 2-byte
+ * length and its bytes, then a bit width and the dictionary index of every
+ * value, bit-packed as above.</li>
+ * </ul>
+ * Int pages use whichever of RLE and BIT_PACKED is smaller for the values
+ * they hold; string pages are always DICTIONARY encoded.
+ *
+ * @see ColumnFile
+ */
+public class ColumnPage implements Page {
+
+    public static final byte RLE = 1;
+    public static final byte BIT_PACKED = 2;
+    public static final byte DICTIONARY = 3;
+
+    private static final int HEADER_BYTES = 4 + 1;
+
+    final ColumnPageId mPageId;
+    final Type mType;
+    private TransactionId mDirtier;
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    private int mCount = 0;
+    /** the values of an int page, or the dictionary indexes of a string page */
+    private int[] mValues = new int[64];
+    // statistics of an int page, kept to size its encodings as it grows
+    private int mMin, mMax, mRuns;
+    // the dictionary of a string page
+    private ArrayList<String> mDictionary;
+    private HashMap<String, Integer> mCodes;
+    private int mDictionaryBytes;
+
+    /**
+     * Create a ColumnPage from a set of bytes of data read from disk. The
+     * type of the column is looked up in the Catalog.
+     */
+    public ColumnPage(ColumnPageId id, byte[] data) throws IOException {
+        mPageId = id;
+        mType = Database.getCatalog().getTupleDesc(id.getTableId()).getFieldType(id.column());
+        if (mType == Type.STRING_TYPE) {
+            mDictionary = new ArrayList<String>();
+            mCodes = new HashMap<String, Integer>();
+        }
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        int count = dis.readInt();
+        byte encoding = dis.readByte();
+        mValues = new int[Math.max(64, count)];
+        if (count > 0) {
+            switch (encoding) {
+            case RLE:
+                int runs = dis.readInt();
+                for (int r = 0, i = 0; r < runs; r++) {
+                    int value = dis.readInt();
+                    int length = dis.readInt();
+                    Arrays.fill(mValues, i, i + length, value);
+                    i += length;
+                }
+                break;
+            case BIT_PACKED:
+                int min = dis.readInt();
+                unpack(dis, mValues, count, dis.readUnsignedByte(), min);
+                break;
+            case DICTIONARY:
+                int size = dis.readInt();
+                for (int i = 0; i < size; i++) {
+                    byte[] bytes = new byte[dis.readUnsignedShort()];
+                    dis.readFully(bytes);
+                    addToDictionary(new String(bytes));
+                }
+                unpack(dis, mValues, count, dis.readUnsignedByte(), 0);
+                break;
+            default:
+                throw new IOException("unknown column page encoding " + encoding);
+            }
+        }
+        dis.close();
+
+        for (int i = 0; i < count; i++)
+            if (mType == Type.INT_TYPE)
+                countInt(mValues[i]);
+            else
+                mCount++;
+        setBeforeImage();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * ColumnPage.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public ColumnPageId getId() {
+        return mPageId;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        mDirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return mDirtier;
+    }
+
+    /**
+     * @return the number of values on this page
+     */
+    public int getNumValues() {
+        return mCount;
+    }
+
+    /**
+     * @return value i of this page
+     */
+    public Field getField(int i) {
+        if (i < 0 || i >= mCount)
+            throw new NoSuchElementException("no value " + i + " on page " + mPageId);
+        if (mType == Type.INT_TYPE)
+            return new IntField(mValues[i]);
+        return new StringField(mDictionary.get(mValues[i]), Type.STRING_LEN);
+    }
+
+    /**
+     * Evaluate "value op operand" for every value on this page. A string
+     * page compares each distinct value once and looks the result up for
+     * every value.
+     *
+     * @return an array holding the result for value i at index i
+     */
+    public boolean[] evaluate(Predicate.Op op, Field operand) {
+        boolean[] result = new boolean[mCount];
+        if (mType == Type.INT_TYPE) {
+            for (int i = 0; i < mCount; i++)
+                result[i] = new IntField(mValues[i]).compare(op, operand);
+        } else {
+            boolean[] matches = new boolean[mDictionary.size()];
+            for (int d = 0; d < matches.length; d++)
+                matches[d] = new StringField(mDictionary.get(d), Type.STRING_LEN).compare(op, operand);
+            for (int i = 0; i < mCount; i++)
+                result[i] = matches[mValues[i]];
+        }
+        return result;
+    }
+
+    /**
+     * Append a value to this page, if the page can hold it.
+     *
+     * @return false if the page is full, in which case it is left unchanged
+     */
+    public boolean add(Field f) {
+        if (f.getType() != mType)
+            throw new IllegalArgumentException("type mismatch: expected " + mType);
+        if (mType == Type.INT_TYPE) {
+            int v = ((IntField) f).getValue();
+            int min = mCount == 0 ? v : Math.min(mMin, v);
+            int max = mCount == 0 ? v : Math.max(mMax, v);
+            int runs = mCount == 0 || mValues[mCount - 1] != v ? mRuns + 1 : mRuns;
+            if (intBytes(mCount + 1, min, max, runs) > BufferPool.getPageSize())
+                return false;
+            grow();
+            mValues[mCount] = v;
+            countInt(v);
+        } else {
+            String s = ((StringField) f).getValue();
+            Integer code = mCodes.get(s);
+            int size = mDictionary.size() + (code == null ? 1 : 0);
+            int bytes = mDictionaryBytes + (code == null ? 2 + s.getBytes().length : 0);
+            if (stringBytes(mCount + 1, size, bytes) > BufferPool.getPageSize())
+                return false;
+            grow();
+            mValues[mCount++] = code == null ? addToDictionary(s) : code;
+        }
+        return true;
+    }
+
+    private void grow() {
+        if (mCount == mValues.length)
+            mValues = Arrays.copyOf(mValues, 2 * mValues.length);
+    }
+
+    /** Count value mCount, an int, in the statistics of this page. */
+    private void countInt(int v) {
+        if (mCount == 0 || mValues[mCount - 1] != v)
+            mRuns++;
+        mMin = mCount == 0 ? v : Math.min(mMin, v);
+        mMax = mCount == 0 ? v : Math.max(mMax, v);
+        mCount++;
+    }
+
+    private int addToDictionary(String s) {
+        int code = mDictionary.size();
+        mDictionary.add(s);
+        mCodes.put(s, code);
+        mDictionaryBytes += 2 + s.getBytes().length;
+        return code;
+    }
+
+    /**
+     * @return the number of bits needed to store every value from 0 to range
+     */
+    private static int bitsFor(long range) {
+        return 64 - Long.numberOfLeadingZeros(range);
+    }
+
+    private static long packedBytes(int count, int bits) {
+        return ((long) count * bits + 7) / 8;
+    }
+
+    private static long rleBytes(int runs) {
+        return 4 + 8L * runs;
+    }
+
+    private static long bitPackedBytes(int count, int min, int max) {
+        return 4 + 1 + packedBytes(count, bitsFor((long) max - min));
+    }
+
+    /**
+     * @return the size of an int page holding count values with the
+     *         specified statistics
+     */
+    private static long intBytes(int count, int min, int max, int runs) {
+        return HEADER_BYTES + Math.min(rleBytes(runs), bitPackedBytes(count, min, max));
+    }
+
+    /**
+     * @return the size of a string page holding count values from a
+     *         dictionary of the specified size
+     */
+    private static long stringBytes(int count, int size, int dictionaryBytes) {
+        return HEADER_BYTES + 4 + dictionaryBytes + 1 + packedBytes(count, bitsFor(size - 1));
+    }
+
+    /**
+     * @return the encoding this page is written with
+     */
+    public byte getEncoding() {
+        if (mType == Type.STRING_TYPE)
+            return DICTIONARY;
+        return rleBytes(mRuns) <= bitPackedBytes(mCount, mMin, mMax) ? RLE : BIT_PACKED;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(mCount);
+            byte encoding = getEncoding();
+            dos.writeByte(encoding);
+            if (mCount > 0) {
+                switch (encoding) {
+                case RLE:
+                    dos.writeInt(mRuns);
+                    for (int i = 0; i < mCount;) {
+                        int j = i + 1;
+                        while (j < mCount && mValues[j] == mValues[i])
+                            j++;
+                        dos.writeInt(mValues[i]);
+                        dos.writeInt(j - i);
+                        i = j;
+                    }
+                    break;
+                case BIT_PACKED:
+                    dos.writeInt(mMin);
+                    int bits = bitsFor((long) mMax - mMin);
+                    dos.writeByte(bits);
+                    pack(dos, mValues, mCount, bits, mMin);
+                    break;
+                default:
+                    dos.writeInt(mDictionary.size());
+                    for (String s : mDictionary) {
+                        byte[] bytes = s.getBytes();
+                        dos.writeShort(bytes.length);
+                        dos.write(bytes);
+                    }
+                    bits = bitsFor(mDictionary.size() - 1);
+                    dos.writeByte(bits);
+                    pack(dos, mValues, mCount, bits, 0);
+                }
+            }
+            dos.flush();
+            dos.write(new byte[BufferPool.getPageSize() - baos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Write the first count values, less base, in bits bits each.
+     */
+    static void pack(DataOutputStream dos, int[] values, int count, int bits, long base)
+            throws IOException {
+        long mask = (1L << bits) - 1;
+        long acc = 0;
+        int accBits = 0;
+        for (int i = 0; i < count; i++) {
+            acc |= (((long) values[i] - base) & mask) << accBits;
+            accBits += bits;
+            while (accBits >= 8) {
+                dos.writeByte((int) acc);
+                acc >>>= 8;
+                accBits -= 8;
+            }
+        }
+        if (accBits > 0)
+            dos.writeByte((int) acc);
+    }
+
+    /**
+     * Read count values written by {@link #pack} into values.
+     */
+    static void unpack(DataInputStream dis, int[] values, int count, int bits, long base)
+            throws IOException {
+        long mask = (1L << bits) - 1;
+        long acc = 0;
+        int accBits = 0;
+        for (int i = 0; i < count; i++) {
+            while (accBits < bits) {
+                acc |= (long) dis.readUnsignedByte() << accBits;
+                accBits += 8;
+            }
+            values[i] = (int) ((acc & mask) + base);
+            acc >>>= bits;
+            accBits -= bits;
+        }
+    }
+
+    public ColumnPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new ColumnPage(mPageId, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            // should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+}
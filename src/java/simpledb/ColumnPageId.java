@@ -0,0 +1,82 @@
+package simpledb;
+
+/** Unique identifier for the pages of one column of a ColumnFile. */
+public class ColumnPageId implements PageId {
+
+    private int mTableId;
+    private int mColumn;
+    private int mPgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific column of a table.
+     *
+     * @param tableId The table that is being referenced
+     * @param column The index of the column the page stores
+     * @param pgNo The page number in the page run of that column
+     */
+    public ColumnPageId(int tableId, int column, int pgNo) {
+        mTableId = tableId;
+        mColumn = column;
+        mPgNo = pgNo;
+    }
+
+    /** @return the table associated with this PageId */
+    public int getTableId() {
+        return mTableId;
+    }
+
+    /** @return the index of the column this page stores */
+    public int column() {
+        return mColumn;
+    }
+
+    /**
+     * @return the page number in the page run of column() associated with
+     *   this PageId
+     */
+    public int pageNumber() {
+        return mPgNo;
+    }
+
+    /**
+     * @return a hash code for this page, represented by the concatenation of
+     *   the table number, column and page number
+     * @see BufferPool
+     */
+    public int hashCode() {
+        return (mTableId * 31 + mColumn) * 31 + mPgNo;
+    }
+
+    /**
+     * Compares one PageId to another.
+     *
+     * @param o The object to compare against
+     * @return true if the table ids, columns and page numbers are the same
+     */
+    public boolean equals(Object o) {
+        if (o instanceof ColumnPageId) {
+            ColumnPageId po = (ColumnPageId) o;
+            return po.mTableId == mTableId && po.mColumn == mColumn && po.mPgNo == mPgNo;
+        }
+        return false;
+    }
+
+    public String toString() {
+        return String.format("(%d, column %d, %d)", mTableId, mColumn, mPgNo);
+    }
+
+    /**
+     *  Return a representation of this object as an array of
+     *  integers, for writing to disk.  Size of returned array must contain
+     *  number of integers that corresponds to number of args to one of the
+     *  constructors.
+     */
+    public int[] serialize() {
+        int data[] = new int[3];
+        data[0] = mTableId;
+        data[1] = mColumn;
+        data[2] = mPgNo;
+        return data;
+    }
+}
@@ -0,0 +1,312 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * CompressedHeapFile is a HeapFile whose pages are compressed on disk with
+ * {@link PageCompressor}. Pages keep the HeapPage format in memory: each is
+ * compressed in writePage and decompressed in readPage, so the BufferPool
+ * caches the decompressed page and everything above the file -- iterators,
+ * the zone and free-space maps, indexes -- works unchanged.
+ * <p>
+ * Compressed pages vary in size, so they are stored as frames in the data
+ * file: an int page number and an int compressed length, followed by the
+ * compressed bytes, padded to a multiple of ALIGNMENT. A page that still
+ * fits in its frame is rewritten in place, and the space it no longer
+ * needs is split off as a dead frame, with a negative page number; one
+ * that has outgrown its frame is appended as a new frame, leaving the old
+ * frame unused. The current frame of each page is always the last frame
+ * for it in the file. Truncating the file marks the frames of the pages it
+ * drops dead too.
+ * <p>
+ * The page-address table maps page numbers to frames. It is kept in a
+ * sidecar file (see {@link #sidecarFor}): a header of two ints -- a format
+ * version and the number of pages -- followed by the long offset and int
+ * length of each page's frame. If the sidecar is missing or older than the
+ * data file, the table is rebuilt by scanning the frames.
+ */
+public class CompressedHeapFile extends HeapFile {
+    /** Frames start at multiples of this many bytes. */
+    public static final int ALIGNMENT = 64;
+
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * 4;
+    private static final int ENTRY_SIZE = 8 + 4;
+    private static final int FRAME_HEADER_SIZE = 2 * 4;
+
+    private final File mTableFile;
+    private int mNumPages = -1;
+    private long[] mOffsets = new long[16];
+    private int[] mLengths = new int[16];
+    /** the end of the last frame, where new frames are appended */
+    private long mEnd;
+
+    /**
+     * Constructs a compressed heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the compressed pages
+     * @param td
+     *            the schema of the table
+     */
+    public CompressedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+        mTableFile = sidecarFor(f);
+    }
+
+    /**
+     * @return the sidecar file holding the page-address table of the
+     *         compressed heap file f
+     */
+    public static File sidecarFor(File f) {
+        return new File(f.getPath() + ".pat");
+    }
+
+    /**
+     * Returns the number of pages in this file, which is not related to the
+     * length of the data file.
+     */
+    @Override
+    public synchronized int numPages() {
+        loadTable();
+        return mNumPages;
+    }
+
+    /**
+     * @return the number of bytes page pageNo takes on disk, compressed
+     */
+    public synchronized int compressedLength(int pageNo) {
+        loadTable();
+        return mLengths[pageNo];
+    }
+
+    @Override
+    protected synchronized byte[] readPageData(int pageNo) throws IOException {
+        loadTable();
+        if (pageNo < 0 || pageNo >= mNumPages)
+            throw new IllegalArgumentException(String.format(
+                    "Invalid page %d, file has %d pages", pageNo, mNumPages));
+        byte[] compressed = new byte[mLengths[pageNo]];
+        RandomAccessFile raf = new RandomAccessFile(getFile(), "r");
+        try {
+            raf.seek(mOffsets[pageNo] + FRAME_HEADER_SIZE);
+            raf.readFully(compressed);
+        } finally {
+            raf.close();
+        }
+        byte[] data = new byte[BufferPool.getPageSize()];
+        if (PageCompressor.decompress(compressed, 0, compressed.length, data) != data.length)
+            throw new IOException("page " + pageNo + " of " + getFile() + " is corrupt");
+        return data;
+    }
+
+    @Override
+    protected synchronized void writePageData(int pageNo, byte[] data, int count)
+            throws IOException {
+        loadTable();
+        int pageSize = BufferPool.getPageSize();
+        RandomAccessFile raf = new RandomAccessFile(getFile(), "rw");
+        try {
+            for (int p = 0; p < count; p++) {
+                byte[] compressed = PageCompressor.compress(data, p * pageSize, pageSize);
+                int frameSize = frameSize(compressed.length);
+                int page = pageNo + p;
+                long offset;
+                int unused = 0;
+                if (page < mNumPages && frameSize(mLengths[page]) >= frameSize) {
+                    offset = mOffsets[page];
+                    unused = frameSize(mLengths[page]) - frameSize;
+                } else {
+                    offset = mEnd;
+                    mEnd += frameSize;
+                }
+                ByteBuffer frame = ByteBuffer.allocate(
+                        unused > 0 ? frameSize + FRAME_HEADER_SIZE : frameSize);
+                frame.putInt(page).putInt(compressed.length).put(compressed);
+                if (unused > 0) {
+                    // the rest of the old frame becomes a dead frame
+                    frame.position(frameSize);
+                    frame.putInt(-1).putInt(unused - FRAME_HEADER_SIZE);
+                }
+                raf.seek(offset);
+                raf.write(frame.array());
+                setEntry(page, offset, compressed.length);
+            }
+        } finally {
+            raf.close();
+        }
+        saveEntries(pageNo, count);
+    }
+
+    /**
+     * Drops the pages from numPages on. The data file is cut after the
+     * last frame still in use, and the frames of dropped pages before that
+     * point, current or not, are marked dead so a rebuild of the table
+     * doesn't bring those pages back.
+     */
+    @Override
+    protected synchronized void truncatePageData(int numPages) throws IOException {
+        loadTable();
+        long end = 0;
+        for (int p = 0; p < numPages; p++)
+            end = Math.max(end, mOffsets[p] + frameSize(mLengths[p]));
+        RandomAccessFile raf = new RandomAccessFile(getFile(), "rw");
+        try {
+            for (long offset = 0; offset < end; ) {
+                raf.seek(offset);
+                int page = raf.readInt();
+                int compressedLength = raf.readInt();
+                if (page >= numPages) {
+                    raf.seek(offset);
+                    raf.writeInt(-1);
+                }
+                offset += frameSize(compressedLength);
+            }
+            raf.setLength(end);
+        } finally {
+            raf.close();
+        }
+        mNumPages = numPages;
+        mEnd = end;
+        save();
+    }
+
+    private static int frameSize(int compressedLength) {
+        int size = FRAME_HEADER_SIZE + compressedLength;
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private void setEntry(int pageNo, long offset, int length) {
+        if (pageNo >= mOffsets.length) {
+            int capacity = Math.max(pageNo + 1, mOffsets.length * 2);
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mLengths = Arrays.copyOf(mLengths, capacity);
+        }
+        mOffsets[pageNo] = offset;
+        mLengths[pageNo] = length;
+        mNumPages = Math.max(mNumPages, pageNo + 1);
+    }
+
+    /**
+     * Loads the page-address table from its sidecar the first time it is
+     * needed, or rebuilds it from the frames in the data file.
+     */
+    private void loadTable() {
+        if (mNumPages >= 0)
+            return;
+        try {
+            File f = getFile();
+            if (f.exists() && mTableFile.exists()
+                    && mTableFile.lastModified() >= f.lastModified() && load()) {
+                mEnd = Math.max(mEnd, f.length());
+                return;
+            }
+            rebuild();
+            save();
+        } catch (IOException e) {
+            throw new RuntimeException("could not load the page table of " + getFile(), e);
+        }
+    }
+
+    /**
+     * Reads the sidecar into the table.
+     *
+     * @return false if the sidecar has the wrong version or is truncated
+     */
+    private boolean load() throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mTableFile)));
+        try {
+            if (dis.readInt() != VERSION)
+                return false;
+            int numPages = dis.readInt();
+            if (mTableFile.length() < HEADER_SIZE + (long) ENTRY_SIZE * numPages)
+                return false;
+            mNumPages = 0;
+            mEnd = 0;
+            for (int p = 0; p < numPages; p++) {
+                long offset = dis.readLong();
+                int length = dis.readInt();
+                setEntry(p, offset, length);
+                mEnd = Math.max(mEnd, offset + frameSize(length));
+            }
+            return true;
+        } catch (EOFException e) {
+            mNumPages = -1;
+            return false;
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Rebuilds the table from the frames in the data file: the last frame
+     * of each page is its current one. Dead frames are skipped.
+     */
+    private void rebuild() throws IOException {
+        mNumPages = 0;
+        mEnd = 0;
+        File f = getFile();
+        if (!f.exists())
+            return;
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            long length = raf.length();
+            while (mEnd + FRAME_HEADER_SIZE <= length) {
+                raf.seek(mEnd);
+                int page = raf.readInt();
+                int compressedLength = raf.readInt();
+                if (compressedLength < 0 || mEnd + frameSize(compressedLength) > length)
+                    break;
+                if (page >= 0)
+                    setEntry(page, mEnd, compressedLength);
+                mEnd += frameSize(compressedLength);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the whole table to its sidecar file.
+     */
+    private void save() throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mTableFile)));
+        try {
+            dos.writeInt(VERSION);
+            dos.writeInt(mNumPages);
+            for (int p = 0; p < mNumPages; p++) {
+                dos.writeLong(mOffsets[p]);
+                dos.writeInt(mLengths[p]);
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * Writes the entries of count pages, starting at page pageNo, to the
+     * sidecar file in place.
+     */
+    private void saveEntries(int pageNo, int count) throws IOException {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream(ENTRY_SIZE * count);
+        DataOutputStream dos = new DataOutputStream(entries);
+        for (int p = pageNo; p < pageNo + count; p++) {
+            dos.writeLong(mOffsets[p]);
+            dos.writeInt(mLengths[p]);
+        }
+        RandomAccessFile raf = new RandomAccessFile(mTableFile, "rw");
+        try {
+            raf.seek(0);
+            raf.writeInt(VERSION);
+            raf.writeInt(mNumPages);
+            raf.seek(HEADER_SIZE + (long) ENTRY_SIZE * pageNo);
+            raf.write(entries.toByteArray());
+        } finally {
+            raf.close();
+        }
+    }
+}
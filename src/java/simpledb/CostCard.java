@@ -1,14 +1,20 @@
 package simpledb;
-import java.util.Vector;
 
 /** Class returned by {@link JoinOptimizer#computeCostAndCardOfSubplan} specifying the
-    cost and cardinality of the optimal plan represented by plan.
+    cost and cardinality of the optimal plan, its last join, and how the
+    rest of its joins are split between the two sides of that join.
 */
 public class CostCard {
     /** The cost of the optimal subplan */
     public double cost;
     /** The cardinality of the optimal subplan */
     public int card;
-    /** The optimal subplan */
-    public Vector<LogicalJoinNode> plan;
+    /** The last join of the optimal plan, as it is to be executed */
+    public LogicalJoinNode join;
+    /** The joins of the plan the last join reads as its outer (left)
+        child, as a bitmask of positions; the rest of the joins are its
+        inner child. Empty if the child is a base table */
+    public long outer;
+    /** The tables the plan reads, as bits assigned by the JoinOptimizer */
+    public long tables;
 }
@@ -55,11 +55,19 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, false);
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool,
+     * keeping its pages off the heap if offHeap is set, and return it
+     */
+    public static BufferPool resetBufferPool(int pages, boolean offHeap) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, offHeap));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -76,6 +84,7 @@ public class Database {
     // reset the database, used for unit tests only.
     public static void reset() {
         _instance.set(new Database());
+        TableStats.getStatsMap().clear();
     }
 
 }
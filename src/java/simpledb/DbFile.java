@@ -68,6 +68,36 @@ public interface DbFile {
      */
     public DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over the tuples stored in this DbFile that satisfy
+     * every one of the given predicates. Files that can evaluate predicates
+     * closer to the data (see {@link HeapFile#iterator(TransactionId, Predicate[])})
+     * should override this; the default simply filters {@link #iterator}.
+     *
+     * @param predicates a conjunction of predicates over this file's fields
+     * @return an iterator over the qualifying tuples stored in this DbFile.
+     */
+    public default DbFileIterator iterator(TransactionId tid, Predicate[] predicates) {
+        return new FilteredDbFileIterator(iterator(tid), predicates);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored in this DbFile that satisfy
+     * every one of the given predicates, of which the caller only needs the
+     * specified fields. Files that store fields separately (see
+     * {@link ColumnFile}) should override this to read only those fields and
+     * the fields of the predicates, leaving the others at the defaults of a
+     * new Tuple; the default reads whole tuples.
+     *
+     * @param predicates a conjunction of predicates over this file's fields
+     * @param fields the indexes of the fields the caller needs
+     * @return an iterator over the qualifying tuples stored in this DbFile.
+     */
+    public default DbFileIterator iterator(TransactionId tid, Predicate[] predicates,
+            int[] fields) {
+        return iterator(tid, predicates);
+    }
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
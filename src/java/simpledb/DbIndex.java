@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A DbIndex can find the tuples of a table by the value of one of its
+ * fields without scanning the whole table.
+ * <p>
+ * A clustered index, such as a {@link BTreeFile}, is the table itself. A
+ * secondary index, such as a {@link HashIndexFile}, stores entries pointing
+ * at the tuples of another table and is registered with
+ * {@link Catalog#addIndex}. For a secondary index, insertTuple and
+ * deleteTuple take tuples of the indexed table, which must have their
+ * RecordIds set, and add or remove their entries; BufferPool calls them
+ * whenever it inserts into or deletes from that table.
+ * <p>
+ * Indexes stored in pages, such as BTreeFile and HashIndexFile, are also
+ * DbFiles and read their pages through the BufferPool. An index held in
+ * memory, such as a {@link BitmapIndexFile}, has no pages and is not.
+ */
+public interface DbIndex {
+
+    /**
+     * @return an ID uniquely identifying this index; for an index that is
+     *         also a DbFile, its DbFile id
+     */
+    public int getId();
+
+    /**
+     * @return the schema of the entries of this index, as returned by
+     *         {@link #iterator}
+     */
+    public TupleDesc getTupleDesc();
+
+    /**
+     * Adds an entry for the specified tuple.
+     *
+     * @return the pages that were modified
+     * @see DbFile#insertTuple
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+        throws DbException, IOException, TransactionAbortedException;
+
+    /**
+     * Removes the entry for the specified tuple.
+     *
+     * @return the pages that were modified
+     * @see DbFile#deleteTuple
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+        throws DbException, IOException, TransactionAbortedException;
+
+    /**
+     * @return an iterator over the entries of this index
+     */
+    public DbFileIterator iterator(TransactionId tid);
+
+    /**
+     * @return the id of the table whose tuples this index finds
+     */
+    public int getIndexedTableId();
+
+    /**
+     * @return the index of the field of that table the index is on
+     */
+    public int getKeyField();
+
+    /**
+     * @return true if this index can answer lookups with the specified
+     *         operator
+     */
+    public boolean supports(Predicate.Op op);
+
+    /**
+     * Returns an iterator over the tuples of the indexed table whose key
+     * field satisfies "key op value" and that satisfy every one of the
+     * further predicates.
+     *
+     * @param op
+     *            an operator for which {@link #supports} is true
+     * @param predicates
+     *            further predicates on the indexed table; may be empty
+     */
+    public DbFileIterator lookup(TransactionId tid, Predicate.Op op, Field value,
+            Predicate[] predicates);
+
+    /**
+     * Estimate the number of pages one lookup reads, including the pages of
+     * the indexed table the matching tuples are on.
+     *
+     * @param matches
+     *            the expected number of matching tuples
+     */
+    public double estimateLookupPages(double matches);
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * DelimitedFileScan reads tuples from a text file with one tuple per line
+ * and fields separated by a delimiter character, in the format accepted by
+ * HeapFileEncoder. It is the child of the Insert built for a COPY statement.
+ *
+ * @see Parser#handleCopyStatement
+ */
+public class DelimitedFileScan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final File mFile;
+    private final TupleDesc mTupleDesc;
+    private final char mDelimiter;
+    private transient BufferedReader mReader;
+    private int mLineNo;
+
+    /**
+     * Constructor.
+     *
+     * @param f
+     *            the text file to read
+     * @param td
+     *            the schema of the tuples in the file
+     * @param delimiter
+     *            the character separating fields on a line
+     */
+    public DelimitedFileScan(File f, TupleDesc td, char delimiter) {
+        mFile = f;
+        mTupleDesc = td;
+        mDelimiter = delimiter;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return mTupleDesc;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        try {
+            mReader = new BufferedReader(new FileReader(mFile), 1 << 16);
+        } catch (FileNotFoundException e) {
+            throw new DbException("can't open " + mFile + ": " + e.getMessage());
+        }
+        mLineNo = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (mReader != null) {
+            try {
+                mReader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mReader = null;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * Parses the next non-empty line of the file into a tuple.
+     *
+     * @return the next tuple, or null at the end of the file
+     * @throws DbException
+     *             if a line has the wrong number of fields or an int field
+     *             isn't a number
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        String line;
+        try {
+            do {
+                line = mReader.readLine();
+                mLineNo++;
+                if (line == null)
+                    return null;
+            } while (line.trim().length() == 0);
+        } catch (IOException e) {
+            throw new DbException("error reading " + mFile + ": " + e.getMessage());
+        }
+
+        Tuple t = new Tuple(mTupleDesc);
+        int start = 0;
+        for (int i = 0; i < mTupleDesc.numFields(); i++) {
+            int end = line.indexOf(mDelimiter, start);
+            if (end < 0) {
+                if (i != mTupleDesc.numFields() - 1)
+                    throw new DbException(String.format("line %d of %s has %d fields, expected %d",
+                            mLineNo, mFile, i + 1, mTupleDesc.numFields()));
+                end = line.length();
+            }
+            String s = line.substring(start, end).trim();
+            if (mTupleDesc.getFieldType(i) == Type.INT_TYPE) {
+                try {
+                    t.setField(i, new IntField(Integer.parseInt(s)));
+                } catch (NumberFormatException e) {
+                    throw new DbException(String.format("line %d of %s: bad int %s",
+                            mLineNo, mFile, s));
+                }
+            } else {
+                t.setField(i, new StringField(s, Type.STRING_LEN));
+            }
+            start = end + 1;
+        }
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[0];
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+    }
+}
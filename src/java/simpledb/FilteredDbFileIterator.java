@@ -0,0 +1,52 @@
+package simpledb;
+
+/**
+ * DbFileIterator that only returns the tuples of an underlying iterator that
+ * satisfy a conjunction of predicates. Used by DbFiles that cannot push
+ * predicates any further down.
+ */
+public class FilteredDbFileIterator extends AbstractDbFileIterator {
+    private final DbFileIterator mChild;
+    private final Predicate[] mPredicates;
+
+    /**
+     * @param child the iterator to filter
+     * @param predicates the predicates every returned tuple must satisfy
+     */
+    public FilteredDbFileIterator(DbFileIterator child, Predicate[] predicates) {
+        mChild = child;
+        mPredicates = predicates;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        mChild.open();
+    }
+
+    @Override
+    protected Tuple readNext() throws DbException, TransactionAbortedException {
+        while (mChild.hasNext()) {
+            Tuple t = mChild.next();
+            if (matches(t))
+                return t;
+        }
+        return null;
+    }
+
+    private boolean matches(Tuple t) {
+        for (Predicate p : mPredicates) {
+            if (!p.filter(t))
+                return false;
+        }
+        return true;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.close();
+        mChild.rewind();
+    }
+
+    public void close() {
+        super.close();
+        mChild.close();
+    }
+}
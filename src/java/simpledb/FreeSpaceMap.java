@@ -0,0 +1,203 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap keeps the number of empty slots on every page of a HeapFile,
+ * so HeapFile.insertTuple can go straight to a page with room instead of
+ * fetching every page of the file through the BufferPool.
+ * <p>
+ * The map is stored in a sidecar file next to the heap file (see
+ * {@link #sidecarFor}): a header of two ints -- a format version and the
+ * number of pages -- followed by one unsigned short per page holding its
+ * number of empty slots.
+ *
+ * @see HeapFile#getFreeSpaceMap
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * 4;
+    private static final int MAX_COUNT = 0xFFFF;
+
+    private final File mFile;
+
+    private int mNumPages;
+    private int[] mFreeSlots;
+    /** Bit i is set iff page i has at least one empty slot. */
+    private final BitSet mHasSpace;
+    /** The lowest page with an empty slot, or -1 if every page is full */
+    private int mFirstWithSpace;
+
+    /**
+     * Create an empty free-space map.
+     *
+     * @param file the sidecar file this map is saved to
+     */
+    public FreeSpaceMap(File file) {
+        mFile = file;
+        mNumPages = 0;
+        mFreeSlots = new int[16];
+        mHasSpace = new BitSet();
+        mFirstWithSpace = -1;
+    }
+
+    /**
+     * @return the sidecar file holding the free-space map of the heap file f
+     */
+    public static File sidecarFor(File f) {
+        return new File(f.getPath() + ".fsm");
+    }
+
+    /**
+     * Load the free-space map of a heap file from its sidecar, or rebuild it
+     * from the page headers if the sidecar is missing or older than the
+     * file. A rebuilt map is saved before it is returned.
+     *
+     * @param hf the heap file
+     * @return the free-space map of hf
+     * @throws IOException if the heap file or sidecar can't be read/written
+     */
+    public static FreeSpaceMap open(HeapFile hf) throws IOException {
+        File sidecar = sidecarFor(hf.getFile());
+        FreeSpaceMap fsm = new FreeSpaceMap(sidecar);
+        if (sidecar.exists() && sidecar.lastModified() >= hf.getFile().lastModified()
+                && fsm.load() && fsm.mNumPages == hf.numPages()) {
+            return fsm;
+        }
+
+        fsm.clear();
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            fsm.updatePage(page);
+        }
+        fsm.save();
+        return fsm;
+    }
+
+    /**
+     * @return the number of pages this map has entries for
+     */
+    public synchronized int numPages() {
+        return mNumPages;
+    }
+
+    /**
+     * @return the number of empty slots on page pageNo
+     */
+    public synchronized int getFreeSlots(int pageNo) {
+        return pageNo < mNumPages ? mFreeSlots[pageNo] : 0;
+    }
+
+    /**
+     * @return the number of the first page with at least one empty slot, or
+     *         -1 if every page is full
+     */
+    public synchronized int findPageWithSpace() {
+        return mFirstWithSpace;
+    }
+
+    /**
+     * Record the number of empty slots on page pageNo.
+     */
+    public synchronized void setFreeSlots(int pageNo, int freeSlots) {
+        ensurePage(pageNo);
+        mFreeSlots[pageNo] = Math.min(freeSlots, MAX_COUNT);
+        mHasSpace.set(pageNo, freeSlots > 0);
+        if (freeSlots > 0) {
+            if (mFirstWithSpace < 0 || pageNo < mFirstWithSpace)
+                mFirstWithSpace = pageNo;
+        } else if (pageNo == mFirstWithSpace) {
+            // the pages below pageNo are full, so the search starts after it
+            mFirstWithSpace = mHasSpace.nextSetBit(pageNo + 1);
+        }
+    }
+
+    /**
+     * Record the number of empty slots currently on page.
+     */
+    public synchronized void updatePage(HeapPage page) {
+        setFreeSlots(page.getId().pageNumber(), page.getNumEmptySlots());
+    }
+
+    /** Drop all page entries. */
+    public synchronized void clear() {
+        mNumPages = 0;
+        mHasSpace.clear();
+        mFirstWithSpace = -1;
+    }
+
+    /** Make sure there are entries for pages 0..pageNo. */
+    private void ensurePage(int pageNo) {
+        if (pageNo >= mFreeSlots.length) {
+            int[] freeSlots = new int[Math.max(pageNo + 1, mFreeSlots.length * 2)];
+            System.arraycopy(mFreeSlots, 0, freeSlots, 0, mNumPages);
+            mFreeSlots = freeSlots;
+        }
+        while (mNumPages <= pageNo) {
+            mFreeSlots[mNumPages++] = 0;
+        }
+    }
+
+    /**
+     * Read the sidecar into this map.
+     *
+     * @return false if the sidecar has the wrong version or is truncated
+     */
+    private boolean load() throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mFile)));
+        try {
+            if (dis.readInt() != VERSION)
+                return false;
+            int numPages = dis.readInt();
+            if (mFile.length() < HEADER_SIZE + 2L * numPages)
+                return false;
+            clear();
+            for (int p = 0; p < numPages; p++) {
+                setFreeSlots(p, dis.readUnsignedShort());
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Write the whole map to its sidecar file.
+     */
+    public synchronized void save() throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mFile)));
+        try {
+            dos.writeInt(VERSION);
+            dos.writeInt(mNumPages);
+            for (int p = 0; p < mNumPages; p++) {
+                dos.writeShort(mFreeSlots[p]);
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * Write the entry of a single page to the sidecar file, in place. Called
+     * whenever the page itself is written to disk.
+     */
+    public synchronized void savePage(int pageNo) throws IOException {
+        ensurePage(pageNo);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek(0);
+            raf.writeInt(VERSION);
+            raf.writeInt(mNumPages);
+            raf.seek(HEADER_SIZE + 2L * pageNo);
+            raf.writeShort(mFreeSlots[pageNo]);
+        } finally {
+            raf.close();
+        }
+    }
+}
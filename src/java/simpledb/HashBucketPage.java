@@ -0,0 +1,178 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * HashBucketPage stores the entries of one bucket of a HashIndexFile, or of
+ * an overflow page chained to it. An entry is a key and the RecordId --
+ * page number and slot -- of the tuple of the indexed table holding it.
+ * <p>
+ * The format is two ints -- the page number of the next overflow page of
+ * the bucket (0 for none) and the number of entries -- followed by the
+ * entries, packed at the front of the page. Deleting an entry moves the
+ * last entry into its place, so the order of entries is not preserved.
+ *
+ * @see HashIndexFile
+ */
+public class HashBucketPage extends HashPage {
+
+    private static final int FIXED_BYTES = 2 * 4;
+
+    final Type mKeyType;
+    private int mNextOverflow;
+    private int mNumEntries;
+    private final Field[] mKeys;
+    private final int[] mPages;
+    private final int[] mSlots;
+
+    /**
+     * Create a HashBucketPage from a set of bytes of data read from disk. The
+     * key type is looked up in the Catalog.
+     */
+    public HashBucketPage(HashPageId id, byte[] data) throws IOException {
+        super(id);
+        mKeyType = getFile().getKeyType();
+        int max = getMaxEntries(mKeyType);
+        mKeys = new Field[max];
+        mPages = new int[max];
+        mSlots = new int[max];
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        mNextOverflow = dis.readInt();
+        mNumEntries = dis.readInt();
+        try {
+            for (int i = 0; i < mNumEntries; i++) {
+                mKeys[i] = mKeyType.parse(dis);
+                mPages[i] = dis.readInt();
+                mSlots[i] = dis.readInt();
+            }
+        } catch (ParseException e) {
+            throw new IOException("couldn't parse key: " + e.getMessage());
+        }
+        dis.close();
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of entries a bucket page of an index on a key of
+     *         the specified type holds
+     */
+    public static int getMaxEntries(Type keyType) {
+        return (BufferPool.getPageSize() - FIXED_BYTES) / (keyType.getLen() + 8);
+    }
+
+    /**
+     * @return the page number of the next overflow page of this bucket, or 0
+     *         if this is the last page of the bucket
+     */
+    public int getNextOverflow() {
+        return mNextOverflow;
+    }
+
+    public void setNextOverflow(int pageNo) {
+        mNextOverflow = pageNo;
+    }
+
+    public int getNumEntries() {
+        return mNumEntries;
+    }
+
+    public boolean isFull() {
+        return mNumEntries == mKeys.length;
+    }
+
+    public Field getKey(int i) {
+        return mKeys[i];
+    }
+
+    /**
+     * @return the page number of the tuple entry i points at
+     */
+    public int getRecordPage(int i) {
+        return mPages[i];
+    }
+
+    /**
+     * @return the slot of the tuple entry i points at
+     */
+    public int getRecordSlot(int i) {
+        return mSlots[i];
+    }
+
+    /**
+     * Add an entry to this page.
+     *
+     * @throws DbException if the page is full
+     */
+    public void addEntry(Field key, int pageNo, int slot) throws DbException {
+        if (isFull())
+            throw new DbException("hash bucket page is full");
+        if (key.getType() != mKeyType)
+            throw new DbException("key type mismatch");
+        mKeys[mNumEntries] = key;
+        mPages[mNumEntries] = pageNo;
+        mSlots[mNumEntries] = slot;
+        mNumEntries++;
+    }
+
+    /**
+     * Remove entry i, moving the last entry into its place.
+     */
+    public void removeEntry(int i) {
+        mNumEntries--;
+        mKeys[i] = mKeys[mNumEntries];
+        mPages[i] = mPages[mNumEntries];
+        mSlots[i] = mSlots[mNumEntries];
+        mKeys[mNumEntries] = null;
+    }
+
+    /**
+     * @return the index of the entry for key pointing at the specified
+     *         record, or -1 if there is none
+     */
+    public int findEntry(Field key, int pageNo, int slot) {
+        for (int i = 0; i < mNumEntries; i++) {
+            if (mPages[i] == pageNo && mSlots[i] == slot && mKeys[i].equals(key))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Remove every entry, keeping the link to the next overflow page.
+     */
+    public void clear() {
+        for (int i = 0; i < mNumEntries; i++)
+            mKeys[i] = null;
+        mNumEntries = 0;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(mNextOverflow);
+            dos.writeInt(mNumEntries);
+            for (int i = 0; i < mNumEntries; i++) {
+                mKeys[i].serialize(dos);
+                dos.writeInt(mPages[i]);
+                dos.writeInt(mSlots[i]);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return finishPage(baos, dos);
+    }
+
+    public HashBucketPage getBeforeImage() {
+        try {
+            return new HashBucketPage(mPageId, getBeforeImageData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            // should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+}
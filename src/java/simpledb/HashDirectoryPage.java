@@ -0,0 +1,73 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashDirectoryPage maps a run of buckets of a HashIndexFile to the page
+ * numbers of their primary bucket pages. Directory page i covers buckets
+ * i * getNumSlots() up to (i + 1) * getNumSlots() - 1.
+ * <p>
+ * The format is simply getNumSlots() ints.
+ *
+ * @see HashIndexFile
+ */
+public class HashDirectoryPage extends HashPage {
+
+    private final int[] mBuckets;
+
+    /**
+     * Create a HashDirectoryPage from a set of bytes of data read from disk.
+     */
+    public HashDirectoryPage(HashPageId id, byte[] data) throws IOException {
+        super(id);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        mBuckets = new int[getNumSlots()];
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = dis.readInt();
+        }
+        dis.close();
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of buckets a directory page maps
+     */
+    public static int getNumSlots() {
+        return BufferPool.getPageSize() / 4;
+    }
+
+    /**
+     * @return the page number of the primary page of the bucket in slot i
+     */
+    public int getBucketPage(int i) {
+        return mBuckets[i];
+    }
+
+    public void setBucketPage(int i, int pageNo) {
+        mBuckets[i] = pageNo;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int b : mBuckets) {
+                dos.writeInt(b);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return finishPage(baos, dos);
+    }
+
+    public HashDirectoryPage getBeforeImage() {
+        try {
+            return new HashDirectoryPage(mPageId, getBeforeImageData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            // should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+}
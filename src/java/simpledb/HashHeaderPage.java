@@ -0,0 +1,156 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashHeaderPage is page 0 of every HashIndexFile. It holds the linear
+ * hashing state -- the level, the next bucket to split and the number of
+ * buckets and entries -- and the page numbers of the directory pages that
+ * map buckets to their primary pages.
+ * <p>
+ * Its format is five ints (level, next, number of buckets, number of
+ * entries, number of directory pages) followed by room for
+ * getMaxDirectoryPages() directory page numbers.
+ *
+ * @see HashIndexFile
+ */
+public class HashHeaderPage extends HashPage {
+
+    private static final int FIXED_BYTES = 5 * 4;
+
+    private int mLevel;
+    private int mNext;
+    private int mNumBuckets;
+    private int mNumEntries;
+    private int mNumDirectoryPages;
+    private final int[] mDirectoryPages;
+
+    /**
+     * Create a HashHeaderPage from a set of bytes of data read from disk.
+     */
+    public HashHeaderPage(HashPageId id, byte[] data) throws IOException {
+        super(id);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        mLevel = dis.readInt();
+        mNext = dis.readInt();
+        mNumBuckets = dis.readInt();
+        mNumEntries = dis.readInt();
+        mNumDirectoryPages = dis.readInt();
+        mDirectoryPages = new int[getMaxDirectoryPages()];
+        for (int i = 0; i < mNumDirectoryPages; i++) {
+            mDirectoryPages[i] = dis.readInt();
+        }
+        dis.close();
+        setBeforeImage();
+    }
+
+    /**
+     * @return the page data of the header page of a new index with one
+     *         bucket, whose directory is page 1 and whose bucket is page 2
+     */
+    static byte[] createInitialPageData() {
+        byte[] data = createEmptyPageData();
+        data[11] = 1; // one bucket
+        data[19] = 1; // one directory page
+        data[23] = 1; // on page 1
+        return data;
+    }
+
+    /**
+     * @return the number of directory pages a header page can point to
+     */
+    public static int getMaxDirectoryPages() {
+        return (BufferPool.getPageSize() - FIXED_BYTES) / 4;
+    }
+
+    /**
+     * @return the number of times the number of buckets has doubled
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @return the next bucket to split
+     */
+    public int getNext() {
+        return mNext;
+    }
+
+    public int getNumBuckets() {
+        return mNumBuckets;
+    }
+
+    public int getNumEntries() {
+        return mNumEntries;
+    }
+
+    public void setNumEntries(int numEntries) {
+        mNumEntries = numEntries;
+    }
+
+    /**
+     * Record that bucket getNext() was split into itself and a new bucket
+     * at the end, advancing to the next level once every bucket of this
+     * level has been split.
+     */
+    public void addBucket() {
+        mNumBuckets++;
+        mNext++;
+        if (mNext == 1 << mLevel) {
+            mLevel++;
+            mNext = 0;
+        }
+    }
+
+    public int getNumDirectoryPages() {
+        return mNumDirectoryPages;
+    }
+
+    /**
+     * @return the page number of directory page i
+     */
+    public int getDirectoryPage(int i) {
+        return mDirectoryPages[i];
+    }
+
+    /**
+     * Append a directory page.
+     *
+     * @throws DbException if the header page has no room for it
+     */
+    public void addDirectoryPage(int pageNo) throws DbException {
+        if (mNumDirectoryPages == mDirectoryPages.length)
+            throw new DbException("hash index has too many buckets");
+        mDirectoryPages[mNumDirectoryPages++] = pageNo;
+    }
+
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(mLevel);
+            dos.writeInt(mNext);
+            dos.writeInt(mNumBuckets);
+            dos.writeInt(mNumEntries);
+            dos.writeInt(mNumDirectoryPages);
+            for (int i = 0; i < mNumDirectoryPages; i++) {
+                dos.writeInt(mDirectoryPages[i]);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return finishPage(baos, dos);
+    }
+
+    public HashHeaderPage getBeforeImage() {
+        try {
+            return new HashHeaderPage(mPageId, getBeforeImageData());
+        } catch (IOException e) {
+            e.printStackTrace();
+            // should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+}
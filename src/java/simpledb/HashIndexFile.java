@@ -0,0 +1,572 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashIndexFile is a secondary index that finds the tuples of a HeapFile
+ * table with a given value of one field. Each entry maps a key to the
+ * RecordId of a tuple holding it; a lookup hashes the value, reads the
+ * entries of one bucket and fetches the matching tuples from the table.
+ * <p>
+ * The index uses linear hashing, so it grows one bucket at a time instead
+ * of rehashing everything when it fills up. Bucket b is addressed by the
+ * low level bits of the hash, or the low level + 1 bits if b has already
+ * been split in this round; whenever the index holds more than
+ * {@link #LOAD_FACTOR} entries per bucket slot the next bucket in turn is
+ * split, moving about half of its entries to a new bucket at the end. A
+ * bucket that fills up before its turn comes gets overflow pages chained to
+ * it. Deleting entries never merges buckets; emptied overflow pages stay in
+ * their chain and are reused.
+ * <p>
+ * Page 0 of the file is a {@link HashHeaderPage} holding the hashing state,
+ * which points at the {@link HashDirectoryPage}s mapping buckets to their
+ * {@link HashBucketPage}s. All pages are read and modified through the
+ * BufferPool. The index is registered with {@link Catalog#addIndex}, after
+ * which BufferPool keeps it up to date as tuples are inserted into and
+ * deleted from the table.
+ *
+ * @see HashPageId
+ */
+public class HashIndexFile implements DbFile, DbIndex {
+
+    /** Split a bucket when the index is fuller than this on average. */
+    public static final double LOAD_FACTOR = 0.75;
+
+    private final File mFile;
+    private final int mTableId;
+    private final int mIndexedTableId;
+    private final int mKeyField;
+    private final Type mKeyType;
+    private final TupleDesc mTupleDesc;
+
+    /**
+     * Constructs a hash index backed by the specified file. An empty file is
+     * initialized with a single empty bucket the first time it is used; the
+     * entries of a table that already holds tuples are not added.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this index
+     * @param tableid
+     *            the table to index, which must be a HeapFile in the Catalog
+     * @param keyField
+     *            the index of the field of that table to index
+     * @throws IllegalArgumentException
+     *             if the table is not a HeapFile
+     */
+    public HashIndexFile(File f, int tableid, int keyField) {
+        DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(table instanceof HeapFile))
+            throw new IllegalArgumentException("hash indexes are only supported on heap files");
+        mFile = f;
+        mTableId = f.getAbsoluteFile().hashCode();
+        mIndexedTableId = tableid;
+        mKeyField = keyField;
+        mKeyType = table.getTupleDesc().getFieldType(keyField);
+        mTupleDesc = new TupleDesc(new Type[] { mKeyType, Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "key", "page", "slot" });
+    }
+
+    /**
+     * Returns the File backing this HashIndexFile on disk.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this HashIndexFile: the hash code of
+     * the absolute file name, as for HeapFile.
+     */
+    public int getId() {
+        return mTableId;
+    }
+
+    /**
+     * Returns the schema of the entries of this index: the key, and the page
+     * number and slot of the tuple holding it.
+     */
+    public TupleDesc getTupleDesc() {
+        return mTupleDesc;
+    }
+
+    public Type getKeyType() {
+        return mKeyType;
+    }
+
+    public int getIndexedTableId() {
+        return mIndexedTableId;
+    }
+
+    public int getKeyField() {
+        return mKeyField;
+    }
+
+    /**
+     * A hash index only answers equality lookups.
+     */
+    public boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        HashPageId id = (HashPageId) pid;
+        try {
+            initialize();
+            RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+            try {
+                long offset = (long) BufferPool.getPageSize() * id.pageNumber();
+                if (offset + BufferPool.getPageSize() > raf.length())
+                    throw new IllegalArgumentException(String.format(
+                            "Invalid pid %s, file has %d pages", id, numPages()));
+                byte[] data = new byte[BufferPool.getPageSize()];
+                raf.seek(offset);
+                raf.readFully(data);
+
+                switch (id.pgcateg()) {
+                case HashPageId.HEADER:
+                    return new HashHeaderPage(id, data);
+                case HashPageId.DIRECTORY:
+                    return new HashDirectoryPage(id, data);
+                default:
+                    return new HashBucketPage(id, data);
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new IllegalArgumentException("Something went wrong with pid " + pid);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        writePageData(page.getId().pageNumber(), page.getPageData());
+    }
+
+    private void writePageData(int pageNo, byte[] data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek((long) BufferPool.getPageSize() * pageNo);
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the number of pages in this HashIndexFile, including the header
+     * and directory pages.
+     */
+    public int numPages() {
+        return (int) (mFile.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * Give an empty file a header page, a directory page and one empty
+     * bucket.
+     */
+    private synchronized void initialize() throws IOException {
+        if (mFile.length() == 0) {
+            writePageData(0, HashHeaderPage.createInitialPageData());
+            byte[] directory = HashPage.createEmptyPageData();
+            directory[3] = 2; // bucket 0 is page 2
+            writePageData(1, directory);
+            writePageData(2, HashPage.createEmptyPageData());
+        }
+    }
+
+    /**
+     * Append a zeroed page -- an empty bucket or directory page -- to the
+     * file.
+     *
+     * @return its page number
+     */
+    private synchronized int appendEmptyPage() throws IOException {
+        initialize();
+        int pageNo = numPages();
+        writePageData(pageNo, HashPage.createEmptyPageData());
+        return pageNo;
+    }
+
+    /**
+     * Fetch a page through the BufferPool, or from dirtypages if this
+     * operation has already modified it. Pages fetched with READ_WRITE are
+     * added to dirtypages, and marked dirty while they are pinned, so an
+     * eviction writes them back instead of dropping the changes this
+     * operation makes to them.
+     */
+    HashPage getPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            HashPageId pid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        Page p = dirtypages.get(pid);
+        if (p == null) {
+            BufferPool bufferPool = Database.getBufferPool();
+            if (perm == Permissions.READ_WRITE) {
+                p = bufferPool.pinPage(tid, pid, perm);
+                p.markDirty(true, tid);
+                bufferPool.unpinPage(tid, pid);
+                dirtypages.put(pid, p);
+            } else {
+                p = bufferPool.getPage(tid, pid, perm);
+            }
+        }
+        return (HashPage) p;
+    }
+
+    HashHeaderPage getHeaderPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            Permissions perm) throws DbException, TransactionAbortedException {
+        try {
+            initialize();
+        } catch (IOException e) {
+            throw new DbException("could not initialize " + mFile + ": " + e.getMessage());
+        }
+        return (HashHeaderPage) getPage(tid, dirtypages,
+                new HashPageId(mTableId, 0, HashPageId.HEADER), perm);
+    }
+
+    /**
+     * Scramble the hash code of a key so that its low bits, which pick the
+     * bucket, depend on all of its bits. IntField hashes to its own value.
+     */
+    static int hash(Field key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return the bucket key belongs in, given the hashing state in header
+     */
+    static int bucketFor(HashHeaderPage header, Field key) {
+        int h = hash(key);
+        int bucket = h & ((1 << header.getLevel()) - 1);
+        if (bucket < header.getNext())
+            bucket = h & ((1 << (header.getLevel() + 1)) - 1);
+        return bucket;
+    }
+
+    /**
+     * @return the id of the primary page of the specified bucket
+     */
+    private HashPageId bucketPageId(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            HashHeaderPage header, int bucket)
+            throws DbException, TransactionAbortedException {
+        int slots = HashDirectoryPage.getNumSlots();
+        HashDirectoryPage directory = (HashDirectoryPage) getPage(tid, dirtypages,
+                new HashPageId(mTableId, header.getDirectoryPage(bucket / slots),
+                        HashPageId.DIRECTORY), Permissions.READ_ONLY);
+        return new HashPageId(mTableId, directory.getBucketPage(bucket % slots),
+                HashPageId.BUCKET);
+    }
+
+    private HashPageId overflowId(HashBucketPage page) {
+        int next = page.getNextOverflow();
+        return next == 0 ? null : new HashPageId(mTableId, next, HashPageId.BUCKET);
+    }
+
+    /**
+     * Adds an entry for the specified tuple of the indexed table, splitting
+     * the next bucket if the index has become too full.
+     *
+     * @param t
+     *            a tuple of the indexed table; its RecordId must be set
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("can't index a tuple that is not stored in a table");
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        HashHeaderPage header = getHeaderPage(tid, dirtypages, Permissions.READ_WRITE);
+        Field key = t.getField(mKeyField);
+        addEntry(tid, dirtypages, bucketPageId(tid, dirtypages, header, bucketFor(header, key)),
+                key, rid.getPageId().pageNumber(), rid.tupleno());
+        header.setNumEntries(header.getNumEntries() + 1);
+
+        double capacity = (double) header.getNumBuckets()
+                * HashBucketPage.getMaxEntries(mKeyType);
+        if (header.getNumEntries() > LOAD_FACTOR * capacity)
+            splitBucket(tid, dirtypages, header);
+        return new ArrayList<Page>(dirtypages.values());
+    }
+
+    /**
+     * Add an entry to the first page of the bucket starting at pid with room
+     * for it, chaining a new overflow page to the bucket if they are all
+     * full.
+     */
+    private void addEntry(TransactionId tid, HashMap<PageId, Page> dirtypages, HashPageId pid,
+            Field key, int pageNo, int slot)
+            throws DbException, IOException, TransactionAbortedException {
+        while (true) {
+            HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid,
+                    Permissions.READ_ONLY);
+            if (!page.isFull()) {
+                page = (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+                page.addEntry(key, pageNo, slot);
+                return;
+            }
+            HashPageId next = overflowId(page);
+            if (next == null) {
+                page = (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+                next = new HashPageId(mTableId, appendEmptyPage(), HashPageId.BUCKET);
+                page.setNextOverflow(next.pageNumber());
+            }
+            pid = next;
+        }
+    }
+
+    /**
+     * Split bucket header.getNext(): add a new bucket at the end of the
+     * directory and redistribute the old bucket's entries between the two
+     * under the new hashing state.
+     */
+    private void splitBucket(TransactionId tid, HashMap<PageId, Page> dirtypages,
+            HashHeaderPage header) throws DbException, IOException, TransactionAbortedException {
+        int oldBucket = header.getNext();
+        int newBucket = header.getNumBuckets();
+        HashPageId oldId = bucketPageId(tid, dirtypages, header, oldBucket);
+
+        int slots = HashDirectoryPage.getNumSlots();
+        if (newBucket / slots == header.getNumDirectoryPages())
+            header.addDirectoryPage(appendEmptyPage());
+        HashDirectoryPage directory = (HashDirectoryPage) getPage(tid, dirtypages,
+                new HashPageId(mTableId, header.getDirectoryPage(newBucket / slots),
+                        HashPageId.DIRECTORY), Permissions.READ_WRITE);
+        HashPageId newId = new HashPageId(mTableId, appendEmptyPage(), HashPageId.BUCKET);
+        directory.setBucketPage(newBucket % slots, newId.pageNumber());
+        header.addBucket();
+
+        ArrayList<Field> keys = new ArrayList<Field>();
+        ArrayList<int[]> records = new ArrayList<int[]>();
+        for (HashPageId pid = oldId; pid != null;) {
+            HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid,
+                    Permissions.READ_WRITE);
+            for (int i = 0; i < page.getNumEntries(); i++) {
+                keys.add(page.getKey(i));
+                records.add(new int[] { page.getRecordPage(i), page.getRecordSlot(i) });
+            }
+            page.clear();
+            pid = overflowId(page);
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            Field key = keys.get(i);
+            addEntry(tid, dirtypages, bucketFor(header, key) == oldBucket ? oldId : newId,
+                    key, records.get(i)[0], records.get(i)[1]);
+        }
+    }
+
+    /**
+     * Removes the entry for the specified tuple of the indexed table. Must be
+     * called before the tuple is deleted from the table, while its RecordId
+     * is still set.
+     *
+     * @throws DbException
+     *             if the index has no entry for the tuple
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("tuple is not stored in a table");
+        HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+        HashHeaderPage header = getHeaderPage(tid, dirtypages, Permissions.READ_WRITE);
+        Field key = t.getField(mKeyField);
+        int pageNo = rid.getPageId().pageNumber();
+        for (HashPageId pid = bucketPageId(tid, dirtypages, header, bucketFor(header, key));
+                pid != null;) {
+            HashBucketPage page = (HashBucketPage) getPage(tid, dirtypages, pid,
+                    Permissions.READ_ONLY);
+            int i = page.findEntry(key, pageNo, rid.tupleno());
+            if (i >= 0) {
+                page = (HashBucketPage) getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+                page.removeEntry(i);
+                header.setNumEntries(header.getNumEntries() - 1);
+                return new ArrayList<Page>(dirtypages.values());
+            }
+            pid = overflowId(page);
+        }
+        throw new DbException("tuple " + rid + " is not in the index");
+    }
+
+    /**
+     * Returns an iterator over the tuples of the indexed table whose key
+     * equals value and that satisfy every one of the predicates.
+     *
+     * @throws IllegalArgumentException
+     *             if op is not EQUALS
+     */
+    public DbFileIterator lookup(TransactionId tid, Predicate.Op op, Field value,
+            Predicate[] predicates) {
+        if (!supports(op))
+            throw new IllegalArgumentException("hash indexes only support equality lookups");
+        return new LookupIterator(tid, value, predicates);
+    }
+
+    /**
+     * A lookup reads one bucket page -- the header and directory pages are
+     * few and stay cached -- and, at worst, one table page per match.
+     */
+    public double estimateLookupPages(double matches) {
+        return 1 + matches;
+    }
+
+    /**
+     * Returns an iterator over the entries of this index, as tuples of
+     * {@link #getTupleDesc}, bucket by bucket.
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new EntryIterator(tid);
+    }
+
+    /**
+     * Walks the pages of one bucket after another, starting at the bucket
+     * of a given key or at bucket 0, keeping the page it is reading pinned.
+     * Subclasses turn the entries of each page into tuples.
+     */
+    abstract class BucketIterator extends AbstractDbFileIterator {
+        final TransactionId mTid;
+        HashHeaderPage mHeader;
+        int mBucket;
+        HashBucketPage mPage;
+        int mEntry;
+
+        BucketIterator(TransactionId tid) {
+            mTid = tid;
+        }
+
+        /** @return the first bucket to read */
+        abstract int firstBucket();
+
+        /** @return the bucket after bucket, or -1 to stop */
+        abstract int nextBucket(int bucket);
+
+        /** @return the tuple for entry i of page, or null to skip it */
+        abstract Tuple entryTuple(HashBucketPage page, int i)
+                throws DbException, TransactionAbortedException;
+
+        public void open() throws DbException, TransactionAbortedException {
+            HashMap<PageId, Page> none = new HashMap<PageId, Page>();
+            mHeader = getHeaderPage(mTid, none, Permissions.READ_ONLY);
+            mBucket = firstBucket();
+            readPage(bucketPageId(mTid, none, mHeader, mBucket));
+        }
+
+        /**
+         * Unpin the current page, if any, and pin pid in its place.
+         */
+        private void readPage(HashPageId pid)
+                throws DbException, TransactionAbortedException {
+            unpinPage();
+            mPage = (HashBucketPage) Database.getBufferPool().pinPage(mTid, pid,
+                    Permissions.READ_ONLY);
+            mEntry = 0;
+        }
+
+        private void unpinPage() {
+            if (mPage != null) {
+                Database.getBufferPool().unpinPage(mTid, mPage.getId());
+                mPage = null;
+            }
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (mPage != null) {
+                while (mEntry < mPage.getNumEntries()) {
+                    Tuple t = entryTuple(mPage, mEntry++);
+                    if (t != null)
+                        return t;
+                }
+                HashPageId next = overflowId(mPage);
+                if (next == null) {
+                    mBucket = nextBucket(mBucket);
+                    if (mBucket < 0) {
+                        unpinPage();
+                        return null;
+                    }
+                    next = bucketPageId(mTid, new HashMap<PageId, Page>(), mHeader, mBucket);
+                }
+                readPage(next);
+            }
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            mHeader = null;
+            unpinPage();
+        }
+    }
+
+    /**
+     * Returns the tuples of the indexed table matching one key, fetching
+     * each from its HeapPage.
+     */
+    class LookupIterator extends BucketIterator {
+        final Field mValue;
+        final Predicate[] mPredicates;
+
+        LookupIterator(TransactionId tid, Field value, Predicate[] predicates) {
+            super(tid);
+            mValue = value;
+            mPredicates = predicates != null && predicates.length > 0 ? predicates : null;
+        }
+
+        int firstBucket() {
+            return bucketFor(mHeader, mValue);
+        }
+
+        int nextBucket(int bucket) {
+            return -1;
+        }
+
+        Tuple entryTuple(HashBucketPage page, int i)
+                throws DbException, TransactionAbortedException {
+            if (!page.getKey(i).equals(mValue))
+                return null;
+            HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(mTid,
+                    new HeapPageId(mIndexedTableId, page.getRecordPage(i)),
+                    Permissions.READ_ONLY);
+            return heapPage.getTuple(page.getRecordSlot(i), mPredicates);
+        }
+    }
+
+    /**
+     * Returns every entry of the index.
+     */
+    class EntryIterator extends BucketIterator {
+
+        EntryIterator(TransactionId tid) {
+            super(tid);
+        }
+
+        int firstBucket() {
+            return 0;
+        }
+
+        int nextBucket(int bucket) {
+            return bucket + 1 < mHeader.getNumBuckets() ? bucket + 1 : -1;
+        }
+
+        Tuple entryTuple(HashBucketPage page, int i) {
+            Tuple t = new Tuple(mTupleDesc);
+            t.setField(0, page.getKey(i));
+            t.setField(1, new IntField(page.getRecordPage(i)));
+            t.setField(2, new IntField(page.getRecordSlot(i)));
+            return t;
+        }
+    }
+}
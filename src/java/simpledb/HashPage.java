@@ -0,0 +1,84 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HashPage holds what the three kinds of HashIndexFile pages have in
+ * common: their id, dirty state and before image.
+ *
+ * @see HashIndexFile
+ */
+public abstract class HashPage implements Page {
+
+    final HashPageId mPageId;
+    TransactionId mDirtier;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    HashPage(HashPageId id) {
+        mPageId = id;
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HashPageId getId() {
+        return mPageId;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        mDirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return mDirtier;
+    }
+
+    /**
+     * @return the bytes of this page before it was last modified
+     */
+    byte[] getBeforeImageData() {
+        synchronized (oldDataLock) {
+            return oldData;
+        }
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    /**
+     * @return the HashIndexFile this page belongs to, found through the
+     *         Catalog
+     */
+    HashIndexFile getFile() {
+        return (HashIndexFile) Database.getCatalog().getDatabaseFile(mPageId.getTableId());
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * page of any type.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    /**
+     * Pad the stream out to a full page and return its bytes.
+     */
+    static byte[] finishPage(ByteArrayOutputStream baos, DataOutputStream dos) {
+        try {
+            dos.flush();
+            int zerolen = BufferPool.getPageSize() - baos.size();
+            dos.write(new byte[zerolen]);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb;
+
+/** Unique identifier for the pages of a HashIndexFile. */
+public class HashPageId implements PageId {
+
+    public final static int HEADER = 0;
+    public final static int DIRECTORY = 1;
+    public final static int BUCKET = 2;
+
+    private int mTableId;
+    private int mPgNo;
+    private int mCategory;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific hash index.
+     *
+     * @param tableId The index that is being referenced
+     * @param pgNo The page number in that index.
+     * @param category The type of the page: HEADER, DIRECTORY or BUCKET
+     */
+    public HashPageId(int tableId, int pgNo, int category) {
+        mTableId = tableId;
+        mPgNo = pgNo;
+        mCategory = category;
+    }
+
+    /** @return the index associated with this PageId */
+    public int getTableId() {
+        return mTableId;
+    }
+
+    /**
+     * @return the page number in the index getTableId() associated with
+     *   this PageId
+     */
+    public int pageNumber() {
+        return mPgNo;
+    }
+
+    /**
+     * @return the category of this page: HEADER, DIRECTORY or BUCKET
+     */
+    public int pgcateg() {
+        return mCategory;
+    }
+
+    /**
+     * @return a hash code for this page, represented by the concatenation of
+     *   the table number, page number and category
+     * @see BufferPool
+     */
+    public int hashCode() {
+        return (mTableId * 31 + mPgNo) * 3 + mCategory;
+    }
+
+    /**
+     * Compares one PageId to another.
+     *
+     * @param o The object to compare against
+     * @return true if the table ids, page numbers and categories are the same
+     */
+    public boolean equals(Object o) {
+        if (o instanceof HashPageId) {
+            HashPageId po = (HashPageId) o;
+            return po.mTableId == mTableId && po.mPgNo == mPgNo
+                    && po.mCategory == mCategory;
+        }
+        return false;
+    }
+
+    public String toString() {
+        String[] categories = { "HEADER", "DIRECTORY", "BUCKET" };
+        return String.format("(%d, %d, %s)", mTableId, mPgNo, categories[mCategory]);
+    }
+
+    /**
+     *  Return a representation of this object as an array of
+     *  integers, for writing to disk.  Size of returned array must contain
+     *  number of integers that corresponds to number of args to one of the
+     *  constructors.
+     */
+    public int[] serialize() {
+        int data[] = new int[3];
+        data[0] = mTableId;
+        data[1] = mPgNo;
+        data[2] = mCategory;
+        return data;
+    }
+}
@@ -14,8 +14,13 @@ import java.util.*;
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
+    /** Number of pages bulkInsert packs in memory before each write. */
+    public static final int BULK_WRITE_PAGES = 256;
+
     private File mFile;
     private TupleDesc mTupleDesc;
+    private ZoneMap mZoneMap;
+    private FreeSpaceMap mFreeSpaceMap;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -60,29 +65,86 @@ public class HeapFile implements DbFile {
 	    return mTupleDesc;
     }
 
-    // see DbFile.java for javadocs
-    public Page readPage(PageId pid) {
+    /**
+     * Returns the zone map of this file, loading it from its sidecar file or
+     * rebuilding it from the pages on disk the first time it is needed.
+     * Once loaded, the zone map is kept up to date by insertTuple and
+     * deleteTuple, and its entry for a page is saved whenever the page is
+     * written.
+     *
+     * @return the zone map of this HeapFile
+     * @throws IOException if the zone map can't be read or rebuilt
+     * @see ZoneMap
+     */
+    public synchronized ZoneMap getZoneMap() throws IOException {
+        if (mZoneMap == null) {
+            mZoneMap = ZoneMap.open(this);
+        }
+        return mZoneMap;
+    }
+
+    /**
+     * Returns the free-space map of this file, loading it from its sidecar
+     * file or rebuilding it from the pages on disk the first time it is
+     * needed. Like the zone map, it is kept up to date by insertTuple and
+     * deleteTuple and saved page by page in writePage.
+     *
+     * @return the free-space map of this HeapFile
+     * @throws IOException if the map can't be read or rebuilt
+     * @see FreeSpaceMap
+     */
+    public synchronized FreeSpaceMap getFreeSpaceMap() throws IOException {
+        if (mFreeSpaceMap == null) {
+            mFreeSpaceMap = FreeSpaceMap.open(this);
+        }
+        return mFreeSpaceMap;
+    }
+
+    /**
+     * Reads the bytes of page pageNo from disk. Subclasses that store pages
+     * differently override this together with writePageData and numPages.
+     *
+     * @throws IllegalArgumentException if the file has no such page
+     */
+    protected byte[] readPageData(int pageNo) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
         try {
-            RandomAccessFile raf = new RandomAccessFile(mFile, "r");
-            int offset = BufferPool.PAGE_SIZE * pid.pageNumber();
+            int pageSize = BufferPool.getPageSize();
+            long offset = (long) pageSize * pageNo;
 
             raf.seek(offset);
-            byte[] data = new byte[BufferPool.PAGE_SIZE];
+            byte[] data = new byte[pageSize];
 
             //check if we go over
-            if (BufferPool.PAGE_SIZE + offset > raf.length()) {
-            throw new IllegalArgumentException(String.format("Invalid pid, offset %d exceeds file page count %d", offset, numPages()));
+            if (pageSize + offset > raf.length()) {
+                throw new IllegalArgumentException(String.format("Invalid pid, offset %d exceeds file page count %d", offset, numPages()));
             }
 
-            for (int i = 0; i < data.length; i++) {
-                data[i] = raf.readByte();
-            }
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
 
-            Page page = new HeapPage((HeapPageId)pid, data);
-            return page;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            throw new IllegalArgumentException("Something went wrong with pid" + pid.toString());
+    /**
+     * Writes count consecutive pages, starting at page pageNo, from the
+     * start of data. Writing past the last page appends to the file.
+     */
+    protected void writePageData(int pageNo, byte[] data, int count) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek((long) BufferPool.getPageSize() * pageNo);
+            raf.write(data, 0, count * BufferPool.getPageSize());
+        } finally {
+            raf.close();
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        try {
+            return new HeapPage((HeapPageId) pid, readPageData(pid.pageNumber()));
         } catch (IOException e) {
             e.printStackTrace();
             throw new IllegalArgumentException("Something went wrong with pid" + pid.toString());
@@ -92,20 +154,21 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         PageId pageId = page.getId();
-        int offset = BufferPool.PAGE_SIZE * pageId.pageNumber();
+        writePageData(pageId.pageNumber(), page.getPageData(), 1);
 
-        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
-        raf.seek(offset);
-
-        raf.write(page.getPageData());
-        raf.close();
+        synchronized (this) {
+            if (mZoneMap != null)
+                mZoneMap.savePage(pageId.pageNumber());
+            if (mFreeSpaceMap != null)
+                mFreeSpaceMap.savePage(pageId.pageNumber());
+        }
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-	return (int) mFile.length() / BufferPool.PAGE_SIZE;
+	return (int) (mFile.length() / BufferPool.getPageSize());
     }
 
     /**
@@ -114,48 +177,244 @@ public class HeapFile implements DbFile {
 
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        FreeSpaceMap freeSpaceMap = getFreeSpaceMap();
         HeapPage emptyHeapPage = null;
-        for (int i = 0; i < numPages(); i++) {
+        int i;
+        while ((i = freeSpaceMap.findPageWithSpace()) >= 0) {
+            if (i >= numPages()) {
+                freeSpaceMap.setFreeSlots(i, 0);
+                continue;
+            }
             PageId pid = new HeapPageId(getId(), i);
-            HeapPage hp = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            // Pinned until it is dirty, so an eviction can't drop the change
+            HeapPage hp = (HeapPage) bufferPool.pinPage(tid, pid, Permissions.READ_WRITE);
 
             if (hp.getNumEmptySlots() > 0) {
                 emptyHeapPage = hp;
                 break;
             }
+            // The map was out of date; correct it and look again
+            freeSpaceMap.updatePage(hp);
+            bufferPool.unpinPage(tid, pid);
         }
 
         ArrayList<Page> modifiedPages = new ArrayList<>();
 
+        ZoneMap zoneMap = getZoneMap();
         if (emptyHeapPage != null) {
-            emptyHeapPage.insertTuple(t);
+            try {
+                emptyHeapPage.insertTuple(t);
+                emptyHeapPage.markDirty(true, tid);
+            } finally {
+                bufferPool.unpinPage(tid, emptyHeapPage.getId());
+            }
+            zoneMap.addTuple(emptyHeapPage.getId().pageNumber(), t);
+            freeSpaceMap.updatePage(emptyHeapPage);
             modifiedPages.add(emptyHeapPage);
         } else {
-            // Have to create a new page and add it to the file
-            HeapPageId hpid = new HeapPageId(getId(), numPages());
-            HeapPage heapPage = new HeapPage(hpid, new byte[BufferPool.getPageSize()]);
-            heapPage.insertTuple(t);
-
-            // Use random access file to go to end of mFile to append the page
-            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
-            raf.seek(mFile.length());
-            byte[] heapPageData = heapPage.getPageData();
-            raf.write(heapPageData, 0, BufferPool.PAGE_SIZE);
-            raf.close();
-
-            // Get return arraylist of modified pages
-            modifiedPages.add(heapPage);
+            // Have to create a new page and add it to the file. The lock is
+            // the one bulkInsert holds, so the two never claim the same page
+            synchronized (this) {
+                HeapPageId hpid = new HeapPageId(getId(), numPages());
+                HeapPage heapPage = new HeapPage(hpid, new byte[BufferPool.getPageSize()]);
+                heapPage.insertTuple(t);
+
+                // Append the page to the end of the file
+                writePageData(hpid.pageNumber(), heapPage.getPageData(), 1);
+
+                zoneMap.addTuple(hpid.pageNumber(), t);
+                zoneMap.savePage(hpid.pageNumber());
+                freeSpaceMap.updatePage(heapPage);
+                freeSpaceMap.savePage(hpid.pageNumber());
+
+                // Get return arraylist of modified pages
+                modifiedPages.add(heapPage);
+            }
         }
 
         return modifiedPages;
     }
 
+    /**
+     * Appends every tuple from an open iterator to this file, bypassing the
+     * per-tuple free-slot search of insertTuple. Tuples are packed into
+     * fresh pages in memory, which are appended to the end of the file
+     * BULK_WRITE_PAGES at a time with one sequential write each. Free slots
+     * on existing pages are left alone.
+     * <p>
+     * A bulk-append record naming the pages of each batch is written to
+     * the log before the batch. If the transaction aborts, or is still
+     * running when the database crashes, the log undoes the load batch by
+     * batch (see undoAppend). The appended pages are never in the
+     * BufferPool, so no cached page is affected.
+     * <p>
+     * The load holds this file's lock, which insertTuple also takes to
+     * append a page, so no other insert can claim a page number the load
+     * has reserved. Every appended page is recorded as full in the
+     * free-space map, even a partly filled last page, so no other
+     * transaction puts a tuple on a page that undoing the load would wipe.
+     *
+     * @param tid the transaction doing the load
+     * @param tuples an open iterator over the tuples to add
+     * @return the number of tuples added
+     * @throws DbException if a tuple doesn't match this file's schema
+     * @throws IOException if the file or log can't be written
+     */
+    public int bulkInsert(TransactionId tid, DbIterator tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        int pageSize = BufferPool.getPageSize();
+        int tupleSize = mTupleDesc.getSize();
+        int numSlots = HeapPage.getNumTuples(mTupleDesc);
+        int headerSize = HeapPage.getHeaderSize(mTupleDesc);
+
+        ZoneMap zoneMap = getZoneMap();
+        FreeSpaceMap freeSpaceMap = getFreeSpaceMap();
+
+        synchronized (this) {
+            int firstPage = numPages();
+            byte[] batch = new byte[BULK_WRITE_PAGES * pageSize];
+            ByteArrayOutputStream slotBytes = new ByteArrayOutputStream(numSlots * tupleSize);
+            DataOutputStream dos = new DataOutputStream(slotBytes);
+
+            try {
+                int pageNo = firstPage;
+                int pagesInBatch = 0;
+                int slot = 0;
+                int count = 0;
+                boolean more = tuples.hasNext();
+                while (more) {
+                    Tuple t = tuples.next();
+                    if (!mTupleDesc.equals(t.getTupleDesc()))
+                        throw new DbException("Tuple Desc mismatch");
+                    for (int i = 0; i < mTupleDesc.numFields(); i++) {
+                        t.getField(i).serialize(dos);
+                    }
+                    t.setRecordId(new RecordId(new HeapPageId(getId(), pageNo), slot));
+                    zoneMap.addTuple(pageNo, t);
+                    slot++;
+                    count++;
+                    more = tuples.hasNext();
+
+                    if (slot == numSlots || !more) {
+                        // Lay out the finished page: header bits, then slots
+                        int start = pagesInBatch * pageSize;
+                        Arrays.fill(batch, start, start + pageSize, (byte) 0);
+                        Arrays.fill(batch, start, start + slot / 8, (byte) 0xFF);
+                        if (slot % 8 != 0)
+                            batch[start + slot / 8] = (byte) ((1 << (slot % 8)) - 1);
+                        dos.flush();
+                        System.arraycopy(slotBytes.toByteArray(), 0, batch,
+                                start + headerSize, slotBytes.size());
+                        slotBytes.reset();
+
+                        freeSpaceMap.setFreeSlots(pageNo, 0);
+                        pageNo++;
+                        pagesInBatch++;
+                        slot = 0;
+                    }
+
+                    if (pagesInBatch == BULK_WRITE_PAGES || (!more && pagesInBatch > 0)) {
+                        Database.getLogFile().logBulkAppend(tid, getId(),
+                                pageNo - pagesInBatch, pagesInBatch);
+                        writePageData(pageNo - pagesInBatch, batch, pagesInBatch);
+                        pagesInBatch = 0;
+                    }
+                }
+                return count;
+            } finally {
+                zoneMap.save();
+                freeSpaceMap.save();
+            }
+        }
+    }
+
+    /**
+     * Cuts this file back to its first numPages pages, undoing bulk appends
+     * that end the file. Cached copies of the dropped pages are discarded
+     * from the BufferPool, and the zone and free-space maps are rebuilt
+     * from the remaining pages the next time they are needed.
+     *
+     * @param numPages the number of pages to keep
+     * @throws IOException if the file can't be truncated
+     * @see LogFile#rollback
+     */
+    public synchronized void truncate(int numPages) throws IOException {
+        int oldPages = numPages();
+        if (numPages >= oldPages)
+            return;
+        BufferPool bufferPool = Database.getBufferPool();
+        for (int p = numPages; p < oldPages; p++) {
+            bufferPool.discardPage(new HeapPageId(getId(), p));
+        }
+        truncatePageData(numPages);
+        mZoneMap = null;
+        mFreeSpaceMap = null;
+    }
+
+    /**
+     * Undoes a bulk append of count pages starting at page firstPage. If
+     * they are the last pages of the file, it is truncated back to
+     * firstPage. Otherwise other pages were appended after them, and the
+     * undone pages are overwritten with empty ones instead, so the later
+     * pages keep their tuples.
+     *
+     * @param firstPage the first page of the append
+     * @param count the number of pages appended
+     * @throws IOException if the file can't be written
+     * @see LogFile#rollback
+     */
+    public synchronized void undoAppend(int firstPage, int count) throws IOException {
+        int end = firstPage + count;
+        if (end >= numPages()) {
+            truncate(firstPage);
+            return;
+        }
+        BufferPool bufferPool = Database.getBufferPool();
+        for (int p = firstPage; p < end; p++) {
+            bufferPool.discardPage(new HeapPageId(getId(), p));
+        }
+        writePageData(firstPage, new byte[count * BufferPool.getPageSize()], count);
+
+        ZoneMap zoneMap = getZoneMap();
+        FreeSpaceMap freeSpaceMap = getFreeSpaceMap();
+        for (int p = firstPage; p < end; p++) {
+            HeapPage empty = new HeapPage(new HeapPageId(getId(), p),
+                    HeapPage.createEmptyPageData());
+            zoneMap.updatePage(empty);
+            zoneMap.savePage(p);
+            freeSpaceMap.updatePage(empty);
+            freeSpaceMap.savePage(p);
+        }
+    }
+
+    /**
+     * Drops every page from page numPages on from disk. Subclasses that
+     * override readPageData and writePageData override this too.
+     */
+    protected void truncatePageData(int numPages) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength((long) BufferPool.getPageSize() * numPages);
+        } finally {
+            raf.close();
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
-            TransactionAbortedException {
+            IOException, TransactionAbortedException {
         RecordId rid = t.getRecordId();
-        HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_WRITE);
-        heapPage.deleteTuple(t);
+        BufferPool bufferPool = Database.getBufferPool();
+        HeapPage heapPage = (HeapPage) bufferPool.pinPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        try {
+            heapPage.deleteTuple(t);
+            heapPage.markDirty(true, tid);
+        } finally {
+            bufferPool.unpinPage(tid, heapPage.getId());
+        }
+        getZoneMap().removeTuple(heapPage, t);
+        getFreeSpaceMap().updatePage(heapPage);
 
         ArrayList<Page> modifiedPages = new ArrayList<>();
         modifiedPages.add(heapPage);
@@ -164,17 +423,37 @@ public class HeapFile implements DbFile {
 
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid, null);
     }
 
     /**
-     * Helper class that implements the Java Iterator for tuples on a HeapFile
+     * Returns an iterator over the tuples that satisfy all of the given
+     * predicates. The predicates are pushed down into each HeapPage, which
+     * evaluates them against the page bytes and only materializes qualifying
+     * tuples.
+     *
+     * @see HeapPage#iterator(Predicate[])
+     */
+    @Override
+    public DbFileIterator iterator(TransactionId tid, Predicate[] predicates) {
+        return new HeapFileIterator(this, tid, predicates);
+    }
+
+    /**
+     * Helper class that implements the Java Iterator for tuples on a HeapFile.
+     * The page the iterator is reading from stays pinned in the BufferPool
+     * until the iterator moves past it or is closed.
      */
     class HeapFileIterator extends AbstractDbFileIterator {
         Iterator<Tuple> mTupleIterator;
         int mCurrentPageNumber;
         TransactionId mTid;
         HeapFile mHeapFile;
+        Predicate[] mPredicates;
+        ZoneMap mZoneMap;
+        /** The pool holding the pinned current page, or null if none is pinned. */
+        BufferPool mPool;
+        HeapPageId mPinnedPageId;
 
         /**
          * Set local variables for HeapFile and Transactionid
@@ -183,15 +462,25 @@ public class HeapFile implements DbFile {
          *            The underlying HeapFile.
          * @param tid
          *            The transaction ID.
+         * @param predicates
+         *            The predicates returned tuples must satisfy, or null.
          */
-        public HeapFileIterator(HeapFile hf, TransactionId tid) {
+        public HeapFileIterator(HeapFile hf, TransactionId tid, Predicate[] predicates) {
             mHeapFile = hf;
             mTid = tid;
+            mPredicates = predicates;
         }
 
 
         public void open() throws DbException, TransactionAbortedException {
             mCurrentPageNumber = -1;
+            if (mPredicates != null) {
+                try {
+                    mZoneMap = mHeapFile.getZoneMap();
+                } catch (IOException e) {
+                    throw new DbException("could not load zone map: " + e.getMessage());
+                }
+            }
         }
 
         @Override
@@ -201,6 +490,7 @@ public class HeapFile implements DbFile {
             // If the current tuple iterator has no more tuples.
             if (mTupleIterator != null && !mTupleIterator.hasNext()) {
                 mTupleIterator = null;
+                unpinCurrentPage();
             }
 
             // Keep trying to open a tuple iterator until we find one of run out of pages.
@@ -208,17 +498,26 @@ public class HeapFile implements DbFile {
                     && mCurrentPageNumber < mHeapFile.numPages() - 1) {
                 mCurrentPageNumber++; // Go to next page.
 
+                // Skip pages the zone map rules out without fetching them
+                if (mZoneMap != null
+                        && !mZoneMap.mayMatch(mCurrentPageNumber, mPredicates))
+                    continue;
+
                 // Get the iterator for the current page
                 HeapPageId currentPageId = new HeapPageId(mHeapFile.getId(),
                         mCurrentPageNumber);
 
-                HeapPage currentPage = (HeapPage) Database.getBufferPool()
-                        .getPage(mTid, currentPageId, Permissions.READ_ONLY);
-                mTupleIterator = currentPage.iterator();
+                mPool = Database.getBufferPool();
+                HeapPage currentPage = (HeapPage) mPool.pinPage(mTid, currentPageId,
+                        Permissions.READ_ONLY);
+                mPinnedPageId = currentPageId;
+                mTupleIterator = currentPage.iterator(mPredicates);
 
                 // Make sure the iterator has tuples in it
-                if (!mTupleIterator.hasNext())
+                if (!mTupleIterator.hasNext()) {
                     mTupleIterator = null;
+                    unpinCurrentPage();
+                }
             }
 
             // Make sure we found a tuple iterator
@@ -237,8 +536,17 @@ public class HeapFile implements DbFile {
         public void close() {
             super.close();
             mTupleIterator = null;
+            unpinCurrentPage();
             mCurrentPageNumber = Integer.MAX_VALUE;
         }
+
+        private void unpinCurrentPage() {
+            if (mPool != null) {
+                mPool.unpinPage(mTid, mPinnedPageId);
+                mPool = null;
+                mPinnedPageId = null;
+            }
+        }
     }
 
 }
@@ -1,7 +1,10 @@
 package simpledb;
 
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -9,10 +12,55 @@ import java.util.ArrayList;
  * pages of binary data in the appropriate format for simpledb heap pages
  * Pages are padded out to a specified length, and written consecutive in a
  * data file.
+ * <p>
+ * Conversion is streaming and multi-threaded: the input is cut into chunks
+ * of PAGES_PER_CHUNK pages worth of records, the chunks are parsed and laid
+ * out as pages by a pool of worker threads, and the finished pages are
+ * written to the output in input order. Int fields are parsed straight from
+ * the input bytes, without going through Strings.
  */
 
 public class HeapFileEncoder {
 
+  /** Number of pages of records handed to a worker at a time. */
+  public static final int PAGES_PER_CHUNK = 64;
+
+  /** Size of the blocks the text input is read in. */
+  private static final int READ_BUFFER_SIZE = 1 << 20;
+
+  /** Statistics about one conversion, including its throughput. */
+  public static class Result {
+      public final long bytesRead;
+      public final long bytesWritten;
+      public final long numRecords;
+      public final long numPages;
+      public final long nanos;
+
+      Result(long bytesRead, long bytesWritten, long numRecords, long numPages, long nanos) {
+          this.bytesRead = bytesRead;
+          this.bytesWritten = bytesWritten;
+          this.numRecords = numRecords;
+          this.numPages = numPages;
+          this.nanos = nanos;
+      }
+
+      /**
+       * @return the input bytes converted per second, in MB/s (or output
+       *         bytes when converting from an in-memory tuple list)
+       */
+      public double mbPerSecond() {
+          long bytes = bytesRead > 0 ? bytesRead : bytesWritten;
+          return (bytes / (1024.0 * 1024.0)) / Math.max(nanos / 1e9, 1e-9);
+      }
+
+      public String toString() {
+          return String.format("%d records, %d pages, %.1f MB in %.2f s (%.1f MB/s)",
+                  numRecords, numPages,
+                  (bytesRead > 0 ? bytesRead : bytesWritten) / (1024.0 * 1024.0),
+                  nanos / 1e9, mbPerSecond());
+      }
+  }
+
   /** Convert the specified tuple list (with only integer fields) into a binary
    * page file. <br>
    *
@@ -26,54 +74,64 @@ public class HeapFileEncoder {
    * @param outFile The output file to write data to
    * @param npagebytes The number of bytes per page in the output file
    * @param numFields the number of fields in each input tuple
-   * @throws IOException if the temporary/output file can't be opened
+   * @throws IOException if the output file can't be opened
    */
-  public static void convert(ArrayList<ArrayList<Integer>> tuples, File outFile, int npagebytes, int numFields) throws IOException {
-      File tempInput = File.createTempFile("tempTable", ".txt");
-      tempInput.deleteOnExit();
-      BufferedWriter bw = new BufferedWriter(new FileWriter(tempInput));
-      for (ArrayList<Integer> tuple : tuples) {
-          int writtenFields = 0;
-          for (Integer field : tuple) {
-              writtenFields++;
-              if (writtenFields > numFields) {
-                  throw new RuntimeException("Tuple has more than " + numFields + " fields: (" +
-                          Utility.listToString(tuple) + ")");
-              }
-              bw.write(String.valueOf(field));
-              if (writtenFields < numFields) {
-                  bw.write(',');
-              }
+  public static Result convert(final ArrayList<ArrayList<Integer>> tuples, File outFile,
+          int npagebytes, final int numFields) throws IOException {
+      Type[] ts = new Type[numFields];
+      for (int i = 0; i < ts.length; i++) {
+          ts[i] = Type.INT_TYPE;
+      }
+      final Layout layout = new Layout(npagebytes, ts);
+      final int recordsPerChunk = layout.nrecords * PAGES_PER_CHUNK;
+
+      long start = System.nanoTime();
+      OutputStream os = new FileOutputStream(outFile);
+      PageWriter writer = new PageWriter(os, layout);
+      try {
+          for (int from = 0; from < tuples.size(); from += recordsPerChunk) {
+              final int chunkStart = from;
+              final int chunkEnd = Math.min(tuples.size(), from + recordsPerChunk);
+              writer.submit(new Callable<Chunk>() {
+                  public Chunk call() {
+                      return encodeTuples(layout, tuples.subList(chunkStart, chunkEnd), numFields);
+                  }
+              });
           }
-          bw.write('\n');
+          writer.finish();
+      } finally {
+          writer.shutdown();
+          os.close();
       }
-      bw.close();
-      convert(tempInput, outFile, npagebytes, numFields);
+      return new Result(0, writer.bytesWritten, tuples.size(), writer.numPages,
+              System.nanoTime() - start);
   }
 
-      public static void convert(File inFile, File outFile, int npagebytes,
+      public static Result convert(File inFile, File outFile, int npagebytes,
                  int numFields) throws IOException {
       Type[] ts = new Type[numFields];
       for (int i = 0; i < ts.length; i++) {
           ts[i] = Type.INT_TYPE;
       }
-      convert(inFile,outFile,npagebytes,numFields,ts);
+      return convert(inFile,outFile,npagebytes,numFields,ts);
       }
 
-  public static void convert(File inFile, File outFile, int npagebytes,
+  public static Result convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr)
       throws IOException {
-      convert(inFile,outFile,npagebytes,numFields,typeAr,',');
+      return convert(inFile,outFile,npagebytes,numFields,typeAr,',');
   }
 
    /** Convert the specified input text file into a binary
     * page file. <br>
-    * Assume format of the input file is (note that only integer fields are
-    * supported):<br>
-    * int,...,int\n<br>
-    * int,...,int\n<br>
+    * Assume format of the input file is:<br>
+    * field,...,field\n<br>
+    * field,...,field\n<br>
     * ...<br>
-    * where each row represents a tuple.<br>
+    * where each row represents a tuple, and each field is an int or a
+    * string according to typeAr. Fields are trimmed of surrounding
+    * whitespace, strings are truncated to Type.STRING_LEN bytes, and empty
+    * lines are skipped.<br>
     * <p>
     * The format of the output file will be as specified in HeapPage and
     * HeapFile.
@@ -84,143 +142,336 @@ public class HeapFileEncoder {
     * @param outFile The output file to write data to
     * @param npagebytes The number of bytes per page in the output file
     * @param numFields the number of fields in each input line/output tuple
+    * @return statistics about the conversion, including its throughput
     * @throws IOException if the input/output file can't be opened or a
     *   malformed input line is encountered
     */
-  public static void convert(File inFile, File outFile, int npagebytes,
+  public static Result convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+      if (typeAr.length != numFields)
+          throw new IllegalArgumentException("expected " + numFields + " types");
+      final Layout layout = new Layout(npagebytes, typeAr);
+      final byte separator = (byte) fieldSeparator;
+      final int recordsPerChunk = layout.nrecords * PAGES_PER_CHUNK;
+
+      long start = System.nanoTime();
+      InputStream is = new FileInputStream(inFile);
+      OutputStream os = new FileOutputStream(outFile);
+      PageWriter writer = new PageWriter(os, layout);
+      long bytesRead = 0;
+      long numRecords = 0;
+      try {
+          byte[] block = new byte[READ_BUFFER_SIZE];
+          byte[] chunk = new byte[READ_BUFFER_SIZE];
+          int chunkLen = 0;
+          int chunkRecords = 0;
+          long chunkFirstLine = 1;
+          long lineNo = 1;
+          boolean lineHasData = false;
+
+          int n;
+          while ((n = is.read(block)) > 0) {
+              bytesRead += n;
+              int segmentStart = 0;
+              for (int i = 0; i < n; i++) {
+                  byte b = block[i];
+                  if (b == '\n') {
+                      lineNo++;
+                      if (lineHasData) {
+                          lineHasData = false;
+                          if (++chunkRecords == recordsPerChunk) {
+                              // Cut the chunk after this line
+                              chunk = append(chunk, chunkLen, block, segmentStart, i + 1 - segmentStart);
+                              chunkLen += i + 1 - segmentStart;
+                              segmentStart = i + 1;
+                              writer.submit(textTask(layout, separator, chunk, chunkLen, chunkFirstLine));
+                              numRecords += chunkRecords;
+                              chunk = new byte[chunk.length];
+                              chunkLen = 0;
+                              chunkRecords = 0;
+                              chunkFirstLine = lineNo;
+                          }
+                      }
+                  } else if (b != '\r') {
+                      lineHasData = true;
+                  }
+              }
+              chunk = append(chunk, chunkLen, block, segmentStart, n - segmentStart);
+              chunkLen += n - segmentStart;
+          }
+          if (lineHasData)
+              chunkRecords++; // last line has no newline
+          if (chunkRecords > 0) {
+              writer.submit(textTask(layout, separator, chunk, chunkLen, chunkFirstLine));
+              numRecords += chunkRecords;
+          }
+          writer.finish();
+      } finally {
+          writer.shutdown();
+          is.close();
+          os.close();
+      }
+      return new Result(bytesRead, writer.bytesWritten, numRecords, writer.numPages,
+              System.nanoTime() - start);
+  }
+
+  /** Append len bytes of src to the first used bytes of dst, growing it if needed. */
+  private static byte[] append(byte[] dst, int used, byte[] src, int offset, int len) {
+      if (used + len > dst.length) {
+          byte[] grown = new byte[Math.max(used + len, dst.length * 2)];
+          System.arraycopy(dst, 0, grown, 0, used);
+          dst = grown;
+      }
+      System.arraycopy(src, offset, dst, used, len);
+      return dst;
+  }
+
+  private static Callable<Chunk> textTask(final Layout layout, final byte separator,
+          final byte[] buf, final int len, final long firstLine) {
+      return new Callable<Chunk>() {
+          public Chunk call() throws IOException {
+              return encodeText(layout, separator, buf, len, firstLine);
+          }
+      };
+  }
+
+  /** The on-disk shape of the pages of a table. */
+  private static class Layout {
+      final int npagebytes;
+      final Type[] types;
+      final int nrecbytes;
+      final int nrecords;
+      final int nheaderbytes;
+
+      Layout(int npagebytes, Type[] types) {
+          this.npagebytes = npagebytes;
+          this.types = types;
+          int recbytes = 0;
+          for (Type t : types) {
+              recbytes += t.getLen();
+          }
+          nrecbytes = recbytes;
+          nrecords = (npagebytes * 8) / (nrecbytes * 8 + 1); //floor comes for free
+          nheaderbytes = (nrecords + 7) / 8;
+      }
+
+      /** @return the offset of record r of page p within a chunk's pages */
+      int recordOffset(int p, int r) {
+          return p * npagebytes + nheaderbytes + r * nrecbytes;
+      }
+
+      /** Mark record r of page p as used in the page header. */
+      void markUsed(byte[] pages, int p, int r) {
+          pages[p * npagebytes + r / 8] |= (byte) (1 << (r % 8));
+      }
+  }
+
+  /** The pages built from one chunk of input. */
+  private static class Chunk {
+      final byte[] pages;
+      final int numPages;
+
+      Chunk(byte[] pages, int numPages) {
+          this.pages = pages;
+          this.numPages = numPages;
+      }
+  }
+
+  /**
+   * Writes chunks to the output in the order they were submitted, keeping
+   * at most a few chunks per worker in flight.
+   */
+  private static class PageWriter {
+      private final OutputStream mOut;
+      private final Layout mLayout;
+      private final ExecutorService mPool;
+      private final int mMaxPending;
+      private final ArrayDeque<Future<Chunk>> mPending = new ArrayDeque<Future<Chunk>>();
+      long bytesWritten = 0;
+      long numPages = 0;
+
+      PageWriter(OutputStream out, Layout layout) {
+          int nThreads = Runtime.getRuntime().availableProcessors();
+          mOut = out;
+          mLayout = layout;
+          mPool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+              public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "HeapFileEncoder");
+                  t.setDaemon(true);
+                  return t;
+              }
+          });
+          mMaxPending = 2 * nThreads;
+      }
+
+      void submit(Callable<Chunk> task) throws IOException {
+          mPending.add(mPool.submit(task));
+          while (mPending.size() > mMaxPending)
+              writeNext();
+      }
+
+      /** Write all pending chunks; write one empty page if there were none. */
+      void finish() throws IOException {
+          while (!mPending.isEmpty())
+              writeNext();
+          if (numPages == 0) {
+              mOut.write(new byte[mLayout.npagebytes]);
+              bytesWritten += mLayout.npagebytes;
+              numPages++;
+          }
+      }
+
+      void shutdown() {
+          mPool.shutdownNow();
+      }
+
+      private void writeNext() throws IOException {
+          Chunk c;
+          try {
+              c = mPending.poll().get();
+          } catch (InterruptedException e) {
+              throw new InterruptedIOException("interrupted while encoding pages");
+          } catch (ExecutionException e) {
+              if (e.getCause() instanceof IOException)
+                  throw (IOException) e.getCause();
+              throw new RuntimeException(e.getCause());
+          }
+          int len = c.numPages * mLayout.npagebytes;
+          mOut.write(c.pages, 0, len);
+          bytesWritten += len;
+          numPages += c.numPages;
+      }
+  }
+
+  /** Lay out integer tuples as pages. */
+  private static Chunk encodeTuples(Layout layout, List<ArrayList<Integer>> tuples, int numFields) {
+      int numPages = (tuples.size() + layout.nrecords - 1) / layout.nrecords;
+      byte[] pages = new byte[numPages * layout.npagebytes];
+      for (int i = 0; i < tuples.size(); i++) {
+          ArrayList<Integer> tuple = tuples.get(i);
+          if (tuple.size() > numFields) {
+              throw new RuntimeException("Tuple has more than " + numFields + " fields: (" +
+                      Utility.listToString(tuple) + ")");
+          }
+          int p = i / layout.nrecords;
+          int r = i % layout.nrecords;
+          int off = layout.recordOffset(p, r);
+          for (Integer field : tuple) {
+              off = putInt(pages, off, field);
+          }
+          layout.markUsed(pages, p, r);
+      }
+      return new Chunk(pages, numPages);
+  }
+
+  /**
+   * Parse the records in the first len bytes of buf and lay them out as
+   * pages.
+   *
+   * @param firstLine the line number of the first line in buf, for errors
+   */
+  private static Chunk encodeText(Layout layout, byte separator, byte[] buf, int len,
+          long firstLine) throws IOException {
+      // the reader cuts chunks at PAGES_PER_CHUNK pages worth of records
+      byte[] pages = new byte[PAGES_PER_CHUNK * layout.npagebytes];
+      int record = 0;
+      long lineNo = firstLine;
+
+      int pos = 0;
+      while (pos < len) {
+          int lineEnd = pos;
+          while (lineEnd < len && buf[lineEnd] != '\n')
+              lineEnd++;
+          int end = lineEnd;
+          while (end > pos && buf[end - 1] == '\r')
+              end--;
+
+          if (!isBlank(buf, pos, end)) {
+              int p = record / layout.nrecords;
+              int r = record % layout.nrecords;
+              encodeLine(layout, separator, buf, pos, end, pages, layout.recordOffset(p, r), lineNo);
+              layout.markUsed(pages, p, r);
+              record++;
+          }
+          pos = lineEnd + 1;
+          lineNo++;
+      }
+      return new Chunk(pages, (record + layout.nrecords - 1) / layout.nrecords);
+  }
+
+  private static boolean isBlank(byte[] buf, int from, int to) {
+      for (int i = from; i < to; i++) {
+          if (buf[i] != '\r')
+              return false;
+      }
+      return true;
+  }
+
+  /** Parse the line buf[from, to) into the record at out[off]. */
+  private static void encodeLine(Layout layout, byte separator, byte[] buf, int from, int to,
+          byte[] out, int off, long lineNo) throws IOException {
+      int start = from;
+      for (int f = 0; f < layout.types.length; f++) {
+          int end = start;
+          while (end < to && buf[end] != separator)
+              end++;
+          if (end == to && f < layout.types.length - 1 || end < to && f == layout.types.length - 1)
+              throw new IOException("BAD LINE " + lineNo + ": expected "
+                      + layout.types.length + " fields: " + new String(buf, from, to - from));
+
+          // trim
+          int s = start, e = end;
+          while (s < e && (buf[s] & 0xFF) <= ' ')
+              s++;
+          while (e > s && (buf[e - 1] & 0xFF) <= ' ')
+              e--;
+
+          if (layout.types[f] == Type.INT_TYPE) {
+              off = putInt(out, off, parseInt(buf, s, e, lineNo));
+          } else {
+              int slen = Math.min(e - s, Type.STRING_LEN);
+              off = putInt(out, off, slen);
+              System.arraycopy(buf, s, out, off, slen);
+              off += Type.STRING_LEN; // rest is already zero
+          }
+          start = end + 1;
+      }
+  }
+
+  /** Parse a decimal int out of buf[from, to) without allocating. */
+  private static int parseInt(byte[] buf, int from, int to, long lineNo) throws IOException {
+      int i = from;
+      boolean negative = false;
+      if (i < to && (buf[i] == '-' || buf[i] == '+')) {
+          negative = buf[i] == '-';
+          i++;
+      }
+      if (i == to)
+          throw new IOException("BAD LINE " + lineNo + ": bad int "
+                  + new String(buf, from, to - from));
+      long value = 0;
+      for (; i < to; i++) {
+          int d = buf[i] - '0';
+          if (d < 0 || d > 9 || value > Integer.MAX_VALUE + 1L)
+              throw new IOException("BAD LINE " + lineNo + ": bad int "
+                      + new String(buf, from, to - from));
+          value = value * 10 + d;
+      }
+      if (negative)
+          value = -value;
+      if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+          throw new IOException("BAD LINE " + lineNo + ": int out of range "
+                  + new String(buf, from, to - from));
+      return (int) value;
+  }
 
-      int nrecbytes = 0;
-      for (int i = 0; i < numFields ; i++) {
-          nrecbytes += typeAr[i].getLen();
-      }
-      int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
-      
-    //  per record, we need one bit; there are nrecords per page, so we need
-    // nrecords bits, i.e., ((nrecords/32)+1) integers.
-    int nheaderbytes = (nrecords / 8);
-    if (nheaderbytes * 8 < nrecords)
-        nheaderbytes++;  //ceiling
-    int nheaderbits = nheaderbytes * 8;
-
-    BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
-
-    // our numbers probably won't be much larger than 1024 digits
-    char buf[] = new char[1024];
-
-    int curpos = 0;
-    int recordcount = 0;
-    int npages = 0;
-    int fieldNo = 0;
-
-    ByteArrayOutputStream headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-    DataOutputStream headerStream = new DataOutputStream(headerBAOS);
-    ByteArrayOutputStream pageBAOS = new ByteArrayOutputStream(npagebytes);
-    DataOutputStream pageStream = new DataOutputStream(pageBAOS);
-
-    boolean done = false;
-    boolean first = true;
-    while (!done) {
-        int c = br.read();
-        
-        // Ignore Windows/Notepad special line endings
-        if (c == '\r')
-            continue;
-
-        if (c == '\n') {
-            if (first)
-                continue;
-            recordcount++;
-            first = true;
-        } else
-            first = false;
-        if (c == fieldSeparator || c == '\n' || c == '\r') {
-            String s = new String(buf, 0, curpos);
-            if (typeAr[fieldNo] == Type.INT_TYPE) {
-                try {
-                    pageStream.writeInt(Integer.parseInt(s.trim()));
-                } catch (NumberFormatException e) {
-                    System.out.println ("BAD LINE : " + s);
-                }
-            }
-            else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
-                s = s.trim();
-                int overflow = Type.STRING_LEN - s.length();
-                if (overflow < 0) {
-                    String news = s.substring(0,Type.STRING_LEN);
-                    s  = news;
-                }
-                pageStream.writeInt(s.length());
-                pageStream.writeBytes(s);
-                while (overflow-- > 0)
-                    pageStream.write((byte)0);
-            }
-            curpos = 0;
-            if (c == '\n')
-                fieldNo = 0;
-            else
-                fieldNo++;
-            
-        } else if (c == -1) {
-            done = true;
-            
-        } else {
-            buf[curpos++] = (char)c;
-            continue;
-        }
-        
-        // if we wrote a full page of records, or if we're done altogether,
-        // write out the header of the page.
-        //
-        // in the header, write a 1 for bits that correspond to records we've
-        // written and 0 for empty slots.
-        //
-        // when we're done, also flush the page to disk, but only if it has
-        // records on it.  however, if this file is empty, do flush an empty
-        // page to disk.
-        if (recordcount >= nrecords
-            || done && recordcount > 0
-            || done && npages == 0) {
-            int i = 0;
-            byte headerbyte = 0;
-            
-            for (i=0; i<nheaderbits; i++) {
-                if (i < recordcount)
-                    headerbyte |= (1 << (i % 8));
-                
-                if (((i+1) % 8) == 0) {
-                    headerStream.writeByte(headerbyte);
-                    headerbyte = 0;
-                }
-            }
-            
-            if (i % 8 > 0)
-                headerStream.writeByte(headerbyte);
-            
-            // pad the rest of the page with zeroes
-            
-            for (i=0; i<(npagebytes - (recordcount * nrecbytes + nheaderbytes)); i++)
-                pageStream.writeByte(0);
-            
-            // write header and body to file
-            headerStream.flush();
-            headerBAOS.writeTo(os);
-            pageStream.flush();
-            pageBAOS.writeTo(os);
-            
-            // reset header and body for next page
-            headerBAOS = new ByteArrayOutputStream(nheaderbytes);
-            headerStream = new DataOutputStream(headerBAOS);
-            pageBAOS = new ByteArrayOutputStream(npagebytes);
-            pageStream = new DataOutputStream(pageBAOS);
-            
-            recordcount = 0;
-            npages++;
-        }
-    }
-    br.close();
-    os.close();
+  /** Write v big-endian at out[off]; return the offset just past it. */
+  private static int putInt(byte[] out, int off, int v) {
+      out[off] = (byte) (v >>> 24);
+      out[off + 1] = (byte) (v >>> 16);
+      out[off + 2] = (byte) (v >>> 8);
+      out[off + 3] = (byte) v;
+      return off + 4;
   }
 }
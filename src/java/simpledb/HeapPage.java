@@ -18,6 +18,12 @@ public class HeapPage implements Page {
 	byte mHeader[];
 	Tuple mTuples[];
 	int mNumSlots;
+
+	/**
+	 * The bytes this page was read from. Tuples are decoded out of it lazily,
+	 * the first time a slot is asked for; see {@link #getTuple(int)}.
+	 */
+	final byte[] mData;
 	TransactionId mTransactionId;
 
 	byte[] oldData;
@@ -47,6 +53,7 @@ public class HeapPage implements Page {
 		this.mTupleDesc = Database.getCatalog().getTupleDesc(id.getTableId());
 
 		this.mNumSlots = getNumTuples();
+		this.mData = data;
 		DataInputStream dis = new DataInputStream(
 				new ByteArrayInputStream(data));
 
@@ -54,16 +61,10 @@ public class HeapPage implements Page {
 		mHeader = new byte[getHeaderSize()];
 		for (int i = 0; i < mHeader.length; i++)
 			mHeader[i] = dis.readByte();
+		dis.close();
 
+		// the actual records are decoded on demand by getTuple
 		mTuples = new Tuple[mNumSlots];
-		try {
-			// allocate and read the actual records of this page
-			for (int i = 0; i < mTuples.length; i++)
-				mTuples[i] = readNextTuple(dis, i);
-		} catch (NoSuchElementException e) {
-			e.printStackTrace();
-		}
-		dis.close();
 
 		setBeforeImage();
 	}
@@ -75,7 +76,14 @@ public class HeapPage implements Page {
 	 */
 	private int getNumTuples() {
 		// some code goes here
-		int bitsPerTupleIncludingHeader = mTupleDesc.getSize() * 8 + 1;
+		return getNumTuples(mTupleDesc);
+	}
+
+	/**
+	 * @return the number of tuple slots on a page of a table with schema td
+	 */
+	static int getNumTuples(TupleDesc td) {
+		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
 		int tuplesPerPage = (BufferPool.getPageSize() * 8)
 				/ bitsPerTupleIncludingHeader; // round down
 		return tuplesPerPage;
@@ -90,7 +98,14 @@ public class HeapPage implements Page {
 	 */
 	private int getHeaderSize() {
 		// some code goes here
-		int tuplesPerPage = getNumTuples();
+		return getHeaderSize(mTupleDesc);
+	}
+
+	/**
+	 * @return the number of header bytes on a page of a table with schema td
+	 */
+	static int getHeaderSize(TupleDesc td) {
+		int tuplesPerPage = getNumTuples(td);
 		int headerBytes = (tuplesPerPage / 8);
 		if (headerBytes * 8 < tuplesPerPage) {
 			headerBytes++;
@@ -132,29 +147,21 @@ public class HeapPage implements Page {
 	}
 
 	/**
-	 * Suck up mTuples from the source file.
+	 * @return the offset of slot slotId within the page data
 	 */
-	private Tuple readNextTuple(DataInputStream dis, int slotId)
-			throws NoSuchElementException {
-
-		// if associated bit is not set, read forward to the next tuple, and
-		// return null.
-		if (!isSlotUsed(slotId)) {
-			for (int i = 0; i < mTupleDesc.getSize(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException(
-							"error reading empty tuple");
-				}
-			}
-			return null;
-		}
+	private int getSlotOffset(int slotId) {
+		return mHeader.length + slotId * mTupleDesc.getSize();
+	}
 
-		// read fields in the tuple
+	/**
+	 * Decode the tuple stored in slot slotId out of the page data.
+	 */
+	private Tuple readTuple(int slotId) throws NoSuchElementException {
 		Tuple t = new Tuple(mTupleDesc);
 		RecordId rid = new RecordId(mHeapPageId, slotId);
 		t.setRecordId(rid);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+				mData, getSlotOffset(slotId), mTupleDesc.getSize()));
 		try {
 			for (int j = 0; j < mTupleDesc.numFields(); j++) {
 				Field f = mTupleDesc.getFieldType(j).parse(dis);
@@ -168,6 +175,80 @@ public class HeapPage implements Page {
 		return t;
 	}
 
+	/**
+	 * Read an integer field of the tuple in a used slot without decoding the
+	 * rest of the tuple.
+	 * 
+	 * @param slotId
+	 *            a used slot on this page
+	 * @param field
+	 *            the index of a field of type {@link Type#INT_TYPE}
+	 * @return the value of the field
+	 */
+	int getIntField(int slotId, int field) {
+		Tuple t = mTuples[slotId];
+		if (t != null)
+			return ((IntField) t.getField(field)).getValue();
+
+		int offset = getSlotOffset(slotId) + mTupleDesc.getFieldOffset(field);
+		return ((mData[offset] & 0xFF) << 24)
+				| ((mData[offset + 1] & 0xFF) << 16)
+				| ((mData[offset + 2] & 0xFF) << 8)
+				| (mData[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * @return the total number of tuple slots on this page, used or not
+	 */
+	int getNumSlots() {
+		return mNumSlots;
+	}
+
+	/**
+	 * Evaluate a conjunction of predicates against the tuple in a used slot.
+	 * If the tuple has not been decoded yet, integer fields are compared
+	 * straight out of the page data and string fields are parsed on their
+	 * own, so a row that fails the predicates is never materialized.
+	 *
+	 * @param slotId
+	 *            a used slot on this page
+	 * @param predicates
+	 *            the predicates to apply; all of them must hold
+	 * @return true if the tuple in slotId satisfies every predicate
+	 */
+	private boolean slotMatches(int slotId, Predicate[] predicates) {
+		Tuple t = mTuples[slotId];
+		for (Predicate p : predicates) {
+			if (t != null) {
+				if (!p.filter(t))
+					return false;
+				continue;
+			}
+
+			int field = p.getField();
+			if (mTupleDesc.getFieldType(field) == Type.INT_TYPE) {
+				if (!IntField.compare(getIntField(slotId, field), p.getOp(),
+						((IntField) p.getOperand()).getValue()))
+					return false;
+			} else {
+				int offset = getSlotOffset(slotId)
+						+ mTupleDesc.getFieldOffset(field);
+				DataInputStream dis = new DataInputStream(
+						new ByteArrayInputStream(mData, offset,
+								mTupleDesc.getFieldType(field).getLen()));
+				try {
+					Field f = mTupleDesc.getFieldType(field).parse(dis);
+					if (!f.compare(p.getOp(), p.getOperand()))
+						return false;
+				} catch (java.text.ParseException e) {
+					e.printStackTrace();
+					throw new NoSuchElementException("parsing error!");
+				}
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page. Used to
 	 * serialize this page to disk.
@@ -210,6 +291,16 @@ public class HeapPage implements Page {
 				continue;
 			}
 
+			// non-empty slot that was never decoded: copy its bytes as-is
+			if (mTuples[i] == null) {
+				try {
+					dos.write(mData, getSlotOffset(i), mTupleDesc.getSize());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				continue;
+			}
+
 			// non-empty slot
 			for (int j = 0; j < mTupleDesc.numFields(); j++) {
 				Field f = mTuples[i].getField(j);
@@ -384,7 +475,18 @@ public class HeapPage implements Page {
 	 */
 	public Iterator<Tuple> iterator() {
 		// some code goes here
-		return new HeapPageIterator(this);
+		return new HeapPageIterator(this, null);
+	}
+
+	/**
+	 * @param predicates
+	 *            a conjunction of predicates to push down into the page, or
+	 *            null to return every tuple
+	 * @return an iterator over the tuples on this page that satisfy all of
+	 *         the predicates. Tuples that do not qualify are never decoded.
+	 */
+	public Iterator<Tuple> iterator(Predicate[] predicates) {
+		return new HeapPageIterator(this, predicates);
 	}
 
 	/**
@@ -397,18 +499,48 @@ public class HeapPage implements Page {
 	 *             If the tuple with index i does not exist.
 	 */
 	protected Tuple getTuple(int i) throws NoSuchElementException {
+		return getTuple(i, null);
+	}
+
+	/**
+	 * protected method used by the iterator to get the ith tuple out of this
+	 * page if it satisfies the given predicates
+	 * 
+	 * @param i
+	 *            The index of the tuple to get.
+	 * @param predicates
+	 *            The predicates the tuple has to satisfy, or null.
+	 * @return the tuple, or null if slot i is empty or does not qualify
+	 * @throws NoSuchElementException
+	 *             If the tuple with index i does not exist.
+	 */
+	protected Tuple getTuple(int i, Predicate[] predicates)
+			throws NoSuchElementException {
 
 		try {
 			if (!isSlotUsed(i)) {
 				return null;
-			} else {
-				return mTuples[i];
 			}
+			if (predicates != null && !slotMatches(i, predicates)) {
+				return null;
+			}
+			return decodedTuple(i);
 		} catch (ArrayIndexOutOfBoundsException e) {
 			throw new NoSuchElementException();
 		}
 	}
 
+	/**
+	 * @return the tuple in used slot i, decoding it on first use. Decoding
+	 *         holds the page monitor, so concurrent readers of the slot share
+	 *         one Tuple and the RecordId set on it.
+	 */
+	private synchronized Tuple decodedTuple(int i) {
+		if (mTuples[i] == null)
+			mTuples[i] = readTuple(i);
+		return mTuples[i];
+	}
+
 	/**
 	 * Helper class that implements the Java Iterator for mTuples on a HeapPage.
 	 */
@@ -417,15 +549,19 @@ public class HeapPage implements Page {
 		int mCurrentIndex = 0;
 		Tuple mNext;
 		HeapPage mHeapPage;
+		Predicate[] mPredicates;
 
 		/**
 		 * Constructor sets the HeapPage for this iterator
 		 * 
 		 * @param p
 		 *            The HeapPage to iterate over
+		 * @param predicates
+		 *            The predicates returned tuples must satisfy, or null
 		 */
-		public HeapPageIterator(HeapPage p) {
+		public HeapPageIterator(HeapPage p, Predicate[] predicates) {
 			mHeapPage = p;
+			mPredicates = predicates;
 		}
 
 		/**
@@ -437,7 +573,7 @@ public class HeapPage implements Page {
 			}
 			try {
 				while (true) {
-					mNext = mHeapPage.getTuple(mCurrentIndex++);
+					mNext = mHeapPage.getTuple(mCurrentIndex++, mPredicates);
 					if (mNext != null)
 						return true;
 				}
@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * HyperLogLog estimates the number of distinct values it has seen in a
+ * fixed 2^precision bytes. Each value is hashed to 64 bits; the first
+ * precision bits pick a register, which keeps the longest run of leading
+ * zeros seen in the rest of the hash. The estimate is the harmonic mean of
+ * the registers, with linear counting for small counts; its relative
+ * standard error is about 1.04 / sqrt(2^precision), 1.6% at the default
+ * precision.
+ * <p>
+ * Two sketches of the same precision merge into a sketch of the union of
+ * their values by keeping the larger of each register, so parts of a table
+ * can be counted separately and combined.
+ *
+ * @see TableStats#numDistinct
+ */
+public class HyperLogLog {
+    /** The precision of the sketches TableStats keeps: 4096 registers */
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int mPrecision;
+    private final byte[] mRegisters;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision the number of hash bits that pick a register, 4 to 16
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16)
+            throw new IllegalArgumentException("precision " + precision + " is not in 4..16");
+        mPrecision = precision;
+        mRegisters = new byte[1 << precision];
+    }
+
+    /**
+     * Count v.
+     */
+    public void addInt(int v) {
+        addHash(mix(v + 0x9E3779B97F4A7C15L));
+    }
+
+    /**
+     * Count s.
+     */
+    public void addString(String s) {
+        // FNV-1a over the characters, mixed to spread the low bits up
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        addHash(mix(h));
+    }
+
+    /**
+     * Count the value of f.
+     */
+    public void addField(Field f) {
+        if (f.getType() == Type.INT_TYPE)
+            addInt(((IntField) f).getValue());
+        else
+            addString(((StringField) f).getValue());
+    }
+
+    /** The finalizer of SplitMix64; every input bit affects every output bit. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private void addHash(long hash) {
+        int register = (int) (hash >>> (64 - mPrecision));
+        // the marker bit bounds the run when the rest of the hash is zero
+        long rest = (hash << mPrecision) | (1L << (mPrecision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > mRegisters[register])
+            mRegisters[register] = rank;
+    }
+
+    /**
+     * Add the values counted by other to this sketch.
+     *
+     * @throws IllegalArgumentException if other has a different precision
+     */
+    public void merge(HyperLogLog other) {
+        if (other.mPrecision != mPrecision)
+            throw new IllegalArgumentException("can't merge a sketch of precision "
+                    + other.mPrecision + " into one of " + mPrecision);
+        for (int i = 0; i < mRegisters.length; i++) {
+            if (other.mRegisters[i] > mRegisters[i])
+                mRegisters[i] = other.mRegisters[i];
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values counted
+     */
+    public long estimate() {
+        int m = mRegisters.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : mRegisters) {
+            sum += Math.scalb(1.0, -r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double e = alpha * m * m / sum;
+        if (e <= 2.5 * m && zeros > 0)
+            e = m * Math.log((double) m / zeros);
+        return Math.round(e);
+    }
+
+    /**
+     * @return a new sketch that has counted the same values as this one
+     */
+    public HyperLogLog copy() {
+        HyperLogLog h = new HyperLogLog(mPrecision);
+        System.arraycopy(mRegisters, 0, h.mRegisters, 0, mRegisters.length);
+        return h;
+    }
+
+    /**
+     * Write the sketch: its precision, then one byte per register.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        dos.writeByte(mPrecision);
+        dos.write(mRegisters);
+    }
+
+    /**
+     * Read a sketch written by {@link #serialize}.
+     */
+    public static HyperLogLog deserialize(DataInputStream dis) throws IOException {
+        HyperLogLog h = new HyperLogLog(dis.readUnsignedByte());
+        dis.readFully(h.mRegisters);
+        return h;
+    }
+
+    public String toString() {
+        return "HyperLogLog(~" + estimate() + " distinct)";
+    }
+}
@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins an outer child with a base table that has an
+ * index on its join field. Instead of rescanning the inner table for every
+ * outer tuple, as Join does, it looks the outer tuple's join value up in
+ * the index: a point lookup for an equality join, a range lookup for the
+ * comparison operators.
+ * <p>
+ * The inner side is given as the SeqScan the planner built for the table,
+ * so predicates pushed down into that scan are applied to the tuples found
+ * in the index. The scan itself is never opened.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate mJoinPredicate;
+    private DbIterator mOuter;
+    private SeqScan mInner;
+    private DbIndex mIndex;
+    private Predicate.Op mLookupOp;
+    private TupleDesc mTupleDesc;
+
+    private Tuple mOuterTuple;
+    private DbFileIterator mMatches;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; field2 refers to
+     *            the inner table
+     * @param outer
+     *            Iterator for the left(outer) relation to join
+     * @param inner
+     *            Scan of the right(inner) base table; the table must be
+     *            indexed on the join field (see {@link #canUseIndex})
+     * @throws IllegalArgumentException
+     *             if the inner table can't be probed on the join field
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator outer, SeqScan inner) {
+        mJoinPredicate = p;
+        mOuter = outer;
+        setInner(inner);
+    }
+
+    private void setInner(SeqScan inner) {
+        DbIndex index = findIndex(inner.getTableId(), mJoinPredicate.getField2(),
+                mJoinPredicate.getOperator());
+        if (index == null)
+            throw new IllegalArgumentException("table " + inner.getTableName()
+                    + " has no index usable for " + mJoinPredicate.getOperator());
+        mInner = inner;
+        mIndex = index;
+        mLookupOp = reverse(mJoinPredicate.getOperator());
+        mTupleDesc = TupleDesc.merge(mOuter.getTupleDesc(), mInner.getTupleDesc());
+    }
+
+    /**
+     * @return true if lookups on field of table tableid with the specified
+     *         join operator can be answered by an index on that table
+     */
+    public static boolean canUseIndex(int tableid, int field, Predicate.Op op) {
+        return findIndex(tableid, field, op) != null;
+    }
+
+    /**
+     * @return the index to probe for lookups on field of table tableid with
+     *         the specified join operator, or null if there is none
+     * @see Catalog#getIndex
+     */
+    public static DbIndex findIndex(int tableid, int field, Predicate.Op op) {
+        return Database.getCatalog().getIndex(tableid, field, reverse(op));
+    }
+
+    /**
+     * Turn "outer op inner" into the equivalent "inner op' outer".
+     */
+    private static Predicate.Op reverse(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return mJoinPredicate;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return mTupleDesc;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        mOuter.open();
+    }
+
+    public void close() {
+        super.close();
+        mOuter.close();
+        closeMatches();
+        mOuterTuple = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        mOuter.rewind();
+        closeMatches();
+        mOuterTuple = null;
+    }
+
+    private void closeMatches() {
+        if (mMatches != null)
+            mMatches.close();
+        mMatches = null;
+    }
+
+    /**
+     * Returns the next outer tuple joined with a matching inner tuple, looking
+     * up the next outer tuple's join value once the matches of the current
+     * one run out.
+     *
+     * @return The next matching tuple, or null if there are no more.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (mMatches != null && mMatches.hasNext())
+                return joinTuples(mOuterTuple, mMatches.next());
+            closeMatches();
+            if (!mOuter.hasNext())
+                return null;
+            mOuterTuple = mOuter.next();
+
+            mMatches = mIndex.lookup(mInner.getTransactionId(), mLookupOp,
+                    mOuterTuple.getField(mJoinPredicate.getField1()), mInner.getPredicates());
+            mMatches.open();
+        }
+    }
+
+    private Tuple joinTuples(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(mTupleDesc);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            t.setField(n1 + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { mOuter, mInner };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        mOuter = children[0];
+        setInner((SeqScan) children[1]);
+    }
+}
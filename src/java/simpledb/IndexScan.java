@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan is an access method that uses an index on a table to read only
+ * the tuples satisfying one or more predicates. The first predicate an index
+ * can answer (see {@link Catalog#getIndex}) is looked up; the others are
+ * checked on the tuples found. A BTreeFile uses every bound on its key, so
+ * a range lookup passes its lower and upper bound as two predicates and
+ * returns the tuples in key order.
+ */
+public class IndexScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private TransactionId mTransactionId;
+    private int mTableId;
+    private String mTableAlias;
+    private Predicate[] mIndexPredicates;
+    private boolean mIsClosed = true;
+    private DbIndex mIndex;
+    private Predicate mLookup;
+    private Predicate[] mResidual;
+    private DbFileIterator mIterator;
+    private TupleDesc mTupleDesc;
+
+    /**
+     * Creates an index scan over the specified table as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan
+     * @param tableAlias
+     *            the alias of this table; the returned tupleDesc has fields
+     *            named tableAlias.fieldName, as for SeqScan.
+     * @param ipreds
+     *            the predicates the returned tuples satisfy.
+     * @throws IllegalArgumentException
+     *             if no index on the table can answer any of the predicates
+     */
+    public IndexScan(TransactionId tid, int tableid, String tableAlias, Predicate... ipreds) {
+	mTransactionId = tid;
+	mTableId = tableid;
+	mTableAlias = tableAlias;
+	mIndexPredicates = ipreds;
+	for (int i = 0; i < ipreds.length && mIndex == null; i++) {
+	    mIndex = Database.getCatalog().getIndex(tableid, ipreds[i].getField(),
+		    ipreds[i].getOp());
+	    if (mIndex != null) {
+		mLookup = ipreds[i];
+		mResidual = new Predicate[ipreds.length - 1];
+		System.arraycopy(ipreds, 0, mResidual, 0, i);
+		System.arraycopy(ipreds, i + 1, mResidual, i, ipreds.length - i - 1);
+	    }
+	}
+	if (mIndex == null)
+	    throw new IllegalArgumentException("table " + tableid
+		    + " has no index usable for the predicates");
+	mTupleDesc = SeqScan.prefixTupleDesc(Database.getCatalog().getTupleDesc(tableid),
+		tableAlias);
+    }
+
+    public IndexScan(TransactionId tid, int tableid, Predicate... ipreds) {
+        this(tid, tableid, Database.getCatalog().getTableName(tableid), ipreds);
+    }
+
+    /**
+     * @return the name of the table this operator scans
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(mTableId);
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+	return mTableAlias;
+    }
+
+    /**
+     * @return the predicates the tuples this scan returns satisfy
+     */
+    public Predicate[] getIndexPredicates() {
+	return mIndexPredicates;
+    }
+
+    /**
+     * @return the index this scan looks its first usable predicate up in
+     */
+    public DbIndex getIndex() {
+	return mIndex;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+	mIsClosed = false;
+	mIterator = mIndex.lookup(mTransactionId, mLookup.getOp(), mLookup.getOperand(),
+		mResidual);
+	mIterator.open();
+    }
+
+    /**
+     * @return the TupleDesc of the table, with field names
+     *         prefixed with the tableAlias string from the constructor.
+     */
+    public TupleDesc getTupleDesc() {
+	return mTupleDesc;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+	if (mIsClosed) throw new IllegalStateException("IndexScan must be opened first");
+        return mIterator.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+	if (mIsClosed) throw new IllegalStateException("IndexScan must be opened first");
+	return mIterator.next();
+    }
+
+    public void close() {
+	mIsClosed = true;
+	mIterator.close();
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+	if (mIsClosed) throw new IllegalStateException("IndexScan must be opened first");
+	mIterator.rewind();
+    }
+}
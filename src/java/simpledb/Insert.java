@@ -13,6 +13,7 @@ public class Insert extends Operator {
     private TransactionId mTransactionId;
     private DbIterator mDbIterator;
     private int mTableId;
+    private boolean mBulkLoad;
 
     private boolean fetchNextCalled = false;
 
@@ -31,6 +32,30 @@ public class Insert extends Operator {
      */
     public Insert(TransactionId t, DbIterator child, int tableid)
             throws DbException {
+        this(t, child, tableid, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param t
+     *            The transaction running the insert.
+     * @param child
+     *            The child operator from which to read tuples to be inserted.
+     * @param tableid
+     *            The table in which to insert tuples.
+     * @param bulkLoad
+     *            If true and the table is a HeapFile with no secondary
+     *            indexes or a ColumnFile, append the tuples to fresh pages
+     *            with bulkInsert instead of inserting them one at a time
+     *            through the BufferPool.
+     * @throws DbException
+     *             if TupleDesc of child differs from table into which we are to
+     *             insert.
+     */
+    public Insert(TransactionId t, DbIterator child, int tableid,
+            boolean bulkLoad) throws DbException {
+        mBulkLoad = bulkLoad;
         mTransactionId = t;
         mDbIterator = child;
         mTableId = tableid;
@@ -75,6 +100,24 @@ public class Insert extends Operator {
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         if (!fetchNextCalled) {
             int insertCount = 0;
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(mTableId);
+            if (mBulkLoad && dbFile instanceof HeapFile
+                    && Database.getCatalog().getIndexes(mTableId).isEmpty()) {
+                try {
+                    insertCount = ((HeapFile) dbFile).bulkInsert(mTransactionId, mDbIterator);
+                } catch (IOException e) {
+                    throw new DbException("bulk load failed: " + e.getMessage());
+                }
+            } else if (mBulkLoad && dbFile instanceof ColumnFile) {
+                try {
+                    insertCount = ((ColumnFile) dbFile).bulkInsert(mTransactionId, mDbIterator);
+                } catch (IOException e) {
+                    throw new DbException("bulk load failed: " + e.getMessage());
+                }
+            }
+            // bulkInsert bypasses the BufferPool, which keeps the statistics
+            if (insertCount > 0)
+                TableStats.recordBulkInsert(mTableId, insertCount);
             while (mDbIterator.hasNext()) {
                 Tuple t = mDbIterator.next();
                 try {
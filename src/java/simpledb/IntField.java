@@ -51,26 +51,39 @@ public class IntField implements Field {
 
         IntField iVal = (IntField) val;
 
+        return compare(value, op, iVal.value);
+    }
+
+    /**
+     * Compare two raw int values with the semantics of
+     * {@link #compare(Predicate.Op, Field)}. Lets callers evaluate predicates
+     * on ints read straight from page data without allocating IntFields.
+     *
+     * @param value the left hand side of the comparison
+     * @param op the operator
+     * @param operand the right hand side of the comparison
+     */
+    public static boolean compare(int value, Predicate.Op op, int operand) {
         switch (op) {
         case EQUALS:
-            return value == iVal.value;
+            return value == operand;
         case NOT_EQUALS:
-            return value != iVal.value;
+            return value != operand;
 
         case GREATER_THAN:
-            return value > iVal.value;
+            return value > operand;
 
         case GREATER_THAN_OR_EQ:
-            return value >= iVal.value;
+            return value >= operand;
 
         case LESS_THAN:
-            return value < iVal.value;
+            return value < operand;
 
         case LESS_THAN_OR_EQ:
-            return value <= iVal.value;
+            return value <= operand;
 
 	case LIKE:
-	    return value == iVal.value;
+	    return value == operand;
         }
 
         return false;
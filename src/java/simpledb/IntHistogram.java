@@ -1,72 +1,493 @@
 package simpledb;
 
-/** A class to represent a fixed-width histogram over a single integer-based field.
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * A class to represent an equi-depth histogram over a single integer-based
+ * field.
+ * <p>
+ * The most common values of the field are counted exactly in a sorted list
+ * of most common values (MCVs). The other values are split into at most
+ * "buckets" buckets of about the same number of values each. A bucket
+ * records the smallest and largest value in it, how many values it holds
+ * and how many of them are distinct, so skewed data gets narrow buckets
+ * where it is dense and wide ones where it is sparse. Both the MCV list and
+ * the buckets are sorted, so every estimate is a binary search of each.
+ * <p>
+ * The histogram is built from all of its values at once: values added
+ * before the first estimate are kept until then and used to build it.
+ * Values added or removed after that are counted in the bucket or MCV they
+ * fall in, which keeps the histogram approximately right for small changes.
+ *
+ * @Threadsafe
  */
 public class IntHistogram {
+    /**
+     * A value is one of the most common values if it occurs this many times
+     * more often than the average distinct value.
+     */
+    static final double MCV_FACTOR = 1.25;
+
+    private static final int[] EMPTY = new int[0];
+
+    private final int mBuckets;
+    private final int mMin;
+    private final int mMax;
+
+    /** Values added before the histogram was built */
+    private int[] mPending = EMPTY;
+    private int mNumPending;
+    private boolean mBuilt;
+
+    private int mTotal;
+    private int[] mMcvValues = EMPTY;
+    private int[] mMcvCounts = EMPTY;
+    private int[] mLows = EMPTY;
+    private int[] mHighs = EMPTY;
+    private int[] mCounts = EMPTY;
+    private int[] mDistinct = EMPTY;
+    /** Prefix sums of mMcvCounts and mCounts, recomputed when stale */
+    private int[] mMcvBelow;
+    private int[] mBucketBelow;
 
     /**
      * Create a new IntHistogram.
-     * 
+     *
      * This IntHistogram should maintain a histogram of integer values that it receives.
      * It should split the histogram into "buckets" buckets.
-     * 
+     *
      * The values that are being histogrammed will be provided one-at-a-time through the "addValue()" function.
-     * 
-     * Your implementation should use space and have execution time that are both
-     * constant with respect to the number of values being histogrammed.  For example, you shouldn't 
-     * simply store every value that you see in a sorted list.
-     * 
+     *
      * @param buckets The number of buckets to split the input value into.
      * @param min The minimum integer value that will ever be passed to this class for histogramming
      * @param max The maximum integer value that will ever be passed to this class for histogramming
      */
     public IntHistogram(int buckets, int min, int max) {
-    	// some code goes here
+        if (buckets <= 0 || min > max)
+            throw new IllegalArgumentException("bad histogram: " + buckets + " buckets over "
+                    + min + ".." + max);
+        mBuckets = buckets;
+        mMin = min;
+        mMax = max;
+    }
+
+    /**
+     * Build a histogram of the first n of values at once.
+     *
+     * @param values the values; sorted in place
+     */
+    public static IntHistogram fromValues(int buckets, int[] values, int n) {
+        IntHistogram h = new IntHistogram(buckets, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        h.build(values, n);
+        return h;
     }
 
     /**
      * Add a value to the set of values that you are keeping a histogram of.
+     * Values outside min..max are taken to be min or max.
      * @param v Value to add to the histogram
      */
-    public void addValue(int v) {
-    	// some code goes here
+    public synchronized void addValue(int v) {
+        v = Math.max(mMin, Math.min(mMax, v));
+        if (!mBuilt) {
+            if (mNumPending == mPending.length)
+                mPending = Arrays.copyOf(mPending, Math.max(64, 2 * mPending.length));
+            mPending[mNumPending++] = v;
+            return;
+        }
+        int i = Arrays.binarySearch(mMcvValues, v);
+        if (i >= 0) {
+            mMcvCounts[i]++;
+        } else if (mLows.length == 0) {
+            mLows = new int[] { v };
+            mHighs = new int[] { v };
+            mCounts = new int[] { 1 };
+            mDistinct = new int[] { 1 };
+        } else {
+            int b = Math.max(0, bucketAtOrBelow(v));
+            if (v < mLows[b]) {
+                mLows[b] = v;
+                mDistinct[b]++;
+            } else if (v > mHighs[b]) {
+                mHighs[b] = v;
+                mDistinct[b]++;
+            }
+            mCounts[b]++;
+        }
+        mTotal++;
+        mMcvBelow = null;
+    }
+
+    /**
+     * Take a value that was added out of the histogram. A value added after
+     * the histogram was built is taken out of the bucket or MCV it falls
+     * in; the number of distinct values of a bucket isn't changed.
+     * @param v Value to remove from the histogram
+     */
+    public synchronized void removeValue(int v) {
+        v = Math.max(mMin, Math.min(mMax, v));
+        if (!mBuilt) {
+            for (int i = 0; i < mNumPending; i++) {
+                if (mPending[i] == v) {
+                    mPending[i] = mPending[--mNumPending];
+                    return;
+                }
+            }
+            return;
+        }
+        int i = Arrays.binarySearch(mMcvValues, v);
+        if (i >= 0) {
+            if (mMcvCounts[i] == 0)
+                return;
+            mMcvCounts[i]--;
+        } else {
+            int b = bucketAtOrBelow(v);
+            if (b < 0 || v > mHighs[b] || mCounts[b] == 0)
+                return;
+            mCounts[b]--;
+        }
+        mTotal--;
+        mMcvBelow = null;
+    }
+
+    /** Build the histogram from the values added so far. */
+    private void ensureBuilt() {
+        if (!mBuilt) {
+            build(mPending, mNumPending);
+            mPending = EMPTY;
+            mNumPending = 0;
+        }
+    }
+
+    private void build(int[] values, int n) {
+        Arrays.sort(values, 0, n);
+        // the distinct values and how often each occurs
+        int[] distinct = new int[n];
+        int[] counts = new int[n];
+        int d = 0;
+        for (int i = 0; i < n; i++) {
+            if (d > 0 && distinct[d - 1] == values[i]) {
+                counts[d - 1]++;
+            } else {
+                distinct[d] = values[i];
+                counts[d++] = 1;
+            }
+        }
+
+        // the most common values, at most one per bucket
+        boolean[] mcv = new boolean[d];
+        int numMcvs = 0;
+        if (d > 0) {
+            double threshold = MCV_FACTOR * n / d;
+            int[] sorted = Arrays.copyOf(counts, d);
+            Arrays.sort(sorted);
+            if (d > mBuckets)
+                threshold = Math.max(threshold, sorted[d - mBuckets] - 1);
+            for (int i = 0; i < d && numMcvs < mBuckets; i++) {
+                if (counts[i] > threshold) {
+                    mcv[i] = true;
+                    numMcvs++;
+                }
+            }
+        }
+        mMcvValues = new int[numMcvs];
+        mMcvCounts = new int[numMcvs];
+        int rest = n;
+        for (int i = 0, m = 0; i < d; i++) {
+            if (mcv[i]) {
+                mMcvValues[m] = distinct[i];
+                mMcvCounts[m++] = counts[i];
+                rest -= counts[i];
+            }
+        }
+
+        // the other values, in buckets of about rest / mBuckets values
+        int[] lows = new int[mBuckets];
+        int[] highs = new int[mBuckets];
+        int[] bucketCounts = new int[mBuckets];
+        int[] bucketDistinct = new int[mBuckets];
+        int b = 0;
+        long seen = 0;
+        boolean open = false;
+        for (int i = 0; i < d; i++) {
+            if (mcv[i])
+                continue;
+            if (!open) {
+                lows[b] = distinct[i];
+                open = true;
+            }
+            highs[b] = distinct[i];
+            bucketCounts[b] += counts[i];
+            bucketDistinct[b]++;
+            seen += counts[i];
+            if (seen * mBuckets >= (long) (b + 1) * rest) {
+                b++;
+                open = false;
+            }
+        }
+        if (open)
+            b++;
+        mLows = Arrays.copyOf(lows, b);
+        mHighs = Arrays.copyOf(highs, b);
+        mCounts = Arrays.copyOf(bucketCounts, b);
+        mDistinct = Arrays.copyOf(bucketDistinct, b);
+        mTotal = n;
+        mBuilt = true;
+        mMcvBelow = null;
+    }
+
+    /** Recompute the prefix sums if values were added since. */
+    private void ensureSums() {
+        ensureBuilt();
+        if (mMcvBelow != null)
+            return;
+        int[] mcvBelow = new int[mMcvCounts.length + 1];
+        for (int i = 0; i < mMcvCounts.length; i++)
+            mcvBelow[i + 1] = mcvBelow[i] + mMcvCounts[i];
+        mBucketBelow = new int[mCounts.length + 1];
+        for (int i = 0; i < mCounts.length; i++)
+            mBucketBelow[i + 1] = mBucketBelow[i] + mCounts[i];
+        mMcvBelow = mcvBelow;
+    }
+
+    /** @return the last bucket whose smallest value is at most v, or -1 */
+    private int bucketAtOrBelow(long v) {
+        int lo = 0, hi = mLows.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mLows[mid] <= v)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+        return hi;
+    }
+
+    /** @return the estimated number of values less than v */
+    private double countBelow(long v) {
+        double below;
+        if (v > Integer.MAX_VALUE) {
+            below = mMcvBelow[mMcvValues.length];
+        } else {
+            int m = Arrays.binarySearch(mMcvValues, (int) v);
+            below = mMcvBelow[m >= 0 ? m : -m - 1];
+        }
+        int b = bucketAtOrBelow(v - 1);
+        if (b >= 0) {
+            below += mBucketBelow[b];
+            if (v > mHighs[b])
+                below += mCounts[b];
+            else
+                below += mCounts[b] * (double) (v - mLows[b]) / ((long) mHighs[b] - mLows[b] + 1);
+        }
+        return below;
+    }
+
+    /** @return the estimated number of values equal to v */
+    private double countEqual(int v) {
+        int m = Arrays.binarySearch(mMcvValues, v);
+        if (m >= 0)
+            return mMcvCounts[m];
+        int b = bucketAtOrBelow(v);
+        if (b < 0 || v > mHighs[b])
+            return 0;
+        return (double) mCounts[b] / mDistinct[b];
     }
 
     /**
      * Estimate the selectivity of a particular predicate and operand on this table.
-     * 
-     * For example, if "op" is "GREATER_THAN" and "v" is 5, 
+     *
+     * For example, if "op" is "GREATER_THAN" and "v" is 5,
      * return your estimate of the fraction of elements that are greater than 5.
-     * 
+     *
      * @param op Operator
      * @param v Value
      * @return Predicted selectivity of this particular operator and value
+     * @throws IllegalArgumentException if op is not a comparison this
+     *         histogram knows how to estimate
      */
-    public double estimateSelectivity(Predicate.Op op, int v) {
-
-    	// some code goes here
-        return -1.0;
+    public synchronized double estimateSelectivity(Predicate.Op op, int v) {
+        ensureSums();
+        if (mTotal == 0)
+            return 0.0;
+        double sel;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            sel = countEqual(v) / mTotal;
+            break;
+        case NOT_EQUALS:
+            sel = 1.0 - countEqual(v) / mTotal;
+            break;
+        case LESS_THAN:
+            sel = countBelow(v) / mTotal;
+            break;
+        case LESS_THAN_OR_EQ:
+            sel = countBelow((long) v + 1) / mTotal;
+            break;
+        case GREATER_THAN:
+            sel = 1.0 - countBelow((long) v + 1) / mTotal;
+            break;
+        case GREATER_THAN_OR_EQ:
+            sel = 1.0 - countBelow(v) / mTotal;
+            break;
+        default:
+            throw new IllegalArgumentException("can't estimate the selectivity of " + op);
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
     }
-    
+
     /**
      * @return
      *     the average selectivity of this histogram.
-     *     
+     *
      *     This is not an indispensable method to implement the basic
      *     join optimization. It may be needed if you want to
      *     implement a more efficient optimization
+     * <p>
+     * This is the selectivity of an equality predicate on a value drawn
+     * from the histogram itself, the chance that two values of the column
+     * are equal.
      * */
-    public double avgSelectivity()
+    public synchronized double avgSelectivity()
     {
-        // some code goes here
-        return 1.0;
+        ensureBuilt();
+        if (mTotal == 0)
+            return 0.0;
+        double sum = 0;
+        for (int count : mMcvCounts)
+            sum += (double) count * count;
+        for (int b = 0; b < mCounts.length; b++)
+            sum += (double) mCounts[b] * mCounts[b] / mDistinct[b];
+        return sum / ((double) mTotal * mTotal);
+    }
+
+    /**
+     * @return the number of values in this histogram
+     */
+    public synchronized int totalValues() {
+        ensureBuilt();
+        return mTotal;
+    }
+
+    /**
+     * @return the estimated number of distinct values in this histogram
+     */
+    public synchronized int numDistinct() {
+        ensureBuilt();
+        int d = mMcvValues.length;
+        for (int distinct : mDistinct)
+            d += distinct;
+        return d;
+    }
+
+    /**
+     * Write the histogram. Its sorted values are written as variable-length
+     * differences from the previous one, so a histogram of 100 buckets
+     * usually takes a few hundred bytes.
+     */
+    public synchronized void serialize(DataOutputStream dos) throws IOException {
+        ensureBuilt();
+        writeVarLong(dos, mBuckets);
+        writeVarLong(dos, zigZag(mMin));
+        writeVarLong(dos, (long) mMax - mMin);
+        writeVarLong(dos, mTotal);
+        writeVarLong(dos, mMcvValues.length);
+        long prev = mMin;
+        for (int i = 0; i < mMcvValues.length; i++) {
+            writeVarLong(dos, mMcvValues[i] - prev);
+            writeVarLong(dos, mMcvCounts[i]);
+            prev = mMcvValues[i];
+        }
+        writeVarLong(dos, mLows.length);
+        prev = mMin;
+        for (int b = 0; b < mLows.length; b++) {
+            writeVarLong(dos, mLows[b] - prev);
+            writeVarLong(dos, (long) mHighs[b] - mLows[b]);
+            writeVarLong(dos, mCounts[b]);
+            writeVarLong(dos, mDistinct[b]);
+            prev = mHighs[b];
+        }
+    }
+
+    /**
+     * Read a histogram written by {@link #serialize}.
+     */
+    public static IntHistogram deserialize(DataInputStream dis) throws IOException {
+        int buckets = (int) readVarLong(dis);
+        int min = (int) unZigZag(readVarLong(dis));
+        int max = (int) (min + readVarLong(dis));
+        IntHistogram h = new IntHistogram(buckets, min, max);
+        h.mTotal = (int) readVarLong(dis);
+        int m = (int) readVarLong(dis);
+        h.mMcvValues = new int[m];
+        h.mMcvCounts = new int[m];
+        long prev = min;
+        for (int i = 0; i < m; i++) {
+            prev += readVarLong(dis);
+            h.mMcvValues[i] = (int) prev;
+            h.mMcvCounts[i] = (int) readVarLong(dis);
+        }
+        int b = (int) readVarLong(dis);
+        h.mLows = new int[b];
+        h.mHighs = new int[b];
+        h.mCounts = new int[b];
+        h.mDistinct = new int[b];
+        prev = min;
+        for (int i = 0; i < b; i++) {
+            long low = prev + readVarLong(dis);
+            prev = low + readVarLong(dis);
+            h.mLows[i] = (int) low;
+            h.mHighs[i] = (int) prev;
+            h.mCounts[i] = (int) readVarLong(dis);
+            h.mDistinct[i] = (int) readVarLong(dis);
+        }
+        h.mBuilt = true;
+        return h;
+    }
+
+    private static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
     }
-    
+
+    private static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Write a non-negative v in 7-bit groups, low group first. */
+    private static void writeVarLong(DataOutputStream dos, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            dos.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        dos.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInputStream dis) throws IOException {
+        long v = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = dis.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+    }
+
     /**
      * @return A string describing this histogram, for debugging purposes
      */
-    public String toString() {
-        // some code goes here
-        return null;
+    public synchronized String toString() {
+        ensureBuilt();
+        StringBuilder sb = new StringBuilder();
+        sb.append("IntHistogram(").append(mTotal).append(" values, MCVs:");
+        for (int i = 0; i < mMcvValues.length; i++)
+            sb.append(' ').append(mMcvValues[i]).append('x').append(mMcvCounts[i]);
+        sb.append(", buckets:");
+        for (int b = 0; b < mLows.length; b++) {
+            sb.append(" [").append(mLows[b]).append("..").append(mHighs[b]).append("] ")
+                    .append(mCounts[b]).append('/').append(mDistinct[b]);
+        }
+        return sb.append(')').toString();
     }
 }
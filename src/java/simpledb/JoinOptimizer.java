@@ -29,7 +29,9 @@ public class JoinOptimizer {
 
     /**
      * Return best iterator for computing a given logical join, given the
-     * specified statistics, and the provided left and right subplans. Note that
+     * specified statistics, and the provided left and right subplans. Joins
+     * marked {@link LogicalJoinNode#indexJoin} whose right subplan is a scan
+     * of an indexed base table become an {@link IndexNestedLoopJoin}. Note that
      * there is insufficient information to determine which plan should be the
      * inner/outer here -- because DbIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
@@ -68,7 +70,11 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.indexJoin && plan2 instanceof SeqScan
+                && IndexNestedLoopJoin.canUseIndex(((SeqScan) plan2).getTableId(), t2id, lj.p))
+            j = new IndexNestedLoopJoin(p, plan1, (SeqScan) plan2);
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
@@ -107,12 +113,84 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 4.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
+            // nested loops: scan the left side once, and the right side once
+            // per left tuple, applying the predicate to every pair
+            return cost1 + card1 * cost2 + (double) card1 * card2;
+        }
+    }
+
+    /**
+     * Estimate the cost of a join executed as an {@link IndexNestedLoopJoin},
+     * probing an index on the right-hand table once per left-hand tuple.
+     * Each probe reads the pages the index estimates for its share of the
+     * join result (see {@link DbIndex#estimateLookupPages}), at the per-page
+     * cost implied by cost2.
+     *
+     * @param j
+     *            the join; t2 must be a base table
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param card2
+     *            Estimated cardinality of the right-hand side of the query
+     * @param cost1
+     *            Estimated cost of one full scan of the left-hand side
+     * @param cost2
+     *            Estimated cost of one full scan of the right-hand table
+     * @param joinCard
+     *            Estimated cardinality of the join
+     * @return the estimated cost, or -1 if t2 has no index that can answer
+     *         the join predicate
+     */
+    public double estimateIndexJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, int joinCard) {
+        DbIndex index = innerIndex(j);
+        if (index == null)
             return -1.0;
+        return indexJoinCost(index, innerPages(j), card1, cost1, cost2, joinCard);
+    }
+
+    /**
+     * @return an index on the right-hand base table of j that can answer the
+     *         join predicate, or null if there is none
+     */
+    private DbIndex innerIndex(LogicalJoinNode j) {
+        if (j instanceof LogicalSubplanJoinNode || j.t2Alias == null)
+            return null;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return null;
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return null;
         }
+        return IndexNestedLoopJoin.findIndex(tableId, field, j.p);
+    }
+
+    /**
+     * @return the number of pages of the right-hand base table of j, at
+     *         least 1
+     */
+    private int innerPages(LogicalJoinNode j) {
+        DbFile file = Database.getCatalog().getDatabaseFile(p.getTableId(j.t2Alias));
+        if (file instanceof HeapFile)
+            return Math.max(1, ((HeapFile) file).numPages());
+        if (file instanceof BTreeFile)
+            return Math.max(1, ((BTreeFile) file).numPages());
+        return 1;
+    }
+
+    /**
+     * @return the cost of probing index, on an inner table of pages pages
+     *         costing cost2 to scan, once for each of card1 outer tuples
+     */
+    private static double indexJoinCost(DbIndex index, int pages, int card1, double cost1,
+            double cost2, int joinCard) {
+        double ioCostPerPage = cost2 / pages;
+        double matchesPerProbe = card1 == 0 ? 0 : (double) joinCard / card1;
+        return cost1 + card1 * ioCostPerPage * index.estimateLookupPages(matchesPerProbe)
+                + joinCard;
     }
 
     /**
@@ -149,53 +227,207 @@ public class JoinOptimizer {
 
     /**
      * Estimate the join cardinality of two tables.
+     * <p>
+     * An equality join on fields that aren't keys assumes that the values
+     * of the side with fewer distinct values all occur on the other side,
+     * so each of the card1 * card2 pairs matches with a chance of one over
+     * the larger number of distinct values (see
+     * {@link TableStats#numDistinct}).
      * */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
             String table1Alias, String table2Alias, String field1PureName,
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
-        // some code goes here
+        return joinCardinality(joinOp, card1, card2, t1pkey, t2pkey,
+                numDistinct(stats, tableAliasToId, table1Alias, field1PureName),
+                numDistinct(stats, tableAliasToId, table2Alias, field2PureName));
+    }
+
+    /**
+     * The estimate of {@link #estimateTableJoinCardinality}, given the
+     * number of distinct values of each join field, 0 if unknown.
+     */
+    private static int joinCardinality(Predicate.Op joinOp, int card1, int card2,
+            boolean t1pkey, boolean t2pkey, int distinct1, int distinct2) {
+        int card;
+        if (joinOp == Predicate.Op.EQUALS) {
+            // a key matches at most one tuple of the other side
+            if (t1pkey && t2pkey) {
+                card = Math.min(card1, card2);
+            } else if (t1pkey) {
+                card = card2;
+            } else if (t2pkey) {
+                card = card1;
+            } else {
+                // a side can't have more distinct values than tuples
+                int d1 = Math.min(card1, distinct1);
+                int d2 = Math.min(card2, distinct2);
+                if (d1 > 0 && d2 > 0)
+                    card = (int) Math.min(Integer.MAX_VALUE,
+                            (double) card1 * card2 / Math.max(d1, d2));
+                else
+                    card = Math.max(card1, card2);
+            }
+        } else if (joinOp == Predicate.Op.NOT_EQUALS) {
+            card = (int) Math.min(Integer.MAX_VALUE, (long) card1 * card2);
+        } else {
+            // a range join keeps a fixed fraction of the cross product
+            card = (int) Math.min(Integer.MAX_VALUE, 0.3 * card1 * card2);
+        }
         return card <= 0 ? 1 : card;
     }
 
+    /**
+     * @return the number of distinct values of the field of the table with
+     *         the alias, or 0 if there are no statistics on it
+     */
+    private static int numDistinct(Map<String, TableStats> stats,
+            Map<String, Integer> tableAliasToId, String alias, String field) {
+        if (stats == null || tableAliasToId == null || alias == null)
+            return 0;
+        Integer tableId = tableAliasToId.get(alias);
+        if (tableId == null)
+            return 0;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return 0;
+        try {
+            int f = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(field);
+            return s.numDistinct(f);
+        } catch (NoSuchElementException e) {
+            return 0;
+        }
+    }
+
     /**
      * Helper method to enumerate all of the subsets of a given size of a
-     * specified vector.
+     * specified vector. Subsets are generated as bitmasks of positions in v,
+     * in increasing order (see {@link #nextSubset}).
      * 
      * @param v
-     *            The vector whose subsets are desired
+     *            The vector whose subsets are desired; at most 62 elements
      * @param size
      *            The size of the subsets of interest
      * @return a set of all subsets of the specified size
      */
-    @SuppressWarnings("unchecked")
     public <T> Set<Set<T>> enumerateSubsets(Vector<T> v, int size) {
         Set<Set<T>> els = new HashSet<Set<T>>();
-        els.add(new HashSet<T>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
-        for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<Set<T>>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = (Set<T>) (((HashSet<T>) s).clone());
-                    if (news.add(t))
-                        newels.add(news);
-                }
-            }
-            els = newels;
+        if (size > v.size())
+            return els;
+        long all = (1L << v.size()) - 1;
+        for (long s = (1L << size) - 1; s <= all; s = nextSubset(s)) {
+            Set<T> subset = new HashSet<T>();
+            for (long rest = s; rest != 0; rest &= rest - 1)
+                subset.add(v.get(Long.numberOfTrailingZeros(rest)));
+            els.add(subset);
+            if (s == 0)
+                break;
         }
-
         return els;
+    }
 
+    /**
+     * Gosper's hack: the next larger bitmask with as many bits set as s.
+     * Moves the lowest run of ones up by one bit and packs the rest of it
+     * at the bottom.
+     */
+    static long nextSubset(long s) {
+        long lowest = s & -s;
+        long ripple = s + lowest;
+        return (((ripple ^ s) >>> 2) / lowest) | ripple;
+    }
+
+    /** The most joins {@link #orderJoins} can order */
+    static final int MAX_DP_JOINS = 62;
+
+    /** Queries of more tables than this are ordered heuristically */
+    private static volatile int exhaustiveTableLimit = 15;
+    /** The time orderJoins may take, in milliseconds */
+    private static volatile long planBudget = 200;
+
+    /**
+     * @return the most tables a query may join for {@link #orderJoins} to
+     *         consider every order of its joins
+     */
+    public static int getExhaustiveTableLimit() {
+        return exhaustiveTableLimit;
+    }
+
+    /**
+     * Set the most tables a query may join for {@link #orderJoins} to
+     * consider every order of its joins; the joins of larger queries are
+     * ordered greedily, then by simulated annealing.
+     */
+    public static void setExhaustiveTableLimit(int tables) {
+        if (tables < 0)
+            throw new IllegalArgumentException("table limit " + tables + " is negative");
+        exhaustiveTableLimit = tables;
     }
 
+    /**
+     * @return the time {@link #orderJoins} may take, in milliseconds
+     */
+    public static long getPlanBudget() {
+        return planBudget;
+    }
+
+    /**
+     * Set the time {@link #orderJoins} may take, in milliseconds. Exhaustive
+     * search that runs out of time falls back to the greedy order, which is
+     * always computed in full; simulated annealing improves on it with
+     * whatever time is left.
+     */
+    public static void setPlanBudget(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("plan budget " + millis + " is negative");
+        planBudget = millis;
+    }
+
+    /**
+     * What the cost of a join depends on that doesn't change while its
+     * place in the order does, looked up once per query.
+     */
+    private static class JoinInfo {
+        /** The bit of each table the join reads, 0 for a subplan */
+        long mLeftTable, mRightTable;
+        /** The cost and cardinality of scanning each table on its own */
+        double mLeftCost, mRightCost;
+        int mLeftCard, mRightCard;
+        boolean mLeftPkey, mRightPkey;
+        /** The distinct values of each join field, 0 if unknown */
+        int mLeftDistinct, mRightDistinct;
+        /** The join with its sides swapped */
+        LogicalJoinNode mSwapped;
+        /** An index each side could be probed through, or null */
+        DbIndex mLeftIndex, mRightIndex;
+        int mLeftPages, mRightPages;
+    }
+
+    /** The JoinInfo of each join, by position */
+    private JoinInfo[] mInfo;
+    /** The joins whose left or right field is a primary key */
+    private long mPkeyJoins;
+    /** The number of tables the joins read */
+    private int mNumTables;
+
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
+     * <p>
+     * Finds the cheapest plan without cross products by Selinger-style
+     * dynamic programming: the best plan for every subset of joins is built
+     * from the best plans of smaller subsets. Sets of joins are bitmasks of
+     * their positions in the list of joins, enumerated size by size with
+     * {@link #nextSubset}. Plans may be bushy: the last join of a plan
+     * joins the plans of the joins on either side of it, each of which may
+     * be a base table.
+     * <p>
+     * The number of subsets grows exponentially, so the joins of queries of
+     * more than {@link #getExhaustiveTableLimit} tables, or that the search
+     * doesn't finish within {@link #getPlanBudget}, are ordered greedily
+     * and the greedy order is then improved by simulated annealing for the
+     * rest of the budget.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -207,8 +439,11 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed, each after the joins of both
+     *         its children (see {@link PlanCache#getOrder}); the query's
+     *         order if there are more than {@link #MAX_DP_JOINS} joins or
+     *         every order needs a cross product
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -217,20 +452,328 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1--3
+        int n = joins.size();
+        if (n == 0 || n > MAX_DP_JOINS || !prepare(stats, filterSelectivities))
+            return joins;
+
+        long deadline = System.nanoTime() + planBudget * 1000000L;
+        PlanCache pc = new PlanCache();
+        if (mNumTables > exhaustiveTableLimit
+                || !orderExhaustively(stats, filterSelectivities, pc, deadline)) {
+            pc = new PlanCache();
+            if (!orderHeuristically(stats, filterSelectivities, pc, deadline))
+                return joins;
+        }
 
-        // some code goes here
-        //Replace the following
-        return joins;
+        long all = (1L << n) - 1;
+        Vector<LogicalJoinNode> order = pc.getOrder(all);
+        if (order == null) // only plans with cross products
+            return joins;
+        if (explain)
+            printJoins(order, all, pc, stats, filterSelectivities);
+        return order;
     }
 
     // ===================== Private Methods =================================
 
+    /**
+     * Cache the best plan for every set of joins that has one without a
+     * cross product in pc.
+     *
+     * @return false if the search ran past deadline, a System.nanoTime
+     */
+    private boolean orderExhaustively(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, PlanCache pc, long deadline) {
+        int n = joins.size();
+        long all = (1L << n) - 1;
+        int sets = 0;
+        for (int size = 1; size <= n; size++) {
+            for (long s = (1L << size) - 1; s <= all; s = nextSubset(s)) {
+                if ((++sets & 1023) == 0 && System.nanoTime() - deadline > 0)
+                    return false;
+                CostCard bestPlan = null;
+                int bestLast = -1;
+                for (long rest = s; rest != 0; rest &= rest - 1) {
+                    int j = Long.numberOfTrailingZeros(rest);
+                    // without cross products, the joins on j's left side
+                    // are those connected to its left table
+                    long others = s & ~(1L << j);
+                    CostCard cc = computeCostAndCardOfSubplan(stats,
+                            filterSelectivities, j, s,
+                            joinsReaching(mInfo[j].mLeftTable, others),
+                            bestPlan == null ? Double.MAX_VALUE : bestPlan.cost, pc);
+                    if (cc != null) {
+                        bestPlan = cc;
+                        bestLast = j;
+                    }
+                }
+                if (bestPlan != null)
+                    pc.addPlan(s, bestLast, bestPlan);
+            }
+        }
+        return true;
+    }
+
+    /** The seed of the annealing, so a query gets the same plan on an idle machine */
+    private static final long ANNEALING_SEED = 0x5EED;
+    /** The temperature annealing starts at; see {@link #orderHeuristically} */
+    private static final double INITIAL_TEMPERATURE = 0.5;
+    /** How much the temperature falls after each round of moves */
+    private static final double COOLING = 0.9;
+    /** The temperature below which a round without a move ends annealing */
+    private static final double FROZEN_TEMPERATURE = 0.001;
+
+    /**
+     * Cache the plans of a good order of all the joins in pc. Each join in
+     * the order joins the plans that read its two tables so far, so any
+     * order of the joins of a query without cycles is a plan, possibly
+     * bushy. The order starts out greedy: the next join is the one whose
+     * plan costs least. Simulated annealing then moves single joins
+     * elsewhere in the order until the plan stops changing or deadline
+     * passes. Moves that make the plan cheaper are kept; moves that make it
+     * f times as expensive are kept with probability
+     * exp(-ln(f) / temperature), so the search can leave a local minimum
+     * while it is hot.
+     *
+     * @return false if every order needs a cross product
+     */
+    private boolean orderHeuristically(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, PlanCache pc, long deadline) {
+        int n = joins.size();
+        int[] order = new int[n];
+        long[] plans = new long[mNumTables];
+        long s = 0;
+        for (int k = 0; k < n; k++) {
+            CostCard bestPlan = null;
+            int bestNext = -1;
+            for (int j = 0; j < n; j++) {
+                if ((s & (1L << j)) != 0)
+                    continue;
+                CostCard cc = joinPlans(stats, filterSelectivities, j, plans,
+                        bestPlan == null ? Double.MAX_VALUE : bestPlan.cost, pc);
+                if (cc != null) {
+                    bestPlan = cc;
+                    bestNext = j;
+                }
+            }
+            if (bestPlan == null)
+                return false;
+            s |= 1L << bestNext;
+            addPlan(bestNext, bestPlan, plans, pc);
+            order[k] = bestNext;
+        }
+
+        Random rand = new Random(ANNEALING_SEED);
+        int[] best = order.clone();
+        int[] candidate = new int[n];
+        double bestCost = pc.getCost(s);
+        double cost = bestCost;
+        double temperature = INITIAL_TEMPERATURE;
+        boolean changed = true;
+        while (n > 1 && (changed || temperature > FROZEN_TEMPERATURE)
+                && System.nanoTime() - deadline < 0) {
+            changed = false;
+            for (int move = 0; move < 16 * n; move++) {
+                moveJoin(order, candidate, rand.nextInt(n), rand.nextInt(n));
+                double c = costOf(stats, filterSelectivities, candidate, plans, pc);
+                if (c == Double.MAX_VALUE)
+                    continue;
+                if (c < cost || rand.nextDouble() < Math.exp(-Math.log(c / cost) / temperature)) {
+                    int[] t = order;
+                    order = candidate;
+                    candidate = t;
+                    changed |= c != cost;
+                    cost = c;
+                    if (c < bestCost) {
+                        System.arraycopy(order, 0, best, 0, n);
+                        bestCost = c;
+                    }
+                }
+            }
+            temperature *= COOLING;
+        }
+        // leave the plans of the best order in pc
+        costOf(stats, filterSelectivities, best, plans, pc);
+        return true;
+    }
+
+    /**
+     * @param plans
+     *            the joins of the plan that reads each table so far, by bit
+     * @return the plan of join i of the plans that read its two tables, or
+     *         null if it isn't better than bestCostSoFar or both tables are
+     *         read by the same plan
+     */
+    private CostCard joinPlans(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, int i, long[] plans,
+            double bestCostSoFar, PlanCache pc) {
+        return computeCostAndCardOfSubplan(stats, filterSelectivities, i,
+                joinedPlans(i, plans),
+                plans[Long.numberOfTrailingZeros(mInfo[i].mLeftTable)],
+                bestCostSoFar, pc);
+    }
+
+    /**
+     * @return join i and the joins of the plans that read its two tables
+     */
+    private long joinedPlans(int i, long[] plans) {
+        JoinInfo info = mInfo[i];
+        long s = (1L << i) | plans[Long.numberOfTrailingZeros(info.mLeftTable)];
+        if (info.mRightTable != 0)
+            s |= plans[Long.numberOfTrailingZeros(info.mRightTable)];
+        return s;
+    }
+
+    /**
+     * Cache cc, the plan of join i, in pc, as the plan that reads its
+     * tables.
+     */
+    private void addPlan(int i, CostCard cc, long[] plans, PlanCache pc) {
+        long s = joinedPlans(i, plans);
+        pc.addPlan(s, i, cc);
+        for (long rest = cc.tables; rest != 0; rest &= rest - 1)
+            plans[Long.numberOfTrailingZeros(rest)] = s;
+    }
+
+    /**
+     * Copy order to moved, moving the join at position from to position to.
+     */
+    private static void moveJoin(int[] order, int[] moved, int from, int to) {
+        System.arraycopy(order, 0, moved, 0, order.length);
+        int j = moved[from];
+        if (from < to)
+            System.arraycopy(moved, from + 1, moved, from, to - from);
+        else
+            System.arraycopy(moved, to, moved, to + 1, from - to);
+        moved[to] = j;
+    }
+
+    /**
+     * Cache the plans of order, an order of all the joins by position in
+     * which each join joins the plans that read its two tables, in pc.
+     *
+     * @param plans
+     *            space for the joins of the plan that reads each table
+     * @return the cost of order, or Double.MAX_VALUE if a join's tables are
+     *         read by the same plan
+     */
+    private double costOf(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, int[] order, long[] plans,
+            PlanCache pc) {
+        Arrays.fill(plans, 0);
+        for (int j : order) {
+            CostCard cc = joinPlans(stats, filterSelectivities, j, plans,
+                    Double.MAX_VALUE, pc);
+            if (cc == null)
+                return Double.MAX_VALUE;
+            addPlan(j, cc, plans, pc);
+        }
+        return pc.getCost((1L << order.length) - 1);
+    }
+
+    /**
+     * Look up what {@link #computeCostAndCardOfSubplan} needs to know about
+     * the tables of each join: which they are, and their cost and
+     * cardinality when scanned on their own.
+     *
+     * @return false if the joins read more tables than a bitmask holds
+     * @throws ParsingException
+     *             when a table is unknown, or stats or filterSelectivities
+     *             is missing one
+     */
+    private boolean prepare(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        int n = joins.size();
+        mInfo = new JoinInfo[n];
+        mPkeyJoins = 0;
+        HashMap<String, Integer> tableBits = new HashMap<String, Integer>();
+        for (int i = 0; i < n; i++) {
+            LogicalJoinNode j = joins.get(i);
+            if (!tableBits.containsKey(j.t1Alias))
+                tableBits.put(j.t1Alias, tableBits.size());
+            if (j.t2Alias != null && !tableBits.containsKey(j.t2Alias))
+                tableBits.put(j.t2Alias, tableBits.size());
+            if (tableBits.size() > Long.SIZE)
+                return false;
+
+            JoinInfo info = new JoinInfo();
+            TableStats s1 = statsFor(stats, filterSelectivities, j.t1Alias);
+            info.mLeftTable = 1L << tableBits.get(j.t1Alias);
+            info.mLeftCost = s1.estimateScanCost();
+            info.mLeftCard = s1.estimateTableCardinality(filterSelectivities.get(j.t1Alias));
+            info.mLeftPkey = isPkey(j.t1Alias, j.f1PureName);
+            info.mLeftDistinct = numDistinct(stats, p.getTableAliasToIdMapping(),
+                    j.t1Alias, j.f1PureName);
+            info.mSwapped = j.swapInnerOuter();
+            if (j.t2Alias != null) {
+                TableStats s2 = statsFor(stats, filterSelectivities, j.t2Alias);
+                info.mRightTable = 1L << tableBits.get(j.t2Alias);
+                info.mRightCost = s2.estimateScanCost();
+                info.mRightCard = s2.estimateTableCardinality(filterSelectivities.get(j.t2Alias));
+                info.mRightPkey = isPkey(j.t2Alias, j.f2PureName);
+                info.mRightDistinct = numDistinct(stats, p.getTableAliasToIdMapping(),
+                        j.t2Alias, j.f2PureName);
+                info.mRightIndex = innerIndex(j);
+                if (info.mRightIndex != null)
+                    info.mRightPages = innerPages(j);
+                info.mLeftIndex = innerIndex(info.mSwapped);
+                if (info.mLeftIndex != null)
+                    info.mLeftPages = innerPages(info.mSwapped);
+            }
+            if (info.mLeftPkey || info.mRightPkey)
+                mPkeyJoins |= 1L << i;
+            mInfo[i] = info;
+        }
+        mNumTables = tableBits.size();
+        return true;
+    }
+
+    /**
+     * @return the statistics of the table with the alias
+     * @throws ParsingException if the table is unknown or has no statistics
+     *             or filter selectivity
+     */
+    private TableStats statsFor(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities, String alias)
+            throws ParsingException {
+        Integer tableId = this.p.getTableId(alias);
+        if (tableId == null)
+            throw new ParsingException("Unknown table " + alias);
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null || filterSelectivities.get(alias) == null)
+            throw new ParsingException("No statistics on table " + alias);
+        return s;
+    }
+
+    /**
+     * @return the joins of the set s connected to the tables through each
+     *         other
+     */
+    private long joinsReaching(long tables, long s) {
+        long reached = 0;
+        boolean grew = true;
+        while (grew) {
+            grew = false;
+            for (long rest = s & ~reached; rest != 0; rest &= rest - 1) {
+                int i = Long.numberOfTrailingZeros(rest);
+                long t = mInfo[i].mLeftTable | mInfo[i].mRightTable;
+                if ((t & tables) != 0) {
+                    reached |= 1L << i;
+                    tables |= t;
+                    grew = true;
+                }
+            }
+        }
+        return reached;
+    }
+
     /**
      * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * the plans of the rest of joinSet with joinToRemove (joinSet should
+     * contain joinToRemove): the plan of leftJoins on the side of its left
+     * table, and the plan of the other joins on the side of its right
+     * table, either of which may be empty for a base table. The plans of
+     * both sides must have been computed and stored in PlanCache pc.
      * 
      * @param stats
      *            table stats for all of the tables, referenced by table names
@@ -240,154 +783,117 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      * @param joinToRemove
-     *            the join to remove from joinSet
+     *            the position of the join to remove from joinSet
      * @param joinSet
-     *            the set of joins being considered
+     *            the set of joins being considered, as a bitmask of positions
+     * @param leftJoins
+     *            the joins of joinSet on the side of the left table of
+     *            joinToRemove
      * @param bestCostSoFar
      *            the best way to join joinSet so far (minimum of previous
      *            invocations of computeCostAndCardOfSubplan for this joinSet,
      *            from returned CostCard)
      * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
+     *            the PlanCache for this join; should have the plans of both
+     *            sides of joinToRemove
      * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     *         tables and last join of the plan, or null if it isn't better
+     *         than bestCostSoFar or needs a cross product
      */
-    @SuppressWarnings("unchecked")
     private CostCard computeCostAndCardOfSubplan(
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
-
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
+            int joinToRemove, long joinSet, long leftJoins,
+            double bestCostSoFar, PlanCache pc) {
+
+        int i = joinToRemove;
+        JoinInfo info = mInfo[i];
+        LogicalJoinNode j = joins.get(i);
+        long rightJoins = joinSet & ~(1L << i) & ~leftJoins;
+
+        double t1cost = info.mLeftCost, t2cost = info.mRightCost;
+        int t1card = info.mLeftCard, t2card = info.mRightCard;
+        boolean leftPkey = info.mLeftPkey, rightPkey = info.mRightPkey;
+        long leftTables = info.mLeftTable, rightTables = info.mRightTable;
+
+        // it is possible that we have not cached a plan for a side, if it
+        // needs a cross product
+        if (leftJoins != 0) {
+            if (!pc.contains(leftJoins))
                 return null;
-            }
-
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
+            leftTables = pc.getTables(leftJoins);
+            if ((leftTables & info.mLeftTable) == 0)
                 return null;
-            }
+            t1cost = pc.getCost(leftJoins);
+            t1card = pc.getCard(leftJoins);
+            leftPkey = (leftJoins & mPkeyJoins) != 0;
         }
+        if (rightJoins != 0) {
+            // nothing can be joined to the side of a subquery
+            if (info.mRightTable == 0 || !pc.contains(rightJoins))
+                return null;
+            rightTables = pc.getTables(rightJoins);
+            if ((rightTables & info.mRightTable) == 0)
+                return null;
+            t2cost = pc.getCost(rightJoins);
+            t2card = pc.getCard(rightJoins);
+            rightPkey = (rightJoins & mPkeyJoins) != 0;
+        }
+        // don't consider this plan if both sides read a table, as when j
+        // closes a cycle
+        if ((leftTables & rightTables) != 0)
+            return null;
+        // whether each side is a base table that could be probed by index
+        boolean t1Base = leftJoins == 0, t2Base = rightJoins == 0;
 
-        // case where prevbest is left
+        // case where the left side is outer
         double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
+        LogicalJoinNode j2 = info.mSwapped;
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+
+        int joinCard = j instanceof LogicalSubplanJoinNode ? t1card
+                : joinCardinality(j.p, t1card, t2card, leftPkey, rightPkey,
+                        info.mLeftDistinct, info.mRightDistinct);
+
+        // probing an index on the inner base table beats rescanning it when
+        // the outer side is small
+        boolean index1 = false, index2 = false;
+        if (t2Base && info.mRightIndex != null) {
+            double indexCost = indexJoinCost(info.mRightIndex, info.mRightPages,
+                    t1card, t1cost, t2cost, joinCard);
+            if (indexCost < cost1) {
+                index1 = true;
+                cost1 = indexCost;
+            }
         }
+        if (t1Base && info.mLeftIndex != null) {
+            double indexCost = indexJoinCost(info.mLeftIndex, info.mLeftPages,
+                    t2card, t2cost, t1cost, joinCard);
+            if (indexCost < cost2) {
+                index2 = true;
+                cost2 = indexCost;
+            }
+        }
+
+        boolean swap = cost2 < cost1;
+        if (swap)
+            cost1 = cost2;
         if (cost1 >= bestCostSoFar)
             return null;
+        if (swap)
+            j = index2 ? j2.asIndexJoin() : j2;
+        else if (index1)
+            j = j.asIndexJoin();
 
         CostCard cc = new CostCard();
-
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
+        cc.card = joinCard;
         cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
+        cc.join = j;
+        cc.outer = swap ? rightJoins : leftJoins;
+        cc.tables = leftTables | rightTables;
         return cc;
     }
 
-    /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
-     */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
-        }
-        return false;
-    }
-
     /**
      * Return true if field is a primary key of the specified table, false
      * otherwise
@@ -404,20 +910,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -425,6 +917,8 @@ public class JoinOptimizer {
      * 
      * @param js
      *            the join plan to visualize
+     * @param all
+     *            the set of joins in the plan
      * @param pc
      *            the PlanCache accumulated whild building the optimal plan
      * @param stats
@@ -434,7 +928,7 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      */
-    private void printJoins(Vector<LogicalJoinNode> js, PlanCache pc,
+    private void printJoins(Vector<LogicalJoinNode> js, long all, PlanCache pc,
             HashMap<String, TableStats> stats,
             HashMap<String, Double> selectivities) {
 
@@ -448,79 +942,9 @@ public class JoinOptimizer {
 
         f.setSize(300, 500);
 
-        HashMap<String, DefaultMutableTreeNode> m = new HashMap<String, DefaultMutableTreeNode>();
-
-        // int numTabs = 0;
-
-        // int k;
-        DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
-        boolean neither;
-
         System.out.println(js);
-        for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
-
-            String table1Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t1Alias));
-            String table2Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t2Alias));
-
-            // Double c = pc.getCost(pathSoFar);
-            neither = true;
-
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
-            DefaultMutableTreeNode n = m.get(j.t1Alias);
-            if (n == null) { // never seen this table before
-                n = new DefaultMutableTreeNode(j.t1Alias
-                        + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
-                        + ", card = "
-                        + stats.get(table1Name).estimateTableCardinality(
-                                selectivities.get(j.t1Alias)) + ")");
-                root.add(n);
-            } else {
-                // make left child root n
-                root.add(n);
-                neither = false;
-            }
-            m.put(j.t1Alias, root);
-
-            n = m.get(j.t2Alias);
-            if (n == null) { // never seen this table before
-
-                n = new DefaultMutableTreeNode(
-                        j.t2Alias == null ? "Subplan"
-                                : (j.t2Alias
-                                        + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
-                                        + ", card = "
-                                        + stats.get(table2Name)
-                                                .estimateTableCardinality(
-                                                        selectivities
-                                                                .get(j.t2Alias)) + ")"));
-                root.add(n);
-            } else {
-                // make right child root n
-                root.add(n);
-                neither = false;
-            }
-            m.put(j.t2Alias, root);
-
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
-            if (!neither) {
-                for (String key : m.keySet()) {
-                    m.put(key, root);
-                }
-            }
-
-            treetop = root;
-        }
+        DefaultMutableTreeNode treetop = js.size() == 0 ? null
+                : planNode(all, pc, stats, selectivities);
 
         JTree tree = new JTree(treetop);
         JScrollPane treeView = new JScrollPane(tree);
@@ -550,4 +974,36 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * @return a tree of the best plan in pc for the set of joins s, for
+     *         {@link #printJoins}
+     */
+    private DefaultMutableTreeNode planNode(long s, PlanCache pc,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> selectivities) {
+        LogicalJoinNode j = pc.getJoin(s);
+        DefaultMutableTreeNode root = new DefaultMutableTreeNode("Join " + j
+                + " (Cost =" + pc.getCost(s) + ", card = " + pc.getCard(s) + ")");
+        long outer = pc.getOuter(s), inner = pc.getInner(s);
+        root.add(outer == 0 ? scanNode(j.t1Alias, stats, selectivities)
+                : planNode(outer, pc, stats, selectivities));
+        root.add(inner == 0 ? scanNode(j.t2Alias, stats, selectivities)
+                : planNode(inner, pc, stats, selectivities));
+        return root;
+    }
+
+    /**
+     * @return a tree node for the scan of the table with the alias, or of a
+     *         subquery if alias is null
+     */
+    private DefaultMutableTreeNode scanNode(String alias,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> selectivities) {
+        if (alias == null)
+            return new DefaultMutableTreeNode("Subplan");
+        TableStats s = stats.get(Database.getCatalog().getTableName(p.getTableId(alias)));
+        return new DefaultMutableTreeNode(alias + " (Cost = " + s.estimateScanCost()
+                + ", card = " + s.estimateTableCardinality(selectivities.get(alias)) + ")");
+    }
+
 }
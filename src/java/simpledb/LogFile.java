@@ -51,8 +51,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and BULK_APPEND
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -67,6 +67,13 @@ of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
 for each active transaction.
 
+<li> BULK_APPEND records consist of an integer table id, an integer
+page number and an integer page count. They record that the transaction
+appended that many pages to the table directly (see
+HeapFile.bulkInsert), starting at that page. rollback() and recover()
+undo them, last pages first, by truncating the table or emptying the
+pages (see HeapFile.undoAppend).
+
 </ul>
 
 */
@@ -82,6 +89,7 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int BULK_APPEND_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -154,6 +162,10 @@ public class LogFile {
                 //Debug.log("ABORT");
                 //should we verify that this is a live transaction?
 
+                // rollback discards pages, which waits for their pins, so
+                // pins left by tid itself (an open scan, say) go first
+                Database.getBufferPool().releasePins(tid);
+
                 // must do this here, since rollback only works for
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
@@ -218,6 +230,30 @@ public class LogFile {
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
+    /** Write a BULK_APPEND record to disk for the specified tid. Must be
+        written before any of the appended pages reach the table's file.
+        @param tid The transaction performing the load
+        @param tableId The table pages are appended to
+        @param firstPage The number of the first appended page
+        @param numPages The number of pages appended
+
+        @see simpledb.HeapFile#bulkInsert
+    */
+    public synchronized void logBulkAppend(TransactionId tid, int tableId,
+                                           int firstPage, int numPages)
+        throws IOException {
+        Debug.log("BULK APPEND, offset = " + raf.getFilePointer());
+        preAppend();
+        raf.writeInt(BULK_APPEND_RECORD);
+        raf.writeLong(tid.getId());
+        raf.writeInt(tableId);
+        raf.writeInt(firstPage);
+        raf.writeInt(numPages);
+        raf.writeLong(currentOffset);
+        currentOffset = raf.getFilePointer();
+        force();
+    }
+
     void writePageData(RandomAccessFile raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
@@ -429,6 +465,11 @@ public class LogFile {
                 case BEGIN_RECORD:
                     tidToFirstLogRecord.put(record_tid,newStart);
                     break;
+                case BULK_APPEND_RECORD:
+                    logNew.writeInt(raf.readInt());
+                    logNew.writeInt(raf.readInt());
+                    logNew.writeInt(raf.readInt());
+                    break;
                 }
 
                 //all xactions finish with a pointer
@@ -467,6 +508,14 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+
+                // a transaction that never logged BEGIN is only found by
+                // reading the whole log
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                List<int[]> appends = unfinishedBulkAppends(
+                    firstRecord != null ? firstRecord : LONG_SIZE).get(tid.getId());
+                if (appends != null)
+                    undoBulkAppends(appends);
             }
         }
     }
@@ -494,10 +543,101 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+
+                if (raf.length() < LONG_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                }
+                // aborted transactions were rolled back when they aborted
+                List<int[]> appends = new ArrayList<int[]>();
+                for (List<int[]> tidAppends :
+                         unfinishedBulkAppends(LONG_SIZE).values())
+                    appends.addAll(tidAppends);
+                undoBulkAppends(appends);
             }
          }
     }
 
+    /** Read the log from offset start to its end, and collect the
+        BULK_APPEND records of transactions that have neither committed
+        nor aborted by the end. Leaves the log positioned at its end.
+
+        @param start The offset of the first record to read
+        @return For each such transaction id, the appends it logged, as
+        {table id, first page, page count}
+    */
+    private Map<Long,List<int[]>> unfinishedBulkAppends(long start)
+        throws IOException {
+        Map<Long,List<int[]>> appends = new HashMap<Long,List<int[]>>();
+        raf.seek(start);
+        while (true) {
+            try {
+                int type = raf.readInt();
+                long record_tid = raf.readLong();
+
+                switch (type) {
+                case UPDATE_RECORD:
+                    readPageData(raf);
+                    readPageData(raf);
+                    break;
+                case CHECKPOINT_RECORD:
+                    int numXactions = raf.readInt();
+                    raf.skipBytes(numXactions * 2 * LONG_SIZE);
+                    break;
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
+                    appends.remove(record_tid);
+                    break;
+                case BULK_APPEND_RECORD:
+                    int[] append = new int[] {
+                        raf.readInt(), raf.readInt(), raf.readInt() };
+                    List<int[]> tidAppends = appends.get(record_tid);
+                    if (tidAppends == null) {
+                        tidAppends = new ArrayList<int[]>();
+                        appends.put(record_tid, tidAppends);
+                    }
+                    tidAppends.add(append);
+                    break;
+                }
+
+                //all xactions finish with a pointer
+                raf.readLong();
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        raf.seek(raf.length());
+        currentOffset = raf.getFilePointer();
+        return appends;
+    }
+
+    /** Undo bulk appends, last pages first, so that every append that
+        ends its table once the ones after it are undone truncates the
+        table rather than leaving empty pages behind.
+
+        @param appends The appends to undo, as {table id, first page,
+        page count}
+    */
+    private void undoBulkAppends(List<int[]> appends)
+        throws IOException {
+        Collections.sort(appends, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(b[1], a[1]);
+            }
+        });
+        for (int[] append : appends) {
+            DbFile file;
+            try {
+                file = Database.getCatalog().getDatabaseFile(append[0]);
+            } catch (NoSuchElementException ex) {
+                // the table has been dropped since the load
+                continue;
+            }
+            if (file instanceof HeapFile)
+                ((HeapFile) file).undoAppend(append[1], append[2]);
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
@@ -23,6 +23,11 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** True if t2 should be probed through its index for each t1 tuple
+     * (see {@link IndexNestedLoopJoin}) rather than rescanned. Set by
+     * {@link JoinOptimizer#orderJoins}. */
+    public boolean indexJoin;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +68,14 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a copy of this node that is executed as an index nested-loop
+     * join. */
+    public LogicalJoinNode asIndexJoin() {
+        LogicalJoinNode j = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName,p);
+        j.indexJoin = true;
+        return j;
+    }
+
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
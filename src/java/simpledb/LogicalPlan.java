@@ -2,6 +2,8 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -271,8 +273,110 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * Returns an IndexScan that finds the tuples of a scan through an index
+     * on the field of one of its predicates, with that predicate looked up
+     * and the others checked on the tuples found.
+     * <p>
+     * With statistics, the predicate whose lookup reads the fewest pages is
+     * chosen (see {@link DbIndex#estimateLookupPages}), and only if that is
+     * fewer pages than the table has. Without statistics -- stats is null or
+     * holds no tuples -- an EQUALS predicate is assumed to be selective
+     * enough and any other predicate is not.
+     *
+     * @param stats the statistics of the scanned table, or null
+     * @return the IndexScan, or null if no index lookup is worth it
+     */
+    static IndexScan indexScanFor(TransactionId t, SeqScan scan, TableStats stats) {
+        Predicate[] preds = scan.getPredicates();
+        boolean haveStats = stats != null && stats.totalTuples() > 0;
+        int best = -1;
+        double bestPages = haveStats ? numPages(scan.getTableId()) : Double.MAX_VALUE;
+        for (int i = 0; i < preds.length; i++) {
+            Predicate p = preds[i];
+            DbIndex index = Database.getCatalog().getIndex(scan.getTableId(), p.getField(),
+                    p.getOp());
+            if (index == null)
+                continue;
+            if (!haveStats) {
+                if (p.getOp() == Predicate.Op.EQUALS) {
+                    best = i;
+                    break;
+                }
+                continue;
+            }
+            double matches = stats.totalTuples()
+                    * stats.estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+            double pages = index.estimateLookupPages(matches);
+            if (pages < bestPages) {
+                best = i;
+                bestPages = pages;
+            }
+        }
+        if (best < 0)
+            return null;
+        Predicate p = preds[best];
+        preds[best] = preds[0];
+        preds[0] = p;
+        return new IndexScan(t, scan.getTableId(), scan.getAlias(), preds);
+    }
+
+    private static int numPages(int tableId) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).numPages();
+        if (file instanceof BTreeFile)
+            return ((BTreeFile) file).numPages();
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return the quantified names of the fields the select list, filters,
+     *   joins, aggregate and ORDER BY of this plan refer to, or null if the
+     *   select list includes every field
+     */
+    private Set<String> referencedFields() {
+        HashSet<String> fields = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.endsWith(".*"))
+                return null;
+            fields.add(si.fname);
+        }
+        for (LogicalFilterNode lf : filters)
+            fields.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            fields.add(lj.f1QuantifiedName);
+            fields.add(lj.f2QuantifiedName);
+        }
+        if (aggField != null)
+            fields.add(aggField);
+        if (groupByField != null)
+            fields.add(groupByField);
+        if (oByField != null)
+            fields.add(oByField);
+        return fields;
+    }
+
+    /**
+     * Restrict scan to the fields of its table that are in referenced.
+     */
+    static void pushProjection(SeqScan scan, Set<String> referenced) {
+        TupleDesc td = scan.getTupleDesc();
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (referenced.contains(td.getFieldName(i)))
+                fields.add(i);
+        }
+        int[] fieldAr = new int[fields.size()];
+        for (int i = 0; i < fieldAr.length; i++)
+            fieldAr[i] = fields.get(i);
+        scan.setFields(fieldAr);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   The joins are instantiated in that order, each joining the subplans that read its two
+     *   tables so far, so both sides of a join of a bushy plan may be joins themselves.
      *  @param t The transaction that the returned DbIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -334,7 +438,12 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // push the filter into the scan when it sits directly on one, so
+            // the predicate is evaluated against the page data
+            if (subplan instanceof SeqScan)
+                ((SeqScan) subplan).addPredicate(p);
+            else
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -348,6 +457,36 @@ public class LogicalPlan {
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+        // look selective filters up in an index instead of scanning, except
+        // on tables the optimizer probes through an index join, which needs
+        // the plain scan
+        HashSet<String> indexJoinInners = new HashSet<String>();
+        for (LogicalJoinNode lj : joins) {
+            if (lj.indexJoin)
+                indexJoinInners.add(lj.t2Alias);
+        }
+        for (Map.Entry<String,DbIterator> e : subplanMap.entrySet()) {
+            if (e.getValue() instanceof SeqScan && !indexJoinInners.contains(e.getKey())) {
+                SeqScan ss = (SeqScan) e.getValue();
+                DbIterator scan = indexScanFor(t, ss,
+                        statsMap.get(Database.getCatalog().getTableName(ss.getTableId())));
+                if (scan != null)
+                    e.setValue(scan);
+            }
+        }
+
+        // tell the remaining scans which fields the rest of the plan reads,
+        // so tables stored column by column read only those
+        Set<String> referenced = referencedFields();
+        if (referenced != null) {
+            for (DbIterator scan : subplanMap.values()) {
+                if (scan instanceof SeqScan)
+                    pushProjection((SeqScan) scan, referenced);
+            }
+        }
+
+        // each subplan is kept under the alias of one of its tables, and
+        // equivMap maps the aliases of its other tables to that one
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * PageCompressor compresses page images with a pure-Java implementation of
+ * the LZ4 block format. Pages are dominated by runs of zero bytes -- empty
+ * slots and the padding of short StringFields -- which LZ4 turns into a
+ * handful of bytes, and decompression is a simple copy loop, cheap enough
+ * to do on every read.
+ * <p>
+ * A compressed block is a sequence of sequences. Each starts with a token
+ * byte whose high nibble is the number of literal bytes and whose low
+ * nibble is the match length minus MIN_MATCH; a nibble of 15 is continued
+ * by extra length bytes, each added to it, until one is less than 255. The
+ * literals follow, then a two-byte little-endian offset back into the
+ * output to copy the match from. The last sequence has literals only.
+ *
+ * @see CompressedHeapFile
+ */
+public class PageCompressor {
+    private static final int MIN_MATCH = 4;
+    /** the last bytes of the input are always literals */
+    private static final int LAST_LITERALS = 5;
+    /** no match starts in the last bytes of the input */
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_LOG = 12;
+
+    private PageCompressor() {
+    }
+
+    /**
+     * @return an upper bound on the compressed size of len bytes
+     */
+    public static int maxCompressedLength(int len) {
+        return len + len / 255 + 16;
+    }
+
+    /**
+     * Compresses len bytes of src, starting at off.
+     *
+     * @return the compressed block
+     */
+    public static byte[] compress(byte[] src, int off, int len) {
+        byte[] dst = new byte[maxCompressedLength(len)];
+        int end = off + len;
+        int matchLimit = end - MF_LIMIT;
+        int[] table = new int[1 << HASH_LOG];
+        Arrays.fill(table, -1);
+
+        int o = 0;
+        int anchor = off;
+        int i = off;
+        while (i < matchLimit) {
+            int seq = readInt(src, i);
+            int h = hash(seq);
+            int ref = table[h];
+            table[h] = i;
+            if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                // skip faster through data that doesn't compress
+                i += 1 + ((i - anchor) >>> 6);
+                continue;
+            }
+            while (i > anchor && ref > off && src[i - 1] == src[ref - 1]) {
+                i--;
+                ref--;
+            }
+            int matchLen = MIN_MATCH;
+            while (i + matchLen < end - LAST_LITERALS && src[i + matchLen] == src[ref + matchLen])
+                matchLen++;
+
+            o = writeSequence(dst, o, src, anchor, i - anchor, i - ref, matchLen);
+            i += matchLen;
+            anchor = i;
+        }
+        o = writeSequence(dst, o, src, anchor, end - anchor, 0, 0);
+        return Arrays.copyOf(dst, o);
+    }
+
+    /**
+     * Decompresses the block in len bytes of src, starting at off, into dst.
+     *
+     * @return the number of bytes written to dst
+     * @throws IllegalArgumentException if the block is corrupt or doesn't
+     *         fit in dst
+     */
+    public static int decompress(byte[] src, int off, int len, byte[] dst) {
+        int i = off;
+        int end = off + len;
+        int o = 0;
+        try {
+            while (true) {
+                int token = src[i++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[i++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, i, dst, o, literals);
+                i += literals;
+                o += literals;
+                if (i >= end)
+                    return o;
+
+                int offset = (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8;
+                i += 2;
+                int matchLen = token & 0x0F;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[i++] & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+                int ref = o - offset;
+                if (offset == 0 || ref < 0)
+                    throw new IllegalArgumentException("bad match offset " + offset + " at " + o);
+                if (offset >= matchLen) {
+                    System.arraycopy(dst, ref, dst, o, matchLen);
+                    o += matchLen;
+                } else {
+                    // the match overlaps the bytes it produces
+                    for (int k = 0; k < matchLen; k++)
+                        dst[o++] = dst[ref++];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("corrupt block: " + e.getMessage());
+        }
+    }
+
+    private static int writeSequence(byte[] dst, int o, byte[] src, int start, int literals,
+            int offset, int matchLen) {
+        int tokenPos = o++;
+        int token = Math.min(literals, 15) << 4;
+        if (literals >= 15)
+            o = writeLength(dst, o, literals - 15);
+        System.arraycopy(src, start, dst, o, literals);
+        o += literals;
+        if (matchLen > 0) {
+            dst[o++] = (byte) offset;
+            dst[o++] = (byte) (offset >>> 8);
+            token |= Math.min(matchLen - MIN_MATCH, 15);
+            if (matchLen - MIN_MATCH >= 15)
+                o = writeLength(dst, o, matchLen - MIN_MATCH - 15);
+        }
+        dst[tokenPos] = (byte) token;
+        return o;
+    }
+
+    private static int writeLength(byte[] dst, int o, int len) {
+        while (len >= 255) {
+            dst[o++] = (byte) 255;
+            len -= 255;
+        }
+        dst[o++] = (byte) len;
+        return o;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
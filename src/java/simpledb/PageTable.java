@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * PageTable maps the PageIds cached in a BufferPool to the frames holding
+ * them. It is sized once for the number of frames, so it never resizes.
+ * <p>
+ * Lookups take no lock. Each bucket is a chain of immutable entries behind
+ * a volatile head, and changes replace the head, so a lookup sees the chain
+ * either before or after a concurrent change. Changes lock only the stripe
+ * of buckets they touch. A lookup may still return a frame that is being
+ * evicted; BufferPool checks the frame's PageId again once it has pinned
+ * the frame.
+ *
+ * @see BufferPool
+ * @Threadsafe
+ */
+public class PageTable {
+    private static final int STRIPES = 64;
+
+    private static final class Entry {
+        final PageId mPid;
+        final int mFrame;
+        final Entry mNext;
+
+        Entry(PageId pid, int frame, Entry next) {
+            mPid = pid;
+            mFrame = frame;
+            mNext = next;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> mBuckets;
+    private final Object[] mLocks;
+    private final int mMask;
+
+    /**
+     * Create an empty table for up to about capacity pages.
+     */
+    public PageTable(int capacity) {
+        int buckets = STRIPES;
+        while (buckets < 2 * capacity)
+            buckets <<= 1;
+        mBuckets = new AtomicReferenceArray<Entry>(buckets);
+        mMask = buckets - 1;
+        mLocks = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            mLocks[i] = new Object();
+    }
+
+    private int bucketFor(PageId pid) {
+        int h = pid.hashCode();
+        return (h ^ (h >>> 16)) & mMask;
+    }
+
+    /**
+     * @return the frame of pid, or -1 if it has none
+     */
+    public int get(PageId pid) {
+        for (Entry e = mBuckets.get(bucketFor(pid)); e != null; e = e.mNext) {
+            if (e.mPid.equals(pid))
+                return e.mFrame;
+        }
+        return -1;
+    }
+
+    /**
+     * Map pid to frame unless it already has a frame.
+     *
+     * @return the frame pid already had, or -1 if it is now mapped to frame
+     */
+    public int putIfAbsent(PageId pid, int frame) {
+        int b = bucketFor(pid);
+        synchronized (mLocks[b & (STRIPES - 1)]) {
+            int existing = get(pid);
+            if (existing >= 0)
+                return existing;
+            mBuckets.set(b, new Entry(pid, frame, mBuckets.get(b)));
+            return -1;
+        }
+    }
+
+    /**
+     * Remove the mapping of pid, if it is to frame.
+     *
+     * @return true if the mapping was removed
+     */
+    public boolean remove(PageId pid, int frame) {
+        int b = bucketFor(pid);
+        synchronized (mLocks[b & (STRIPES - 1)]) {
+            Entry head = mBuckets.get(b);
+            Entry e = head;
+            while (e != null && !(e.mPid.equals(pid) && e.mFrame == frame))
+                e = e.mNext;
+            if (e == null)
+                return false;
+            // copy the entries in front of e, since entries never change
+            Entry rest = e.mNext;
+            for (Entry f = head; f != e; f = f.mNext)
+                rest = new Entry(f.mPid, f.mFrame, rest);
+            mBuckets.set(b, rest);
+            return true;
+        }
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -427,6 +429,128 @@ public class Parser {
 
     }
 
+    /**
+     * COPY table FROM 'file' [DELIMITER 'c'], which Zql doesn't know about.
+     */
+    static final Pattern COPY_STATEMENT = Pattern.compile(
+            "\\s*copy\\s+(\\w+)\\s+from\\s+'([^']*)'(?:\\s+delimiter\\s+'(.)')?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Builds the plan for a COPY statement, which bulk loads the tuples of
+     * a delimited text file into a table without going through the
+     * per-tuple insert path.
+     *
+     * @see Insert#Insert(TransactionId, DbIterator, int, boolean)
+     * @see HeapFile#bulkInsert
+     */
+    public Query handleCopyStatement(String s, TransactionId tId)
+            throws DbException, simpledb.ParsingException {
+        Matcher m = COPY_STATEMENT.matcher(s);
+        if (!m.matches())
+            throw new simpledb.ParsingException(
+                    "Expected COPY table FROM 'file' [DELIMITER 'c']");
+
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(m.group(1));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : "
+                    + m.group(1));
+        }
+        char delimiter = m.group(3) == null ? ',' : m.group(3).charAt(0);
+
+        DbIterator rows = new DelimitedFileScan(new File(m.group(2)),
+                Database.getCatalog().getTupleDesc(tableId), delimiter);
+        Query copyQ = new Query(tId);
+        copyQ.setPhysicalPlan(new Insert(tId, rows, tableId, true));
+        return copyQ;
+    }
+
+    /**
+     * CREATE INDEX [name] ON table (field) [USING HASH|BTREE], which Zql
+     * doesn't know about either. The name is accepted but not used; indexes
+     * are named after their table and field.
+     */
+    static final Pattern CREATE_INDEX_STATEMENT = Pattern.compile(
+            "\\s*create\\s+index\\s+(?:\\w+\\s+)?on\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)"
+                    + "(?:\\s+using\\s+(\\w+))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Executes a CREATE INDEX statement: creates a secondary index on the
+     * field, adds the entries for the tuples already in the table on behalf
+     * of tId, and registers it so later inserts and deletes maintain it.
+     *
+     * @see Catalog#createIndex
+     */
+    public void handleCreateIndexStatement(String s, TransactionId tId)
+            throws DbException, IOException, TransactionAbortedException,
+            simpledb.ParsingException {
+        Matcher m = CREATE_INDEX_STATEMENT.matcher(s);
+        if (!m.matches())
+            throw new simpledb.ParsingException(
+                    "Expected CREATE INDEX [name] ON table (field) [USING HASH|BTREE]");
+
+        int tableId;
+        try {
+            tableId = Database.getCatalog().getTableId(m.group(1));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : "
+                    + m.group(1));
+        }
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(m.group(2));
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown field " + m.group(2));
+        }
+        String kind = m.group(3) == null ? Catalog.BTREE_INDEX : m.group(3).toLowerCase();
+        Database.getCatalog().createIndex(tId, tableId, field, kind);
+        System.out.println("Created " + kind + " index on " + m.group(1) + "."
+                + m.group(2));
+    }
+
+    /** Statements handled here rather than by Zql. */
+    private static final String[] EXTENDED_STATEMENTS = { "copy", "create" };
+
+    /**
+     * If the next statement on the stream is a COPY or CREATE statement,
+     * consume and return it; otherwise leave the stream where it was and
+     * return null.
+     */
+    private String readExtendedStatement(InputStream is) throws IOException {
+        is.mark(8192);
+        StringBuilder sb = new StringBuilder();
+        int c;
+        String keyword = null;
+        while ((c = is.read()) != -1 && sb.length() < 8192) {
+            sb.append((char) c);
+            if (keyword == null) {
+                String head = sb.toString().trim();
+                for (String k : EXTENDED_STATEMENTS) {
+                    if (head.length() > k.length() && head.regionMatches(true, 0, k, 0, k.length())
+                            && Character.isWhitespace(head.charAt(k.length())))
+                        keyword = k;
+                }
+                if (keyword == null && head.length() > 6) {
+                    is.reset();
+                    return null;
+                }
+            }
+            if (c == ';')
+                break;
+        }
+        if (keyword != null)
+            return sb.toString();
+        is.reset();
+        return null;
+    }
+
+    private static boolean isStatement(String s, String keyword) {
+        return s.trim().regionMatches(true, 0, keyword, 0, keyword.length());
+    }
+
     public void handleTransactStatement(ZTransactStmt s)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -503,8 +627,13 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            is = new BufferedInputStream(is);
+            String extended = readExtendedStatement(is);
+            ZStatement s = null;
+            if (extended == null) {
+                ZqlParser p = new ZqlParser(is);
+                s = p.readStatement();
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -517,7 +646,11 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (extended != null && isStatement(extended, "create"))
+                        handleCreateIndexStatement(extended, curtrans.getId());
+                    else if (extended != null)
+                        query = handleCopyStatement(extended, curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
@@ -581,7 +714,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "copy", "create index" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -595,9 +728,11 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-sample fraction] [-f queryFile]";
 
     protected void shutdown() {
+        // keep the statistics updated by this session's inserts and deletes
+        TableStats.saveStatistics();
         System.out.println("Bye");
     }
 
@@ -606,9 +741,9 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
 
         String queryFile = null;
+        double sampleFraction = 1.0;
 
         if (argv.length > 1) {
             for (int i = 1; i < argv.length; i++) {
@@ -624,12 +759,26 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-sample")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected a fraction after -sample\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    sampleFraction = Double.parseDouble(argv[i]);
+                    System.out.println("Sampling " + sampleFraction
+                            + " of the pages of large tables for statistics.");
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
                 }
             }
         }
+        // statistics saved by an earlier run are reused while their tables
+        // are unchanged
+        TableStats.computeStatistics(new File(argv[0] + TableStats.STATS_SUFFIX),
+                sampleFraction);
+
         if (!interactive) {
             try {
                 // curtrans = new Transaction();
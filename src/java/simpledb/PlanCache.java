@@ -1,50 +1,174 @@
 package simpledb;
-import java.util.HashMap;
-import java.util.Set;
 import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to order a given set of joins.
+ * <p>
+ * A set of joins is a bitmask of their positions in the list of joins
+ * being ordered, so a cache can hold sets of up to 64 joins. The cache is
+ * an open-addressing hash table of parallel primitive arrays. Each plan
+ * only keeps its last join, that join's position, and which of the other
+ * joins make up its outer child; the children are the plans cached for
+ * those sets, so plans may be bushy. */
 public class PlanCache {
-    HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
-    HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
-    HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
-    
-    /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** The set of each slot; 0, the empty set, marks a free slot */
+    private long[] mSets = new long[INITIAL_CAPACITY];
+    private double[] mCosts = new double[INITIAL_CAPACITY];
+    private int[] mCards = new int[INITIAL_CAPACITY];
+    /** The tables each plan reads */
+    private long[] mTables = new long[INITIAL_CAPACITY];
+    /** The joins of the outer child of the last join of each plan */
+    private long[] mOuters = new long[INITIAL_CAPACITY];
+    /** The position of the last join of each plan */
+    private byte[] mLastPositions = new byte[INITIAL_CAPACITY];
+    /** The last join of each plan, as it is to be executed */
+    private LogicalJoinNode[] mLastJoins = new LogicalJoinNode[INITIAL_CAPACITY];
+    private int mSize;
+
+    /** @return the slot of s, or of the free slot it would go in */
+    private int slot(long s) {
+        int mask = mSets.length - 1;
+        int i = (int) ((s * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        while (mSets[i] != 0 && mSets[i] != s)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void grow() {
+        long[] sets = mSets;
+        double[] costs = mCosts;
+        int[] cards = mCards;
+        long[] tables = mTables;
+        long[] outers = mOuters;
+        byte[] positions = mLastPositions;
+        LogicalJoinNode[] joins = mLastJoins;
+        int capacity = 2 * sets.length;
+        mSets = new long[capacity];
+        mCosts = new double[capacity];
+        mCards = new int[capacity];
+        mTables = new long[capacity];
+        mOuters = new long[capacity];
+        mLastPositions = new byte[capacity];
+        mLastJoins = new LogicalJoinNode[capacity];
+        for (int i = 0; i < sets.length; i++) {
+            if (sets[i] != 0) {
+                int j = slot(sets[i]);
+                mSets[j] = sets[i];
+                mCosts[j] = costs[i];
+                mCards[j] = cards[i];
+                mTables[j] = tables[i];
+                mOuters[j] = outers[i];
+                mLastPositions[j] = positions[i];
+                mLastJoins[j] = joins[i];
+            }
+        }
+    }
+
+    /** Add a new plan for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
         specified join set
         @param s the set of joins for which a new ordering (plan) is being added
-        @param cost the estimated cost of the specified plan
-        @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
+        @param last the position of the last join of the plan; the plans
+            of its children, cc.outer and the rest of s, must be cached
+            already
+        @param cc the cost, cardinality, tables, last join and outer child
+            of the plan
+    */
+    void addPlan(long s, int last, CostCard cc) {
+        if (s == 0)
+            throw new IllegalArgumentException("the empty set of joins has no plan");
+        if (2 * (mSize + 1) > mSets.length)
+            grow();
+        int i = slot(s);
+        if (mSets[i] == 0) {
+            mSets[i] = s;
+            mSize++;
+        }
+        mCosts[i] = cc.cost;
+        mCards[i] = cc.card;
+        mTables[i] = cc.tables;
+        mOuters[i] = cc.outer;
+        mLastPositions[i] = (byte) last;
+        mLastJoins[i] = cc.join;
+    }
+
+    /** @return true if there is a plan for s in the cache */
+    boolean contains(long s) {
+        return s != 0 && mSets[slot(s)] == s;
+    }
+
+    /** @return the number of sets with a plan in the cache */
+    int size() {
+        return mSize;
+    }
+
+    /** @return the last join of the best plan for s, as it is to be executed */
+    LogicalJoinNode getJoin(long s) {
+        return mLastJoins[slot(s)];
+    }
+
+    /** @return the joins of the outer child of the last join of the best
+        plan for s, empty if the child is a base table
     */
-    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
+    long getOuter(long s) {
+        return mOuters[slot(s)];
     }
-    
-    /** Find the best join order in the cache for the specified plan 
+
+    /** @return the joins of the inner child of the last join of the best
+        plan for s, empty if the child is a base table or a subquery
+    */
+    long getInner(long s) {
+        int i = slot(s);
+        return s & ~(1L << mLastPositions[i]) & ~mOuters[i];
+    }
+
+    /** Find the best join order in the cache for the specified plan.  Each
+        join comes after the joins of both its children, so a bushy plan is
+        executed by joining the subplans that read the two tables of each
+        join in turn (see {@link LogicalPlan#physicalPlan})
         @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+        @return the best order for s in the cache, or null if there is none
     */
-    Vector<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    Vector<LogicalJoinNode> getOrder(long s) {
+        if (!contains(s))
+            return null;
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>(Long.bitCount(s));
+        addOrder(s, order);
+        return order;
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
+
+    private void addOrder(long s, Vector<LogicalJoinNode> order) {
+        if (s == 0)
+            return;
+        int i = slot(s);
+        long outer = mOuters[i];
+        addOrder(outer, order);
+        addOrder(s & ~(1L << mLastPositions[i]) & ~outer, order);
+        order.add(mLastJoins[i]);
+    }
+
+    /** Find the cost of the best join order in the cache for the specified plan
         @param s the set of joins to look up the best cost for
         @return the cost of the best order for s in the cache
     */
-    double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    double getCost(long s) {
+        return mCosts[slot(s)];
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
+
+    /** Find the cardinality of the best join order in the cache for the specified plan
         @param s the set of joins to look up the best cardinality for
         @return the cardinality of the best order for s in the cache
     */
-    int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    int getCard(long s) {
+        return mCards[slot(s)];
+    }
+
+    /** @return the tables the best plan for s reads, as bits assigned by
+        the JoinOptimizer
+    */
+    long getTables(long s) {
+        return mTables[slot(s)];
     }
 }
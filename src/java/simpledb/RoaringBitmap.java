@@ -0,0 +1,475 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * RoaringBitmap is a compressed set of non-negative ints, in the style of
+ * Roaring bitmaps. The values are split on their high 16 bits into chunks
+ * of 65536; each non-empty chunk is stored in a container holding the low
+ * 16 bits of its values, either as a sorted array (up to
+ * {@link #ARRAY_MAX} values, 2 bytes each) or as a plain bitmap of 8 KB
+ * once it is denser than that. Sparse and dense runs of values are thus
+ * both stored compactly, and intersections and unions work container by
+ * container on whichever representation the operands have.
+ * <p>
+ * The sets returned by {@link #and} and {@link #or} are new; their operands
+ * are not modified.
+ *
+ * @see BitmapIndexFile
+ */
+public class RoaringBitmap {
+
+    /** The most values an array container holds before it becomes a bitmap. */
+    public static final int ARRAY_MAX = 4096;
+
+    private char[] mKeys = new char[4];
+    private Container[] mContainers = new Container[4];
+    private int mSize = 0;
+
+    /**
+     * Add value to the set.
+     *
+     * @throws IllegalArgumentException if value is negative
+     */
+    public void add(int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("negative value " + value);
+        char key = (char) (value >>> 16);
+        int i = find(key);
+        if (i < 0) {
+            i = -i - 1;
+            insertContainer(i, key, new ArrayContainer());
+        }
+        mContainers[i] = mContainers[i].add((char) value);
+    }
+
+    /**
+     * Remove value from the set.
+     *
+     * @return false if value was not in the set
+     */
+    public boolean remove(int value) {
+        if (value < 0)
+            return false;
+        int i = find((char) (value >>> 16));
+        if (i < 0 || !mContainers[i].contains((char) value))
+            return false;
+        mContainers[i] = mContainers[i].remove((char) value);
+        if (mContainers[i].cardinality() == 0) {
+            System.arraycopy(mKeys, i + 1, mKeys, i, mSize - i - 1);
+            System.arraycopy(mContainers, i + 1, mContainers, i, mSize - i - 1);
+            mContainers[--mSize] = null;
+        }
+        return true;
+    }
+
+    public boolean contains(int value) {
+        if (value < 0)
+            return false;
+        int i = find((char) (value >>> 16));
+        return i >= 0 && mContainers[i].contains((char) value);
+    }
+
+    /**
+     * @return the number of values in the set
+     */
+    public int cardinality() {
+        int n = 0;
+        for (int i = 0; i < mSize; i++)
+            n += mContainers[i].cardinality();
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @return the values in the set, in ascending order
+     */
+    public int[] toArray() {
+        int[] values = new int[cardinality()];
+        int n = 0;
+        for (int i = 0; i < mSize; i++)
+            n = mContainers[i].fill(values, n, mKeys[i] << 16);
+        return values;
+    }
+
+    /**
+     * @return the intersection of a and b
+     */
+    public static RoaringBitmap and(RoaringBitmap a, RoaringBitmap b) {
+        RoaringBitmap r = new RoaringBitmap();
+        int i = 0, j = 0;
+        while (i < a.mSize && j < b.mSize) {
+            if (a.mKeys[i] < b.mKeys[j]) {
+                i++;
+            } else if (a.mKeys[i] > b.mKeys[j]) {
+                j++;
+            } else {
+                Container c = a.mContainers[i].and(b.mContainers[j]);
+                if (c.cardinality() > 0)
+                    r.insertContainer(r.mSize, a.mKeys[i], c);
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return the union of a and b
+     */
+    public static RoaringBitmap or(RoaringBitmap a, RoaringBitmap b) {
+        RoaringBitmap r = new RoaringBitmap();
+        int i = 0, j = 0;
+        while (i < a.mSize || j < b.mSize) {
+            if (j == b.mSize || (i < a.mSize && a.mKeys[i] < b.mKeys[j])) {
+                r.insertContainer(r.mSize, a.mKeys[i], a.mContainers[i].copy());
+                i++;
+            } else if (i == a.mSize || a.mKeys[i] > b.mKeys[j]) {
+                r.insertContainer(r.mSize, b.mKeys[j], b.mContainers[j].copy());
+                j++;
+            } else {
+                r.insertContainer(r.mSize, a.mKeys[i], a.mContainers[i].or(b.mContainers[j]));
+                i++;
+                j++;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return the number of bytes {@link #serialize} writes for this set
+     */
+    public int serializedSize() {
+        int n = 4;
+        for (int i = 0; i < mSize; i++)
+            n += 4 + mContainers[i].serializedSize();
+        return n;
+    }
+
+    /**
+     * Write the set: the number of containers, then for each its key and
+     * cardinality followed by its values (array) or words (bitmap).
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        dos.writeInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            dos.writeChar(mKeys[i]);
+            dos.writeChar(mContainers[i].cardinality() - 1);
+            mContainers[i].serialize(dos);
+        }
+    }
+
+    /**
+     * Read a set written by {@link #serialize}.
+     */
+    public static RoaringBitmap deserialize(DataInputStream dis) throws IOException {
+        RoaringBitmap r = new RoaringBitmap();
+        int size = dis.readInt();
+        for (int i = 0; i < size; i++) {
+            char key = dis.readChar();
+            int card = dis.readChar() + 1;
+            Container c;
+            if (card <= ARRAY_MAX) {
+                ArrayContainer a = new ArrayContainer(card);
+                for (int k = 0; k < card; k++)
+                    a.mValues[k] = dis.readChar();
+                a.mCard = card;
+                c = a;
+            } else {
+                BitmapContainer b = new BitmapContainer();
+                for (int k = 0; k < b.mWords.length; k++)
+                    b.mWords[k] = dis.readLong();
+                b.mCard = card;
+                c = b;
+            }
+            r.insertContainer(r.mSize, key, c);
+        }
+        return r;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RoaringBitmap
+                && Arrays.equals(toArray(), ((RoaringBitmap) o).toArray());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toArray());
+    }
+
+    public String toString() {
+        return "RoaringBitmap(" + cardinality() + " values in " + mSize + " containers)";
+    }
+
+    private int find(char key) {
+        return Arrays.binarySearch(mKeys, 0, mSize, key);
+    }
+
+    private void insertContainer(int i, char key, Container c) {
+        if (mSize == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mSize * 2);
+            mContainers = Arrays.copyOf(mContainers, mSize * 2);
+        }
+        System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+        System.arraycopy(mContainers, i, mContainers, i + 1, mSize - i);
+        mKeys[i] = key;
+        mContainers[i] = c;
+        mSize++;
+    }
+
+    /**
+     * The low 16 bits of the values of one chunk. Operations that change
+     * the cardinality return the container to use from then on, which may
+     * have switched representation.
+     */
+    private interface Container {
+        Container add(char x);
+
+        Container remove(char x);
+
+        boolean contains(char x);
+
+        int cardinality();
+
+        Container and(Container other);
+
+        Container or(Container other);
+
+        Container copy();
+
+        /** Write the values, plus high, into out from position n. */
+        int fill(int[] out, int n, int high);
+
+        int serializedSize();
+
+        void serialize(DataOutputStream dos) throws IOException;
+    }
+
+    private static final class ArrayContainer implements Container {
+        char[] mValues;
+        int mCard = 0;
+
+        ArrayContainer() {
+            this(4);
+        }
+
+        ArrayContainer(int capacity) {
+            mValues = new char[capacity];
+        }
+
+        public Container add(char x) {
+            int i = Arrays.binarySearch(mValues, 0, mCard, x);
+            if (i >= 0)
+                return this;
+            if (mCard == ARRAY_MAX)
+                return toBitmap().add(x);
+            i = -i - 1;
+            if (mCard == mValues.length)
+                mValues = Arrays.copyOf(mValues, Math.min(ARRAY_MAX, mCard * 2));
+            System.arraycopy(mValues, i, mValues, i + 1, mCard - i);
+            mValues[i] = x;
+            mCard++;
+            return this;
+        }
+
+        public Container remove(char x) {
+            int i = Arrays.binarySearch(mValues, 0, mCard, x);
+            if (i >= 0) {
+                System.arraycopy(mValues, i + 1, mValues, i, mCard - i - 1);
+                mCard--;
+            }
+            return this;
+        }
+
+        public boolean contains(char x) {
+            return Arrays.binarySearch(mValues, 0, mCard, x) >= 0;
+        }
+
+        public int cardinality() {
+            return mCard;
+        }
+
+        public Container and(Container other) {
+            ArrayContainer r = new ArrayContainer(Math.max(1, mCard));
+            if (other instanceof ArrayContainer) {
+                ArrayContainer o = (ArrayContainer) other;
+                int i = 0, j = 0;
+                while (i < mCard && j < o.mCard) {
+                    if (mValues[i] < o.mValues[j])
+                        i++;
+                    else if (mValues[i] > o.mValues[j])
+                        j++;
+                    else {
+                        r.mValues[r.mCard++] = mValues[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < mCard; i++) {
+                    if (other.contains(mValues[i]))
+                        r.mValues[r.mCard++] = mValues[i];
+                }
+            }
+            return r;
+        }
+
+        public Container or(Container other) {
+            if (other instanceof BitmapContainer)
+                return other.or(this);
+            ArrayContainer o = (ArrayContainer) other;
+            if (mCard + o.mCard > ARRAY_MAX) {
+                BitmapContainer b = toBitmap();
+                for (int j = 0; j < o.mCard; j++)
+                    b.add(o.mValues[j]);
+                return b.mCard <= ARRAY_MAX ? b.toArray() : b;
+            }
+            ArrayContainer r = new ArrayContainer(Math.max(1, mCard + o.mCard));
+            int i = 0, j = 0;
+            while (i < mCard || j < o.mCard) {
+                if (j == o.mCard || (i < mCard && mValues[i] < o.mValues[j]))
+                    r.mValues[r.mCard++] = mValues[i++];
+                else if (i == mCard || mValues[i] > o.mValues[j])
+                    r.mValues[r.mCard++] = o.mValues[j++];
+                else {
+                    r.mValues[r.mCard++] = mValues[i++];
+                    j++;
+                }
+            }
+            return r;
+        }
+
+        public Container copy() {
+            ArrayContainer r = new ArrayContainer(Math.max(1, mCard));
+            System.arraycopy(mValues, 0, r.mValues, 0, mCard);
+            r.mCard = mCard;
+            return r;
+        }
+
+        public int fill(int[] out, int n, int high) {
+            for (int i = 0; i < mCard; i++)
+                out[n++] = high | mValues[i];
+            return n;
+        }
+
+        public int serializedSize() {
+            return 2 * mCard;
+        }
+
+        public void serialize(DataOutputStream dos) throws IOException {
+            for (int i = 0; i < mCard; i++)
+                dos.writeChar(mValues[i]);
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer b = new BitmapContainer();
+            for (int i = 0; i < mCard; i++)
+                b.add(mValues[i]);
+            return b;
+        }
+    }
+
+    private static final class BitmapContainer implements Container {
+        final long[] mWords = new long[1 << 10];
+        int mCard = 0;
+
+        public Container add(char x) {
+            long bit = 1L << x;
+            if ((mWords[x >>> 6] & bit) == 0) {
+                mWords[x >>> 6] |= bit;
+                mCard++;
+            }
+            return this;
+        }
+
+        public Container remove(char x) {
+            long bit = 1L << x;
+            if ((mWords[x >>> 6] & bit) != 0) {
+                mWords[x >>> 6] &= ~bit;
+                mCard--;
+            }
+            return mCard <= ARRAY_MAX ? toArray() : this;
+        }
+
+        public boolean contains(char x) {
+            return (mWords[x >>> 6] & (1L << x)) != 0;
+        }
+
+        public int cardinality() {
+            return mCard;
+        }
+
+        public Container and(Container other) {
+            if (other instanceof ArrayContainer)
+                return other.and(this);
+            BitmapContainer o = (BitmapContainer) other;
+            BitmapContainer r = new BitmapContainer();
+            for (int k = 0; k < mWords.length; k++) {
+                r.mWords[k] = mWords[k] & o.mWords[k];
+                r.mCard += Long.bitCount(r.mWords[k]);
+            }
+            return r.mCard <= ARRAY_MAX ? r.toArray() : r;
+        }
+
+        public Container or(Container other) {
+            BitmapContainer r = (BitmapContainer) copy();
+            if (other instanceof ArrayContainer) {
+                ArrayContainer o = (ArrayContainer) other;
+                for (int j = 0; j < o.mCard; j++)
+                    r.add(o.mValues[j]);
+                return r;
+            }
+            BitmapContainer o = (BitmapContainer) other;
+            r.mCard = 0;
+            for (int k = 0; k < mWords.length; k++) {
+                r.mWords[k] |= o.mWords[k];
+                r.mCard += Long.bitCount(r.mWords[k]);
+            }
+            return r;
+        }
+
+        public Container copy() {
+            BitmapContainer r = new BitmapContainer();
+            System.arraycopy(mWords, 0, r.mWords, 0, mWords.length);
+            r.mCard = mCard;
+            return r;
+        }
+
+        public int fill(int[] out, int n, int high) {
+            for (int k = 0; k < mWords.length; k++) {
+                long w = mWords[k];
+                while (w != 0) {
+                    out[n++] = high | (k << 6) | Long.numberOfTrailingZeros(w);
+                    w &= w - 1;
+                }
+            }
+            return n;
+        }
+
+        public int serializedSize() {
+            return 8 * mWords.length;
+        }
+
+        public void serialize(DataOutputStream dos) throws IOException {
+            for (long w : mWords)
+                dos.writeLong(w);
+        }
+
+        ArrayContainer toArray() {
+            ArrayContainer a = new ArrayContainer(Math.max(1, mCard));
+            for (int k = 0; k < mWords.length; k++) {
+                long w = mWords[k];
+                while (w != 0) {
+                    a.mValues[a.mCard++] = (char) ((k << 6) | Long.numberOfTrailingZeros(w));
+                    w &= w - 1;
+                }
+            }
+            return a;
+        }
+    }
+}
@@ -17,6 +17,9 @@ public class SeqScan implements DbIterator {
     private boolean mIsClosed = true;
     private DbFile mDbFile;
     private DbFileIterator mIterator;
+    private TupleDesc mTupleDesc;
+    private ArrayList<Predicate> mPredicates = new ArrayList<Predicate>();
+    private int[] mFields = null;
     
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -39,6 +42,20 @@ public class SeqScan implements DbIterator {
 	mTableId = tableid;
 	mTableAlias = tableAlias;
 	mDbFile = Database.getCatalog().getDatabaseFile(tableid);
+	mTupleDesc = prefixTupleDesc(mDbFile.getTupleDesc(), tableAlias);
+    }
+
+    /**
+     * @return a copy of td whose field names are prefixed with alias.
+     */
+    static TupleDesc prefixTupleDesc(TupleDesc td, String alias) {
+	Type[] types = new Type[td.numFields()];
+	String[] names = new String[td.numFields()];
+	for (int i = 0; i < td.numFields(); i++) {
+	    types[i] = td.getFieldType(i);
+	    names[i] = alias + "." + td.getFieldName(i);
+	}
+	return new TupleDesc(types, names);
     }
 
     /**
@@ -50,6 +67,20 @@ public class SeqScan implements DbIterator {
         return Database.getCatalog().getTableName(mTableId);
     }
     
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return mTableId;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return mTransactionId;
+    }
+
     /**
      * @return Return the alias of the table this operator scans. 
      * */
@@ -73,6 +104,54 @@ public class SeqScan implements DbIterator {
     public void reset(int tableid, String tableAlias) {
 	mTableId = tableid;
 	mTableAlias = tableAlias;
+	mDbFile = Database.getCatalog().getDatabaseFile(tableid);
+	mTupleDesc = prefixTupleDesc(mDbFile.getTupleDesc(), tableAlias);
+	mPredicates.clear();
+	mFields = null;
+    }
+
+    /**
+     * Push a predicate down into this scan. The scan only returns tuples
+     * that satisfy every predicate added, and the underlying DbFile may
+     * evaluate them before the tuples are materialized. Must be called
+     * before the scan is opened.
+     *
+     * @param p
+     *            the predicate; its field index refers to the scanned table
+     */
+    public void addPredicate(Predicate p) {
+	if (!mIsClosed) throw new IllegalStateException("Predicates must be added before SeqScan is opened");
+	mPredicates.add(p);
+    }
+
+    /**
+     * @return the predicates pushed down into this scan
+     */
+    public Predicate[] getPredicates() {
+	return mPredicates.toArray(new Predicate[mPredicates.size()]);
+    }
+
+    /**
+     * Push a projection down into this scan: only the specified fields of
+     * the returned tuples will be used. A DbFile that stores fields
+     * separately reads just those and the fields of the predicates, and
+     * leaves the others at the defaults of a new Tuple (0 or ""). Must be
+     * called before the scan is opened.
+     *
+     * @param fields
+     *            the indexes of the fields needed, in the scanned table
+     * @see DbFile#iterator(TransactionId, Predicate[], int[])
+     */
+    public void setFields(int[] fields) {
+	if (!mIsClosed) throw new IllegalStateException("Fields must be set before SeqScan is opened");
+	mFields = fields;
+    }
+
+    /**
+     * @return the fields this scan was asked for, or null for all of them
+     */
+    public int[] getFields() {
+	return mFields;
     }
 
     public SeqScan(TransactionId tid, int tableid) {
@@ -81,7 +160,12 @@ public class SeqScan implements DbIterator {
 
     public void open() throws DbException, TransactionAbortedException {
 	mIsClosed = false;
-	mIterator = mDbFile.iterator(mTransactionId);
+	if (mFields != null)
+	    mIterator = mDbFile.iterator(mTransactionId, getPredicates(), mFields);
+	else if (mPredicates.isEmpty())
+	    mIterator = mDbFile.iterator(mTransactionId);
+	else
+	    mIterator = mDbFile.iterator(mTransactionId, getPredicates());
 	mIterator.open();
     }
 
@@ -95,7 +179,7 @@ public class SeqScan implements DbIterator {
      *         prefixed with the tableAlias string from the constructor.
      */
     public TupleDesc getTupleDesc() {
-	return mDbFile.getTupleDesc();
+	return mTupleDesc;
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
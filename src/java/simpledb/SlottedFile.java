@@ -0,0 +1,243 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SlottedFile is an implementation of a DbFile that stores a collection of
+ * tuples in no particular order, like HeapFile, but as variable-length
+ * records on {@link SlottedPage}s. A string field takes only as many bytes
+ * as its value instead of STRING_LEN + 4, so tables with short strings fit
+ * on a fraction of the pages a HeapFile needs.
+ * <p>
+ * The file keeps the free space of each page in memory, read from the page
+ * headers when it is first needed, to find a page with room for a record.
+ *
+ * @see SlottedPage
+ */
+public class SlottedFile implements DbFile {
+
+    private final File mFile;
+    private final TupleDesc mTupleDesc;
+    /** the free space of each page, or null until the first insert */
+    private ArrayList<Integer> mFreeSpace;
+
+    /**
+     * Constructs a slotted file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            file.
+     * @param td
+     *            the schema of the table
+     */
+    public SlottedFile(File f, TupleDesc td) {
+        mFile = f;
+        mTupleDesc = td;
+    }
+
+    /**
+     * Returns the File backing this SlottedFile on disk.
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this SlottedFile: the hash code of
+     * the absolute file name, as for HeapFile.
+     */
+    public int getId() {
+        return mFile.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return mTupleDesc;
+    }
+
+    /**
+     * Returns the number of pages in this SlottedFile.
+     */
+    public int numPages() {
+        return (int) (mFile.length() / BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pageSize = BufferPool.getPageSize();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+            try {
+                long offset = (long) pageSize * pid.pageNumber();
+                if (offset + pageSize > raf.length())
+                    throw new IllegalArgumentException("no page " + pid + " in " + mFile);
+                byte[] data = new byte[pageSize];
+                raf.seek(offset);
+                raf.readFully(data);
+                return new SlottedPage((HeapPageId) pid, data);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("could not read page " + pid + ": " + e.getMessage());
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek((long) BufferPool.getPageSize() * page.getId().pageNumber());
+            raf.write(page.getPageData());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the free space of each page, reading it from the pages of the
+     *         file the first time
+     */
+    private ArrayList<Integer> getFreeSpace() {
+        if (mFreeSpace == null) {
+            mFreeSpace = new ArrayList<Integer>();
+            for (int p = 0; p < numPages(); p++)
+                mFreeSpace.add(((SlottedPage) readPage(new HeapPageId(getId(), p))).getFreeSpace());
+        }
+        return mFreeSpace;
+    }
+
+    // see DbFile.java for javadocs
+    public synchronized ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        int size = SlottedPage.getRecordSize(t);
+        ArrayList<Integer> freeSpace = getFreeSpace();
+        ArrayList<Page> modifiedPages = new ArrayList<Page>();
+        BufferPool bufferPool = Database.getBufferPool();
+        for (int p = 0; p < freeSpace.size(); p++) {
+            if (freeSpace.get(p) < size)
+                continue;
+            // pinned until it is dirty, as in HeapFile.insertTuple
+            HeapPageId pid = new HeapPageId(getId(), p);
+            SlottedPage page = (SlottedPage) bufferPool.pinPage(tid, pid, Permissions.READ_WRITE);
+            try {
+                if (page.getFreeSpace() >= size) {
+                    page.insertTuple(t);
+                    page.markDirty(true, tid);
+                    freeSpace.set(p, page.getFreeSpace());
+                    modifiedPages.add(page);
+                    return modifiedPages;
+                }
+                // the free space was out of date; correct it and look again
+                freeSpace.set(p, page.getFreeSpace());
+            } finally {
+                bufferPool.unpinPage(tid, pid);
+            }
+        }
+
+        // Have to add a new page to the file
+        HeapPageId pid = new HeapPageId(getId(), numPages());
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek((long) BufferPool.getPageSize() * pid.pageNumber());
+            raf.write(SlottedPage.createEmptyPageData());
+        } finally {
+            raf.close();
+        }
+        SlottedPage page = (SlottedPage) bufferPool.pinPage(tid, pid, Permissions.READ_WRITE);
+        try {
+            page.insertTuple(t);
+            page.markDirty(true, tid);
+        } finally {
+            bufferPool.unpinPage(tid, pid);
+        }
+        freeSpace.add(page.getFreeSpace());
+        modifiedPages.add(page);
+        return modifiedPages;
+    }
+
+    // see DbFile.java for javadocs
+    public synchronized ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId())
+            throw new DbException("tuple is not a member of this file");
+        BufferPool bufferPool = Database.getBufferPool();
+        SlottedPage page = (SlottedPage) bufferPool.pinPage(tid, rid.getPageId(),
+                Permissions.READ_WRITE);
+        try {
+            page.deleteTuple(t);
+            page.markDirty(true, tid);
+        } finally {
+            bufferPool.unpinPage(tid, rid.getPageId());
+        }
+        if (mFreeSpace != null)
+            mFreeSpace.set(page.getId().pageNumber(), page.getFreeSpace());
+
+        ArrayList<Page> modifiedPages = new ArrayList<Page>();
+        modifiedPages.add(page);
+        return modifiedPages;
+    }
+
+    public DbFileIterator iterator(TransactionId tid) {
+        return iterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples that satisfy all of the given
+     * predicates, which are pushed down into each SlottedPage. The page it
+     * is reading from stays pinned until it moves on or is closed.
+     *
+     * @see SlottedPage#iterator(Predicate[])
+     */
+    @Override
+    public DbFileIterator iterator(final TransactionId tid, final Predicate[] predicates) {
+        return new AbstractDbFileIterator() {
+            int mPageNo = -1;
+            Iterator<Tuple> mTuples;
+            BufferPool mPool;
+            HeapPageId mPinned;
+
+            public void open() {
+                mPageNo = 0;
+                mTuples = null;
+            }
+
+            @Override
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                if (mPageNo < 0)
+                    return null;
+                while (mTuples == null || !mTuples.hasNext()) {
+                    unpin();
+                    if (mPageNo >= numPages())
+                        return null;
+                    mPool = Database.getBufferPool();
+                    mPinned = new HeapPageId(getId(), mPageNo++);
+                    SlottedPage page = (SlottedPage) mPool.pinPage(tid, mPinned,
+                            Permissions.READ_ONLY);
+                    mTuples = page.iterator(predicates);
+                }
+                return mTuples.next();
+            }
+
+            private void unpin() {
+                if (mPool != null) {
+                    mPool.unpinPage(tid, mPinned);
+                    mPool = null;
+                }
+            }
+
+            public void rewind() {
+                close();
+                open();
+            }
+
+            public void close() {
+                super.close();
+                unpin();
+                mPageNo = -1;
+                mTuples = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,393 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of SlottedPage stores data for one page of a SlottedFile,
+ * whose tuples are variable-length records: an int field takes 4 bytes and
+ * a string field a 2-byte length followed by its bytes, with no padding.
+ * <p>
+ * The format is the classic slotted page. The page starts with the number
+ * of slots and the offset of the start of the record area, followed by the
+ * slot array, which holds the offset and length of the record in each slot
+ * (offset 0 for an empty slot). Records are packed at the end of the page
+ * and grow towards the slot array. All of these are unsigned 2-byte
+ * numbers, so pages may be at most 64 KB.
+ * <p>
+ * Deleting a record leaves a hole in the record area; a slot's number never
+ * changes while it is used, so RecordIds stay valid. When an insert doesn't
+ * fit in the space between the slot array and the records but would fit in
+ * the page's total free space, the page is compacted in place first.
+ *
+ * @see SlottedFile
+ * @see BufferPool
+ */
+public class SlottedPage implements Page {
+
+    private static final int HEADER_BYTES = 2 + 2;
+    private static final int SLOT_BYTES = 2 + 2;
+
+    final HeapPageId mPageId;
+    final TupleDesc mTupleDesc;
+
+    /** the page image; records are inserted into and deleted from it directly */
+    private final byte[] mData;
+    private int mNumSlots;
+    private int mDataStart;
+    /** bytes of deleted records between mDataStart and the end of the page */
+    private int mHoleBytes;
+    /** tuples decoded so far, by slot */
+    private Tuple[] mTuples;
+
+    private TransactionId mDirtier;
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a SlottedPage from a set of bytes of data read from disk. The
+     * schema of the table is looked up in the Catalog.
+     */
+    public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+        mPageId = id;
+        mTupleDesc = Database.getCatalog().getTupleDesc(id.getTableId());
+        mData = data.clone();
+        mNumSlots = getShort(0);
+        mDataStart = getShort(2);
+        if (mDataStart == 0)
+            mDataStart = mData.length;
+        int used = 0;
+        for (int i = 0; i < mNumSlots; i++)
+            used += getSlotLength(i);
+        mHoleBytes = mData.length - mDataStart - used;
+        mTuples = new Tuple[mNumSlots];
+        setBeforeImage();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * SlottedPage.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    /**
+     * @return the number of bytes the record of t takes
+     */
+    static int getRecordSize(Tuple t) {
+        int size = 0;
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            if (t.getTupleDesc().getFieldType(i) == Type.INT_TYPE)
+                size += 4;
+            else
+                size += 2 + ((StringField) t.getField(i)).getValue().getBytes().length;
+        }
+        return size;
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return mPageId;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        mDirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return mDirtier;
+    }
+
+    private int getShort(int offset) {
+        return ((mData[offset] & 0xFF) << 8) | (mData[offset + 1] & 0xFF);
+    }
+
+    private void putShort(int offset, int value) {
+        mData[offset] = (byte) (value >> 8);
+        mData[offset + 1] = (byte) value;
+    }
+
+    private int getSlotOffset(int i) {
+        return getShort(HEADER_BYTES + i * SLOT_BYTES);
+    }
+
+    private int getSlotLength(int i) {
+        return getShort(HEADER_BYTES + i * SLOT_BYTES + 2);
+    }
+
+    private void setSlot(int i, int offset, int length) {
+        putShort(HEADER_BYTES + i * SLOT_BYTES, offset);
+        putShort(HEADER_BYTES + i * SLOT_BYTES + 2, length);
+    }
+
+    private void setHeader() {
+        putShort(0, mNumSlots);
+        putShort(2, mDataStart);
+    }
+
+    /**
+     * @return the number of slots on this page, used or not
+     */
+    public int getNumSlots() {
+        return mNumSlots;
+    }
+
+    /**
+     * @return true if slot i holds a record
+     */
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < mNumSlots && getSlotOffset(i) != 0;
+    }
+
+    /**
+     * @return the number of bytes between the slot array and the records
+     */
+    private int getContiguousFreeSpace() {
+        return mDataStart - HEADER_BYTES - mNumSlots * SLOT_BYTES;
+    }
+
+    /**
+     * @return the largest record this page can take, compacting it if need be
+     */
+    public int getFreeSpace() {
+        int free = getContiguousFreeSpace() + mHoleBytes;
+        for (int i = 0; i < mNumSlots; i++)
+            if (!isSlotUsed(i))
+                return free;
+        return Math.max(0, free - SLOT_BYTES);
+    }
+
+    /**
+     * Adds the specified tuple to the page; the tuple is updated to reflect
+     * that it is now stored on this page.
+     *
+     * @throws DbException
+     *             if the page doesn't have room for the record, or tupledesc
+     *             is mismatch.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!mTupleDesc.equals(t.getTupleDesc()))
+            throw new DbException("Tuple Desc mismatch");
+        int size = getRecordSize(t);
+        if (size > getFreeSpace())
+            throw new DbException("page is full");
+
+        int slot = 0;
+        while (slot < mNumSlots && isSlotUsed(slot))
+            slot++;
+        int needed = size + (slot == mNumSlots ? SLOT_BYTES : 0);
+        if (needed > getContiguousFreeSpace())
+            compact();
+        if (slot == mNumSlots) {
+            mNumSlots++;
+            mTuples = Arrays.copyOf(mTuples, mNumSlots);
+        }
+
+        mDataStart -= size;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(size);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int i = 0; i < mTupleDesc.numFields(); i++) {
+                if (mTupleDesc.getFieldType(i) == Type.INT_TYPE) {
+                    dos.writeInt(((IntField) t.getField(i)).getValue());
+                } else {
+                    byte[] bytes = ((StringField) t.getField(i)).getValue().getBytes();
+                    dos.writeShort(bytes.length);
+                    dos.write(bytes);
+                }
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        System.arraycopy(baos.toByteArray(), 0, mData, mDataStart, size);
+        setSlot(slot, mDataStart, size);
+        setHeader();
+
+        t.setRecordId(new RecordId(mPageId, slot));
+        mTuples[slot] = t;
+    }
+
+    /**
+     * Delete the specified tuple from the page; the tuple is updated to
+     * reflect that it is no longer stored on any page.
+     *
+     * @throws DbException
+     *             if this tuple is not on this page, or tuple slot is already
+     *             empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !rid.getPageId().equals(mPageId) || !isSlotUsed(rid.tupleno()))
+            throw new DbException("tuple not in this page or is already deleted");
+        int slot = rid.tupleno();
+        int offset = getSlotOffset(slot);
+        int length = getSlotLength(slot);
+        Arrays.fill(mData, offset, offset + length, (byte) 0);
+        if (offset == mDataStart)
+            mDataStart += length;
+        else
+            mHoleBytes += length;
+        setSlot(slot, 0, 0);
+        mTuples[slot] = null;
+        // trailing empty slots can go: no RecordId refers to them
+        while (mNumSlots > 0 && !isSlotUsed(mNumSlots - 1))
+            mNumSlots--;
+        setHeader();
+        t.setRecordId(null);
+    }
+
+    /**
+     * Move the records to the end of the page, so that all of its free space
+     * lies between the slot array and the records. Slot numbers are kept.
+     */
+    public void compact() {
+        Integer[] slots = new Integer[mNumSlots];
+        int used = 0;
+        for (int i = 0; i < mNumSlots; i++)
+            if (isSlotUsed(i))
+                slots[used++] = i;
+        // move the records nearest the end first, so none is overwritten
+        Arrays.sort(slots, 0, used, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return getSlotOffset(b) - getSlotOffset(a);
+            }
+        });
+        int end = mData.length;
+        for (int k = 0; k < used; k++) {
+            int offset = getSlotOffset(slots[k]);
+            int length = getSlotLength(slots[k]);
+            end -= length;
+            System.arraycopy(mData, offset, mData, end, length);
+            setSlot(slots[k], end, length);
+        }
+        Arrays.fill(mData, HEADER_BYTES + mNumSlots * SLOT_BYTES, end, (byte) 0);
+        mDataStart = end;
+        mHoleBytes = 0;
+        setHeader();
+    }
+
+    /**
+     * Read field field of the record in a used slot.
+     */
+    private Field readField(int slot, int field) {
+        int offset = getSlotOffset(slot);
+        for (int i = 0; i < field; i++)
+            offset += mTupleDesc.getFieldType(i) == Type.INT_TYPE ? 4 : 2 + getShort(offset);
+        if (mTupleDesc.getFieldType(field) == Type.INT_TYPE)
+            return new IntField(((mData[offset] & 0xFF) << 24) | ((mData[offset + 1] & 0xFF) << 16)
+                    | ((mData[offset + 2] & 0xFF) << 8) | (mData[offset + 3] & 0xFF));
+        return new StringField(new String(mData, offset + 2, getShort(offset)), Type.STRING_LEN);
+    }
+
+    /**
+     * Decode the tuple stored in slot slot.
+     */
+    private Tuple readTuple(int slot) {
+        Tuple t = new Tuple(mTupleDesc);
+        t.setRecordId(new RecordId(mPageId, slot));
+        for (int i = 0; i < mTupleDesc.numFields(); i++)
+            t.setField(i, readField(slot, i));
+        return t;
+    }
+
+    /**
+     * Get the tuple in slot i if it satisfies the given predicates. The
+     * fields of the predicates are read straight out of the page data, so
+     * a record that fails them is never decoded.
+     *
+     * @param predicates
+     *            The predicates the tuple has to satisfy, or null.
+     * @return the tuple, or null if slot i is empty or does not qualify
+     * @throws NoSuchElementException
+     *             If there is no slot i.
+     */
+    protected Tuple getTuple(int i, Predicate[] predicates) throws NoSuchElementException {
+        if (i < 0 || i >= mNumSlots)
+            throw new NoSuchElementException();
+        if (!isSlotUsed(i))
+            return null;
+        if (mTuples[i] == null && predicates != null) {
+            for (Predicate p : predicates)
+                if (!readField(i, p.getField()).compare(p.getOp(), p.getOperand()))
+                    return null;
+        }
+        if (mTuples[i] == null)
+            mTuples[i] = readTuple(i);
+        else if (predicates != null) {
+            for (Predicate p : predicates)
+                if (!p.filter(mTuples[i]))
+                    return null;
+        }
+        return mTuples[i];
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on
+     *         this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return iterator(null);
+    }
+
+    /**
+     * @param predicates
+     *            a conjunction of predicates to push down into the page, or
+     *            null to return every tuple
+     * @return an iterator over the tuples on this page that satisfy all of
+     *         the predicates.
+     */
+    public Iterator<Tuple> iterator(final Predicate[] predicates) {
+        return new Iterator<Tuple>() {
+            int mSlot = 0;
+            Tuple mNext;
+
+            public boolean hasNext() {
+                while (mNext == null && mSlot < mNumSlots)
+                    mNext = getTuple(mSlot++, predicates);
+                return mNext != null;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple next = mNext;
+                mNext = null;
+                return next;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public byte[] getPageData() {
+        return mData.clone();
+    }
+
+    public SlottedPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new SlottedPage(mPageId, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            // should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData();
+        }
+    }
+}
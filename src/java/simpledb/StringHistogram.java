@@ -1,8 +1,11 @@
 package simpledb;
 
+import java.io.*;
+
 /**
- * A class to represent a fixed-width histogram over a single String-based
- * field.
+ * A class to represent a histogram over a single String-based field. The
+ * strings are mapped to ints that keep their order (see
+ * {@link #stringToInt}) and kept in an equi-depth {@link IntHistogram}.
  */
 public class StringHistogram {
     final IntHistogram hist;
@@ -20,11 +23,19 @@ public class StringHistogram {
         hist = new IntHistogram(buckets, minVal(), maxVal());
     }
 
+    /**
+     * Create a StringHistogram of the values of hist, which were mapped to
+     * ints by {@link #stringToInt}.
+     */
+    StringHistogram(IntHistogram hist) {
+        this.hist = hist;
+    }
+
     /**
      * Convert a string to an integer, with the property that if the return
      * value(s1) < return value(s2), then s1 < s2
      */
-    private int stringToInt(String s) {
+    static int stringToInt(String s) {
         int i;
         int v = 0;
         for (i = 3; i >= 0; i--) {
@@ -50,12 +61,12 @@ public class StringHistogram {
     }
 
     /** @return the maximum value indexed by the histogram */
-    int maxVal() {
+    static int maxVal() {
         return stringToInt("zzzz");
     }
 
     /** @return the minimum value indexed by the histogram */
-    int minVal() {
+    static int minVal() {
         return stringToInt("");
     }
 
@@ -89,4 +100,18 @@ public class StringHistogram {
     public double avgSelectivity() {
         return hist.avgSelectivity();
     }
-}
\ No newline at end of file
+
+    /**
+     * Write the histogram; see {@link IntHistogram#serialize}.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        hist.serialize(dos);
+    }
+
+    /**
+     * Read a histogram written by {@link #serialize}.
+     */
+    public static StringHistogram deserialize(DataInputStream dis) throws IOException {
+        return new StringHistogram(IntHistogram.deserialize(dis));
+    }
+}
@@ -1,22 +1,67 @@
 package simpledb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query. 
+ * <p>
+ * The statistics registered for a table follow the tuples BufferPool
+ * inserts into and deletes from it: the number of tuples at once, the
+ * histograms through a buffer of changed values that is merged when it
+ * fills up or an estimate needs it. Once the tuples changed since the table
+ * was read pass {@link #getRefreshFraction} of it, the table is read again
+ * in the background and the new statistics replace these.
+ * <p>
+ * Statistics can be saved to a stats file next to the catalog (see
+ * {@link #computeStatistics(File, double)}) so a restart doesn't read every
+ * table again. Each table's entry is stamped with its page count and the
+ * time its files were last modified, and is only used while both match.
+ * The file is written again after a table is read again in the background
+ * and by {@link #saveStatistics()} at shutdown, so statistics kept current
+ * through inserts and deletes are reused too.
  * 
  * This class is not needed in implementing lab1 and lab2.
  */
 public class TableStats {
 
-    private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
+    private static final ConcurrentHashMap<String, TableStats> statsMap = new StatsMap();
 
     static final int IOCOSTPERPAGE = 1000;
 
+    /** What the name of a stats file adds to the name of its catalog file */
+    public static final String STATS_SUFFIX = ".stats";
+
+    private static final int STATS_VERSION = 1;
+
+    /** The stats file computeStatistics last read, or null */
+    private static volatile File savedStatsFile;
+
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
@@ -47,18 +92,352 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * @return the statistics registered for tableid, or null if it has none
+     */
+    private static TableStats forTable(int tableid) {
+        if (statsMap.isEmpty())
+            return null;
+        TableStats stats = statsMap.get(Database.getCatalog().getTableName(tableid));
+        return stats != null && stats.mTableId == tableid ? stats : null;
+    }
+
+    /**
+     * Count t, just inserted into table tableid, in the table's statistics.
+     *
+     * @see BufferPool#insertTuple
+     */
+    static void recordInsert(int tableid, Tuple t) {
+        TableStats stats = forTable(tableid);
+        if (stats != null)
+            stats.tupleInserted(t);
+    }
+
+    /**
+     * Take t, just deleted from table tableid, out of the table's
+     * statistics.
+     *
+     * @see BufferPool#deleteTuple
+     */
+    static void recordDelete(int tableid, Tuple t) {
+        TableStats stats = forTable(tableid);
+        if (stats != null)
+            stats.tupleDeleted(t);
+    }
+
+    /**
+     * Count count tuples appended to table tableid by a bulk load, whose
+     * values aren't seen, in the table's statistics.
+     *
+     * @see Insert
+     */
+    static void recordBulkInsert(int tableid, int count) {
+        TableStats stats = forTable(tableid);
+        if (stats != null)
+            stats.tuplesAppended(count);
+    }
+
+    /** The fraction of a table that may change before it is read again */
+    private static volatile double refreshFraction = 0.2;
+
+    /**
+     * @return the fraction of the tuples of a table that are inserted or
+     *         deleted before its statistics are computed again
+     */
+    public static double getRefreshFraction() {
+        return refreshFraction;
+    }
+
+    /**
+     * Set the fraction of the tuples of a table that are inserted or deleted
+     * before its statistics are computed again. Tables change at least
+     * {@link #REFRESH_MIN_CHANGES} tuples between refreshes.
+     */
+    public static void setRefreshFraction(double fraction) {
+        if (!(fraction > 0))
+            throw new IllegalArgumentException("refresh fraction " + fraction + " is not positive");
+        refreshFraction = fraction;
+    }
+
+    /**
+     * Compute the statistics of every table in the catalog. Tables are
+     * scanned in parallel, and so are the page ranges of each table (see
+     * {@link #TableStats(int, int)}).
+     */
     public static void computeStatistics() {
+        computeStatistics(1.0);
+    }
+
+    /**
+     * Compute the statistics of every table in the catalog from a sample of
+     * sampleFraction of the pages of each large table (see
+     * {@link #TableStats(int, int, double)}).
+     */
+    public static void computeStatistics(double sampleFraction) {
+        ArrayList<Integer> tableIds = new ArrayList<Integer>();
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext())
+            tableIds.add(tableIt.next());
+        computeStatistics(tableIds, sampleFraction);
+    }
 
-        System.out.println("Computing table stats.");
+    /**
+     * Compute the statistics of the tables in the catalog that statsFile
+     * doesn't hold current statistics of, and save them all back to it.
+     * The saved statistics of a table are current while its page count and
+     * modification stamp (see {@link #modificationStamp}) are those they
+     * were saved with, and they were read from at least sampleFraction of
+     * the table. They are only read from their bytes when first asked for.
+     * statsFile is where {@link #saveStatistics()} saves them later.
+     *
+     * @param statsFile the stats file, which need not exist yet
+     */
+    public static void computeStatistics(File statsFile, double sampleFraction) {
+        savedStatsFile = statsFile;
+        List<String> loaded = loadStatistics(statsFile, sampleFraction);
+        ArrayList<Integer> tableIds = new ArrayList<Integer>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            if (!loaded.contains(Database.getCatalog().getTableName(tableid)))
+                tableIds.add(tableid);
         }
+        if (!loaded.isEmpty())
+            System.out.println("Read saved stats of " + loaded.size() + " tables.");
+        if (tableIds.isEmpty())
+            return;
+        computeStatistics(tableIds, sampleFraction);
+        saveStatistics();
+    }
+
+    private static void computeStatistics(List<Integer> tableIds, final double sampleFraction) {
+        System.out.println("Computing table stats.");
+        ArrayList<ForkJoinTask<TableStats>> tasks = new ArrayList<ForkJoinTask<TableStats>>();
+        for (final int tableid : tableIds) {
+            tasks.add(ForkJoinTask.adapt(new Callable<TableStats>() {
+                public TableStats call() {
+                    return new TableStats(tableid, IOCOSTPERPAGE, sampleFraction);
+                }
+            }));
+        }
+        ForkJoinTask.invokeAll(tasks);
+        for (int i = 0; i < tasks.size(); i++)
+            setTableStats(Database.getCatalog().getTableName(tableIds.get(i)), tasks.get(i).join());
         System.out.println("Done.");
     }
 
+    /**
+     * Save the statistics of every table in the catalog that has them,
+     * with the changes counted since they were computed, back to the stats
+     * file computeStatistics last read. Does nothing if it hasn't read
+     * one.
+     */
+    public static void saveStatistics() {
+        File file = savedStatsFile;
+        if (file == null)
+            return;
+        try {
+            saveStatistics(file);
+        } catch (IOException e) {
+            System.out.println("Could not save table stats to " + file + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Save the statistics of every table in the catalog that has them to
+     * statsFile. The file starts with a format version and the number of
+     * tables, followed by each table's name, page count, modification
+     * stamp, sample fraction asked for, and its statistics (see
+     * {@link #serialize}) prefixed by their length.
+     */
+    public static synchronized void saveStatistics(File statsFile) throws IOException {
+        StatsMap map = (StatsMap) statsMap;
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<byte[]> entries = new ArrayList<byte[]>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            String name = Database.getCatalog().getTableName(tableid);
+            DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+            long stamp = modificationStamp(file);
+            byte[] saved = map.mSaved.get(name);
+            TableStats stats = map.getLoaded(name);
+            if (stamp < 0 || (saved == null && (stats == null || stats.mTableId != tableid)))
+                continue;
+            if (stats != null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(bytes);
+                dos.writeInt(numPages(file, 0));
+                dos.writeLong(stamp);
+                dos.writeDouble(stats.mRequestedFraction);
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                stats.serialize(new DataOutputStream(body));
+                dos.writeInt(body.size());
+                body.writeTo(dos);
+                saved = bytes.toByteArray();
+            }
+            names.add(name);
+            entries.add(saved);
+        }
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(statsFile)));
+        try {
+            dos.writeInt(STATS_VERSION);
+            dos.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                dos.writeUTF(names.get(i));
+                dos.write(entries.get(i));
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * Register the statistics in statsFile that are current, to be read
+     * when they are first asked for.
+     *
+     * @return the names of the tables registered
+     */
+    private static List<String> loadStatistics(File statsFile, double sampleFraction) {
+        ArrayList<String> loaded = new ArrayList<String>();
+        if (statsFile.length() == 0)
+            return loaded;
+        StatsMap map = (StatsMap) statsMap;
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(statsFile)));
+            try {
+                if (dis.readInt() != STATS_VERSION)
+                    return loaded;
+                int tables = dis.readInt();
+                for (int i = 0; i < tables; i++) {
+                    String name = dis.readUTF();
+                    int pages = dis.readInt();
+                    long stamp = dis.readLong();
+                    double fraction = dis.readDouble();
+                    byte[] entry = new byte[dis.readInt()];
+                    dis.readFully(entry);
+                    DbFile file;
+                    try {
+                        file = Database.getCatalog().getDatabaseFile(
+                                Database.getCatalog().getTableId(name));
+                    } catch (NoSuchElementException e) {
+                        continue;
+                    }
+                    if (stamp < 0 || stamp != modificationStamp(file)
+                            || pages != numPages(file, 0) || fraction < sampleFraction)
+                        continue;
+                    ByteArrayOutputStream saved = new ByteArrayOutputStream();
+                    DataOutputStream dos = new DataOutputStream(saved);
+                    dos.writeInt(pages);
+                    dos.writeLong(stamp);
+                    dos.writeDouble(fraction);
+                    dos.writeInt(entry.length);
+                    dos.write(entry);
+                    map.putSaved(name, saved.toByteArray());
+                    loaded.add(name);
+                }
+            } finally {
+                dis.close();
+            }
+        } catch (EOFException e) {
+            // a truncated file; the tables after the cut are read again
+        } catch (IOException e) {
+            System.out.println("Could not read table stats from " + statsFile + ": "
+                    + e.getMessage());
+        }
+        return loaded;
+    }
+
+    /**
+     * @return the time the files file is stored in were last modified, or
+     *         -1 if the kind of file doesn't say where it is stored
+     */
+    static long modificationStamp(DbFile file) {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).getFile().lastModified();
+        if (file instanceof SlottedFile)
+            return ((SlottedFile) file).getFile().lastModified();
+        if (file instanceof BTreeFile)
+            return ((BTreeFile) file).getFile().lastModified();
+        if (file instanceof ColumnFile) {
+            ColumnFile cf = (ColumnFile) file;
+            long stamp = cf.getFile().lastModified();
+            for (int i = 0; i < cf.getTupleDesc().numFields(); i++)
+                stamp = Math.max(stamp, cf.getColumnFile(i).lastModified());
+            return stamp;
+        }
+        return -1;
+    }
+
+    /**
+     * The statistics of each table. Those registered from a stats file are
+     * kept as the bytes they were saved as until they are first asked for.
+     */
+    private static class StatsMap extends ConcurrentHashMap<String, TableStats> {
+        private static final long serialVersionUID = 1L;
+
+        /** Saved entries not read yet, in the format of the stats file */
+        final ConcurrentHashMap<String, byte[]> mSaved = new ConcurrentHashMap<String, byte[]>();
+
+        /** @return the statistics of name that have been read, or null */
+        TableStats getLoaded(String name) {
+            return super.get(name);
+        }
+
+        void putSaved(String name, byte[] saved) {
+            super.remove(name);
+            mSaved.put(name, saved);
+        }
+
+        @Override
+        public TableStats get(Object name) {
+            TableStats stats = super.get(name);
+            if (stats != null || mSaved.isEmpty())
+                return stats;
+            synchronized (mSaved) {
+                stats = super.get(name);
+                byte[] saved = mSaved.get(name);
+                if (stats != null || saved == null)
+                    return stats;
+                try {
+                    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(saved));
+                    dis.skipBytes(4 + 8 + 8 + 4);
+                    stats = new TableStats(Database.getCatalog().getTableId((String) name), dis);
+                    super.put((String) name, stats);
+                } catch (IOException e) {
+                    System.out.println("Could not read saved stats of " + name + ": "
+                            + e.getMessage());
+                } catch (NoSuchElementException e) {
+                    // the table is gone
+                }
+                mSaved.remove(name);
+                return stats;
+            }
+        }
+
+        @Override
+        public TableStats put(String name, TableStats stats) {
+            mSaved.remove(name);
+            return super.put(name, stats);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return super.isEmpty() && mSaved.isEmpty();
+        }
+
+        @Override
+        public void clear() {
+            savedStatsFile = null;
+            mSaved.clear();
+            super.clear();
+        }
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -66,9 +445,78 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /**
+     * Number of pages one task of the scan of a table reads; longer ranges
+     * are split in half.
+     */
+    static final int PAGES_PER_TASK = 16;
+
+    /**
+     * The fewest pages a sample reads; a table of no more pages than this
+     * is always read whole.
+     */
+    static final int MIN_SAMPLE_PAGES = 64;
+
+    /** The number of standard errors of a 95% confidence interval */
+    static final double CONFIDENCE_Z = 1.96;
+
+    /** The number of changed tuples whose values are buffered before being merged */
+    static final int DELTA_SIZE = 1024;
+
+    /** The fewest changed tuples that make a table be read again */
+    static final int REFRESH_MIN_CHANGES = 1000;
+
+    private final int mTableId;
+    private final DbFile mFile;
+    private final int mIoCostPerPage;
+    /** The sample fraction the statistics were asked for, used to refresh them */
+    private final double mRequestedFraction;
+    /** The number of tuples when the table was read */
+    private final int mBaseTuples;
+    private int mNumTuples;
+    /** The histogram of each int field, null for string fields */
+    private final IntHistogram[] mIntHistograms;
+    /** The histogram of each string field, null for int fields */
+    private final StringHistogram[] mStringHistograms;
+    /** The distinct values of each field */
+    private final HyperLogLog[] mSketches;
+    /** The estimate of each sketch, -1 until it is asked for after a change */
+    private final long[] mEstimates;
+
+    /** The fraction of the pages that were read */
+    private final double mSampleFraction;
+    /** The number of tuples read */
+    private final int mSampledTuples;
+    /** The standard error of mNumTuples, 0 if the table was read whole */
+    private final double mTuplesError;
+    /**
+     * The distinct values of each field, scaled up from a sample; null if
+     * the table was read whole
+     */
+    private final int[] mScaledDistinct;
+
+    /** The values of each field inserted since the histograms were updated */
+    private final ColumnValues[] mInserted;
+    /** The values of each field deleted since the histograms were updated */
+    private final ColumnValues[] mDeleted;
+    /** The number of tuples in mInserted and mDeleted */
+    private int mPending;
+    /** The number of tuples inserted or deleted since the table was read */
+    private int mModified;
+    private boolean mRefreshing;
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
+     * <p>
+     * The table is read once. Heap and slotted files are split into ranges
+     * of pages, and column files into their columns, which are read in
+     * parallel; other files are read through their iterator. The values of
+     * each field are kept until the scan is done, when they are sorted into
+     * an equi-depth histogram; strings are kept as the ints
+     * {@link StringHistogram} maps them to. The distinct values of each
+     * field are counted in a {@link HyperLogLog} sketch per part, and the
+     * sketches of the parts merged.
      * 
      * @param tableid
      *            The table over which to compute statistics
@@ -77,14 +525,315 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
+        this(tableid, ioCostPerPage, 1.0);
+    }
+
+    /**
+     * Create a TableStats object from a random sample of the pages of a
+     * table. The sample is sampleFraction of the pages, but at least
+     * {@link #MIN_SAMPLE_PAGES}; only heap and slotted files can be sampled,
+     * and other files, small tables and a fraction of 1 read the whole
+     * table as {@link #TableStats(int, int)} does.
+     * <p>
+     * Sampled pages are read with {@link DbFile#readPage}, so a sample
+     * doesn't push the pages queries use out of the buffer pool, and misses
+     * changes that haven't been written back yet. The histograms are those
+     * of the sample. The number of tuples is scaled up from the tuples per
+     * sampled page, and the number of distinct values with the GEE
+     * estimator: values seen more than once in the sample are assumed to be
+     * all the common values, and each value seen only once to stand for
+     * sqrt(tuples / sampled tuples) values. See
+     * {@link #estimateTotalTuplesBounds} and
+     * {@link #estimateSelectivityBounds} for how far off the estimates may
+     * be.
+     *
+     * @param sampleFraction
+     *            The fraction of the pages to read, in (0, 1]
+     */
+    public TableStats(int tableid, int ioCostPerPage, double sampleFraction) {
+        if (!(sampleFraction > 0 && sampleFraction <= 1))
+            throw new IllegalArgumentException("sample fraction " + sampleFraction
+                    + " is not in (0, 1]");
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        TupleDesc td = file.getTupleDesc();
+        int[] sample = samplePages(file, sampleFraction);
+        Summary summary = new ScanTask(file, new TransactionId(), sample).invoke();
+
+        mTableId = tableid;
+        mFile = file;
+        mIoCostPerPage = ioCostPerPage;
+        mRequestedFraction = sampleFraction;
+        int numPages = numPages(file, summary.mTuples);
+        mSampledTuples = summary.mTuples;
+        if (sample == null) {
+            mSampleFraction = 1.0;
+            mNumTuples = summary.mTuples;
+            mTuplesError = 0;
+        } else {
+            // the tuples per page of the sample, scaled up to all the pages
+            int k = sample.length;
+            double mean = (double) summary.mTuples / k;
+            double variance = k < 2 ? 0
+                    : Math.max(0, (summary.mSumSquares - k * mean * mean) / (k - 1));
+            mSampleFraction = (double) k / numPages;
+            mNumTuples = (int) Math.round(mean * numPages);
+            mTuplesError = numPages * Math.sqrt(variance / k * (1 - mSampleFraction));
+        }
+        mIntHistograms = new IntHistogram[td.numFields()];
+        mStringHistograms = new StringHistogram[td.numFields()];
+        mSketches = summary.mSketches;
+        mScaledDistinct = sample == null ? null : new int[td.numFields()];
+        mBaseTuples = mNumTuples;
+        mEstimates = new long[td.numFields()];
+        Arrays.fill(mEstimates, -1);
+        mInserted = new ColumnValues[td.numFields()];
+        mDeleted = new ColumnValues[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            mInserted[i] = new ColumnValues();
+            mDeleted[i] = new ColumnValues();
+            ColumnValues c = summary.mColumns[i];
+            IntHistogram h = IntHistogram.fromValues(NUM_HIST_BINS, c.mValues, c.mSize);
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                mIntHistograms[i] = h;
+            else
+                mStringHistograms[i] = new StringHistogram(h);
+            if (mScaledDistinct != null) {
+                // the ints strings map to aren't distinct enough; count
+                // their hashes instead. Ints are sorted by now.
+                ColumnValues keys = summary.mKeys[i] != null ? summary.mKeys[i] : c;
+                Arrays.sort(keys.mValues, 0, keys.mSize);
+                mScaledDistinct[i] = scaleDistinct(keys.mValues, keys.mSize, mNumTuples);
+            }
+        }
+    }
+
+    /**
+     * Read statistics of table tableid written by {@link #serialize}.
+     *
+     * @throws IOException if they don't match the table's fields
+     */
+    private TableStats(int tableid, DataInputStream dis) throws IOException {
+        mTableId = tableid;
+        mFile = Database.getCatalog().getDatabaseFile(tableid);
+        TupleDesc td = mFile.getTupleDesc();
+        mIoCostPerPage = dis.readInt();
+        mRequestedFraction = dis.readDouble();
+        mNumTuples = dis.readInt();
+        mBaseTuples = mNumTuples;
+        mSampleFraction = dis.readDouble();
+        mSampledTuples = dis.readInt();
+        mTuplesError = dis.readDouble();
+        if (dis.readInt() != td.numFields())
+            throw new IOException("the table has " + td.numFields() + " fields");
+        mScaledDistinct = dis.readBoolean() ? new int[td.numFields()] : null;
+        mIntHistograms = new IntHistogram[td.numFields()];
+        mStringHistograms = new StringHistogram[td.numFields()];
+        mSketches = new HyperLogLog[td.numFields()];
+        mEstimates = new long[td.numFields()];
+        Arrays.fill(mEstimates, -1);
+        mInserted = new ColumnValues[td.numFields()];
+        mDeleted = new ColumnValues[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (dis.readByte() != td.getFieldType(i).ordinal())
+                throw new IOException("field " + i + " is now " + td.getFieldType(i));
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                mIntHistograms[i] = IntHistogram.deserialize(dis);
+            else
+                mStringHistograms[i] = StringHistogram.deserialize(dis);
+            mSketches[i] = HyperLogLog.deserialize(dis);
+            if (mScaledDistinct != null)
+                mScaledDistinct[i] = dis.readInt();
+            mInserted[i] = new ColumnValues();
+            mDeleted[i] = new ColumnValues();
+        }
+    }
+
+    /**
+     * Write the statistics, with the changes buffered so far: the scalar
+     * statistics, then the type, histogram, sketch and scaled distinct
+     * count of each field.
+     */
+    public synchronized void serialize(DataOutputStream dos) throws IOException {
+        mergeDeltas();
+        dos.writeInt(mIoCostPerPage);
+        dos.writeDouble(mRequestedFraction);
+        dos.writeInt(mNumTuples);
+        dos.writeDouble(mSampleFraction);
+        dos.writeInt(mSampledTuples);
+        dos.writeDouble(mTuplesError);
+        dos.writeInt(mSketches.length);
+        dos.writeBoolean(mScaledDistinct != null);
+        for (int i = 0; i < mSketches.length; i++) {
+            if (mIntHistograms[i] != null) {
+                dos.writeByte(Type.INT_TYPE.ordinal());
+                mIntHistograms[i].serialize(dos);
+            } else {
+                dos.writeByte(Type.STRING_TYPE.ordinal());
+                mStringHistograms[i].serialize(dos);
+            }
+            mSketches[i].serialize(dos);
+            if (mScaledDistinct != null)
+                dos.writeInt(mScaledDistinct[i]);
+        }
+    }
+
+    /**
+     * Count t, which was inserted into the table.
+     */
+    public synchronized void tupleInserted(Tuple t) {
+        mNumTuples++;
+        for (int i = 0; i < mInserted.length; i++) {
+            Field f = t.getField(i);
+            if (f != null) {
+                mInserted[i].add(valueOf(f));
+                mSketches[i].addField(f);
+                mEstimates[i] = -1;
+            }
+        }
+        changed();
+    }
+
+    /**
+     * Take t, which was deleted from the table, out of the statistics. The
+     * distinct values of its fields are still counted.
+     */
+    public synchronized void tupleDeleted(Tuple t) {
+        mNumTuples = Math.max(0, mNumTuples - 1);
+        for (int i = 0; i < mDeleted.length; i++) {
+            Field f = t.getField(i);
+            if (f != null)
+                mDeleted[i].add(valueOf(f));
+        }
+        changed();
+    }
+
+    /**
+     * Count count tuples appended to the table without their values, which
+     * only get into the histograms when the table is read again.
+     */
+    public synchronized void tuplesAppended(int count) {
+        mNumTuples += count;
+        mModified += count;
+        maybeRefresh();
+    }
+
+    /** @return the int the histogram of f's field keeps f's value as */
+    private static int valueOf(Field f) {
+        return f.getType() == Type.INT_TYPE ? ((IntField) f).getValue()
+                : StringHistogram.stringToInt(((StringField) f).getValue());
+    }
+
+    private void changed() {
+        mModified++;
+        mPending++;
+        if (mPending >= DELTA_SIZE)
+            mergeDeltas();
+        maybeRefresh();
+    }
+
+    /** Move the buffered changes into the histograms. */
+    private void mergeDeltas() {
+        if (mPending == 0)
+            return;
+        for (int i = 0; i < mInserted.length; i++) {
+            IntHistogram h = mIntHistograms[i] != null ? mIntHistograms[i]
+                    : mStringHistograms[i].hist;
+            ColumnValues inserted = mInserted[i], deleted = mDeleted[i];
+            for (int j = 0; j < inserted.mSize; j++)
+                h.addValue(inserted.mValues[j]);
+            for (int j = 0; j < deleted.mSize; j++)
+                h.removeValue(deleted.mValues[j]);
+            inserted.mSize = 0;
+            deleted.mSize = 0;
+        }
+        mPending = 0;
+    }
+
+    /**
+     * Read the table again in the background if enough of it changed; the
+     * new statistics replace these unless they were replaced already.
+     */
+    private void maybeRefresh() {
+        if (mRefreshing || mModified < Math.max(REFRESH_MIN_CHANGES, refreshFraction * mBaseTuples))
+            return;
+        mRefreshing = true;
+        final String name = Database.getCatalog().getTableName(mTableId);
+        ForkJoinPool.commonPool().execute(new Runnable() {
+            public void run() {
+                try {
+                    TableStats fresh = new TableStats(mTableId, mIoCostPerPage, mRequestedFraction);
+                    if (statsMap.replace(name, TableStats.this, fresh))
+                        saveStatistics();
+                } catch (RuntimeException e) {
+                    // the table went away or couldn't be read; keep these
+                    // statistics and try again on the next change
+                    synchronized (TableStats.this) {
+                        mRefreshing = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the pages of file to sample, in order, or null if the whole
+     *         file should be read
+     */
+    private static int[] samplePages(DbFile file, double sampleFraction) {
+        if (sampleFraction >= 1.0 || !(file instanceof HeapFile || file instanceof SlottedFile))
+            return null;
+        int n = numPages(file, 0);
+        int k = Math.max(MIN_SAMPLE_PAGES, (int) Math.ceil(sampleFraction * n));
+        if (k >= n)
+            return null;
+        // Floyd's algorithm: k distinct pages, each as likely as any other
+        Random rand = ThreadLocalRandom.current();
+        BitSet chosen = new BitSet(n);
+        for (int j = n - k; j < n; j++) {
+            int t = rand.nextInt(j + 1);
+            chosen.set(chosen.get(t) ? j : t);
+        }
+        return chosen.stream().toArray();
+    }
+
+    /**
+     * @param sorted the first n values of a sample, sorted
+     * @param tuples the number of tuples the sample was drawn from
+     * @return the GEE estimate of the number of distinct values in all of
+     *         the tuples
+     */
+    static int scaleDistinct(int[] sorted, int n, int tuples) {
+        int distinct = 0, once = 0;
+        for (int i = 0; i < n; ) {
+            int j = i + 1;
+            while (j < n && sorted[j] == sorted[i])
+                j++;
+            distinct++;
+            if (j - i == 1)
+                once++;
+            i = j;
+        }
+        if (n == 0 || tuples <= n)
+            return distinct;
+        double estimate = Math.sqrt((double) tuples / n) * once + (distinct - once);
+        return (int) Math.max(distinct, Math.min(tuples, Math.round(estimate)));
+    }
+
+    /**
+     * @return the number of pages of file, or the number of pages its
+     *         tuples would fill if it doesn't say
+     */
+    static int numPages(DbFile file, int tuples) {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).numPages();
+        if (file instanceof SlottedFile)
+            return ((SlottedFile) file).numPages();
+        if (file instanceof ColumnFile)
+            return ((ColumnFile) file).numPages();
+        if (file instanceof BTreeFile)
+            return ((BTreeFile) file).numPages();
+        long bytes = (long) tuples * file.getTupleDesc().getSize();
+        return (int) ((bytes + BufferPool.getPageSize() - 1) / BufferPool.getPageSize());
     }
 
     /**
@@ -99,9 +848,8 @@ public class TableStats {
      * 
      * @return The estimated cost of scanning the table.
      */
-    public double estimateScanCost() {
-        // some code goes here
-        return 0;
+    public synchronized double estimateScanCost() {
+        return (double) numPages(mFile, mNumTuples) * mIoCostPerPage;
     }
 
     /**
@@ -113,9 +861,8 @@ public class TableStats {
      * @return The estimated cardinality of the scan with the specified
      *         selectivityFactor
      */
-    public int estimateTableCardinality(double selectivityFactor) {
-        // some code goes here
-        return 0;
+    public synchronized int estimateTableCardinality(double selectivityFactor) {
+        return (int) Math.round(mNumTuples * selectivityFactor);
     }
 
     /**
@@ -127,10 +874,26 @@ public class TableStats {
      * The semantic of the method is that, given the table, and then given a
      * tuple, of which we do not know the value of the field, return the
      * expected selectivity. You may estimate this value from the histograms.
+     * <p>
+     * A range predicate is assumed to keep half of the values that are not
+     * equal to the constant.
      * */
-    public double avgSelectivity(int field, Predicate.Op op) {
-        // some code goes here
-        return 1.0;
+    public synchronized double avgSelectivity(int field, Predicate.Op op) {
+        mergeDeltas();
+        double equal = mIntHistograms[field] != null ? mIntHistograms[field].avgSelectivity()
+                : mStringHistograms[field].avgSelectivity();
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return equal;
+        case NOT_EQUALS:
+            return 1.0 - equal;
+        case LESS_THAN:
+        case GREATER_THAN:
+            return (1.0 - equal) / 2;
+        default:
+            return (1.0 + equal) / 2;
+        }
     }
 
     /**
@@ -146,17 +909,296 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      *         predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        // some code goes here
-        return 1.0;
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+        mergeDeltas();
+        if (constant.getType() == Type.INT_TYPE)
+            return mIntHistograms[field].estimateSelectivity(op, ((IntField) constant).getValue());
+        return mStringHistograms[field].estimateSelectivity(op, ((StringField) constant).getValue());
     }
 
     /**
      * return the total number of tuples in this table
      * */
-    public int totalTuples() {
-        // some code goes here
-        return 0;
+    public synchronized int totalTuples() {
+        return mNumTuples;
     }
 
+    /**
+     * @return the estimated number of distinct values of field, at most the
+     *         number of tuples
+     */
+    public synchronized int numDistinct(int field) {
+        if (mScaledDistinct != null)
+            return mScaledDistinct[field];
+        if (mEstimates[field] < 0)
+            mEstimates[field] = mSketches[field].estimate();
+        return (int) Math.min(mNumTuples, mEstimates[field]);
+    }
+
+    /**
+     * @return true if the statistics are from a sample of the table
+     */
+    public boolean isSampled() {
+        return mScaledDistinct != null;
+    }
+
+    /**
+     * @return the fraction of the pages of the table that were read
+     */
+    public double getSampleFraction() {
+        return mSampleFraction;
+    }
+
+    /**
+     * @return the bounds of a 95% confidence interval of the number of
+     *         tuples in the table, both {@link #totalTuples} if it was read
+     *         whole
+     */
+    public synchronized int[] estimateTotalTuplesBounds() {
+        double margin = CONFIDENCE_Z * mTuplesError;
+        return new int[] { (int) Math.max(mSampledTuples, Math.floor(mNumTuples - margin)),
+                (int) Math.ceil(mNumTuples + margin) };
+    }
+
+    /**
+     * The bounds of a 95% confidence interval of the selectivity of
+     * <tt>field op constant</tt>, taking the sampled tuples to be a simple
+     * random sample of the table. Only the error of sampling is accounted
+     * for, so for a table read whole both bounds are
+     * {@link #estimateSelectivity}.
+     *
+     * @return the lower and upper bound
+     */
+    public synchronized double[] estimateSelectivityBounds(int field, Predicate.Op op, Field constant) {
+        double p = estimateSelectivity(field, op, constant);
+        if (!isSampled() || mSampledTuples == 0)
+            return new double[] { p, p };
+        double margin = CONFIDENCE_Z * Math.sqrt(p * (1 - p) / mSampledTuples
+                * Math.max(0, 1 - (double) mSampledTuples / mNumTuples));
+        return new double[] { Math.max(0, p - margin), Math.min(1, p + margin) };
+    }
+
+    /**
+     * The values of a field seen by part of a scan.
+     */
+    private static class ColumnValues {
+        int[] mValues = new int[64];
+        int mSize;
+
+        private void ensureCapacity(int n) {
+            if (n > mValues.length)
+                mValues = Arrays.copyOf(mValues, Math.max(n, 2 * mValues.length));
+        }
+
+        void add(int v) {
+            ensureCapacity(mSize + 1);
+            mValues[mSize++] = v;
+        }
+
+        void addAll(ColumnValues other) {
+            ensureCapacity(mSize + other.mSize);
+            System.arraycopy(other.mValues, 0, mValues, mSize, other.mSize);
+            mSize += other.mSize;
+        }
+    }
+
+    /**
+     * The statistics of some of the fields of part of a table.
+     */
+    private static class Summary {
+        int mTuples;
+        /** The sum of the squares of the tuples on each page read */
+        double mSumSquares;
+        /** The values of each field read, null for the others */
+        final ColumnValues[] mColumns;
+        /** The hashes of the string fields of a sample, null for the others */
+        final ColumnValues[] mKeys;
+        /** The distinct values of each field read, null for the others */
+        final HyperLogLog[] mSketches;
+
+        /**
+         * @param fields the fields to read, or null to read all of them
+         * @param sampled whether the tuples are a sample
+         */
+        Summary(TupleDesc td, int[] fields, boolean sampled) {
+            mColumns = new ColumnValues[td.numFields()];
+            mKeys = new ColumnValues[td.numFields()];
+            mSketches = new HyperLogLog[td.numFields()];
+            for (int i = 0; i < td.numFields(); i++) {
+                if (fields == null || contains(fields, i)) {
+                    mColumns[i] = new ColumnValues();
+                    mSketches[i] = new HyperLogLog();
+                    if (sampled && td.getFieldType(i) == Type.STRING_TYPE)
+                        mKeys[i] = new ColumnValues();
+                }
+            }
+        }
+
+        private static boolean contains(int[] fields, int f) {
+            for (int g : fields) {
+                if (g == f)
+                    return true;
+            }
+            return false;
+        }
+
+        void add(Tuple t) {
+            mTuples++;
+            for (int i = 0; i < mColumns.length; i++) {
+                if (mColumns[i] == null)
+                    continue;
+                Field f = t.getField(i);
+                mColumns[i].add(valueOf(f));
+                mSketches[i].addField(f);
+                if (mKeys[i] != null)
+                    mKeys[i].add(((StringField) f).getValue().hashCode());
+            }
+        }
+
+        /** Add the tuples of other, which read the same fields as this. */
+        void merge(Summary other) {
+            mTuples += other.mTuples;
+            mSumSquares += other.mSumSquares;
+            for (int i = 0; i < mColumns.length; i++) {
+                if (mColumns[i] != null) {
+                    mColumns[i].addAll(other.mColumns[i]);
+                    mSketches[i].merge(other.mSketches[i]);
+                }
+                if (mKeys[i] != null)
+                    mKeys[i].addAll(other.mKeys[i]);
+            }
+        }
+
+        /** Take over the fields other read of the same tuples as this. */
+        void mergeFields(Summary other) {
+            for (int i = 0; i < mColumns.length; i++) {
+                if (other.mColumns[i] != null) {
+                    mColumns[i] = other.mColumns[i];
+                    mSketches[i] = other.mSketches[i];
+                    mKeys[i] = other.mKeys[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Summarizes a file, a range of its pages or one of its columns. The
+     * whole file is split into subtasks where it can be.
+     */
+    private static class ScanTask extends RecursiveTask<Summary> {
+        private static final long serialVersionUID = 1L;
+
+        private final DbFile mFile;
+        private final TransactionId mTid;
+        /** The pages of a sample, or null to read all of them */
+        private final int[] mSample;
+        private final int mFirstPage;
+        private final int mEndPage;
+        private final int mColumn;
+
+        /**
+         * Summarize file, or only the pages in sample.
+         *
+         * @param sample the pages to read, or null to read all of file
+         */
+        ScanTask(DbFile file, TransactionId tid, int[] sample) {
+            this(file, tid, sample, -1, -1, -1);
+        }
+
+        private ScanTask(DbFile file, TransactionId tid, int[] sample, int firstPage,
+                int endPage, int column) {
+            mFile = file;
+            mTid = tid;
+            mSample = sample;
+            mFirstPage = firstPage;
+            mEndPage = endPage;
+            mColumn = column;
+        }
+
+        @Override
+        protected Summary compute() {
+            try {
+                if (mFirstPage >= 0)
+                    return scanPages();
+                if (mColumn >= 0)
+                    return scan(new int[] { mColumn });
+                if (mSample != null)
+                    return new ScanTask(mFile, mTid, mSample, 0, mSample.length, -1).compute();
+                if (mFile instanceof HeapFile || mFile instanceof SlottedFile) {
+                    int pages = TableStats.numPages(mFile, 0);
+                    return new ScanTask(mFile, mTid, null, 0, pages, -1).compute();
+                }
+                if (mFile instanceof ColumnFile)
+                    return scanColumns();
+                return scan(null);
+            } catch (DbException e) {
+                throw new RuntimeException("could not scan table " + mFile.getId(), e);
+            } catch (TransactionAbortedException e) {
+                throw new RuntimeException("could not scan table " + mFile.getId(), e);
+            }
+        }
+
+        /**
+         * Summarize the pages mFirstPage up to mEndPage, or those entries of
+         * the sample.
+         */
+        private Summary scanPages() throws DbException, TransactionAbortedException {
+            if (mEndPage - mFirstPage > PAGES_PER_TASK) {
+                int mid = (mFirstPage + mEndPage) >>> 1;
+                ScanTask left = new ScanTask(mFile, mTid, mSample, mFirstPage, mid, -1);
+                left.fork();
+                Summary summary = new ScanTask(mFile, mTid, mSample, mid, mEndPage, -1).compute();
+                summary.merge(left.join());
+                return summary;
+            }
+            Summary summary = new Summary(mFile.getTupleDesc(), null, mSample != null);
+            BufferPool pool = Database.getBufferPool();
+            for (int p = mFirstPage; p < mEndPage; p++) {
+                HeapPageId pid = new HeapPageId(mFile.getId(), mSample != null ? mSample[p] : p);
+                Page page = mSample != null ? mFile.readPage(pid)
+                        : pool.pinPage(mTid, pid, Permissions.READ_ONLY);
+                int before = summary.mTuples;
+                try {
+                    Iterator<Tuple> it = page instanceof HeapPage ? ((HeapPage) page).iterator()
+                            : ((SlottedPage) page).iterator();
+                    while (it.hasNext())
+                        summary.add(it.next());
+                } finally {
+                    if (mSample == null)
+                        pool.unpinPage(mTid, pid);
+                }
+                double tuples = summary.mTuples - before;
+                summary.mSumSquares += tuples * tuples;
+            }
+            return summary;
+        }
+
+        /** Summarize each column of a ColumnFile in a task of its own. */
+        private Summary scanColumns() {
+            int n = mFile.getTupleDesc().numFields();
+            ArrayList<ScanTask> columns = new ArrayList<ScanTask>();
+            for (int i = 0; i < n; i++)
+                columns.add(new ScanTask(mFile, mTid, null, -1, -1, i));
+            invokeAll(columns);
+            Summary summary = columns.get(0).join();
+            for (int i = 1; i < n; i++)
+                summary.mergeFields(columns.get(i).join());
+            return summary;
+        }
+
+        /** Summarize fields (all if null) through the file's iterator. */
+        private Summary scan(int[] fields) throws DbException, TransactionAbortedException {
+            Summary summary = new Summary(mFile.getTupleDesc(), fields, false);
+            DbFileIterator it = fields == null ? mFile.iterator(mTid)
+                    : mFile.iterator(mTid, null, fields);
+            it.open();
+            try {
+                while (it.hasNext())
+                    summary.add(it.next());
+            } finally {
+                it.close();
+            }
+            return summary;
+        }
+    }
 }
@@ -185,6 +185,24 @@ public class TupleDesc implements Serializable {
 	return accum;
     }
 
+    /**
+     * @param i
+     *            index of the field. It must be a valid index.
+     * @return The byte offset of the ith field within a serialized tuple of
+     *         this TupleDesc.
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+	if (i >= mSize)
+	    throw new NoSuchElementException(String.format("%d is over the %d size", i, mSize));
+	int offset = 0;
+	for (int j = 0; j < i; j++) {
+	    offset += mTDItems[j].fieldType.getLen();
+	}
+	return offset;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,378 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * ZoneMap keeps, for every page of a HeapFile, the number of tuples on the
+ * page and the minimum and maximum value of each integer column. Scans with
+ * range predicates use it to skip pages that cannot contain a match without
+ * fetching them through the BufferPool.
+ * <p>
+ * The zone map is stored in a sidecar file next to the heap file (see
+ * {@link #sidecarFor}). The sidecar starts with a header of three ints --
+ * a format version, the number of int columns and the number of pages --
+ * followed by one fixed-size record per page: the tuple count, then a
+ * (min, max) pair per int column. Pages without tuples have min greater
+ * than max.
+ * <p>
+ * Bounds are widened on insert and recomputed from the page on delete when
+ * the deleted tuple held one of the page's bounds, so they always enclose
+ * the values on the page.
+ *
+ * @see HeapFile#getZoneMap
+ * @Threadsafe
+ */
+public class ZoneMap {
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 3 * 4;
+
+    private final File mFile;
+    private final TupleDesc mTupleDesc;
+
+    /** Indexes of the int columns of mTupleDesc, in order. */
+    private final int[] mIntColumns;
+    /** Position of each field in mIntColumns, or -1 for non-int fields. */
+    private final int[] mColumnSlot;
+
+    private int mNumPages;
+    private int[] mCounts;
+    /** mMins[page * mIntColumns.length + c] is the minimum of column c. */
+    private int[] mMins;
+    private int[] mMaxs;
+
+    /**
+     * Create an empty zone map for a table with the specified schema.
+     *
+     * @param file the sidecar file this zone map is saved to
+     * @param td the schema of the table
+     */
+    public ZoneMap(File file, TupleDesc td) {
+        mFile = file;
+        mTupleDesc = td;
+
+        int numInts = 0;
+        mColumnSlot = new int[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            mColumnSlot[i] = td.getFieldType(i) == Type.INT_TYPE ? numInts++ : -1;
+        }
+        mIntColumns = new int[numInts];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (mColumnSlot[i] >= 0)
+                mIntColumns[mColumnSlot[i]] = i;
+        }
+
+        mNumPages = 0;
+        mCounts = new int[16];
+        mMins = new int[16 * numInts];
+        mMaxs = new int[16 * numInts];
+    }
+
+    /**
+     * @return the sidecar file holding the zone map of the heap file f
+     */
+    public static File sidecarFor(File f) {
+        return new File(f.getPath() + ".zonemap");
+    }
+
+    /**
+     * Load the zone map of a heap file from its sidecar, or rebuild it by
+     * reading every page of the file if the sidecar is missing or older
+     * than the file. A rebuilt zone map is saved before it is returned.
+     *
+     * @param hf the heap file
+     * @return the zone map of hf
+     * @throws IOException if the heap file or sidecar can't be read/written
+     */
+    public static ZoneMap open(HeapFile hf) throws IOException {
+        File sidecar = sidecarFor(hf.getFile());
+        ZoneMap zm = new ZoneMap(sidecar, hf.getTupleDesc());
+        if (sidecar.exists() && sidecar.lastModified() >= hf.getFile().lastModified()
+                && zm.load() && zm.mNumPages == hf.numPages()) {
+            return zm;
+        }
+
+        zm.clear();
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            zm.updatePage(page);
+        }
+        zm.save();
+        return zm;
+    }
+
+    /**
+     * @return the number of pages this zone map has entries for
+     */
+    public synchronized int numPages() {
+        return mNumPages;
+    }
+
+    /**
+     * @return the number of tuples on page pageNo
+     */
+    public synchronized int getCount(int pageNo) {
+        return mCounts[pageNo];
+    }
+
+    /**
+     * @param pageNo the page number
+     * @param field the index of an int field
+     * @return the smallest value of field on the page
+     */
+    public synchronized int getMin(int pageNo, int field) {
+        return mMins[pageNo * mIntColumns.length + mColumnSlot[field]];
+    }
+
+    /**
+     * @param pageNo the page number
+     * @param field the index of an int field
+     * @return the largest value of field on the page
+     */
+    public synchronized int getMax(int pageNo, int field) {
+        return mMaxs[pageNo * mIntColumns.length + mColumnSlot[field]];
+    }
+
+    /**
+     * Returns false if no tuple on the specified page can satisfy all of the
+     * predicates. Pages this zone map knows nothing about may always match.
+     *
+     * @param pageNo the page number
+     * @param predicates a conjunction of predicates
+     * @return false if the page can be skipped
+     */
+    public synchronized boolean mayMatch(int pageNo, Predicate[] predicates) {
+        if (pageNo >= mNumPages)
+            return true;
+        if (mCounts[pageNo] == 0)
+            return false;
+
+        for (Predicate p : predicates) {
+            int c = mColumnSlot[p.getField()];
+            if (c < 0)
+                continue;
+            int min = mMins[pageNo * mIntColumns.length + c];
+            int max = mMaxs[pageNo * mIntColumns.length + c];
+            int v = ((IntField) p.getOperand()).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                if (v < min || v > max)
+                    return false;
+                break;
+            case NOT_EQUALS:
+                if (min == v && max == v)
+                    return false;
+                break;
+            case GREATER_THAN:
+                if (max <= v)
+                    return false;
+                break;
+            case GREATER_THAN_OR_EQ:
+                if (max < v)
+                    return false;
+                break;
+            case LESS_THAN:
+                if (min >= v)
+                    return false;
+                break;
+            case LESS_THAN_OR_EQ:
+                if (min > v)
+                    return false;
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record that t was inserted on page pageNo, widening its bounds.
+     */
+    public synchronized void addTuple(int pageNo, Tuple t) {
+        ensurePage(pageNo);
+        mCounts[pageNo]++;
+        for (int c = 0; c < mIntColumns.length; c++) {
+            int v = ((IntField) t.getField(mIntColumns[c])).getValue();
+            int i = pageNo * mIntColumns.length + c;
+            if (v < mMins[i])
+                mMins[i] = v;
+            if (v > mMaxs[i])
+                mMaxs[i] = v;
+        }
+    }
+
+    /**
+     * Record that t was deleted from page. If t held the minimum or maximum
+     * of one of the int columns, the page's bounds are recomputed from the
+     * tuples left on it.
+     *
+     * @param page the page t was deleted from
+     * @param t the deleted tuple
+     */
+    public synchronized void removeTuple(HeapPage page, Tuple t) {
+        int pageNo = page.getId().pageNumber();
+        ensurePage(pageNo);
+        for (int c = 0; c < mIntColumns.length; c++) {
+            int v = ((IntField) t.getField(mIntColumns[c])).getValue();
+            int i = pageNo * mIntColumns.length + c;
+            if (v == mMins[i] || v == mMaxs[i]) {
+                updatePage(page);
+                return;
+            }
+        }
+        mCounts[pageNo] = Math.max(0, mCounts[pageNo] - 1);
+    }
+
+    /**
+     * Recompute the entry of a page from the tuples on it.
+     */
+    public synchronized void updatePage(HeapPage page) {
+        int pageNo = page.getId().pageNumber();
+        ensurePage(pageNo);
+        resetPage(pageNo);
+        for (int slot = 0; slot < page.getNumSlots(); slot++) {
+            if (!page.isSlotUsed(slot))
+                continue;
+            mCounts[pageNo]++;
+            for (int c = 0; c < mIntColumns.length; c++) {
+                int v = page.getIntField(slot, mIntColumns[c]);
+                int i = pageNo * mIntColumns.length + c;
+                if (v < mMins[i])
+                    mMins[i] = v;
+                if (v > mMaxs[i])
+                    mMaxs[i] = v;
+            }
+        }
+    }
+
+    /** Drop all page entries. */
+    public synchronized void clear() {
+        mNumPages = 0;
+    }
+
+    private void resetPage(int pageNo) {
+        mCounts[pageNo] = 0;
+        for (int c = 0; c < mIntColumns.length; c++) {
+            mMins[pageNo * mIntColumns.length + c] = Integer.MAX_VALUE;
+            mMaxs[pageNo * mIntColumns.length + c] = Integer.MIN_VALUE;
+        }
+    }
+
+    /** Make sure there are entries for pages 0..pageNo. */
+    private void ensurePage(int pageNo) {
+        if (pageNo >= mCounts.length) {
+            int capacity = Math.max(pageNo + 1, mCounts.length * 2);
+            int[] counts = new int[capacity];
+            int[] mins = new int[capacity * mIntColumns.length];
+            int[] maxs = new int[capacity * mIntColumns.length];
+            System.arraycopy(mCounts, 0, counts, 0, mNumPages);
+            System.arraycopy(mMins, 0, mins, 0, mNumPages * mIntColumns.length);
+            System.arraycopy(mMaxs, 0, maxs, 0, mNumPages * mIntColumns.length);
+            mCounts = counts;
+            mMins = mins;
+            mMaxs = maxs;
+        }
+        while (mNumPages <= pageNo) {
+            resetPage(mNumPages++);
+        }
+    }
+
+    private int recordSize() {
+        return 4 + 8 * mIntColumns.length;
+    }
+
+    /**
+     * Read the sidecar into this zone map.
+     *
+     * @return false if the sidecar does not belong to a table with this
+     *         schema or is truncated
+     */
+    private boolean load() throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mFile)));
+        try {
+            if (dis.readInt() != VERSION || dis.readInt() != mIntColumns.length)
+                return false;
+            int numPages = dis.readInt();
+            if (mFile.length() < HEADER_SIZE + (long) numPages * recordSize())
+                return false;
+            clear();
+            if (numPages > 0)
+                ensurePage(numPages - 1);
+            for (int p = 0; p < numPages; p++) {
+                mCounts[p] = dis.readInt();
+                for (int c = 0; c < mIntColumns.length; c++) {
+                    mMins[p * mIntColumns.length + c] = dis.readInt();
+                    mMaxs[p * mIntColumns.length + c] = dis.readInt();
+                }
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Write the whole zone map to its sidecar file.
+     */
+    public synchronized void save() throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mFile)));
+        try {
+            dos.writeInt(VERSION);
+            dos.writeInt(mIntColumns.length);
+            dos.writeInt(mNumPages);
+            for (int p = 0; p < mNumPages; p++) {
+                writeRecord(dos, p);
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    /**
+     * Write the entry of a single page to the sidecar file, in place. Called
+     * whenever the page itself is written to disk, so the sidecar always
+     * describes the pages on disk.
+     */
+    public synchronized void savePage(int pageNo) throws IOException {
+        ensurePage(pageNo);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek(0);
+            raf.writeInt(VERSION);
+            raf.writeInt(mIntColumns.length);
+            raf.writeInt(mNumPages);
+            raf.seek(HEADER_SIZE + (long) pageNo * recordSize());
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(recordSize());
+            writeRecord(new DataOutputStream(baos), pageNo);
+            raf.write(baos.toByteArray());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void writeRecord(DataOutputStream dos, int pageNo) throws IOException {
+        dos.writeInt(mCounts[pageNo]);
+        for (int c = 0; c < mIntColumns.length; c++) {
+            dos.writeInt(mMins[pageNo * mIntColumns.length + c]);
+            dos.writeInt(mMaxs[pageNo * mIntColumns.length + c]);
+        }
+    }
+
+    public synchronized String toString() {
+        String out = "";
+        for (int p = 0; p < mNumPages; p++) {
+            out += String.format("page %d: %d tuples", p, mCounts[p]);
+            for (int c = 0; c < mIntColumns.length; c++) {
+                out += String.format(", %s in [%d, %d]",
+                        mTupleDesc.getFieldName(mIntColumns[c]),
+                        mMins[p * mIntColumns.length + c],
+                        mMaxs[p * mIntColumns.length + c]);
+            }
+            out += "\n";
+        }
+        return out;
+    }
+}
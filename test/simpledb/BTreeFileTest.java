@@ -0,0 +1,216 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeFileTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+    private static final TupleDesc TD = Utility.getTupleDesc(2);
+
+    private File file;
+    private BTreeFile bf;
+    private TransactionId tid;
+
+    /**
+     * Use small pages so a few thousand tuples make a tree with several
+     * levels of internal pages.
+     */
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        BufferPool.setPageSize(256);
+        Database.resetBufferPool(1000);
+        file = File.createTempFile("btree", ".dat");
+        file.deleteOnExit();
+        bf = new BTreeFile(file, 0, TD);
+        Database.getCatalog().addTable(bf, "btree");
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        BufferPool.setPageSize(BufferPool.PAGE_SIZE);
+    }
+
+    private static Tuple tuple(int key, int value) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(key));
+        t.setField(1, new IntField(value));
+        return t;
+    }
+
+    /**
+     * Insert the keys 0 .. ROWS-1 (each twice if dup) in random order.
+     */
+    private void insertShuffled(boolean dup) throws Exception {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < ROWS; i++) {
+            keys.add(i);
+            if (dup)
+                keys.add(i);
+        }
+        Collections.shuffle(keys, new Random(31));
+        for (int k : keys)
+            Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(k, -k));
+    }
+
+    private static int key(Tuple t) {
+        return TestUtil.getIntField(t, 0);
+    }
+
+    private void assertSorted(List<Tuple> tuples) {
+        for (int i = 1; i < tuples.size(); i++)
+            assertTrue(key(tuples.get(i - 1)) <= key(tuples.get(i)));
+    }
+
+    @Test
+    public void emptyTree() throws Exception {
+        assertTrue(TestUtil.drain(bf.iterator(tid)).isEmpty());
+        assertEquals(2, bf.numPages());
+    }
+
+    @Test
+    public void insertAndScan() throws Exception {
+        insertShuffled(false);
+        ArrayList<Tuple> tuples = TestUtil.drain(bf.iterator(tid));
+        assertEquals(ROWS, tuples.size());
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals(i, key(tuples.get(i)));
+            assertEquals(-i, ((IntField) tuples.get(i).getField(1)).getValue());
+        }
+
+        BTreePageId root = bf.getRootId(tid, new HashMap<PageId, Page>());
+        assertEquals(BTreePageId.INTERNAL, root.pgcateg());
+        BTreeInternalPage rootPage = (BTreeInternalPage) Database.getBufferPool().getPage(
+                tid, root, Permissions.READ_ONLY);
+        assertEquals(BTreePageId.INTERNAL, rootPage.getChildCategory());
+    }
+
+    @Test
+    public void pointAndRangeLookups() throws Exception {
+        insertShuffled(true);
+
+        ArrayList<Tuple> eq = TestUtil.drain(bf.indexIterator(tid,
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(1234))));
+        assertEquals(2, eq.size());
+        for (Tuple t : eq)
+            assertEquals(1234, key(t));
+
+        ArrayList<Tuple> range = TestUtil.drain(bf.indexIterator(tid,
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(2990))));
+        assertEquals(18, range.size());
+        assertEquals(2991, key(range.get(0)));
+        assertSorted(range);
+
+        range = TestUtil.drain(bf.indexIterator(tid,
+                new Predicate(0, Predicate.Op.LESS_THAN_OR_EQ, new IntField(9))));
+        assertEquals(20, range.size());
+        assertSorted(range);
+
+        assertTrue(TestUtil.drain(bf.indexIterator(tid,
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(ROWS)))).isEmpty());
+
+        // a scan with pushed-down predicates uses the key bounds and checks
+        // the rest on each tuple
+        Predicate[] preds = new Predicate[] {
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(100)),
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(200)),
+                new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(-150)) };
+        ArrayList<Tuple> filtered = TestUtil.drain(bf.iterator(tid, preds));
+        assertEquals(100, filtered.size());
+        assertEquals(150, key(filtered.get(0)));
+        assertEquals(199, key(filtered.get(filtered.size() - 1)));
+    }
+
+    @Test
+    public void indexScan() throws Exception {
+        insertShuffled(false);
+        IndexScan scan = new IndexScan(tid, bf.getId(), "b",
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(5)));
+        assertTrue(scan.getTupleDesc().getFieldName(0).startsWith("b."));
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            assertEquals(n, key(scan.next()));
+            n++;
+        }
+        assertEquals(5, n);
+        scan.rewind();
+        assertTrue(scan.hasNext());
+        scan.close();
+    }
+
+    @Test
+    public void deleteMergesAndReusesPages() throws Exception {
+        insertShuffled(false);
+        int pagesAfterInsert = bf.numPages();
+
+        // delete all but every tenth key, forcing steals and merges up to
+        // the root
+        ArrayList<Tuple> tuples = TestUtil.drain(bf.iterator(tid));
+        Collections.shuffle(tuples, new Random(7));
+        for (Tuple t : tuples) {
+            if (key(t) % 10 != 0) {
+                Tuple current = TestUtil.drain(bf.indexIterator(tid,
+                        new Predicate(0, Predicate.Op.EQUALS, t.getField(0)))).get(0);
+                Database.getBufferPool().deleteTuple(tid, current);
+            }
+        }
+
+        ArrayList<Tuple> left = TestUtil.drain(bf.iterator(tid));
+        assertEquals(ROWS / 10, left.size());
+        for (int i = 0; i < left.size(); i++)
+            assertEquals(i * 10, key(left.get(i)));
+
+        // freed pages are reused before the file grows
+        insertShuffled(false);
+        assertTrue(bf.numPages() <= pagesAfterInsert + pagesAfterInsert / 2);
+        ArrayList<Tuple> all = TestUtil.drain(bf.iterator(tid));
+        assertEquals(ROWS + ROWS / 10, all.size());
+        assertSorted(all);
+    }
+
+    @Test
+    public void deleteEverything() throws Exception {
+        insertShuffled(false);
+        for (int k = 0; k < ROWS; k++) {
+            Tuple t = TestUtil.drain(bf.indexIterator(tid,
+                    new Predicate(0, Predicate.Op.EQUALS, new IntField(k)))).get(0);
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        assertTrue(TestUtil.drain(bf.iterator(tid)).isEmpty());
+        BTreePageId root = bf.getRootId(tid, new HashMap<PageId, Page>());
+        assertEquals(BTreePageId.LEAF, root.pgcateg());
+    }
+
+    @Test
+    public void survivesEvictionAndReopen() throws Exception {
+        Database.resetBufferPool(16);
+        insertShuffled(false);
+        Database.getBufferPool().flushAllPages();
+
+        Database.resetBufferPool(16);
+        BTreeFile reopened = new BTreeFile(file, 0, TD);
+        Database.getCatalog().addTable(reopened, "btree");
+        ArrayList<Tuple> tuples = TestUtil.drain(reopened.iterator(tid));
+        assertEquals(ROWS, tuples.size());
+        for (int i = 0; i < ROWS; i++)
+            assertEquals(i, key(tuples.get(i)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeFileTest.class);
+    }
+}
@@ -0,0 +1,232 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BitmapIndexFileTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+    private static final TupleDesc TD = Utility.getTupleDesc(3);
+
+    private File heapFile;
+    private File colorFile;
+    private File sizeFile;
+    private HeapFile hf;
+    private BitmapIndexFile color;
+    private BitmapIndexFile size;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        heapFile = File.createTempFile("bitmapidx", ".dat");
+        heapFile.deleteOnExit();
+        ZoneMap.sidecarFor(heapFile).deleteOnExit();
+        FreeSpaceMap.sidecarFor(heapFile).deleteOnExit();
+        colorFile = File.createTempFile("bitmapidx", ".color");
+        colorFile.deleteOnExit();
+        sizeFile = File.createTempFile("bitmapidx", ".size");
+        sizeFile.deleteOnExit();
+        hf = new HeapFile(heapFile, TD);
+        Database.getCatalog().addTable(hf, "heap");
+        color = new BitmapIndexFile(colorFile, hf.getId(), 0);
+        Database.getCatalog().addIndex(color);
+        size = new BitmapIndexFile(sizeFile, hf.getId(), 1);
+        Database.getCatalog().addIndex(size);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Insert ROWS tuples (i % 4, i % 10, i) through the BufferPool.
+     */
+    private void insertRows() throws Exception {
+        for (int i = 0; i < ROWS; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(),
+                    Utility.getTuple(new int[] { i % 4, i % 10, i }, 3));
+    }
+
+    private ArrayList<Tuple> lookup(BitmapIndexFile idx, Predicate.Op op, int key,
+            Predicate... preds) throws Exception {
+        return TestUtil.drain(idx.lookup(tid, op, new IntField(key), preds));
+    }
+
+    @Test
+    public void lookupsFindEveryMatch() throws Exception {
+        assertEquals(0, lookup(color, Predicate.Op.EQUALS, 1).size());
+        insertRows();
+        assertEquals(4, color.numValues());
+        assertEquals(ROWS, TestUtil.drain(color.iterator(tid)).size());
+
+        for (Tuple t : lookup(color, Predicate.Op.EQUALS, 3))
+            assertEquals(3, TestUtil.getIntField(t, 0));
+        assertEquals(ROWS / 4, lookup(color, Predicate.Op.EQUALS, 3).size());
+        assertEquals(3 * ROWS / 4, lookup(color, Predicate.Op.NOT_EQUALS, 3).size());
+        assertEquals(ROWS / 2, lookup(color, Predicate.Op.LESS_THAN, 2).size());
+        assertEquals(3 * ROWS / 4, lookup(color, Predicate.Op.LESS_THAN_OR_EQ, 2).size());
+        assertEquals(ROWS / 4, lookup(color, Predicate.Op.GREATER_THAN, 2).size());
+        assertEquals(ROWS / 2, lookup(color, Predicate.Op.GREATER_THAN_OR_EQ, 2).size());
+        assertEquals(0, lookup(color, Predicate.Op.EQUALS, 9).size());
+
+        // tuples come back in the order they are stored in
+        int last = -1;
+        for (Tuple t : lookup(color, Predicate.Op.NOT_EQUALS, 0)) {
+            assertTrue(TestUtil.getIntField(t, 2) > last);
+            last = TestUtil.getIntField(t, 2);
+        }
+    }
+
+    /**
+     * Predicates on other bitmap-indexed fields are ANDed into the bitmap;
+     * the rest are checked on the tuples fetched.
+     */
+    @Test
+    public void combinesPredicates() throws Exception {
+        insertRows();
+        // i % 4 == 1 and i % 10 == 5: i % 20 == 5
+        ArrayList<Tuple> found = lookup(color, Predicate.Op.EQUALS, 1,
+                new Predicate(1, Predicate.Op.EQUALS, new IntField(5)),
+                new Predicate(2, Predicate.Op.LESS_THAN, new IntField(ROWS / 2)));
+        assertEquals(ROWS / 40, found.size());
+        for (Tuple t : found)
+            assertEquals(5, TestUtil.getIntField(t, 2) % 20);
+
+        // the same bitmaps ORed by hand: i % 4 == 1 or i % 10 == 5
+        RoaringBitmap either = RoaringBitmap.or(color.bitmap(Predicate.Op.EQUALS, new IntField(1)),
+                size.bitmap(Predicate.Op.EQUALS, new IntField(5)));
+        assertEquals(ROWS / 4 + ROWS / 10 - ROWS / 20,
+                TestUtil.drain(color.lookup(tid, either, null)).size());
+    }
+
+    /**
+     * IndexScan hands the other predicates to the bitmap lookup.
+     */
+    @Test
+    public void indexScan() throws Exception {
+        insertRows();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "h");
+        scan.addPredicate(new Predicate(0, Predicate.Op.EQUALS, new IntField(2)));
+        scan.addPredicate(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(7)));
+        IndexScan is = LogicalPlan.indexScanFor(tid, scan, null);
+        assertNotNull(is);
+        assertSame(color, is.getIndex());
+        int n = 0;
+        is.open();
+        while (is.hasNext()) {
+            Tuple t = is.next();
+            assertEquals(2, TestUtil.getIntField(t, 0));
+            assertEquals(8, TestUtil.getIntField(t, 1));
+            n++;
+        }
+        is.close();
+        assertEquals(ROWS / 20, n);
+    }
+
+    @Test
+    public void deletesRemoveEntries() throws Exception {
+        insertRows();
+        ArrayList<Tuple> doomed = TestUtil.drain(hf.iterator(tid, new Predicate[] {
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(5)) }));
+        for (Tuple t : doomed)
+            Database.getBufferPool().deleteTuple(tid, t);
+
+        assertEquals(5, size.numValues());
+        assertEquals(0, lookup(size, Predicate.Op.LESS_THAN, 5).size());
+        assertEquals(ROWS / 2, TestUtil.drain(color.iterator(tid)).size());
+        assertEquals(ROWS / 10, lookup(color, Predicate.Op.EQUALS, 0).size());
+
+        // deleting a tuple the index has no entry for fails
+        Tuple t = Utility.getTuple(new int[] { 1, 1, 1 }, 3);
+        t.setRecordId(new RecordId(new HeapPageId(hf.getId(), 0), 1));
+        try {
+            size.deleteTuple(tid, t);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    private BitmapIndexFile reopen(File f, int field) {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getCatalog().clear();
+        HeapFile reopenedHeap = new HeapFile(heapFile, TD);
+        Database.getCatalog().addTable(reopenedHeap, "heap");
+        BitmapIndexFile reopened = new BitmapIndexFile(f, reopenedHeap.getId(), field);
+        Database.getCatalog().addIndex(reopened);
+        return reopened;
+    }
+
+    /**
+     * The index is saved once all the pages of the table are, not as each
+     * page is written, and read back when reopened.
+     */
+    @Test
+    public void savedWithTable() throws Exception {
+        insertRows();
+        Database.getBufferPool().flushPages(tid);
+        assertEquals(0, colorFile.length());
+        Database.getBufferPool().flushAllPages();
+        assertTrue(colorFile.length() > 0);
+        // far smaller than the (key, page, slot) entries it holds
+        assertTrue(colorFile.length() < ROWS * 4);
+
+        BitmapIndexFile reopened = reopen(colorFile, 0);
+        assertEquals(4, reopened.numValues());
+        assertEquals(ROWS / 4, lookup(reopened, Predicate.Op.EQUALS, 1).size());
+    }
+
+    /**
+     * A saved index older than its table is rebuilt from the table.
+     */
+    @Test
+    public void staleIndexRebuilt() throws Exception {
+        insertRows();
+        Database.getBufferPool().flushAllPages();
+        colorFile.setLastModified(heapFile.lastModified() - 10000);
+
+        BitmapIndexFile reopened = reopen(colorFile, 0);
+        assertEquals(4, reopened.numValues());
+        assertEquals(ROWS / 4, lookup(reopened, Predicate.Op.EQUALS, 1).size());
+        assertTrue(colorFile.lastModified() >= heapFile.lastModified());
+    }
+
+    @Test
+    public void catalogCreatesBitmapIndexes() throws Exception {
+        insertRows();
+        Database.getCatalog().clear();
+        Database.getCatalog().addTable(hf, "heap");
+        DbIndex index = Database.getCatalog().createIndex(tid, hf.getId(), 2,
+                Catalog.BITMAP_INDEX);
+        assertTrue(index instanceof BitmapIndexFile);
+        // the index has no pages to read
+        try {
+            Database.getCatalog().getDatabaseFile(index.getId());
+            fail("expected NoSuchElementException");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        ((BitmapIndexFile) index).getFile().deleteOnExit();
+        assertSame(index, Database.getCatalog().getIndex(hf.getId(), 2, Predicate.Op.GREATER_THAN));
+        assertNull(Database.getCatalog().getIndex(hf.getId(), 2, Predicate.Op.LIKE));
+        assertEquals(10, lookup((BitmapIndexFile) index, Predicate.Op.LESS_THAN, 10).size());
+        assertTrue(((BitmapIndexFile) index).getFile().length() > 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BitmapIndexFileTest.class);
+    }
+}
@@ -0,0 +1,244 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Clean pages of an off-heap pool are only kept as page data; every
+     * request decodes a new Page from it.
+     */
+    @Test
+    public void offHeapDecodesCleanPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(hf.numPages(), true);
+        assertTrue(bp.isOffHeap());
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        assertEquals(0, bp.numHeapPages());
+
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        Page first = bp.getPage(tid, pid, Permissions.READ_ONLY);
+        Page second = bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertNotSame(first, second);
+        assertArrayEquals(first.getPageData(), second.getPageData());
+
+        // a page that may be modified stays the same object until flushed
+        Page writable = bp.getPage(tid, pid, Permissions.READ_WRITE);
+        assertSame(writable, bp.getPage(tid, pid, Permissions.READ_ONLY));
+        assertEquals(1, bp.numHeapPages());
+        bp.flushAllPages();
+        assertEquals(0, bp.numHeapPages());
+    }
+
+    /**
+     * Dirty pages stay on the heap until they are written back, including
+     * when they are evicted from a pool much smaller than the table.
+     */
+    @Test
+    public void offHeapKeepsWrites() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4, true);
+        for (int i = 0; i < 1000; i++) {
+            bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { -i, i }));
+            tuples.add(new ArrayList<Integer>(Arrays.asList(-i, i)));
+        }
+        assertTrue(bp.numHeapPages() > 0);
+
+        DbFileIterator it = hf.iterator(tid, new Predicate[] {
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100)) });
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            doomed.add(it.next());
+        it.close();
+        for (Tuple t : doomed) {
+            bp.deleteTuple(tid, t);
+            tuples.remove(SystemTestUtil.tupleToList(t));
+        }
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+
+        bp.flushAllPages();
+        assertEquals(0, bp.numHeapPages());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+    }
+
+    /**
+     * A pinned page stays cached while other pages cycle through the pool,
+     * and a pool whose frames are all pinned can't take another page.
+     */
+    @Test
+    public void pinnedPagesAreNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        HeapPageId first = new HeapPageId(hf.getId(), 0);
+        Page pinned = bp.pinPage(tid, first, Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(first));
+        for (int p = 1; p < hf.numPages(); p++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), p), Permissions.READ_ONLY);
+        assertSame(pinned, bp.getPage(tid, first, Permissions.READ_ONLY));
+
+        HeapPageId second = new HeapPageId(hf.getId(), 1);
+        bp.pinPage(tid, second, Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.unpinPage(tid, second);
+        bp.unpinPage(tid, first);
+        assertEquals(0, bp.getPinCount(first));
+        bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+    }
+
+    /**
+     * A scan keeps only the page it is reading pinned.
+     */
+    @Test
+    public void iteratorPinsCurrentPage() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        int perPage = HeapPage.getNumTuples(hf.getTupleDesc());
+        HeapPageId first = new HeapPageId(hf.getId(), 0);
+        HeapPageId second = new HeapPageId(hf.getId(), 1);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        it.next();
+        assertEquals(1, bp.getPinCount(first));
+        for (int i = 1; i <= perPage; i++)
+            it.next();
+        assertEquals(0, bp.getPinCount(first));
+        assertEquals(1, bp.getPinCount(second));
+        it.close();
+        assertEquals(0, bp.getPinCount(second));
+
+        // running off the end unpins the last page
+        it.open();
+        while (it.hasNext())
+            it.next();
+        for (int p = 0; p < hf.numPages(); p++)
+            assertEquals(0, bp.getPinCount(new HeapPageId(hf.getId(), p)));
+        it.close();
+    }
+
+    /**
+     * Pins belong to their transaction: another one can't release them, and
+     * the ones an abandoned scan leaves are released when it completes.
+     */
+    @Test
+    public void pinsReleasedWithTransaction() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        HeapPageId first = new HeapPageId(hf.getId(), 0);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        it.next();
+        bp.pinPage(tid, first, Permissions.READ_ONLY);
+        assertEquals(2, bp.getPinCount(first));
+        bp.unpinPage(new TransactionId(), first);
+        assertEquals(2, bp.getPinCount(first));
+
+        // the scan is never closed
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getPinCount(first));
+        for (int p = 1; p < hf.numPages(); p++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), p), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Inserts through the one frame a scan leaves unpinned lose nothing.
+     */
+    @Test
+    public void writesThroughSmallPool() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        it.next();
+        for (int i = 0; i < 1000; i++) {
+            bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { -i, i }));
+            tuples.add(new ArrayList<Integer>(Arrays.asList(-i, i)));
+        }
+        assertEquals(1, bp.getPinCount(new HeapPageId(hf.getId(), 0)));
+        it.close();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+    }
+
+    /**
+     * Readers racing each other for pages of a pool a fraction of the size
+     * of the table always get the page they asked for.
+     */
+    private void concurrentReaders(boolean offHeap) throws Exception {
+        final BufferPool bp = Database.resetBufferPool(3, offHeap);
+        final int pages = hf.numPages();
+        final int perPage = HeapPage.getNumTuples(hf.getTupleDesc());
+        final ArrayList<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final Random rand = new Random(t);
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            int p = rand.nextInt(pages);
+                            HeapPage page = (HeapPage) bp.getPage(tid,
+                                    new HeapPageId(hf.getId(), p), Permissions.READ_ONLY);
+                            assertEquals(p, page.getId().pageNumber());
+                            Tuple first = page.iterator().next();
+                            assertEquals(tuples.get(p * perPage), SystemTestUtil.tupleToList(first));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        if (!failures.isEmpty())
+            throw new AssertionError(failures.get(0));
+    }
+
+    @Test
+    public void concurrentReadersOnHeap() throws Exception {
+        concurrentReaders(false);
+    }
+
+    @Test
+    public void concurrentReadersOffHeap() throws Exception {
+        concurrentReaders(true);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
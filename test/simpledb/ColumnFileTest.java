@@ -0,0 +1,258 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ColumnFileTest extends SimpleDbTestBase {
+    private static final int ROWS = 10000;
+    private static final String[] REGIONS = { "north", "south", "east", "west" };
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "id", "region", "qty" });
+
+    private File dir;
+    private File file;
+    private ColumnFile cf;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDirectory("columnfile").toFile();
+        file = new File(dir, "sales.dat");
+        cf = new ColumnFile(file, TD);
+        Database.getCatalog().addTable(cf, "sales");
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    /**
+     * @return row i: (i, REGIONS[i % 4], i / 100)
+     */
+    private static Tuple row(int i) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(REGIONS[i % REGIONS.length], Type.STRING_LEN));
+        t.setField(2, new IntField(i / 100));
+        return t;
+    }
+
+    private void insertRows(int from, int to) throws Exception {
+        for (int i = from; i < to; i++)
+            Database.getBufferPool().insertTuple(tid, cf.getId(), row(i));
+    }
+
+    private ColumnFile reopen() {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getCatalog().clear();
+        ColumnFile reopened = new ColumnFile(file, TD);
+        Database.getCatalog().addTable(reopened, "sales");
+        return reopened;
+    }
+
+    @Test
+    public void insertAndScan() throws Exception {
+        assertEquals(0, TestUtil.drain(cf.iterator(tid)).size());
+        insertRows(0, ROWS);
+        assertEquals(ROWS, cf.numTuples());
+
+        ArrayList<Tuple> tuples = TestUtil.drain(cf.iterator(tid));
+        assertEquals(ROWS, tuples.size());
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals(row(i).toString(), tuples.get(i).toString());
+            assertEquals(i, tuples.get(i).getRecordId().tupleno());
+        }
+
+        Database.getBufferPool().flushAllPages();
+        cf = reopen();
+        assertEquals(ROWS, cf.numTuples());
+        tuples = TestUtil.drain(cf.iterator(tid));
+        for (int i = 0; i < ROWS; i += 37)
+            assertEquals(row(i).toString(), tuples.get(i).toString());
+    }
+
+    /**
+     * Runs of equal values and small ranges take a fraction of the pages a
+     * HeapFile needs for the same tuples.
+     */
+    @Test
+    public void compressesColumns() throws Exception {
+        insertRows(0, ROWS);
+        int heapPages = (ROWS + HeapPage.getNumTuples(TD) - 1) / HeapPage.getNumTuples(TD);
+        assertTrue(cf.numPages() * 20 < heapPages);
+        // a single page holds every region, and every quantity
+        assertEquals(1, cf.numPages(1));
+        assertEquals(1, cf.numPages(2));
+
+        ColumnPage ids = (ColumnPage) Database.getBufferPool().getPage(tid,
+                new ColumnPageId(cf.getId(), 0, 0), Permissions.READ_ONLY);
+        ColumnPage qty = (ColumnPage) Database.getBufferPool().getPage(tid,
+                new ColumnPageId(cf.getId(), 2, 0), Permissions.READ_ONLY);
+        ColumnPage regions = (ColumnPage) Database.getBufferPool().getPage(tid,
+                new ColumnPageId(cf.getId(), 1, 0), Permissions.READ_ONLY);
+        assertEquals(ColumnPage.BIT_PACKED, ids.getEncoding());
+        assertEquals(ColumnPage.RLE, qty.getEncoding());
+        assertEquals(ColumnPage.DICTIONARY, regions.getEncoding());
+
+        // each encoding reads back what it wrote
+        for (ColumnPage p : new ColumnPage[] { ids, qty, regions }) {
+            ColumnPage copy = new ColumnPage(p.getId(), p.getPageData());
+            assertEquals(p.getNumValues(), copy.getNumValues());
+            for (int i = 0; i < p.getNumValues(); i++)
+                assertEquals(p.getField(i), copy.getField(i));
+        }
+    }
+
+    /**
+     * A scan for some fields never reads the pages of the others: it still
+     * works once their column file is gone.
+     */
+    @Test
+    public void readsOnlyRequestedColumns() throws Exception {
+        insertRows(0, ROWS);
+        Database.getBufferPool().flushAllPages();
+        cf = reopen();
+        assertTrue(cf.getColumnFile(0).delete());
+
+        Predicate[] preds = { new Predicate(1, Predicate.Op.EQUALS,
+                new StringField("east", Type.STRING_LEN)) };
+        ArrayList<Tuple> tuples = TestUtil.drain(cf.iterator(tid, preds, new int[] { 2 }));
+        assertEquals(ROWS / 4, tuples.size());
+        for (Tuple t : tuples) {
+            assertEquals(0, TestUtil.getIntField(t, 0));
+            assertEquals("east", ((StringField) t.getField(1)).getValue());
+            assertEquals(t.getRecordId().tupleno() / 100, TestUtil.getIntField(t, 2));
+        }
+    }
+
+    @Test
+    public void predicates() throws Exception {
+        insertRows(0, ROWS);
+        Predicate[] preds = {
+                new Predicate(2, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(40)),
+                new Predicate(2, Predicate.Op.LESS_THAN, new IntField(45)),
+                new Predicate(1, Predicate.Op.NOT_EQUALS,
+                        new StringField("north", Type.STRING_LEN)) };
+        ArrayList<Tuple> tuples = TestUtil.drain(cf.iterator(tid, preds));
+        assertEquals(500 * 3 / 4, tuples.size());
+        for (Tuple t : tuples) {
+            assertTrue(TestUtil.getIntField(t, 0) >= 4000 && TestUtil.getIntField(t, 0) < 4500);
+            assertTrue(TestUtil.getIntField(t, 0) % 4 != 0);
+        }
+        assertEquals(0, TestUtil.drain(cf.iterator(tid, new Predicate[] {
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(0)) })).size());
+    }
+
+    @Test
+    public void deletes() throws Exception {
+        insertRows(0, ROWS);
+        ArrayList<Tuple> doomed = TestUtil.drain(cf.iterator(tid, new Predicate[] {
+                new Predicate(2, Predicate.Op.LESS_THAN, new IntField(50)) }));
+        Tuple again = new Tuple(TD);
+        again.setRecordId(doomed.get(0).getRecordId());
+        for (Tuple t : doomed)
+            Database.getBufferPool().deleteTuple(tid, t);
+        assertEquals(ROWS / 2, cf.numTuples());
+        try {
+            cf.deleteTuple(tid, again);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+
+        Database.getBufferPool().flushAllPages();
+        cf = reopen();
+        ArrayList<Tuple> tuples = TestUtil.drain(cf.iterator(tid));
+        assertEquals(ROWS / 2, tuples.size());
+        assertEquals(ROWS / 2, TestUtil.getIntField(tuples.get(0), 0));
+    }
+
+    /**
+     * Insert with bulkLoad packs the pages of each column in memory, and
+     * later inserts carry on after them.
+     */
+    @Test
+    public void bulkInsert() throws Exception {
+        insertRows(0, 10);
+        ArrayList<Tuple> load = new ArrayList<Tuple>();
+        for (int i = 10; i < ROWS; i++)
+            load.add(row(i));
+        Insert insert = new Insert(tid, new TupleIterator(TD, load), cf.getId(), true);
+        insert.open();
+        assertEquals(ROWS - 10, TestUtil.getIntField(insert.next(), 0));
+        insert.close();
+        insertRows(ROWS, ROWS + 10);
+
+        ArrayList<Tuple> tuples = TestUtil.drain(cf.iterator(tid));
+        assertEquals(ROWS + 10, tuples.size());
+        for (int i = 0; i < tuples.size(); i++)
+            assertEquals(i, TestUtil.getIntField(tuples.get(i), 0));
+        assertTrue(cf.numPages() < 12);
+    }
+
+    /**
+     * The planner only asks a scan for the fields the query uses.
+     */
+    @Test
+    public void plannerPushesProjection() throws Exception {
+        insertRows(0, ROWS);
+        Database.getBufferPool().flushAllPages();
+        cf = reopen();
+        // the statistics are gathered from every column
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("sales", new TableStats(cf.getId(), TableStats.IOCOSTPERPAGE));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertTrue(cf.getColumnFile(0).delete());
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(cf.getId(), "s");
+        lp.addFilter("s.region", Predicate.Op.EQUALS, "west");
+        lp.addProjectField("s.qty", null);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        int n = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            assertEquals((4 * n + 3) / 100, TestUtil.getIntField(plan.next(), 0));
+            n++;
+        }
+        plan.close();
+        assertEquals(ROWS / 4, n);
+    }
+
+    @Test
+    public void schemaDeclaresColumnarTables() throws Exception {
+        File catalog = new File(dir, "catalog.txt");
+        FileWriter w = new FileWriter(catalog);
+        w.write("facts (a int, b string) columnar\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        DbFile facts = Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId("facts"));
+        assertTrue(facts instanceof ColumnFile);
+        assertEquals(new File(dir, "facts.dat").getAbsoluteFile(),
+                ((ColumnFile) facts).getFile().getAbsoluteFile());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnFileTest.class);
+    }
+}
@@ -0,0 +1,214 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class CompressedHeapFileTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "id", "name", "qty" });
+
+    private File dir;
+    private File file;
+    private CompressedHeapFile hf;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDirectory("compressed").toFile();
+        file = new File(dir, "orders.dat");
+        hf = new CompressedHeapFile(file, TD);
+        Database.getCatalog().addTable(hf, "orders");
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    /**
+     * @return row i: (i, "customer" + i % 100, i % 10)
+     */
+    private static Tuple row(int i) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField("customer" + i % 100, Type.STRING_LEN));
+        t.setField(2, new IntField(i % 10));
+        return t;
+    }
+
+    private void insertRows() throws Exception {
+        for (int i = 0; i < ROWS; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), row(i));
+    }
+
+    private CompressedHeapFile reopen() {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getCatalog().clear();
+        CompressedHeapFile reopened = new CompressedHeapFile(file, TD);
+        Database.getCatalog().addTable(reopened, "orders");
+        return reopened;
+    }
+
+    private static void assertRoundTrip(byte[] data) {
+        byte[] compressed = PageCompressor.compress(data, 0, data.length);
+        assertTrue(compressed.length <= PageCompressor.maxCompressedLength(data.length));
+        byte[] out = new byte[data.length];
+        assertEquals(data.length, PageCompressor.decompress(compressed, 0, compressed.length, out));
+        assertArrayEquals(data, out);
+    }
+
+    @Test
+    public void compressorRoundTrips() throws Exception {
+        Random rand = new Random(7);
+        assertRoundTrip(new byte[0]);
+        assertRoundTrip(new byte[] { 1, 2, 3 });
+
+        byte[] zeros = new byte[BufferPool.PAGE_SIZE];
+        assertRoundTrip(zeros);
+        assertTrue(PageCompressor.compress(zeros, 0, zeros.length).length < 40);
+
+        byte[] random = new byte[BufferPool.PAGE_SIZE];
+        rand.nextBytes(random);
+        assertRoundTrip(random);
+
+        // short repeated patterns, overlapping matches and long literal runs
+        byte[] mixed = new byte[3 * BufferPool.PAGE_SIZE];
+        for (int i = 0; i < mixed.length; i++) {
+            int block = i / 700;
+            mixed[i] = (byte) (block % 3 == 0 ? rand.nextInt()
+                    : block % 3 == 1 ? i % 3 : i % 251);
+        }
+        assertRoundTrip(mixed);
+    }
+
+    @Test
+    public void insertAndScan() throws Exception {
+        assertEquals(0, hf.numPages());
+        assertEquals(0, TestUtil.drain(hf.iterator(tid)).size());
+        insertRows();
+        ArrayList<Tuple> tuples = TestUtil.drain(hf.iterator(tid));
+        assertEquals(ROWS, tuples.size());
+        for (int i = 0; i < ROWS; i++)
+            assertEquals(row(i).toString(), tuples.get(i).toString());
+
+        int pages = hf.numPages();
+        Database.getBufferPool().flushAllPages();
+        hf = reopen();
+        assertEquals(pages, hf.numPages());
+        tuples = TestUtil.drain(hf.iterator(tid, new Predicate[] {
+                new Predicate(2, Predicate.Op.EQUALS, new IntField(4)) }));
+        assertEquals(ROWS / 10, tuples.size());
+        for (Tuple t : tuples)
+            assertEquals(4, ((IntField) t.getField(0)).getValue() % 10);
+    }
+
+    /**
+     * The padding of short strings compresses away, so the data file is a
+     * fraction of the size of the uncompressed pages.
+     */
+    @Test
+    public void compressesPages() throws Exception {
+        insertRows();
+        Database.getBufferPool().flushAllPages();
+        long uncompressed = (long) hf.numPages() * BufferPool.PAGE_SIZE;
+        assertTrue(file.length() * 4 < uncompressed);
+        for (int p = 0; p < hf.numPages(); p++)
+            assertTrue(hf.compressedLength(p) < BufferPool.PAGE_SIZE / 4);
+    }
+
+    /**
+     * A page that outgrows its frame moves to the end of the file; the page
+     * table survives being lost, since it can be rebuilt from the frames.
+     */
+    @Test
+    public void rewritesAndRebuildsPageTable() throws Exception {
+        insertRows();
+        Database.getBufferPool().flushAllPages();
+        int pages = hf.numPages();
+        long length = file.length();
+
+        byte[] random = new byte[BufferPool.PAGE_SIZE];
+        new Random(3).nextBytes(random);
+        HeapPage noisy = new HeapPage(new HeapPageId(hf.getId(), 1), random);
+        hf.writePage(noisy);
+        assertEquals(pages, hf.numPages());
+        assertTrue(file.length() > length);
+        assertArrayEquals(noisy.getPageData(), hf.readPage(noisy.getId()).getPageData());
+
+        // shrinking again fits in the new frame
+        HeapPage empty = new HeapPage(new HeapPageId(hf.getId(), 1),
+                HeapPage.createEmptyPageData());
+        length = file.length();
+        hf.writePage(empty);
+        assertEquals(length, file.length());
+
+        assertTrue(CompressedHeapFile.sidecarFor(file).delete());
+        hf = reopen();
+        assertEquals(pages, hf.numPages());
+        assertArrayEquals(empty.getPageData(),
+                hf.readPage(new HeapPageId(hf.getId(), 1)).getPageData());
+        assertEquals(ROWS - HeapPage.getNumTuples(TD), TestUtil.drain(hf.iterator(tid)).size());
+    }
+
+    /**
+     * Truncating drops the frames of the cut pages, even those left before
+     * a kept page that moved to the end of the file.
+     */
+    @Test
+    public void truncateDropsPages() throws Exception {
+        insertRows();
+        Database.getBufferPool().flushAllPages();
+        int keep = hf.numPages() / 2;
+
+        byte[] random = new byte[BufferPool.PAGE_SIZE];
+        new Random(5).nextBytes(random);
+        hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 0), random));
+        hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 0),
+                HeapPage.createEmptyPageData()));
+        hf.truncate(keep);
+        assertEquals(keep, hf.numPages());
+        assertEquals((keep - 1) * HeapPage.getNumTuples(TD),
+                TestUtil.drain(hf.iterator(tid)).size());
+
+        assertTrue(CompressedHeapFile.sidecarFor(file).delete());
+        hf = reopen();
+        assertEquals(keep, hf.numPages());
+        assertEquals((keep - 1) * HeapPage.getNumTuples(TD),
+                TestUtil.drain(hf.iterator(tid)).size());
+    }
+
+    @Test
+    public void schemaDeclaresCompressedTables() throws Exception {
+        File catalog = new File(dir, "catalog.txt");
+        FileWriter w = new FileWriter(catalog);
+        w.write("notes (a int, b string) compressed\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        DbFile notes = Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId("notes"));
+        assertTrue(notes instanceof CompressedHeapFile);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,212 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HashIndexFileTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+    private static final int KEYS = 1000;
+    private static final TupleDesc TD = Utility.getTupleDesc(2);
+
+    private File heapFile;
+    private File indexFile;
+    private HeapFile hf;
+    private HashIndexFile index;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        heapFile = File.createTempFile("hashidx", ".dat");
+        heapFile.deleteOnExit();
+        ZoneMap.sidecarFor(heapFile).deleteOnExit();
+        FreeSpaceMap.sidecarFor(heapFile).deleteOnExit();
+        indexFile = File.createTempFile("hashidx", ".idx");
+        indexFile.deleteOnExit();
+        hf = new HeapFile(heapFile, TD);
+        Database.getCatalog().addTable(hf, "heap");
+        index = new HashIndexFile(indexFile, hf.getId(), 0);
+        Database.getCatalog().addIndex(index);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Insert ROWS tuples (i % KEYS, i) through the BufferPool.
+     */
+    private void insertRows() throws Exception {
+        for (int i = 0; i < ROWS; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(),
+                    Utility.getTuple(new int[] { i % KEYS, i }, 2));
+    }
+
+    private ArrayList<Tuple> lookup(HashIndexFile idx, int key, Predicate... preds)
+            throws Exception {
+        return TestUtil.drain(idx.lookup(tid, Predicate.Op.EQUALS, new IntField(key), preds));
+    }
+
+    private HashHeaderPage header() throws Exception {
+        return index.getHeaderPage(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY);
+    }
+
+    @Test
+    public void emptyIndex() throws Exception {
+        assertEquals(0, lookup(index, 7).size());
+        assertEquals(0, TestUtil.drain(index.iterator(tid)).size());
+        assertEquals(1, header().getNumBuckets());
+    }
+
+    @Test
+    public void lookupsFindEveryMatch() throws Exception {
+        insertRows();
+        for (int key = 0; key < KEYS; key += 37) {
+            ArrayList<Tuple> found = lookup(index, key);
+            assertEquals(ROWS / KEYS, found.size());
+            for (Tuple t : found) {
+                assertEquals(key, TestUtil.getIntField(t, 0));
+                assertEquals(key, TestUtil.getIntField(t, 1) % KEYS);
+            }
+        }
+        assertEquals(0, lookup(index, KEYS + 1).size());
+        assertEquals(ROWS, TestUtil.drain(index.iterator(tid)).size());
+    }
+
+    @Test
+    public void residualPredicates() throws Exception {
+        insertRows();
+        ArrayList<Tuple> found = lookup(index, 5,
+                new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(2 * KEYS)));
+        assertEquals(ROWS / KEYS - 2, found.size());
+        for (Tuple t : found)
+            assertTrue(TestUtil.getIntField(t, 1) > 2 * KEYS);
+    }
+
+    /**
+     * The index splits one bucket at a time as it fills instead of
+     * rehashing everything at once, keeping its load below LOAD_FACTOR.
+     */
+    @Test
+    public void growsOneBucketAtATime() throws Exception {
+        int buckets = header().getNumBuckets();
+        for (int i = 0; i < ROWS; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(),
+                    Utility.getTuple(new int[] { i, i }, 2));
+            int now = header().getNumBuckets();
+            assertTrue(now == buckets || now == buckets + 1);
+            buckets = now;
+        }
+        HashHeaderPage header = header();
+        assertEquals(ROWS, header.getNumEntries());
+        assertTrue(buckets > 1);
+        assertTrue(header.getNumEntries() <= HashIndexFile.LOAD_FACTOR * buckets
+                * HashBucketPage.getMaxEntries(Type.INT_TYPE));
+        for (int i = 0; i < ROWS; i += 97)
+            assertEquals(1, lookup(index, i).size());
+    }
+
+    @Test
+    public void deletesRemoveEntries() throws Exception {
+        insertRows();
+        ArrayList<Tuple> doomed = TestUtil.drain(hf.iterator(tid,
+                new Predicate[] { new Predicate(0, Predicate.Op.LESS_THAN, new IntField(KEYS / 2)) }));
+        for (Tuple t : doomed)
+            Database.getBufferPool().deleteTuple(tid, t);
+
+        assertEquals(ROWS / 2, header().getNumEntries());
+        assertEquals(ROWS / 2, TestUtil.drain(index.iterator(tid)).size());
+        assertEquals(0, lookup(index, 0).size());
+        assertEquals(0, lookup(index, KEYS / 2 - 1).size());
+        assertEquals(ROWS / KEYS, lookup(index, KEYS / 2).size());
+
+        // deleting a tuple the index has no entry for fails
+        Tuple t = Utility.getTuple(new int[] { 1, 1 }, 2);
+        t.setRecordId(new RecordId(new HeapPageId(hf.getId(), 0), 0));
+        try {
+            index.deleteTuple(tid, t);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void survivesEvictionAndReopen() throws Exception {
+        Database.resetBufferPool(16);
+        insertRows();
+        Database.getBufferPool().flushAllPages();
+
+        Database.resetBufferPool(16);
+        Database.getCatalog().clear();
+        HeapFile reopenedHeap = new HeapFile(heapFile, TD);
+        Database.getCatalog().addTable(reopenedHeap, "heap");
+        HashIndexFile reopened = new HashIndexFile(indexFile, reopenedHeap.getId(), 0);
+        Database.getCatalog().addIndex(reopened);
+        for (int key = 0; key < KEYS; key += 101)
+            assertEquals(ROWS / KEYS, lookup(reopened, key).size());
+    }
+
+    @Test
+    public void onlyEqualityLookups() {
+        assertTrue(index.supports(Predicate.Op.EQUALS));
+        assertFalse(index.supports(Predicate.Op.LESS_THAN));
+        assertSame(index, Database.getCatalog().getIndex(hf.getId(), 0, Predicate.Op.EQUALS));
+        assertNull(Database.getCatalog().getIndex(hf.getId(), 0, Predicate.Op.LESS_THAN));
+        assertNull(Database.getCatalog().getIndex(hf.getId(), 1, Predicate.Op.EQUALS));
+        try {
+            index.lookup(tid, Predicate.Op.LESS_THAN, new IntField(1), new Predicate[0]);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The planner turns a scan with an equality filter on the indexed field
+     * into an IndexScan using the hash index.
+     */
+    @Test
+    public void indexScan() throws Exception {
+        insertRows();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "h");
+        scan.addPredicate(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(3 * KEYS)));
+        scan.addPredicate(new Predicate(0, Predicate.Op.EQUALS, new IntField(9)));
+        IndexScan is = LogicalPlan.indexScanFor(tid, scan, null);
+        assertNotNull(is);
+        assertSame(index, is.getIndex());
+        assertEquals("h.", is.getTupleDesc().getFieldName(0).substring(0, 2));
+
+        int n = 0;
+        is.open();
+        while (is.hasNext()) {
+            Tuple t = is.next();
+            assertEquals(9, TestUtil.getIntField(t, 0));
+            assertTrue(TestUtil.getIntField(t, 1) < 3 * KEYS);
+            n++;
+        }
+        is.close();
+        assertEquals(3, n);
+
+        SeqScan range = new SeqScan(tid, hf.getId(), "h");
+        range.addPredicate(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(9)));
+        assertNull(LogicalPlan.indexScanFor(tid, range, null));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashIndexFileTest.class);
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HeapFileEncoderTest extends SimpleDbTestBase {
+
+    private static File tempFile(String suffix) throws IOException {
+        File f = File.createTempFile("encoder", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Converting a text file spanning several chunks must give the same
+     * bytes as converting the equivalent tuple list.
+     */
+    @Test public void textMatchesTupleList() throws Exception {
+        int rows = 504 * HeapFileEncoder.PAGES_PER_CHUNK * 2 + 17;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File text = tempFile(".txt");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(text));
+        Random r = new Random(42);
+        for (int i = 0; i < rows; i++) {
+            int a = r.nextInt(), b = -i;
+            tuples.add(new ArrayList<Integer>(Arrays.asList(a, b)));
+            bw.write(a + ", " + b + (i % 3 == 0 ? "\r\n" : "\n"));
+            if (i % 1000 == 0)
+                bw.write("\n");
+        }
+        bw.close();
+
+        File fromText = tempFile(".dat");
+        File fromList = tempFile(".dat");
+        HeapFileEncoder.Result result = HeapFileEncoder.convert(text, fromText,
+                BufferPool.getPageSize(), 2);
+        HeapFileEncoder.convert(tuples, fromList, BufferPool.getPageSize(), 2);
+
+        assertEquals(rows, result.numRecords);
+        assertEquals((rows + 503) / 504, result.numPages);
+        assertEquals(text.length(), result.bytesRead);
+        assertArrayEquals(TestUtil.readFileBytes(fromList.getAbsolutePath()),
+                TestUtil.readFileBytes(fromText.getAbsolutePath()));
+    }
+
+    @Test public void stringsAndLastLine() throws Exception {
+        File text = tempFile(".txt");
+        FileWriter fw = new FileWriter(text);
+        fw.write("1|hello\n2| world \n3|last");
+        fw.close();
+
+        File out = tempFile(".dat");
+        Type[] types = new Type[] { Type.INT_TYPE, Type.STRING_TYPE };
+        TupleDesc td = new TupleDesc(types);
+        HeapFileEncoder.Result result = HeapFileEncoder.convert(text, out,
+                BufferPool.getPageSize(), 2, types, '|');
+        assertEquals(3, result.numRecords);
+
+        HeapFile hf = new HeapFile(out, td);
+        Database.getCatalog().addTable(hf, "strings");
+        DbFileIterator it = hf.iterator(new TransactionId());
+        it.open();
+        String[] expected = { "hello", "world", "last" };
+        for (int i = 0; i < 3; i++) {
+            Tuple t = it.next();
+            assertEquals(i + 1, ((IntField) t.getField(0)).getValue());
+            assertEquals(expected[i], ((StringField) t.getField(1)).getValue());
+        }
+        assertFalse(it.hasNext());
+        it.close();
+    }
+
+    @Test(expected = IOException.class) public void badInt() throws Exception {
+        File text = tempFile(".txt");
+        FileWriter fw = new FileWriter(text);
+        fw.write("1,2\n3,x4\n");
+        fw.close();
+        HeapFileEncoder.convert(text, tempFile(".dat"), BufferPool.getPageSize(), 2);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileEncoderTest.class);
+    }
+}
@@ -43,6 +43,54 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for the free-space map kept by HeapFile.insertTuple() and
+     * HeapFile.deleteTuple()
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        for (int i = 0; i < 1008; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        FreeSpaceMap fsm = empty.getFreeSpaceMap();
+        assertEquals(2, fsm.numPages());
+        assertEquals(-1, fsm.findPageWithSpace());
+
+        // free a slot on the first page; the next insert should reuse it
+        Tuple t = Utility.getHeapTuple(7, 2);
+        t.setRecordId(new RecordId(new HeapPageId(empty.getId(), 0), 7));
+        empty.deleteTuple(tid, t);
+        assertEquals(1, fsm.getFreeSlots(0));
+        assertEquals(0, fsm.findPageWithSpace());
+
+        Tuple u = Utility.getHeapTuple(42, 2);
+        empty.insertTuple(tid, u);
+        assertEquals(0, u.getRecordId().getPageId().pageNumber());
+        assertEquals(2, empty.numPages());
+        assertEquals(-1, fsm.findPageWithSpace());
+    }
+
+    /**
+     * The first page with space is tracked as pages fill and empty, so a
+     * file that is full except at the tail finds it without a search.
+     */
+    @Test public void firstPageWithSpace() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(FreeSpaceMap.sidecarFor(empty.getFile()));
+        for (int p = 0; p < 10000; p++)
+            fsm.setFreeSlots(p, 0);
+        assertEquals(-1, fsm.findPageWithSpace());
+        fsm.setFreeSlots(9999, 3);
+        assertEquals(9999, fsm.findPageWithSpace());
+        fsm.setFreeSlots(42, 1);
+        assertEquals(42, fsm.findPageWithSpace());
+        fsm.setFreeSlots(5000, 1);
+        assertEquals(42, fsm.findPageWithSpace());
+        fsm.setFreeSlots(42, 0);
+        assertEquals(5000, fsm.findPageWithSpace());
+        fsm.setFreeSlots(5000, 0);
+        fsm.setFreeSlots(9999, 0);
+        assertEquals(-1, fsm.findPageWithSpace());
+    }
+
     /**
      * JUnit suite target
      */
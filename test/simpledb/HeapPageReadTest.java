@@ -12,6 +12,7 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -99,6 +100,63 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator(Predicate[])
+     */
+    @Test public void testPredicateIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate[] preds = new Predicate[] {
+            new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20000)),
+            new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50000))
+        };
+        Iterator<Tuple> it = page.iterator(preds);
+
+        int row = 0;
+        for (int[] values : EXAMPLE_VALUES) {
+            if (values[0] <= 20000 || values[1] >= 50000)
+                continue;
+            assertTrue(it.hasNext());
+            Tuple tup = it.next();
+            assertEquals(values[0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(values[1], ((IntField) tup.getField(1)).getValue());
+            row++;
+        }
+        assertFalse(it.hasNext());
+        assertEquals(10, row);
+    }
+
+    /**
+     * Readers that scan a page at the same time get the same Tuple for each
+     * slot, even though tuples are decoded lazily.
+     */
+    @Test public void concurrentIteratorsShareTuples() throws Exception {
+        final HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        final Tuple[][] seen = new Tuple[8][];
+        Thread[] readers = new Thread[seen.length];
+        for (int r = 0; r < readers.length; r++) {
+            final int reader = r;
+            readers[r] = new Thread() {
+                public void run() {
+                    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+                    Iterator<Tuple> it = page.iterator();
+                    while (it.hasNext())
+                        tuples.add(it.next());
+                    seen[reader] = tuples.toArray(new Tuple[0]);
+                }
+            };
+        }
+        for (Thread t : readers)
+            t.start();
+        for (Thread t : readers)
+            t.join();
+
+        for (Tuple[] tuples : seen) {
+            assertEquals(EXAMPLE_VALUES.length, tuples.length);
+            for (int i = 0; i < tuples.length; i++)
+                assertSame(seen[0][i], tuples[i]);
+        }
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.io.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HyperLogLogTest {
+
+    private static void assertWithin(double fraction, long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= fraction * expected);
+    }
+
+    @Test
+    public void countsDistinctInts() {
+        for (int n : new int[] { 10, 1000, 100000, 1000000 }) {
+            HyperLogLog h = new HyperLogLog();
+            for (int i = 0; i < n; i++) {
+                // every value three times
+                h.addInt(i * 7919);
+                h.addInt(i * 7919);
+                h.addInt(i * 7919);
+            }
+            assertWithin(0.05, n, h.estimate());
+        }
+        assertEquals(0, new HyperLogLog().estimate());
+    }
+
+    @Test
+    public void countsDistinctStrings() {
+        HyperLogLog h = new HyperLogLog();
+        for (int i = 0; i < 50000; i++)
+            h.addField(new StringField("customer" + (i % 20000), Type.STRING_LEN));
+        assertWithin(0.05, 20000, h.estimate());
+    }
+
+    /**
+     * The merge of the sketches of two overlapping sets counts their union.
+     */
+    @Test
+    public void mergeCountsUnion() {
+        HyperLogLog a = new HyperLogLog();
+        HyperLogLog b = new HyperLogLog();
+        HyperLogLog all = new HyperLogLog();
+        for (int i = 0; i < 60000; i++) {
+            a.addInt(i);
+            all.addInt(i);
+        }
+        for (int i = 40000; i < 100000; i++) {
+            b.addInt(i);
+            all.addInt(i);
+        }
+        HyperLogLog merged = a.copy();
+        merged.merge(b);
+        assertEquals(all.estimate(), merged.estimate());
+        assertWithin(0.05, 100000, merged.estimate());
+        assertWithin(0.05, 60000, a.estimate());
+        try {
+            a.merge(new HyperLogLog(10));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void serializes() throws Exception {
+        HyperLogLog h = new HyperLogLog(10);
+        for (int i = 0; i < 5000; i++)
+            h.addInt(i);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        h.serialize(new DataOutputStream(bytes));
+        assertEquals(1 + 1024, bytes.size());
+        HyperLogLog read = HyperLogLog.deserialize(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(h.estimate(), read.estimate());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HyperLogLogTest.class);
+    }
+}
@@ -0,0 +1,141 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  TransactionId tid;
+  BTreeFile inner;
+  DbIterator outer;
+  DbIterator eqJoin;
+  DbIterator gtJoin;
+
+  /**
+   * Build the inner table of JoinTest as a BTreeFile keyed on its first
+   * field.
+   */
+  @Before public void createTables() throws Exception {
+    tid = new TransactionId();
+    File f = File.createTempFile("inlj", ".dat");
+    f.deleteOnExit();
+    inner = new BTreeFile(f, 0, Utility.getTupleDesc(width2, "field"));
+    Database.getCatalog().addTable(inner, "inner");
+    int[][] rows = { { 4, 5, 6 }, { 1, 2, 3 }, { 5, 6, 7 }, { 3, 4, 5 }, { 2, 3, 4 } };
+    for (int[] row : rows)
+      Database.getBufferPool().insertTuple(tid, inner.getId(), Utility.getTuple(row, width2));
+
+    this.outer = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    7, 8 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7 });
+    this.gtJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] {
+                    3, 4, 1, 2, 3,
+                    3, 4, 2, 3, 4,
+                    5, 6, 1, 2, 3,
+                    5, 6, 2, 3, 4,
+                    5, 6, 3, 4, 5,
+                    5, 6, 4, 5, 6,
+                    7, 8, 1, 2, 3,
+                    7, 8, 2, 3, 4,
+                    7, 8, 3, 4, 5,
+                    7, 8, 4, 5, 6,
+                    7, 8, 5, 6, 7 });
+  }
+
+  private int count(DbIterator it) throws Exception {
+    int n = 0;
+    it.rewind();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    return n;
+  }
+
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, outer,
+        new SeqScan(tid, inner.getId(), "inner"));
+    assertEquals(width1 + width2, op.getTupleDesc().numFields());
+  }
+
+  @Test public void canUseIndex() {
+    assertTrue(IndexNestedLoopJoin.canUseIndex(inner.getId(), 0, Predicate.Op.EQUALS));
+    assertTrue(IndexNestedLoopJoin.canUseIndex(inner.getId(), 0, Predicate.Op.LESS_THAN));
+    assertFalse(IndexNestedLoopJoin.canUseIndex(inner.getId(), 0, Predicate.Op.NOT_EQUALS));
+    assertFalse(IndexNestedLoopJoin.canUseIndex(inner.getId(), 1, Predicate.Op.EQUALS));
+  }
+
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, outer,
+        new SeqScan(tid, inner.getId(), "inner"));
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    assertEquals(3, count(op));
+  }
+
+  @Test public void gtJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, outer,
+        new SeqScan(tid, inner.getId(), "inner"));
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+    assertEquals(11, count(op));
+  }
+
+  /**
+   * Predicates pushed into the inner scan still apply to the tuples found
+   * through the index.
+   */
+  @Test public void pushedInnerPredicates() throws Exception {
+    SeqScan scan = new SeqScan(tid, inner.getId(), "inner");
+    scan.addPredicate(new Predicate(2, Predicate.Op.LESS_THAN, new IntField(5)));
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, outer, scan);
+    op.open();
+    // inner tuples {1,2,3} and {2,3,4} pass, joined with outer 3, 5 and 7
+    assertEquals(6, count(op));
+  }
+
+  /**
+   * instantiateJoin builds an index join only for nodes the optimizer
+   * marked, and only when the inner side is a scan of the indexed table.
+   */
+  @Test public void instantiateJoin() throws Exception {
+    LogicalJoinNode lj = new LogicalJoinNode("outer", "inner", "outer.field0",
+        "inner.field0", Predicate.Op.EQUALS);
+    DbIterator outerScan = new SeqScan(tid, inner.getId(), "outer");
+    assertTrue(JoinOptimizer.instantiateJoin(lj, outerScan,
+        new SeqScan(tid, inner.getId(), "inner")) instanceof Join);
+    assertTrue(JoinOptimizer.instantiateJoin(lj.asIndexJoin(), outerScan,
+        new SeqScan(tid, inner.getId(), "inner")) instanceof IndexNestedLoopJoin);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
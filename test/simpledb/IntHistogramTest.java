@@ -0,0 +1,219 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class IntHistogramTest {
+    private static final double EPS = 1e-9;
+
+    /**
+     * A histogram with fewer integers than buckets is exact.
+     */
+    @Test
+    public void narrowRangeIsExact() {
+        IntHistogram h = new IntHistogram(10, 1, 5);
+        for (int v = 1; v <= 5; v++) {
+            for (int i = 0; i < v; i++)
+                h.addValue(v);
+        }
+        assertEquals(15, h.totalValues());
+        assertEquals(3.0 / 15, h.estimateSelectivity(Predicate.Op.EQUALS, 3), EPS);
+        assertEquals(3.0 / 15, h.estimateSelectivity(Predicate.Op.LIKE, 3), EPS);
+        assertEquals(12.0 / 15, h.estimateSelectivity(Predicate.Op.NOT_EQUALS, 3), EPS);
+        assertEquals(3.0 / 15, h.estimateSelectivity(Predicate.Op.LESS_THAN, 3), EPS);
+        assertEquals(6.0 / 15, h.estimateSelectivity(Predicate.Op.LESS_THAN_OR_EQ, 3), EPS);
+        assertEquals(9.0 / 15, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 3), EPS);
+        assertEquals(12.0 / 15, h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, 3), EPS);
+    }
+
+    @Test
+    public void outOfRangeConstants() {
+        IntHistogram h = new IntHistogram(100, -50, 50);
+        for (int v = -50; v <= 50; v++)
+            h.addValue(v);
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.EQUALS, 51), EPS);
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, -50), EPS);
+        assertEquals(1.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 51), EPS);
+        assertEquals(1.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, Integer.MIN_VALUE), EPS);
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, Integer.MAX_VALUE), EPS);
+    }
+
+    /**
+     * Within a bucket the values are assumed to be spread evenly.
+     */
+    @Test
+    public void wideRangeInterpolates() {
+        IntHistogram h = new IntHistogram(10, 0, 999);
+        for (int v = 0; v < 1000; v++)
+            h.addValue(v);
+        assertEquals(0.001, h.estimateSelectivity(Predicate.Op.EQUALS, 512), EPS);
+        assertEquals(0.25, h.estimateSelectivity(Predicate.Op.LESS_THAN, 250), EPS);
+        assertEquals(0.7, h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, 300), EPS);
+        assertEquals(0.001, h.avgSelectivity(), EPS);
+    }
+
+    @Test
+    public void fullIntRange() {
+        IntHistogram h = new IntHistogram(100, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        h.addValue(Integer.MIN_VALUE);
+        h.addValue(0);
+        h.addValue(Integer.MAX_VALUE);
+        assertEquals(1.0 / 3, h.estimateSelectivity(Predicate.Op.LESS_THAN, Integer.MIN_VALUE / 2), 0.01);
+        assertEquals(1.0 / 3, h.estimateSelectivity(Predicate.Op.GREATER_THAN, Integer.MAX_VALUE / 2), 0.01);
+    }
+
+    @Test
+    public void emptyHistogramSelectsNothing() {
+        IntHistogram h = new IntHistogram(100, 0, 0);
+        for (Predicate.Op op : Predicate.Op.values())
+            assertEquals(0.0, h.estimateSelectivity(op, 0), EPS);
+        assertEquals(0.0, h.avgSelectivity(), EPS);
+    }
+
+    /**
+     * Values added after the histogram is built are counted in the MCV or
+     * bucket they fall in, widening the first or last bucket if needed.
+     */
+    @Test
+    public void addAfterBuild() {
+        IntHistogram h = new IntHistogram(10, 0, 1000);
+        for (int v = 0; v < 100; v++)
+            h.addValue(v);
+        assertEquals(0.5, h.estimateSelectivity(Predicate.Op.LESS_THAN, 50), EPS);
+        for (int v = 100; v < 200; v++)
+            h.addValue(v);
+        assertEquals(200, h.totalValues());
+        assertEquals(0.25, h.estimateSelectivity(Predicate.Op.LESS_THAN, 50), EPS);
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN, 199), EPS);
+        assertTrue(h.estimateSelectivity(Predicate.Op.GREATER_THAN, 150) > 0.1);
+    }
+
+    @Test
+    public void removeValues() {
+        IntHistogram h = new IntHistogram(10, 0, 1000);
+        for (int v = 0; v < 200; v++)
+            h.addValue(v % 100);
+        // before the histogram is built
+        h.removeValue(5);
+        assertEquals(199, h.totalValues());
+        assertEquals(0.5, h.estimateSelectivity(Predicate.Op.LESS_THAN, 50), 0.01);
+        for (int v = 0; v < 50; v++) {
+            h.removeValue(v);
+            if (v != 5)
+                h.removeValue(v);
+        }
+        assertEquals(100, h.totalValues());
+        // a bucket across 50 spreads what is left of it over its range
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 50), 0.03);
+        assertEquals(1.0, h.estimateSelectivity(Predicate.Op.GREATER_THAN_OR_EQ, 50), 0.03);
+        assertEquals(0.0, h.estimateSelectivity(Predicate.Op.LESS_THAN, 40), EPS);
+        // a value the histogram doesn't have changes nothing
+        h.removeValue(999);
+        assertEquals(100, h.totalValues());
+    }
+
+    @Test
+    public void serializesCompactly() throws Exception {
+        int[] values = zipfian(100000, 10000, 1.1, new Random(1));
+        IntHistogram h = IntHistogram.fromValues(100, values, values.length);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        h.serialize(new DataOutputStream(bytes));
+        assertTrue(bytes.size() < 1500);
+
+        IntHistogram read = IntHistogram.deserialize(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(h.toString(), read.toString());
+        Random rand = new Random(2);
+        for (int i = 0; i < 100; i++) {
+            int v = rand.nextInt(10000);
+            for (Predicate.Op op : Predicate.Op.values())
+                assertEquals(h.estimateSelectivity(op, v), read.estimateSelectivity(op, v), 0.0);
+        }
+    }
+
+    /**
+     * @return n values drawn from a Zipfian distribution with exponent s over
+     *         k distinct values, which are shuffled so that the common values
+     *         are spread over the range
+     */
+    static int[] zipfian(int n, int k, double s, Random rand) {
+        double[] cumulative = new double[k];
+        double sum = 0;
+        for (int i = 0; i < k; i++) {
+            sum += 1.0 / Math.pow(i + 1, s);
+            cumulative[i] = sum;
+        }
+        int[] valueOfRank = new int[k];
+        for (int i = 0; i < k; i++)
+            valueOfRank[i] = i;
+        for (int i = k - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int t = valueOfRank[i];
+            valueOfRank[i] = valueOfRank[j];
+            valueOfRank[j] = t;
+        }
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            int rank = Arrays.binarySearch(cumulative, rand.nextDouble() * sum);
+            values[i] = valueOfRank[rank >= 0 ? rank : Math.min(k - 1, -rank - 1)];
+        }
+        return values;
+    }
+
+    /**
+     * On Zipfian data the common values are estimated exactly, and ranges
+     * to within about a bucket's share of the values.
+     */
+    @Test
+    public void zipfianEstimationError() {
+        int n = 100000, k = 10000;
+        int[] values = zipfian(n, k, 1.1, new Random(42));
+        int[] counts = new int[k];
+        for (int v : values)
+            counts[v]++;
+        int[] below = new int[k + 1];
+        for (int v = 0; v < k; v++)
+            below[v + 1] = below[v] + counts[v];
+        IntHistogram h = IntHistogram.fromValues(100, values.clone(), n);
+
+        // equality: the error on the most common values, weighted by how
+        // often each value occurs
+        double eqError = 0, rangeError = 0, worstRange = 0;
+        for (int v = 0; v < k; v++) {
+            double actual = (double) counts[v] / n;
+            eqError += actual * Math.abs(h.estimateSelectivity(Predicate.Op.EQUALS, v) - actual);
+        }
+        Random rand = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            int v = rand.nextInt(k);
+            double error = Math.abs(h.estimateSelectivity(Predicate.Op.LESS_THAN, v)
+                    - (double) below[v] / n);
+            rangeError += error / 1000;
+            worstRange = Math.max(worstRange, error);
+        }
+        assertTrue("weighted equality error " + eqError, eqError < 0.0005);
+        assertTrue("mean range error " + rangeError, rangeError < 0.002);
+        assertTrue("worst range error " + worstRange, worstRange < 0.01);
+
+        // the most common value is an MCV, so it is exact
+        int top = 0;
+        for (int v = 0; v < k; v++) {
+            if (counts[v] > counts[top])
+                top = v;
+        }
+        assertEquals((double) counts[top] / n, h.estimateSelectivity(Predicate.Op.EQUALS, top), EPS);
+        assertEquals(1.0 - (double) counts[top] / n,
+                h.estimateSelectivity(Predicate.Op.NOT_EQUALS, top), EPS);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IntHistogramTest.class);
+    }
+}
@@ -0,0 +1,342 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class JoinOptimizerTest extends SimpleDbTestBase {
+    private LogicalPlan plan;
+    private HashMap<String, TableStats> stats;
+    private HashMap<String, Double> selectivities;
+    private int tableLimit;
+    private long planBudget;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        tableLimit = JoinOptimizer.getExhaustiveTableLimit();
+        planBudget = JoinOptimizer.getPlanBudget();
+        plan = new LogicalPlan();
+        stats = new HashMap<String, TableStats>();
+        selectivities = new HashMap<String, Double>();
+    }
+
+    @After
+    public void tearDown() {
+        JoinOptimizer.setExhaustiveTableLimit(tableLimit);
+        JoinOptimizer.setPlanBudget(planBudget);
+    }
+
+    /**
+     * Add a table of rows random rows of two fields, c0 and c1, to the plan
+     * under alias.
+     */
+    private void addTable(String alias, int rows) throws Exception {
+        addTable(alias, rows, 1000, new ArrayList<ArrayList<Integer>>());
+    }
+
+    /**
+     * Add a table of rows random rows of two fields, c0 and c1, of values
+     * less than maxValue to the plan under alias, and its rows to tuples.
+     */
+    private void addTable(String alias, int rows, int maxValue,
+            ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, maxValue, null,
+                tuples, "c");
+        plan.addScan(hf.getId(), alias);
+        stats.put(Database.getCatalog().getTableName(hf.getId()),
+                new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+        selectivities.put(alias, 1.0);
+    }
+
+    /**
+     * Add a chain of four tables, a, b, c and d, joined on c0, whose
+     * cheapest plan is bushy. A filter leaves a single tuple of c, which
+     * matches a single tuple of d, but joining b to them fans out to a
+     * hundred tuples, each of which would scan a. Joining a to b on its own
+     * and running that once for the c-d tuple costs a fifth as much.
+     */
+    private Vector<LogicalJoinNode> addChain(
+            HashMap<String, ArrayList<ArrayList<Integer>>> tuples) throws Exception {
+        String[] aliases = { "a", "b", "c", "d" };
+        int[] rows = { 5000, 1000, 100, 5000 };
+        int[] maxValues = { 100, 10, 100, 100000 };
+        double[] sels = { 0.01, 1.0, 0.01, 1.0 };
+        Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+        for (int i = 0; i < aliases.length; i++) {
+            ArrayList<ArrayList<Integer>> t = new ArrayList<ArrayList<Integer>>();
+            addTable(aliases[i], rows[i], maxValues[i], t);
+            selectivities.put(aliases[i], sels[i]);
+            tuples.put(aliases[i], t);
+            if (i > 0)
+                joins.add(join(aliases[i - 1], aliases[i]));
+        }
+        return joins;
+    }
+
+    private static LogicalJoinNode join(String t1, String t2) {
+        return new LogicalJoinNode(t1, t2, t1 + ".c0", t2 + ".c0", Predicate.Op.EQUALS);
+    }
+
+    /** @return the tables j joins, in either order */
+    private static Set<String> tables(LogicalJoinNode j) {
+        return new HashSet<String>(Arrays.asList(j.t1Alias, j.t2Alias));
+    }
+
+    /**
+     * Check that order has each of joins once, and that each join reads
+     * tables that no join before it has joined together, so every join
+     * joins two separate subplans.
+     */
+    private static void assertPlan(Vector<LogicalJoinNode> joins,
+            Vector<LogicalJoinNode> order) {
+        assertEquals(joins.size(), order.size());
+        HashSet<Set<String>> expected = new HashSet<Set<String>>();
+        for (LogicalJoinNode j : joins)
+            expected.add(tables(j));
+        // the tables of the subplan each table is in so far
+        HashMap<String, Set<String>> subplans = new HashMap<String, Set<String>>();
+        for (LogicalJoinNode j : order) {
+            assertTrue(expected.remove(tables(j)));
+            Set<String> left = subplan(subplans, j.t1Alias);
+            Set<String> right = subplan(subplans, j.t2Alias);
+            assertNotSame(left, right);
+            left.addAll(right);
+            for (String t : right)
+                subplans.put(t, left);
+        }
+    }
+
+    private static Set<String> subplan(HashMap<String, Set<String>> subplans, String alias) {
+        Set<String> s = subplans.get(alias);
+        if (s == null) {
+            s = new HashSet<String>(Collections.singleton(alias));
+            subplans.put(alias, s);
+        }
+        return s;
+    }
+
+    @Test
+    public void enumeratesSubsetsBySize() {
+        assertEquals(0xBL, JoinOptimizer.nextSubset(0x7L));
+        assertEquals(0x13L, JoinOptimizer.nextSubset(0xEL));
+        int n = 0;
+        for (long s = 0x7L; s < 1L << 10; s = JoinOptimizer.nextSubset(s)) {
+            assertEquals(3, Long.bitCount(s));
+            n++;
+        }
+        assertEquals(120, n);
+
+        JoinOptimizer jo = new JoinOptimizer(plan, new Vector<LogicalJoinNode>());
+        Vector<Integer> v = new Vector<Integer>(Arrays.asList(1, 2, 3, 4, 5, 6));
+        Set<Set<Integer>> subsets = jo.enumerateSubsets(v, 3);
+        assertEquals(20, subsets.size());
+        for (Set<Integer> s : subsets)
+            assertEquals(3, s.size());
+        assertEquals(1, jo.enumerateSubsets(v, 0).size());
+        assertEquals(1, jo.enumerateSubsets(v, 6).size());
+    }
+
+    /**
+     * The two small tables of a chain are joined before the large one.
+     */
+    @Test
+    public void smallTablesJoinFirst() throws Exception {
+        addTable("big", 5000);
+        addTable("mid", 500);
+        addTable("small", 50);
+        Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+        joins.add(join("big", "mid"));
+        joins.add(join("mid", "small"));
+        Vector<LogicalJoinNode> order = new JoinOptimizer(plan, joins)
+                .orderJoins(stats, selectivities, false);
+        assertPlan(joins, order);
+        assertEquals(tables(join("mid", "small")), tables(order.get(0)));
+    }
+
+    /**
+     * Joins of tables none of the others read can't be ordered without a
+     * cross product, so they are left in the query's order.
+     */
+    @Test
+    public void crossProductsKeepQueryOrder() throws Exception {
+        addTable("a", 10);
+        addTable("b", 10);
+        addTable("c", 10);
+        addTable("d", 10);
+        Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+        joins.add(join("a", "b"));
+        joins.add(join("c", "d"));
+        assertSame(joins, new JoinOptimizer(plan, joins).orderJoins(stats, selectivities, false));
+    }
+
+    /**
+     * A chain and a star of twelve tables each plan in well under a second.
+     */
+    @Test
+    public void twelveTablesPlanQuickly() throws Exception {
+        for (int i = 0; i < 12; i++)
+            addTable("t" + i, 20 + 40 * ((i * 7) % 12));
+        Vector<LogicalJoinNode> chain = new Vector<LogicalJoinNode>();
+        Vector<LogicalJoinNode> star = new Vector<LogicalJoinNode>();
+        for (int i = 1; i < 12; i++) {
+            chain.add(join("t" + (i - 1), "t" + i));
+            star.add(join("t0", "t" + i));
+        }
+        Collections.shuffle(chain, new Random(1));
+
+        for (Vector<LogicalJoinNode> joins : Arrays.asList(chain, star)) {
+            long start = System.nanoTime();
+            Vector<LogicalJoinNode> order = new JoinOptimizer(plan, joins)
+                    .orderJoins(stats, selectivities, false);
+            long millis = (System.nanoTime() - start) / 1000000;
+            assertPlan(joins, order);
+            assertTrue(millis + " ms", millis < 1000);
+        }
+    }
+
+    /**
+     * The greedy order, and annealing from it, also join the small tables
+     * of a chain first.
+     */
+    @Test
+    public void heuristicJoinsSmallTablesFirst() throws Exception {
+        JoinOptimizer.setExhaustiveTableLimit(0);
+        addTable("big", 5000);
+        addTable("mid", 500);
+        addTable("small", 50);
+        Vector<LogicalJoinNode> joins = new Vector<LogicalJoinNode>();
+        joins.add(join("big", "mid"));
+        joins.add(join("mid", "small"));
+        for (long budget : new long[] { 0, 50 }) {
+            JoinOptimizer.setPlanBudget(budget);
+            Vector<LogicalJoinNode> order = new JoinOptimizer(plan, joins)
+                    .orderJoins(stats, selectivities, false);
+            assertPlan(joins, order);
+            assertEquals(tables(join("mid", "small")), tables(order.get(0)));
+        }
+    }
+
+    /**
+     * A chain and a star of thirty tables are ordered heuristically, in
+     * about the plan budget.
+     */
+    @Test
+    public void thirtyTablesPlanWithinBudget() throws Exception {
+        JoinOptimizer.setPlanBudget(100);
+        for (int i = 0; i < 30; i++)
+            addTable("t" + i, 20 + 10 * ((i * 7) % 30));
+        Vector<LogicalJoinNode> chain = new Vector<LogicalJoinNode>();
+        Vector<LogicalJoinNode> star = new Vector<LogicalJoinNode>();
+        for (int i = 1; i < 30; i++) {
+            chain.add(join("t" + (i - 1), "t" + i));
+            star.add(join("t0", "t" + i));
+        }
+        Collections.shuffle(chain, new Random(1));
+
+        for (Vector<LogicalJoinNode> joins : Arrays.asList(chain, star)) {
+            long start = System.nanoTime();
+            Vector<LogicalJoinNode> order = new JoinOptimizer(plan, joins)
+                    .orderJoins(stats, selectivities, false);
+            long millis = (System.nanoTime() - start) / 1000000;
+            assertPlan(joins, order);
+            assertTrue(millis + " ms", millis < 1000);
+        }
+    }
+
+    /**
+     * The exhaustive and the heuristic search both join the pairs at the
+     * ends of the chain first.
+     */
+    @Test
+    public void chainJoinsInPairs() throws Exception {
+        Vector<LogicalJoinNode> joins = addChain(
+                new HashMap<String, ArrayList<ArrayList<Integer>>>());
+        for (int limit : new int[] { 15, 0 }) {
+            JoinOptimizer.setExhaustiveTableLimit(limit);
+            Vector<LogicalJoinNode> order = new JoinOptimizer(plan, joins)
+                    .orderJoins(stats, selectivities, false);
+            assertPlan(joins, order);
+            assertEquals(tables(join("b", "c")), tables(order.get(2)));
+        }
+    }
+
+    /**
+     * The bushy plan of the chain returns the tuples its joins do.
+     */
+    @Test
+    public void bushyPlanExecutes() throws Exception {
+        HashMap<String, ArrayList<ArrayList<Integer>>> tuples =
+                new HashMap<String, ArrayList<ArrayList<Integer>>>();
+        for (LogicalJoinNode j : addChain(tuples))
+            plan.addJoin(j.f1QuantifiedName, j.f2QuantifiedName, j.p);
+        plan.addFilter("a.c1", Predicate.Op.LESS_THAN, "1");
+        plan.addFilter("c.c1", Predicate.Op.LESS_THAN, "1");
+        plan.addProjectField("a.c1", null);
+
+        // random values hardly ever join all four tables, so add rows that
+        // do, after the statistics are taken
+        TransactionId tid = new TransactionId();
+        for (String alias : new String[] { "a", "b", "c", "d" }) {
+            for (int v = 7; v <= 8; v++) {
+                Database.getBufferPool().insertTuple(tid, plan.getTableId(alias),
+                        Utility.getHeapTuple(new int[] { v, 0 }));
+                tuples.get(alias).add(new ArrayList<Integer>(Arrays.asList(v, 0)));
+            }
+        }
+        DbIterator it = plan.physicalPlan(tid, stats, false);
+        // the top join is of two joins
+        DbIterator top = ((Operator) it).getChildren()[0];
+        for (DbIterator child : ((Operator) top).getChildren())
+            assertTrue(child instanceof Join);
+
+        // the tuples of each table the filters keep, and the number of
+        // ways to join each to the tables before it
+        int[] bounds = { 1, 10, 1, 100000 };
+        HashMap<ArrayList<Integer>, Integer> ways = null;
+        for (int i = 0; i < bounds.length; i++) {
+            HashMap<ArrayList<Integer>, Integer> next = new HashMap<ArrayList<Integer>, Integer>();
+            for (ArrayList<Integer> t : tuples.get("abcd".substring(i, i + 1))) {
+                if (t.get(1) >= bounds[i])
+                    continue;
+                int w = i == 0 ? 1 : 0;
+                if (i > 0) {
+                    for (Map.Entry<ArrayList<Integer>, Integer> e : ways.entrySet()) {
+                        if (e.getKey().get(0).equals(t.get(0)))
+                            w += e.getValue();
+                    }
+                }
+                if (w > 0)
+                    next.put(t, next.containsKey(t) ? next.get(t) + w : w);
+            }
+            ways = next;
+        }
+        int expected = 0;
+        for (int w : ways.values())
+            expected += w;
+
+        int actual = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            actual++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(JoinOptimizerTest.class);
+    }
+}
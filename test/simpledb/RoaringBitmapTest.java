@@ -0,0 +1,147 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class RoaringBitmapTest extends SimpleDbTestBase {
+
+    /**
+     * A bitmap holding count random values below max, and the same values
+     * in a BitSet.
+     */
+    private static RoaringBitmap random(Random r, int count, int max, BitSet expected) {
+        RoaringBitmap b = new RoaringBitmap();
+        for (int i = 0; i < count; i++) {
+            int v = r.nextInt(max);
+            b.add(v);
+            expected.set(v);
+        }
+        return b;
+    }
+
+    private static void assertValues(BitSet expected, RoaringBitmap b) {
+        assertEquals(expected.cardinality(), b.cardinality());
+        int[] values = b.toArray();
+        int i = 0;
+        for (int v = expected.nextSetBit(0); v >= 0; v = expected.nextSetBit(v + 1))
+            assertEquals(v, values[i++]);
+    }
+
+    @Test
+    public void addRemoveContains() {
+        RoaringBitmap b = new RoaringBitmap();
+        assertTrue(b.isEmpty());
+        b.add(5);
+        b.add(70000);
+        b.add(5);
+        assertEquals(2, b.cardinality());
+        assertTrue(b.contains(5));
+        assertTrue(b.contains(70000));
+        assertFalse(b.contains(6));
+        assertArrayEquals(new int[] { 5, 70000 }, b.toArray());
+        assertTrue(b.remove(70000));
+        assertFalse(b.remove(70000));
+        assertFalse(b.remove(-1));
+        assertArrayEquals(new int[] { 5 }, b.toArray());
+        try {
+            b.add(-1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Containers switch between arrays and bitmaps as they fill and empty,
+     * without losing values.
+     */
+    @Test
+    public void containerConversions() {
+        RoaringBitmap b = new RoaringBitmap();
+        BitSet expected = new BitSet();
+        for (int v = 0; v < 3 * RoaringBitmap.ARRAY_MAX; v += 2) {
+            b.add(v);
+            expected.set(v);
+        }
+        assertValues(expected, b);
+        int dense = b.serializedSize();
+        for (int v = 0; v < 3 * RoaringBitmap.ARRAY_MAX; v += 4) {
+            assertTrue(b.remove(v));
+            expected.clear(v);
+        }
+        assertValues(expected, b);
+        // a chunk of ARRAY_MAX values or fewer is stored as an array again
+        assertTrue(b.serializedSize() < dense);
+    }
+
+    /**
+     * and and or agree with BitSet on sparse, dense and mixed operands.
+     */
+    @Test
+    public void andOrMatchBitSet() {
+        Random r = new Random(35);
+        int[][] shapes = { { 100, 1 << 20 }, { 50000, 1 << 17 }, { 3000, 1 << 16 } };
+        for (int[] sa : shapes) {
+            for (int[] sb : shapes) {
+                BitSet ea = new BitSet(), eb = new BitSet();
+                RoaringBitmap a = random(r, sa[0], sa[1], ea);
+                RoaringBitmap b = random(r, sb[0], sb[1], eb);
+
+                BitSet and = (BitSet) ea.clone();
+                and.and(eb);
+                assertValues(and, RoaringBitmap.and(a, b));
+                BitSet or = (BitSet) ea.clone();
+                or.or(eb);
+                assertValues(or, RoaringBitmap.or(a, b));
+
+                // the operands are left alone
+                assertValues(ea, a);
+                assertValues(eb, b);
+            }
+        }
+    }
+
+    @Test
+    public void serializeRoundTrip() throws Exception {
+        BitSet expected = new BitSet();
+        RoaringBitmap b = random(new Random(7), 20000, 1 << 18, expected);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        b.serialize(new DataOutputStream(bytes));
+        assertEquals(b.serializedSize(), bytes.size());
+
+        RoaringBitmap copy = RoaringBitmap.deserialize(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(b, copy);
+        assertValues(expected, copy);
+    }
+
+    /**
+     * A sparse set takes about two bytes per value, and a dense one about a
+     * bit per value.
+     */
+    @Test
+    public void compact() {
+        RoaringBitmap sparse = new RoaringBitmap();
+        for (int v = 0; v < 1000; v++)
+            sparse.add(v * 50);
+        assertTrue(sparse.serializedSize() < 1000 * 3);
+
+        RoaringBitmap dense = new RoaringBitmap();
+        for (int v = 0; v < 1 << 20; v++)
+            dense.add(v);
+        assertTrue(dense.serializedSize() < (1 << 20) / 8 + 1000);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RoaringBitmapTest.class);
+    }
+}
@@ -0,0 +1,205 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 10000;
+
+    private File dir;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDirectory("secidx").toFile();
+        dir.deleteOnExit();
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    private int loadSchema(String schema) throws Exception {
+        File catalog = new File(dir, "catalog.txt");
+        FileWriter w = new FileWriter(catalog);
+        w.write(schema + "\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        return Database.getCatalog().getTableId("t");
+    }
+
+    /**
+     * Insert ROWS tuples (i, i % 100) through the BufferPool.
+     */
+    private void insertRows(int tableId) throws Exception {
+        for (int i = 0; i < ROWS; i++)
+            Database.getBufferPool().insertTuple(tid, tableId,
+                    Utility.getTuple(new int[] { i, i % 100 }, 2));
+    }
+
+    private int count(DbFileIterator it) throws Exception {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private int lookup(DbIndex index, Predicate.Op op, int value) throws Exception {
+        return count(index.lookup(tid, op, new IntField(value), new Predicate[0]));
+    }
+
+    @Test
+    public void schemaDeclaresIndexes() throws Exception {
+        int t = loadSchema("t (a int pk index hash, b int index)");
+        List<DbIndex> indexes = Database.getCatalog().getIndexes(t);
+        assertEquals(2, indexes.size());
+        assertTrue(indexes.get(0) instanceof HashIndexFile);
+        assertEquals(0, indexes.get(0).getKeyField());
+        assertTrue(indexes.get(1) instanceof BTreeIndexFile);
+        assertEquals(1, indexes.get(1).getKeyField());
+        assertEquals("a", Database.getCatalog().getPrimaryKey(t));
+        assertEquals(new File(dir, "t.b.btree").getAbsoluteFile(),
+                ((BTreeIndexFile) indexes.get(1)).getFile().getAbsoluteFile());
+    }
+
+    /**
+     * Both kinds of index follow inserts and deletes, and the B+ tree index
+     * answers range lookups.
+     */
+    @Test
+    public void maintainedOnInsertAndDelete() throws Exception {
+        int t = loadSchema("t (a int, b int index btree)");
+        DbIndex hash = Database.getCatalog().createIndex(tid, t, 0, Catalog.HASH_INDEX);
+        DbIndex btree = Database.getCatalog().getIndex(t, 1, Predicate.Op.LESS_THAN);
+        assertTrue(btree instanceof BTreeIndexFile);
+        insertRows(t);
+
+        assertEquals(1, lookup(hash, Predicate.Op.EQUALS, 1234));
+        assertEquals(ROWS / 100, lookup(btree, Predicate.Op.EQUALS, 42));
+        assertEquals(10 * ROWS / 100, lookup(btree, Predicate.Op.LESS_THAN, 10));
+
+        DbFile table = Database.getCatalog().getDatabaseFile(t);
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        DbFileIterator it = table.iterator(tid, new Predicate[] {
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50)) });
+        it.open();
+        while (it.hasNext())
+            doomed.add(it.next());
+        it.close();
+        for (Tuple d : doomed)
+            Database.getBufferPool().deleteTuple(tid, d);
+
+        assertEquals(0, lookup(hash, Predicate.Op.EQUALS, 1201));
+        assertEquals(1, lookup(hash, Predicate.Op.EQUALS, 1299));
+        assertEquals(0, lookup(btree, Predicate.Op.LESS_THAN, 50));
+        assertEquals(ROWS / 2, lookup(btree, Predicate.Op.GREATER_THAN_OR_EQ, 50));
+        assertEquals(ROWS / 2, count(btree.iterator(tid)));
+    }
+
+    /**
+     * CREATE INDEX adds the entries of the tuples already in the table.
+     */
+    @Test
+    public void createIndexStatement() throws Exception {
+        int t = loadSchema("t (a int, b int)");
+        insertRows(t);
+        assertNull(Database.getCatalog().getIndex(t, 1, Predicate.Op.EQUALS));
+
+        new Parser().processNextStatement("create index t_b on t (b) using hash;");
+        DbIndex index = Database.getCatalog().getIndex(t, 1, Predicate.Op.EQUALS);
+        assertTrue(index instanceof HashIndexFile);
+        assertEquals(ROWS / 100, lookup(index, Predicate.Op.EQUALS, 7));
+
+        new Parser().processNextStatement("CREATE INDEX ON t(a)");
+        assertTrue(Database.getCatalog().getIndex(t, 0, Predicate.Op.GREATER_THAN)
+                instanceof BTreeIndexFile);
+
+        // creating the same index again is refused
+        try {
+            Database.getCatalog().createIndex(tid, t, 0, Catalog.BTREE_INDEX);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Statistics that the planner reads in place of the real ones.
+     */
+    static class FixedStats extends TableStats {
+        final int mTuples;
+        final double mSelectivity;
+
+        FixedStats(int tableid, int tuples, double selectivity) {
+            super(tableid, TableStats.IOCOSTPERPAGE);
+            mTuples = tuples;
+            mSelectivity = selectivity;
+        }
+
+        @Override
+        public int totalTuples() {
+            return mTuples;
+        }
+
+        @Override
+        public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+            return mSelectivity;
+        }
+    }
+
+    /**
+     * With statistics, an index is used only for a predicate selective
+     * enough to read fewer pages than a scan.
+     */
+    @Test
+    public void plannerUsesSelectivity() throws Exception {
+        int t = loadSchema("t (a int index, b int)");
+        insertRows(t);
+        SeqScan scan = new SeqScan(tid, t, "t");
+        scan.addPredicate(new Predicate(1, Predicate.Op.EQUALS, new IntField(3)));
+        scan.addPredicate(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(5)));
+
+        IndexScan is = LogicalPlan.indexScanFor(tid, scan, new FixedStats(t, ROWS, 0.0005));
+        assertNotNull(is);
+        assertEquals(Predicate.Op.LESS_THAN, is.getIndexPredicates()[0].getOp());
+        int n = 0;
+        is.open();
+        while (is.hasNext()) {
+            is.next();
+            n++;
+        }
+        is.close();
+        assertEquals(1, n); // only a = 3 has b = 3 and a < 5
+
+        assertNull(LogicalPlan.indexScanFor(tid, scan, new FixedStats(t, ROWS, 0.9)));
+        // without statistics, only an equality lookup is assumed selective
+        assertNull(LogicalPlan.indexScanFor(tid, scan, null));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
@@ -0,0 +1,218 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SlottedFileTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "id", "name", "qty" });
+
+    private File file;
+    private SlottedFile sf;
+    private TransactionId tid;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("slotted", ".dat");
+        file.deleteOnExit();
+        sf = new SlottedFile(file, TD);
+        Database.getCatalog().addTable(sf, "slotted");
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * @return tuple i: (i, a name of 8 to 27 characters, i % 10)
+     */
+    private static Tuple row(int i) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(i));
+        StringBuilder name = new StringBuilder("customer");
+        for (int j = 0; j < i % 20; j++)
+            name.append((char) ('a' + j));
+        t.setField(1, new StringField(name.toString(), Type.STRING_LEN));
+        t.setField(2, new IntField(i % 10));
+        return t;
+    }
+
+    private void insertRows() throws Exception {
+        for (int i = 0; i < ROWS; i++)
+            Database.getBufferPool().insertTuple(tid, sf.getId(), row(i));
+    }
+
+    /**
+     * @return the tuples of it, in the order of their first field
+     */
+    private static ArrayList<Tuple> sorted(DbFileIterator it) throws Exception {
+        ArrayList<Tuple> tuples = TestUtil.drain(it);
+        Collections.sort(tuples, new Comparator<Tuple>() {
+            public int compare(Tuple a, Tuple b) {
+                return ((IntField) a.getField(0)).getValue() - ((IntField) b.getField(0)).getValue();
+            }
+        });
+        return tuples;
+    }
+
+    private SlottedPage emptyPage() throws Exception {
+        return new SlottedPage(new HeapPageId(sf.getId(), 0), SlottedPage.createEmptyPageData());
+    }
+
+    @Test
+    public void insertAndScan() throws Exception {
+        assertEquals(0, TestUtil.drain(sf.iterator(tid)).size());
+        insertRows();
+        ArrayList<Tuple> tuples = sorted(sf.iterator(tid));
+        assertEquals(ROWS, tuples.size());
+        for (int i = 0; i < ROWS; i++)
+            assertEquals(row(i).toString(), tuples.get(i).toString());
+
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tuples = sorted(sf.iterator(tid));
+        assertEquals(ROWS, tuples.size());
+        for (int i = 0; i < ROWS; i += 41)
+            assertEquals(row(i).toString(), tuples.get(i).toString());
+    }
+
+    /**
+     * Short strings take a few bytes instead of STRING_LEN + 4, so the
+     * table takes several times fewer pages than as a HeapFile.
+     */
+    @Test
+    public void fewerPagesThanHeapFile() throws Exception {
+        insertRows();
+        int heapPages = (ROWS + HeapPage.getNumTuples(TD) - 1) / HeapPage.getNumTuples(TD);
+        assertTrue(sf.numPages() * 4 < heapPages);
+    }
+
+    @Test
+    public void predicates() throws Exception {
+        insertRows();
+        ArrayList<Tuple> tuples = TestUtil.drain(sf.iterator(tid, new Predicate[] {
+                new Predicate(2, Predicate.Op.EQUALS, new IntField(3)),
+                new Predicate(1, Predicate.Op.LIKE, new StringField("abcdefghijkl", Type.STRING_LEN)) }));
+        // i % 10 == 3 and i % 20 >= 12: i % 20 == 13
+        assertEquals(ROWS / 20, tuples.size());
+        for (Tuple t : tuples)
+            assertEquals(13, ((IntField) t.getField(0)).getValue() % 20);
+    }
+
+    /**
+     * Deleting records keeps the slots of the others; the holes are reused
+     * once the page is compacted.
+     */
+    @Test
+    public void compaction() throws Exception {
+        SlottedPage page = emptyPage();
+        ArrayList<Tuple> stored = new ArrayList<Tuple>();
+        for (int i = 0; page.getFreeSpace() >= SlottedPage.getRecordSize(row(i)); i++) {
+            Tuple t = row(i);
+            page.insertTuple(t);
+            stored.add(t);
+        }
+        int slots = page.getNumSlots();
+        try {
+            page.insertTuple(row(19));
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+
+        // free every other record, leaving holes all over the page
+        HashMap<Integer, String> kept = new HashMap<Integer, String>();
+        for (int i = 0; i < stored.size(); i++) {
+            Tuple t = stored.get(i);
+            if (i % 2 == 0)
+                page.deleteTuple(t);
+            else
+                kept.put(t.getRecordId().tupleno(), t.toString());
+        }
+        assertNull(stored.get(0).getRecordId());
+        // only a trailing empty slot may go
+        assertTrue(page.getNumSlots() >= slots - 1);
+
+        // longer records than any deleted one only fit after compaction
+        int added = 0;
+        while (page.getFreeSpace() >= SlottedPage.getRecordSize(row(19))) {
+            page.insertTuple(row(19));
+            added++;
+        }
+        assertTrue(added > stored.size() / 4);
+
+        SlottedPage copy = new SlottedPage(page.getId(), page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            String before = kept.get(t.getRecordId().tupleno());
+            if (before != null)
+                assertEquals(before, t.toString());
+            else
+                assertEquals(row(19).toString(), t.toString());
+            n++;
+        }
+        assertEquals(kept.size() + added, n);
+    }
+
+    @Test
+    public void deleteAndReinsert() throws Exception {
+        insertRows();
+        int pages = sf.numPages();
+        ArrayList<Tuple> doomed = TestUtil.drain(sf.iterator(tid, new Predicate[] {
+                new Predicate(2, Predicate.Op.LESS_THAN, new IntField(5)) }));
+        for (Tuple t : doomed)
+            Database.getBufferPool().deleteTuple(tid, t);
+        assertEquals(ROWS / 2, TestUtil.drain(sf.iterator(tid)).size());
+        try {
+            Tuple t = row(0);
+            t.setRecordId(new RecordId(new HeapPageId(sf.getId(), 0), 0));
+            sf.deleteTuple(tid, t);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+
+        // the freed space is used before the file grows
+        for (Tuple t : doomed)
+            Database.getBufferPool().insertTuple(tid, sf.getId(),
+                    row(((IntField) t.getField(0)).getValue()));
+        assertEquals(ROWS, TestUtil.drain(sf.iterator(tid)).size());
+        assertEquals(pages, sf.numPages());
+    }
+
+    @Test
+    public void schemaDeclaresSlottedTables() throws Exception {
+        File catalog = File.createTempFile("slotted", ".txt");
+        catalog.deleteOnExit();
+        FileWriter w = new FileWriter(catalog);
+        w.write("people (a int, b string) slotted\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        DbFile people = Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId("people"));
+        assertTrue(people instanceof SlottedFile);
+        ((SlottedFile) people).getFile().deleteOnExit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedFileTest.class);
+    }
+}
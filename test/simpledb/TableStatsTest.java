@@ -0,0 +1,417 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class TableStatsTest extends SimpleDbTestBase {
+    private static final int ROWS = 6000;
+    private static final String[] REGIONS = { "east", "north", "south", "west" };
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "id", "region", "qty" });
+
+    private File dir;
+    private TransactionId tid;
+    private double refreshFraction;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        dir = Files.createTempDirectory("tablestats").toFile();
+        tid = new TransactionId();
+        refreshFraction = TableStats.getRefreshFraction();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        TableStats.setRefreshFraction(refreshFraction);
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    /**
+     * @return row i: (i, REGIONS[i % 4], i % 100)
+     */
+    private static Tuple row(int i) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(REGIONS[i % REGIONS.length], Type.STRING_LEN));
+        t.setField(2, new IntField(i % 100));
+        return t;
+    }
+
+    private void insertRows(DbFile f) throws Exception {
+        for (int i = 0; i < ROWS; i++)
+            Database.getBufferPool().insertTuple(tid, f.getId(), row(i));
+        Database.getBufferPool().flushAllPages();
+    }
+
+    /**
+     * The statistics of a table of ROWS rows match what its rows hold.
+     */
+    private void checkStats(DbFile f, String name) throws Exception {
+        Database.getCatalog().addTable(f, name);
+        insertRows(f);
+        TableStats stats = new TableStats(f.getId(), TableStats.IOCOSTPERPAGE);
+        assertEquals(ROWS, stats.totalTuples());
+        assertEquals(ROWS / 10, stats.estimateTableCardinality(0.1));
+        assertEquals((double) TableStats.numPages(f, ROWS) * TableStats.IOCOSTPERPAGE,
+                stats.estimateScanCost(), 0.0);
+        assertTrue(stats.estimateScanCost() > 0);
+
+        assertEquals(0.25, stats.estimateSelectivity(0, Predicate.Op.LESS_THAN,
+                new IntField(ROWS / 4)), 0.01);
+        assertEquals(0.0, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN,
+                new IntField(ROWS)), 0.0);
+        assertEquals(0.01, stats.estimateSelectivity(2, Predicate.Op.EQUALS,
+                new IntField(42)), 0.001);
+        assertEquals(0.01, stats.avgSelectivity(2, Predicate.Op.EQUALS), 0.001);
+        assertEquals(0.25, stats.estimateSelectivity(1, Predicate.Op.LESS_THAN,
+                new StringField("m", Type.STRING_LEN)), 0.01);
+        assertEquals(0.0, stats.estimateSelectivity(1, Predicate.Op.GREATER_THAN,
+                new StringField("y", Type.STRING_LEN)), 0.0);
+    }
+
+    @Test
+    public void heapFileStats() throws Exception {
+        checkStats(new HeapFile(new File(dir, "heap.dat"), TD), "heap");
+    }
+
+    @Test
+    public void slottedFileStats() throws Exception {
+        checkStats(new SlottedFile(new File(dir, "slotted.dat"), TD), "slotted");
+    }
+
+    @Test
+    public void columnFileStats() throws Exception {
+        checkStats(new ColumnFile(new File(dir, "columnar.dat"), TD), "columnar");
+    }
+
+    @Test
+    public void compressedFileStats() throws Exception {
+        checkStats(new CompressedHeapFile(new File(dir, "compressed.dat"), TD), "compressed");
+    }
+
+    /**
+     * A table of many more pages than the buffer pool holds is split into
+     * ranges that are scanned in parallel and still counts every tuple once.
+     */
+    @Test
+    public void parallelScanThroughSmallPool() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HashMap<Integer, Integer> spec = new HashMap<Integer, Integer>();
+        spec.put(1, 7);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 50000, 1000, spec, tuples);
+        assertTrue(hf.numPages() > 4 * TableStats.PAGES_PER_TASK);
+        Database.resetBufferPool(8);
+
+        TableStats stats = new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE);
+        assertEquals(tuples.size(), stats.totalTuples());
+        int below = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 300)
+                below++;
+        }
+        assertEquals((double) below / tuples.size(), stats.estimateSelectivity(0,
+                Predicate.Op.LESS_THAN, new IntField(300)), 0.01);
+        assertEquals(1.0, stats.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(7)), 1e-9);
+        assertEquals(0.0, stats.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(8)), 1e-9);
+    }
+
+    @Test
+    public void countsDistinctValues() throws Exception {
+        ColumnFile cf = new ColumnFile(new File(dir, "distinct.dat"), TD);
+        Database.getCatalog().addTable(cf, "distinct");
+        insertRows(cf);
+        TableStats stats = new TableStats(cf.getId(), TableStats.IOCOSTPERPAGE);
+        assertEquals(ROWS, stats.numDistinct(0), ROWS * 0.05);
+        assertEquals(REGIONS.length, stats.numDistinct(1));
+        assertEquals(100, stats.numDistinct(2), 3);
+    }
+
+    /**
+     * An equality join of two fields that aren't keys keeps one pair in
+     * the larger number of distinct values of the two fields.
+     */
+    @Test
+    public void equalityJoinUsesDistinctCounts() throws Exception {
+        HeapFile orders = new HeapFile(new File(dir, "orders.dat"), TD);
+        HeapFile returns = new HeapFile(new File(dir, "returns.dat"), TD);
+        Database.getCatalog().addTable(orders, "orders", "id");
+        Database.getCatalog().addTable(returns, "returns", "id");
+        insertRows(orders);
+        for (int i = 0; i < 500; i++)
+            Database.getBufferPool().insertTuple(tid, returns.getId(), row(i));
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("orders", new TableStats(orders.getId(), TableStats.IOCOSTPERPAGE));
+        stats.put("returns", new TableStats(returns.getId(), TableStats.IOCOSTPERPAGE));
+        HashMap<String, Integer> aliases = new HashMap<String, Integer>();
+        aliases.put("o", orders.getId());
+        aliases.put("r", returns.getId());
+
+        // qty has 100 values on both sides
+        assertEquals(ROWS * 500 / 100, JoinOptimizer.estimateTableJoinCardinality(
+                Predicate.Op.EQUALS, "o", "r", "qty", "qty", ROWS, 500, false, false,
+                stats, aliases), ROWS * 500 / 100 * 0.05);
+        // region has 4
+        assertEquals(ROWS * 500 / 4, JoinOptimizer.estimateTableJoinCardinality(
+                Predicate.Op.EQUALS, "o", "r", "region", "region", ROWS, 500, false, false,
+                stats, aliases));
+        // a filtered side can't have more distinct values than tuples
+        assertEquals(10 * 500 / 100, JoinOptimizer.estimateTableJoinCardinality(
+                Predicate.Op.EQUALS, "o", "r", "qty", "qty", 10, 500, false, false,
+                stats, aliases), 3);
+        // without statistics, the larger side
+        assertEquals(ROWS, JoinOptimizer.estimateTableJoinCardinality(
+                Predicate.Op.EQUALS, "o", "r", "qty", "qty", ROWS, 500, false, false,
+                new HashMap<String, TableStats>(), aliases));
+    }
+
+    /**
+     * A sample of a fifth of the pages of a large table estimates its size,
+     * selectivities and distinct values, with bounds that say how far off
+     * the estimates may be.
+     */
+    @Test
+    public void samplesLargeTable() throws Exception {
+        int rows = 200000;
+        Random rand = new Random(11);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        int below = 0;
+        for (int i = 0; i < rows; i++) {
+            int v = rand.nextInt(1000);
+            if (v < 300)
+                below++;
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, v)));
+        }
+        File f = new File(dir, "large.dat");
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        HeapFile hf = Utility.openHeapFile(2, f);
+
+        TableStats stats = new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE, 0.2);
+        assertTrue(stats.isSampled());
+        assertEquals(0.2, stats.getSampleFraction(), 0.01);
+        assertEquals(rows, stats.totalTuples(), rows * 0.01);
+        int[] tupleBounds = stats.estimateTotalTuplesBounds();
+        assertTrue(tupleBounds[0] <= stats.totalTuples() && stats.totalTuples() <= tupleBounds[1]);
+        assertEquals(hf.numPages() * TableStats.IOCOSTPERPAGE, stats.estimateScanCost(), 0.0);
+
+        IntField c = new IntField(300);
+        double sel = stats.estimateSelectivity(1, Predicate.Op.LESS_THAN, c);
+        assertEquals((double) below / rows, sel, 0.02);
+        double[] bounds = stats.estimateSelectivityBounds(1, Predicate.Op.LESS_THAN, c);
+        assertTrue(bounds[0] < sel && sel < bounds[1]);
+        assertTrue(bounds[1] - bounds[0] < 0.05);
+
+        // every value of a small domain shows up in the sample; a unique
+        // column is underestimated by at most sqrt(tuples / sampled tuples)
+        assertEquals(1000, stats.numDistinct(1));
+        assertTrue(stats.numDistinct(0) >= rows / Math.sqrt(5) * 0.95);
+        assertTrue(stats.numDistinct(0) <= rows);
+
+        // reading the whole table has no sampling error
+        TableStats whole = new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE);
+        assertFalse(whole.isSampled());
+        assertEquals(rows, whole.totalTuples());
+        assertArrayEquals(new int[] { rows, rows }, whole.estimateTotalTuplesBounds());
+        bounds = whole.estimateSelectivityBounds(1, Predicate.Op.LESS_THAN, c);
+        assertEquals(bounds[0], bounds[1], 0.0);
+    }
+
+    @Test
+    public void smallTablesAreReadWhole() throws Exception {
+        HeapFile hf = new HeapFile(new File(dir, "small.dat"), TD);
+        Database.getCatalog().addTable(hf, "small");
+        for (int i = 0; i < 500; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), row(i));
+        Database.getBufferPool().flushAllPages();
+        assertTrue(hf.numPages() < TableStats.MIN_SAMPLE_PAGES);
+        TableStats stats = new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE, 0.01);
+        assertFalse(stats.isSampled());
+        assertEquals(500, stats.totalTuples());
+    }
+
+    @Test
+    public void emptyTable() throws Exception {
+        HeapFile hf = new HeapFile(new File(dir, "empty.dat"), TD);
+        Database.getCatalog().addTable(hf, "empty");
+        TableStats stats = new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE);
+        assertEquals(0, stats.totalTuples());
+        assertEquals(0.0, stats.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(1)), 0.0);
+    }
+
+    @Test
+    public void computeStatisticsCoversCatalog() throws Exception {
+        Database.getCatalog().addTable(new SlottedFile(new File(dir, "a.dat"), TD), "a");
+        Database.getCatalog().addTable(new ColumnFile(new File(dir, "b.dat"), TD), "b");
+        insertRows(Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("a")));
+        TableStats.computeStatistics();
+        assertEquals(ROWS, TableStats.getTableStats("a").totalTuples());
+        assertEquals(0, TableStats.getTableStats("b").totalTuples());
+    }
+
+    /**
+     * Registered statistics count the tuples BufferPool inserts and deletes
+     * without reading the table again.
+     */
+    @Test
+    public void followsInsertsAndDeletes() throws Exception {
+        HeapFile hf = new HeapFile(new File(dir, "live.dat"), TD);
+        Database.getCatalog().addTable(hf, "live");
+        insertRows(hf);
+        TableStats.setRefreshFraction(10);
+        TableStats stats = new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE);
+        TableStats.setTableStats("live", stats);
+        IntField seven = new IntField(7);
+        assertEquals(0.01, stats.estimateSelectivity(2, Predicate.Op.EQUALS, seven), 0.001);
+
+        for (int i = ROWS; i < ROWS + 600; i++) {
+            Tuple t = row(i);
+            t.setField(2, seven);
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        }
+        assertEquals(ROWS + 600, stats.totalTuples());
+        assertEquals(660.0 / 6600, stats.estimateSelectivity(2, Predicate.Op.EQUALS, seven), 0.005);
+        assertEquals(0.1, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN_OR_EQ,
+                new IntField(ROWS)), 0.01);
+        assertEquals(ROWS + 600, stats.numDistinct(0), (ROWS + 600) * 0.05);
+        assertEquals(TableStats.numPages(hf, 0) * TableStats.IOCOSTPERPAGE,
+                stats.estimateScanCost(), 0.0);
+
+        DbFileIterator it = hf.iterator(tid, new Predicate[] {
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(ROWS)) });
+        ArrayList<Tuple> added = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            added.add(it.next());
+        it.close();
+        for (Tuple t : added)
+            Database.getBufferPool().deleteTuple(tid, t);
+        assertEquals(ROWS, stats.totalTuples());
+        assertEquals(0.01, stats.estimateSelectivity(2, Predicate.Op.EQUALS, seven), 0.001);
+        // the last bucket keeps the range the inserts stretched it to
+        assertEquals(0.0, stats.estimateSelectivity(0, Predicate.Op.GREATER_THAN_OR_EQ,
+                new IntField(ROWS)), 0.01);
+        assertSame(stats, TableStats.getTableStats("live"));
+    }
+
+    /**
+     * Once enough of a table changed, it is read again in the background
+     * and the new statistics replace the old.
+     */
+    @Test
+    public void refreshesAfterManyChanges() throws Exception {
+        HeapFile hf = new HeapFile(new File(dir, "refresh.dat"), TD);
+        Database.getCatalog().addTable(hf, "refresh");
+        insertRows(hf);
+        TableStats.setRefreshFraction(0.1);
+        TableStats stats = new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE);
+        TableStats.setTableStats("refresh", stats);
+
+        // a tenth of the table is fewer changes than the least that refresh it
+        int changes = Math.max(TableStats.REFRESH_MIN_CHANGES, ROWS / 10);
+        for (int i = ROWS; i < ROWS + changes - 1; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), row(i));
+        Thread.sleep(100);
+        assertSame(stats, TableStats.getTableStats("refresh"));
+
+        Database.getBufferPool().insertTuple(tid, hf.getId(), row(ROWS + changes - 1));
+        long deadline = System.currentTimeMillis() + 30000;
+        while (TableStats.getTableStats("refresh") == stats
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        TableStats fresh = TableStats.getTableStats("refresh");
+        assertNotSame(stats, fresh);
+        assertEquals(ROWS + changes, fresh.totalTuples());
+    }
+
+    /**
+     * Statistics saved next to the catalog are read back instead of the
+     * tables while the tables keep their page counts and modification
+     * stamps; a table that changed is read again.
+     */
+    @Test
+    public void savesStatisticsNextToCatalog() throws Exception {
+        HeapFile a = new HeapFile(new File(dir, "a.dat"), TD);
+        ColumnFile b = new ColumnFile(new File(dir, "b.dat"), TD);
+        Database.getCatalog().addTable(a, "a");
+        Database.getCatalog().addTable(b, "b");
+        insertRows(a);
+        insertRows(b);
+        TableStats.setRefreshFraction(10);
+        File statsFile = new File(dir, "catalog.txt" + TableStats.STATS_SUFFIX);
+        TableStats.computeStatistics(statsFile, 1.0);
+        assertTrue(statsFile.length() > 0);
+        TableStats computed = TableStats.getTableStats("b");
+        StringField m = new StringField("m", Type.STRING_LEN);
+
+        // a change only the statistics know of shows they were read back
+        TableStats.getTableStats("a").tupleInserted(row(ROWS));
+        TableStats.saveStatistics(statsFile);
+        TableStats.getStatsMap().clear();
+        TableStats.computeStatistics(statsFile, 1.0);
+        assertEquals(ROWS + 1, TableStats.getTableStats("a").totalTuples());
+        TableStats read = TableStats.getTableStats("b");
+        assertNotSame(computed, read);
+        assertEquals(ROWS, read.totalTuples());
+        assertEquals(computed.numDistinct(0), read.numDistinct(0));
+        assertEquals(computed.estimateSelectivity(1, Predicate.Op.LESS_THAN, m),
+                read.estimateSelectivity(1, Predicate.Op.LESS_THAN, m), 0.0);
+        assertEquals(computed.estimateSelectivity(2, Predicate.Op.EQUALS, new IntField(42)),
+                read.estimateSelectivity(2, Predicate.Op.EQUALS, new IntField(42)), 0.0);
+
+        // a table that changed is read again
+        for (int i = 0; i < ROWS; i++)
+            Database.getBufferPool().insertTuple(tid, a.getId(), row(i));
+        Database.getBufferPool().flushAllPages();
+        TableStats.getStatsMap().clear();
+        TableStats.computeStatistics(statsFile, 1.0);
+        assertEquals(2 * ROWS, TableStats.getTableStats("a").totalTuples());
+        assertEquals(ROWS, TableStats.getTableStats("b").totalTuples());
+    }
+
+    /**
+     * Inserts and deletes counted in the statistics are saved at shutdown
+     * with the table's new stamp, so the next start reads the statistics
+     * back instead of the table.
+     */
+    @Test
+    public void savesUpdatedStatisticsAtShutdown() throws Exception {
+        HeapFile a = new HeapFile(new File(dir, "a.dat"), TD);
+        Database.getCatalog().addTable(a, "a");
+        insertRows(a);
+        TableStats.setRefreshFraction(10);
+        File statsFile = new File(dir, "catalog.txt" + TableStats.STATS_SUFFIX);
+        TableStats.computeStatistics(statsFile, 1.0);
+
+        for (int i = ROWS; i < ROWS + 100; i++)
+            Database.getBufferPool().insertTuple(tid, a.getId(), row(i));
+        Database.getBufferPool().flushAllPages();
+        // a change only the statistics know of shows they were read back
+        TableStats.getTableStats("a").tupleInserted(row(ROWS + 100));
+        TableStats.saveStatistics();
+
+        TableStats.getStatsMap().clear();
+        TableStats.computeStatistics(statsFile, 1.0);
+        assertEquals(ROWS + 101, TableStats.getTableStats("a").totalTuples());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TableStatsTest.class);
+    }
+}
@@ -166,6 +166,28 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Open it, read every tuple it returns and close it again.
+     *
+     * @return the tuples, in the order it returned them
+     */
+    public static ArrayList<Tuple> drain(DbFileIterator it)
+        throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            tuples.add(it.next());
+        it.close();
+        return tuples;
+    }
+
+    /**
+     * @return the value of the IntField at index i of t
+     */
+    public static int getIntField(Tuple t, int i) {
+        return ((IntField) t.getField(i)).getValue();
+    }
+
     /**
      * @return a byte array containing the contents of the file 'path'
      */
@@ -0,0 +1,120 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.util.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+    private static final int ROWS = 2000;
+
+    private File file;
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Create a table whose first column counts up from 0, so every page
+     * covers a disjoint range of it.
+     */
+    @Before
+    public void setUp() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++) {
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, i % 7)));
+        }
+        file = File.createTempFile("zonemap", ".dat");
+        file.deleteOnExit();
+        ZoneMap.sidecarFor(file).deleteOnExit();
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+        hf = Utility.openHeapFile(2, file);
+        tid = new TransactionId();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test
+    public void rebuild() throws Exception {
+        ZoneMap zm = hf.getZoneMap();
+        int perPage = 504;
+        assertEquals(hf.numPages(), zm.numPages());
+        for (int p = 0; p < zm.numPages(); p++) {
+            assertEquals(p * perPage, zm.getMin(p, 0));
+            assertEquals(Math.min(ROWS, (p + 1) * perPage) - 1, zm.getMax(p, 0));
+            assertEquals(0, zm.getMin(p, 1));
+            assertEquals(6, zm.getMax(p, 1));
+        }
+        assertTrue(ZoneMap.sidecarFor(file).exists());
+
+        // a second HeapFile on the same file loads the saved sidecar
+        ZoneMap loaded = new HeapFile(file, hf.getTupleDesc()).getZoneMap();
+        assertEquals(zm.toString(), loaded.toString());
+    }
+
+    @Test
+    public void mayMatch() throws Exception {
+        ZoneMap zm = hf.getZoneMap();
+        Predicate[] range = new Predicate[] {
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(600)),
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(1000)) };
+        assertFalse(zm.mayMatch(0, range));
+        assertTrue(zm.mayMatch(1, range));
+        assertFalse(zm.mayMatch(2, range));
+
+        Predicate[] eq = new Predicate[] {
+                new Predicate(1, Predicate.Op.EQUALS, new IntField(9)) };
+        for (int p = 0; p < zm.numPages(); p++)
+            assertFalse(zm.mayMatch(p, eq));
+    }
+
+    @Test
+    public void filteredScan() throws Exception {
+        Database.getCatalog().addTable(hf, "zonemap");
+        Predicate[] range = new Predicate[] {
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(1500)),
+                new Predicate(0, Predicate.Op.LESS_THAN_OR_EQ, new IntField(1510)) };
+        DbFileIterator it = hf.iterator(tid, range);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            int v = ((IntField) it.next().getField(0)).getValue();
+            assertTrue(v > 1500 && v <= 1510);
+            count++;
+        }
+        it.close();
+        assertEquals(10, count);
+    }
+
+    @Test
+    public void insertAndDelete() throws Exception {
+        Database.getCatalog().addTable(hf, "zonemap");
+        ZoneMap zm = hf.getZoneMap();
+        int lastPage = hf.numPages() - 1;
+
+        Tuple t = Utility.getHeapTuple(new int[] { -5, 100 });
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        int page = t.getRecordId().getPageId().pageNumber();
+        assertEquals(lastPage, page);
+        assertEquals(-5, zm.getMin(page, 0));
+        assertEquals(100, zm.getMax(page, 1));
+
+        Database.getBufferPool().deleteTuple(tid, t);
+        assertEquals(lastPage * 504, zm.getMin(page, 0));
+        assertEquals(6, zm.getMax(page, 1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}
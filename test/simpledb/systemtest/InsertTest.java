@@ -10,6 +10,12 @@ import org.junit.Test;
 public class InsertTest extends SimpleDbTestBase {
     private void validateInsert(int columns, int sourceRows, int destinationRows)
                 throws DbException, IOException, TransactionAbortedException {
+        validateInsert(columns, sourceRows, destinationRows, false);
+    }
+
+    private void validateInsert(int columns, int sourceRows, int destinationRows,
+                boolean bulkLoad)
+                throws DbException, IOException, TransactionAbortedException {
         // Create the two tables
         ArrayList<ArrayList<Integer>> sourceTuples = new ArrayList<ArrayList<Integer>>();
         HeapFile source = SystemTestUtil.createRandomHeapFile(
@@ -23,7 +29,7 @@ public class InsertTest extends SimpleDbTestBase {
         // Insert source into destination
         TransactionId tid = new TransactionId();
         SeqScan ss = new SeqScan(tid, source.getId(), "");
-        Insert insOp = new Insert(tid, ss, destination.getId());
+        Insert insOp = new Insert(tid, ss, destination.getId(), bulkLoad);
 
 //        Query q = new Query(insOp, tid);
         insOp.open();
@@ -68,6 +74,124 @@ public class InsertTest extends SimpleDbTestBase {
         validateInsert(1, 1, 1);
     }
 
+    @Test public void testBulkEmptyToEmpty()
+            throws IOException, DbException, TransactionAbortedException {
+        validateInsert(3, 0, 0, true);
+    }
+
+    @Test public void testBulkOneToOne()
+            throws IOException, DbException, TransactionAbortedException {
+        validateInsert(1, 1, 1, true);
+    }
+
+    @Test public void testBulkManyToOne()
+            throws IOException, DbException, TransactionAbortedException {
+        validateInsert(2, 5000, 1, true);
+    }
+
+    /**
+     * Bulk-load source into destination in a new transaction, leaving the
+     * transaction running.
+     */
+    private Transaction startBulkLoad(HeapFile source, HeapFile destination)
+            throws DbException, IOException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan ss = new SeqScan(t.getId(), source.getId(), "");
+        Insert insOp = new Insert(t.getId(), ss, destination.getId(), true);
+        insOp.open();
+        insOp.next();
+        insOp.close();
+        return t;
+    }
+
+    @Test public void testBulkAbort()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> sourceTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile source = SystemTestUtil.createRandomHeapFile(2, 5000, null, sourceTuples);
+        ArrayList<ArrayList<Integer>> destinationTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile destination = SystemTestUtil.createRandomHeapFile(
+                2, 10, null, destinationTuples);
+        int pages = destination.numPages();
+
+        Transaction t = startBulkLoad(source, destination);
+        ArrayList<ArrayList<Integer>> loaded = new ArrayList<ArrayList<Integer>>(destinationTuples);
+        loaded.addAll(sourceTuples);
+        SystemTestUtil.matchTuples(destination, t.getId(), loaded);
+        t.abort();
+
+        assertEquals(pages, destination.numPages());
+        SystemTestUtil.matchTuples(destination, destinationTuples);
+    }
+
+    @Test(timeout = 60000) public void testBulkAbortWithOpenScan()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> sourceTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile source = SystemTestUtil.createRandomHeapFile(2, 5000, null, sourceTuples);
+        ArrayList<ArrayList<Integer>> destinationTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile destination = SystemTestUtil.createRandomHeapFile(
+                2, 10, null, destinationTuples);
+        int pages = destination.numPages();
+
+        // Leave a scan open on one of the appended pages, so it stays pinned
+        Transaction t = startBulkLoad(source, destination);
+        SeqScan scan = new SeqScan(t.getId(), destination.getId(), "");
+        scan.open();
+        for (int i = 0; i <= destinationTuples.size(); i++)
+            scan.next();
+        t.abort();
+        scan.close();
+
+        assertEquals(pages, destination.numPages());
+        SystemTestUtil.matchTuples(destination, destinationTuples);
+    }
+
+    @Test public void testInsertDuringBulkLoad()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> sourceTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile source = SystemTestUtil.createRandomHeapFile(2, 1000, null, sourceTuples);
+        ArrayList<ArrayList<Integer>> destinationTuples = new ArrayList<ArrayList<Integer>>();
+        int tuplesPerPage = BufferPool.getPageSize() * 8
+                / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+        HeapFile destination = SystemTestUtil.createRandomHeapFile(
+                2, tuplesPerPage, null, destinationTuples);
+
+        // The first page is full, so a row added while the load is running
+        // must not land on the load's partly filled last page
+        Transaction load = startBulkLoad(source, destination);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), destination.getId(),
+                Utility.getHeapTuple(new int[] { 7, 7 }));
+        t.commit();
+        load.abort();
+
+        ArrayList<Integer> row = new ArrayList<Integer>();
+        row.add(7);
+        row.add(7);
+        destinationTuples.add(row);
+        SystemTestUtil.matchTuples(destination, destinationTuples);
+    }
+
+    @Test public void testBulkRecover()
+            throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> sourceTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile source = SystemTestUtil.createRandomHeapFile(2, 5000, null, sourceTuples);
+        ArrayList<ArrayList<Integer>> destinationTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile destination = SystemTestUtil.createRandomHeapFile(
+                2, 10, null, destinationTuples);
+
+        // The committed load stays; the one still running at the crash goes
+        startBulkLoad(source, destination).commit();
+        int pages = destination.numPages();
+        startBulkLoad(source, destination);
+        Database.getLogFile().recover();
+
+        assertEquals(pages, destination.numPages());
+        destinationTuples.addAll(sourceTuples);
+        SystemTestUtil.matchTuples(destination, destinationTuples);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(InsertTest.class);
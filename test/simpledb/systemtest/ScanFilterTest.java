@@ -0,0 +1,35 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import static org.junit.Assert.*;
+import simpledb.*;
+
+/**
+ * Runs the FilterBase predicates as pushed down into SeqScan rather than
+ * through a Filter operator.
+ */
+public class ScanFilterTest extends FilterBase {
+    @Override
+    protected int applyPredicate(HeapFile table, TransactionId tid, Predicate predicate)
+            throws DbException, TransactionAbortedException, IOException {
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        ss.addPredicate(predicate);
+        ss.open();
+
+        int resultCount = 0;
+        while (ss.hasNext()) {
+            Tuple t = ss.next();
+            assertNotNull(t);
+            assertTrue(predicate.filter(t));
+            resultCount += 1;
+        }
+
+        ss.close();
+        return resultCount;
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ScanFilterTest.class);
+    }
+}